@@ -16,29 +16,37 @@
 
 package com.android.emailcommon.internet;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
-import android.util.Base64;
-import android.util.Base64OutputStream;
 
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
-
+import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.CountingOutputStream;
+import com.android.emailcommon.utility.Utility;
 import com.android.mail.utils.LogUtils;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -54,6 +62,13 @@ import java.util.regex.Pattern;
 public class Rfc822Output {
     private static final String TAG = "Email";
 
+    /** Encode every part as base64, which is safe over any 7-bit transport (the default) */
+    public static final int TRANSFER_7BIT = 0;
+    /** Send text bodies unencoded where possible; the transport must accept 8BITMIME */
+    public static final int TRANSFER_8BIT = 1;
+    /** Also send attachments unencoded; the transport must accept BINARYMIME */
+    public static final int TRANSFER_BINARY = 2;
+
     // In MIME, en_US-like date format should be used. In other words "MMM" should be encoded to
     // "Jan", not the other localized format like "Ene" (meaning January in locale es).
     private static final SimpleDateFormat DATE_FORMAT =
@@ -65,12 +80,51 @@ public class Rfc822Output {
                 Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
     /** Match group in {@code BODY_PATTERN} for the body HTML */
     private static final int BODY_PATTERN_GROUP = 1;
-    /** Index of the plain text version of the message body */
-    private final static int INDEX_BODY_TEXT = 0;
-    /** Index of the HTML version of the message body */
-    private final static int INDEX_BODY_HTML = 1;
     /** Single digit [0-9] to ensure uniqueness of the MIME boundary */
     /*package*/ static byte sBoundaryDigit;
+    /** Buffer size between the encoder and the caller's stream */
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    /** Characters per base64 line, not counting the CRLF */
+    private static final int BASE64_LINE_LENGTH = 76;
+    /**
+     * Bytes of payload encoded at a time.  This is a multiple of 57 (the input for one full
+     * line), so consecutive chunks concatenate to the same output as a single encode.
+     */
+    private static final int BASE64_CHUNK_SIZE = 57 * 1024;
+    private static final byte[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    /** RFC 5322 limit on the length of a line, not counting the CRLF */
+    private static final int MAX_LINE_LENGTH = 998;
+    private static final String[] QUOTED_TEXT_START_POS_PROJECTION =
+            new String[] { BodyColumns.QUOTED_TEXT_START_POS };
+
+    private final Context mContext;
+    private final Message mMessage;
+    private final boolean mSendBcc;
+    private final List<Attachment> mAttachments;
+    /** Where to cut off quoted text in the body, or -1 to send the whole body */
+    private final int mQuotedTextStartPos;
+    /** The multipart boundary, fixed so that a size pass and a write pass agree */
+    private final String mBoundary;
+    /** One of the TRANSFER_* constants */
+    private int mTransferMode = TRANSFER_7BIT;
+    /**
+     * The boundary of a multipart/alternative of both bodies, or null to send only one of them
+     * (see {@link #setAlternativeBodies})
+     */
+    private String mAlternativeBoundary;
+    /** Whether the text and HTML bodies may be sent unencoded, or null if not yet checked */
+    private Boolean mTextIs8BitSafe;
+    private Boolean mHtmlIs8BitSafe;
+    /** Encoder buffers, allocated on first use and shared by all parts */
+    private byte[] mInBuffer;
+    private byte[] mOutBuffer;
+    /** True while {@link #getEncodedSize()} is running */
+    private boolean mDryRun;
+    /** Payload bytes accounted for, but not written, during a dry run */
+    private long mDryRunBytes;
+    /** Cached result of {@link #getEncodedSize()}, or -1 */
+    private long mEncodedSize = -1;
 
     /**
      * Returns just the content between the <body></body> tags. This is not perfect and breaks
@@ -127,14 +181,115 @@ public class Rfc822Output {
             // throw something?
             return;
         }
+        prepare(context, message, useSmartReply, sendBcc, attachments).writeTo(out);
+    }
 
-        final OutputStream stream = new BufferedOutputStream(out, 1024);
-        final Writer writer = new OutputStreamWriter(stream);
+    /**
+     * Prepare a message for output.  The returned object can report the exact number of bytes
+     * it will write (see {@link #getEncodedSize()}) before streaming the message with
+     * {@link #writeTo(OutputStream)}; both passes produce the same bytes, including the MIME
+     * boundary.  Bodies and attachments are streamed from the provider and are never held in
+     * memory as a whole.
+     *
+     * @param context system context for accessing the provider
+     * @param message the message to write out
+     * @param useSmartReply whether or not quoted text is appended to a reply/forward
+     * @param sendBcc Whether to add the bcc header
+     * @param attachments list of attachments to send (or null if retrieved from the message itself)
+     */
+    public static Rfc822Output prepare(Context context, Message message, boolean useSmartReply,
+            boolean sendBcc, List<Attachment> attachments) {
+        // If a list of attachments hasn't been passed in, build one from the message
+        if (attachments == null) {
+            attachments =
+                    Arrays.asList(Attachment.restoreAttachmentsWithMessageId(context, message.mId));
+        }
+        int quotedTextStartPos = -1;
+        if (useSmartReply) {
+            quotedTextStartPos = Utility.getFirstRowInt(context, Body.CONTENT_URI,
+                    QUOTED_TEXT_START_POS_PROJECTION, Body.SELECTION_BY_MESSAGE_KEY,
+                    new String[] {Long.toString(message.mId)}, null, 0, -1);
+        }
+        return new Rfc822Output(context, message, sendBcc, attachments, quotedTextStartPos);
+    }
+
+    private Rfc822Output(Context context, Message message, boolean sendBcc,
+            List<Attachment> attachments, int quotedTextStartPos) {
+        mContext = context;
+        mMessage = message;
+        mSendBcc = sendBcc;
+        mAttachments = attachments;
+        mQuotedTextStartPos = quotedTextStartPos;
+        mBoundary = attachments.size() > 0 ? getNextBoundary() : null;
+    }
+
+    /**
+     * Set how parts are transfer-encoded.  Anything other than {@link #TRANSFER_7BIT} must only
+     * be used when the server has advertised the matching extension.  Text bodies are still
+     * base64-encoded if they could not pass unencoded (over-long lines or NUL bytes).
+     *
+     * @param mode one of {@link #TRANSFER_7BIT}, {@link #TRANSFER_8BIT} or
+     * {@link #TRANSFER_BINARY}
+     */
+    public void setTransferMode(int mode) {
+        mTransferMode = mode;
+        mEncodedSize = -1;
+    }
+
+    /**
+     * Set whether a message with both a plain text and an HTML body is written with both, as a
+     * multipart/alternative, rather than with the plain text body alone.  This is for storing a
+     * full copy of the message (e.g. an IMAP APPEND to Sent or Drafts), and is ignored when
+     * quoted text is cut off.
+     */
+    public void setAlternativeBodies(boolean alternative) {
+        mAlternativeBoundary = alternative && mQuotedTextStartPos <= 0 ? getNextBoundary() : null;
+        mEncodedSize = -1;
+    }
+
+    /**
+     * Returns the exact number of bytes {@link #writeTo(OutputStream)} will produce.  This is a
+     * dry run: headers are generated, but payloads whose length is known up front (attachments
+     * and untruncated bodies) are sized arithmetically instead of being read and encoded.  The
+     * output is already CRLF-normalized, so the result is also the size after an
+     * {@link com.android.emailcommon.utility.EOLConvertingOutputStream}.
+     */
+    public long getEncodedSize() throws IOException, MessagingException {
+        if (mEncodedSize < 0) {
+            final CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+            mDryRunBytes = 0;
+            mDryRun = true;
+            try {
+                write(counter);
+            } finally {
+                mDryRun = false;
+            }
+            mEncodedSize = counter.getCount() + mDryRunBytes;
+        }
+        return mEncodedSize;
+    }
+
+    /**
+     * Write the prepared message to an output stream.  This method provides buffering, so it is
+     * not necessary to pass in a buffered output stream here.
+     */
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        write(out);
+        out.flush();
+    }
+
+    private void write(OutputStream out) throws IOException, MessagingException {
+        final Message message = mMessage;
+        final OutputStream stream = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+        final Writer writer = new OutputStreamWriter(stream, "UTF-8");
 
         // Write the fixed headers.  Ordering is arbitrary (the legacy code iterated through a
         // hashmap here).
 
-        final String date = DATE_FORMAT.format(new Date(message.mTimeStamp));
+        final String date;
+        synchronized (DATE_FORMAT) {
+            date = DATE_FORMAT.format(new Date(message.mTimeStamp));
+        }
         writeHeader(writer, "Date", date);
 
         writeEncodedHeader(writer, "Subject", message.mSubject);
@@ -146,83 +301,192 @@ public class Rfc822Output {
         writeAddressHeader(writer, "Cc", message.mCc);
         // Address fields.  Note that we skip bcc unless the sendBcc argument is true
         // SMTP should NOT send bcc headers, but EAS must send it!
-        if (sendBcc) {
+        if (mSendBcc) {
             writeAddressHeader(writer, "Bcc", message.mBcc);
         }
         writeAddressHeader(writer, "Reply-To", message.mReplyTo);
         writeHeader(writer, "MIME-Version", "1.0");
 
         // Analyze message and determine if we have multiparts
-        final Body body = Body.restoreBodyWithMessageId(context, message.mId);
-        final String[] bodyText = buildBodyText(body, useSmartReply);
+        final PartSource bodySource = openBody();
+        PartSource htmlSource = null;
+        try {
+            if (mAlternativeBoundary != null && bodySource != null && !bodySource.mHtml) {
+                htmlSource = openUri(Body.getBodyHtmlUriForMessageWithId(mMessage.mId), true);
+            }
+            final List<Attachment> attachments = mAttachments;
+            final boolean multipart = attachments.size() > 0;
 
-        // If a list of attachments hasn't been passed in, build one from the message
-        if (attachments == null) {
-            attachments =
-                    Arrays.asList(Attachment.restoreAttachmentsWithMessageId(context, message.mId));
-        }
+            // Simplified case for no multipart - just emit text and be done.
+            if (!multipart) {
+                writeBody(writer, stream, bodySource, htmlSource);
+            } else {
+                // continue with multipart headers, then into multipart body
+                final String multipartBoundary = mBoundary;
+                String multipartType = "mixed";
+
+                // Move to the first attachment; this must succeed because multipart is true
+                if (attachments.size() == 1) {
+                    // If we've got one attachment and it's an ics "attachment", we want to send
+                    // this as multipart/alternative instead of multipart/mixed
+                    final int flags = attachments.get(0).mFlags;
+                    if ((flags & Attachment.FLAG_ICS_ALTERNATIVE_PART) != 0) {
+                        multipartType = "alternative";
+                    }
+                }
 
-        final boolean multipart = attachments.size() > 0;
+                writeHeader(writer, "Content-Type",
+                        "multipart/" + multipartType + "; boundary=\"" + multipartBoundary + "\"");
+                // Finish headers and prepare for body section(s)
+                writer.write("\r\n");
 
-        // Simplified case for no multipart - just emit text and be done.
-        if (!multipart) {
-            writeTextWithHeaders(writer, stream, bodyText);
-        } else {
-            // continue with multipart headers, then into multipart body
-            final String multipartBoundary = getNextBoundary();
-            String multipartType = "mixed";
-
-            // Move to the first attachment; this must succeed because multipart is true
-            if (attachments.size() == 1) {
-                // If we've got one attachment and it's an ics "attachment", we want to send
-                // this as multipart/alternative instead of multipart/mixed
-                final int flags = attachments.get(0).mFlags;
-                if ((flags & Attachment.FLAG_ICS_ALTERNATIVE_PART) != 0) {
-                    multipartType = "alternative";
+                // first multipart element is the body
+                if (bodySource != null) {
+                    writeBoundary(writer, multipartBoundary, false);
+                    writeBody(writer, stream, bodySource, htmlSource);
                 }
-            }
 
-            writeHeader(writer, "Content-Type",
-                    "multipart/" + multipartType + "; boundary=\"" + multipartBoundary + "\"");
-            // Finish headers and prepare for body section(s)
-            writer.write("\r\n");
+                // Write out the attachments until we run out
+                for (final Attachment att: attachments) {
+                    writeBoundary(writer, multipartBoundary, false);
+                    writeOneAttachment(writer, stream, att);
+                    writer.write("\r\n");
+                }
 
-            // first multipart element is the body
-            if (bodyText[INDEX_BODY_TEXT] != null || bodyText[INDEX_BODY_HTML] != null) {
-                writeBoundary(writer, multipartBoundary, false);
-                writeTextWithHeaders(writer, stream, bodyText);
+                // end of multipart section
+                writeBoundary(writer, multipartBoundary, true);
+            }
+        } finally {
+            if (bodySource != null) {
+                bodySource.close();
             }
+            if (htmlSource != null) {
+                htmlSource.close();
+            }
+        }
 
-            // Write out the attachments until we run out
-            for (final Attachment att: attachments) {
-                writeBoundary(writer, multipartBoundary, false);
-                writeOneAttachment(context, writer, stream, att);
-                writer.write("\r\n");
+        writer.flush();
+        stream.flush();
+    }
+
+    /**
+     * Write the body: a single text part, or a multipart/alternative of the plain text and HTML
+     * bodies if both are to be sent.
+     *
+     * @param bodySource the plain text or HTML body, or null if there is none
+     * @param htmlSource the HTML body to send along with the plain text one, or null
+     */
+    private void writeBody(Writer writer, OutputStream out, PartSource bodySource,
+            PartSource htmlSource) throws IOException {
+        if (htmlSource == null) {
+            writeTextWithHeaders(writer, out, bodySource);
+            return;
+        }
+        final String boundary = mAlternativeBoundary;
+        writeHeader(writer, "Content-Type",
+                "multipart/alternative; boundary=\"" + boundary + "\"");
+        writer.write("\r\n");
+        writeBoundary(writer, boundary, false);
+        writeTextWithHeaders(writer, out, bodySource);
+        writeBoundary(writer, boundary, false);
+        writeTextWithHeaders(writer, out, htmlSource);
+        writeBoundary(writer, boundary, true);
+    }
+
+    /**
+     * Open the body part to send: the plain text body if there is one, otherwise the HTML body
+     * (see {@link #setAlternativeBodies} for sending both).  Quoted text is cut off here if
+     * smart reply is in use.
+     *
+     * @return the body source, or null if the message has no body at all
+     */
+    private PartSource openBody() throws IOException {
+        final long messageId = mMessage.mId;
+        PartSource source = openUri(Body.getBodyTextUriForMessageWithId(messageId), false);
+        if (source == null) {
+            source = openUri(Body.getBodyHtmlUriForMessageWithId(messageId), true);
+        }
+        if (source != null && mQuotedTextStartPos > 0) {
+            try {
+                final byte[] truncated = readTruncated(source.mStream, mQuotedTextStartPos);
+                if (truncated != null) {
+                    final PartSource result = new PartSource(
+                            new ByteArrayInputStream(truncated), truncated.length, source.mHtml);
+                    source.close();
+                    source = result;
+                }
+            } catch (IOException e) {
+                source.close();
+                throw e;
             }
+        }
+        return source;
+    }
 
-            // end of multipart section
-            writeBoundary(writer, multipartBoundary, true);
+    /**
+     * Open a body file through the provider.  Empty bodies are never stored, so a missing or
+     * empty file means there is no such body.
+     */
+    private PartSource openUri(Uri uri, boolean html) {
+        final ParcelFileDescriptor pfd;
+        try {
+            pfd = mContext.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (pfd == null) {
+            return null;
+        }
+        final long length = pfd.getStatSize();
+        if (length == 0) {
+            try {
+                pfd.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            return null;
         }
+        return new PartSource(new ParcelFileDescriptor.AutoCloseInputStream(pfd), length, html);
+    }
 
-        writer.flush();
-        out.flush();
+    /**
+     * Read the first {@code maxChars} characters of a UTF-8 stream, returning them re-encoded
+     * as UTF-8, or null if the stream is no longer than that (i.e. nothing to cut off).  Only the
+     * new text in front of the quote is ever held in memory.
+     */
+    private static byte[] readTruncated(InputStream in, int maxChars) throws IOException {
+        final Reader reader = new InputStreamReader(in, "UTF-8");
+        final StringBuilder sb = new StringBuilder(Math.min(maxChars, 4096));
+        final char[] buf = new char[4096];
+        while (sb.length() < maxChars) {
+            final int read = reader.read(buf, 0, Math.min(buf.length, maxChars - sb.length()));
+            if (read < 0) {
+                return null;
+            }
+            sb.append(buf, 0, read);
+        }
+        if (reader.read() < 0) {
+            return null;
+        }
+        return sb.toString().getBytes("UTF-8");
     }
 
     /**
      * Write a single attachment and its payload
      */
-    private static void writeOneAttachment(Context context, Writer writer, OutputStream out,
-            Attachment attachment) throws IOException, MessagingException {
+    private void writeOneAttachment(Writer writer, OutputStream out, Attachment attachment)
+            throws IOException, MessagingException {
+        final boolean binary = mTransferMode == TRANSFER_BINARY;
         writeHeader(writer, "Content-Type",
-                attachment.mMimeType + ";\n name=\"" + attachment.mFileName + "\"");
-        writeHeader(writer, "Content-Transfer-Encoding", "base64");
+                attachment.mMimeType + ";\r\n name=\"" + attachment.mFileName + "\"");
+        writeHeader(writer, "Content-Transfer-Encoding", binary ? "binary" : "base64");
         // Most attachments (real files) will send Content-Disposition.  The suppression option
         // is used when sending calendar invites.
         if ((attachment.mFlags & Attachment.FLAG_ICS_ALTERNATIVE_PART) == 0) {
             writeHeader(writer, "Content-Disposition",
                     "attachment;"
-                    + "\n filename=\"" + attachment.mFileName + "\";"
-                    + "\n size=" + Long.toString(attachment.mSize));
+                    + "\r\n filename=\"" + attachment.mFileName + "\";"
+                    + "\r\n size=" + Long.toString(attachment.mSize));
         }
         if (attachment.mContentId != null) {
             writeHeader(writer, "Content-ID", attachment.mContentId);
@@ -230,47 +494,23 @@ public class Rfc822Output {
         writer.append("\r\n");
 
         // Set up input stream and write it out via base64
-        InputStream inStream = null;
+        PartSource source = null;
         try {
-            // Use content, if provided; otherwise, use the contentUri
-            if (attachment.mContentBytes != null) {
-                inStream = new ByteArrayInputStream(attachment.mContentBytes);
+            source = openAttachment(attachment);
+            // switch to output stream for base64 text output
+            writer.flush();
+            if (binary) {
+                // The CRLF that follows belongs to the boundary, so nothing may be added here
+                writeBinary(out, source);
             } else {
-                // First try the cached file
-                final String cachedFile = attachment.getCachedFileUri();
-                if (!TextUtils.isEmpty(cachedFile)) {
-                    final Uri cachedFileUri = Uri.parse(cachedFile);
-                    try {
-                        inStream = context.getContentResolver().openInputStream(cachedFileUri);
-                    } catch (FileNotFoundException e) {
-                        // Couldn't open the cached file, fall back to the original content uri
-                        inStream = null;
-
-                        LogUtils.d(TAG, "Rfc822Output#writeOneAttachment(), failed to load" +
-                                "cached file, falling back to: %s", attachment.getContentUri());
-                    }
-                }
+                writeBase64(out, source);
 
-                if (inStream == null) {
-                    // try to open the file
-                    final Uri fileUri = Uri.parse(attachment.getContentUri());
-                    inStream = context.getContentResolver().openInputStream(fileUri);
-                }
+                // The old Base64OutputStream wrote an extra CRLF after
+                // the output.  It's not required by the base-64 spec; not
+                // sure if it's required by RFC 822 or not.
+                out.write('\r');
+                out.write('\n');
             }
-            // switch to output stream for base64 text output
-            writer.flush();
-            Base64OutputStream base64Out = new Base64OutputStream(
-                out, Base64.CRLF | Base64.NO_CLOSE);
-            // copy base64 data and close up
-            IOUtils.copy(inStream, base64Out);
-            base64Out.close();
-
-            // The old Base64OutputStream wrote an extra CRLF after
-            // the output.  It's not required by the base-64 spec; not
-            // sure if it's required by RFC 822 or not.
-            out.write('\r');
-            out.write('\n');
-            out.flush();
         }
         catch (FileNotFoundException fnfe) {
             // Ignore this - empty file is OK
@@ -281,9 +521,256 @@ public class Rfc822Output {
             LogUtils.e(TAG, ioe, "Rfc822Output#writeOneAttachment(), IOException" +
                     "when sending attachment");
             throw new MessagingException("Invalid attachment.", ioe);
+        } finally {
+            if (source != null) {
+                source.close();
+            }
         }
     }
 
+    /**
+     * Open an attachment's payload: its content bytes if provided, otherwise the cached file,
+     * otherwise the content uri.  Files we can read directly are read directly, and on a dry run
+     * only their length is taken, so that each attachment is opened once per send.
+     */
+    private PartSource openAttachment(Attachment attachment) throws FileNotFoundException {
+        if (attachment.mContentBytes != null) {
+            return new PartSource(new ByteArrayInputStream(attachment.mContentBytes),
+                    attachment.mContentBytes.length, false);
+        }
+        PartSource local = openLocalFile(attachment.getCachedFileUri());
+        if (local == null) {
+            local = openLocalFile(attachment.getContentUri());
+        }
+        if (local != null) {
+            return local;
+        }
+        final ContentResolver resolver = mContext.getContentResolver();
+        // First try the cached file
+        final String cachedFile = attachment.getCachedFileUri();
+        if (!TextUtils.isEmpty(cachedFile)) {
+            try {
+                final ParcelFileDescriptor pfd =
+                        resolver.openFileDescriptor(Uri.parse(cachedFile), "r");
+                if (pfd != null) {
+                    return new PartSource(new ParcelFileDescriptor.AutoCloseInputStream(pfd),
+                            pfd.getStatSize(), false);
+                }
+            } catch (FileNotFoundException e) {
+                // Couldn't open the cached file, fall back to the original content uri
+                LogUtils.d(TAG, "Rfc822Output#writeOneAttachment(), failed to load" +
+                        "cached file, falling back to: %s", attachment.getContentUri());
+            }
+        }
+
+        // try to open the file
+        final Uri fileUri = Uri.parse(attachment.getContentUri());
+        final ParcelFileDescriptor pfd = resolver.openFileDescriptor(fileUri, "r");
+        if (pfd == null) {
+            throw new FileNotFoundException("No descriptor for " + fileUri);
+        }
+        return new PartSource(new ParcelFileDescriptor.AutoCloseInputStream(pfd),
+                pfd.getStatSize(), false);
+    }
+
+    /**
+     * Open the local file behind an attachment uri, without going through its provider.
+     * @return the payload (without a stream on a dry run), or null if the uri isn't for a file
+     * that this process can read
+     */
+    private PartSource openLocalFile(String uri) throws FileNotFoundException {
+        final File file = AttachmentUtilities.getLocalFile(mContext, uri);
+        if (file == null || !file.isFile() || !file.canRead()) {
+            return null;
+        }
+        final long length = file.length();
+        return new PartSource(mDryRun ? null : new FileInputStream(file), length, false);
+    }
+
+    /**
+     * Base64-encode a payload in CRLF-terminated 76 character lines, through one large buffer
+     * that is reused for every part of the message.  On a dry run, payloads of known length
+     * are sized without being read.
+     */
+    private void writeBase64(OutputStream out, PartSource source) throws IOException {
+        if (mDryRun && source.mLength >= 0) {
+            mDryRunBytes += getBase64Length(source.mLength);
+            return;
+        }
+        if (mInBuffer == null) {
+            mInBuffer = new byte[BASE64_CHUNK_SIZE];
+            mOutBuffer = new byte[getBase64Length(BASE64_CHUNK_SIZE)];
+        }
+        final byte[] in = mInBuffer;
+        int read;
+        while ((read = readFully(source.mStream, in)) > 0) {
+            out.write(mOutBuffer, 0, encodeBase64(in, read, mOutBuffer));
+        }
+    }
+
+    /**
+     * Copy a payload unencoded.  On a dry run, payloads of known length are not read.
+     */
+    private void writeBinary(OutputStream out, PartSource source) throws IOException {
+        if (mDryRun && source.mLength >= 0) {
+            mDryRunBytes += source.mLength;
+            return;
+        }
+        if (mInBuffer == null) {
+            mInBuffer = new byte[BASE64_CHUNK_SIZE];
+            mOutBuffer = new byte[getBase64Length(BASE64_CHUNK_SIZE)];
+        }
+        int read;
+        while ((read = source.mStream.read(mInBuffer)) > 0) {
+            out.write(mInBuffer, 0, read);
+        }
+    }
+
+    /**
+     * Copy a text payload unencoded, making sure the part ends with a line break.  The payload
+     * is read even on a dry run, since whether it ends with a line break isn't known up front.
+     */
+    private static void writeEightBit(OutputStream out, PartSource source) throws IOException {
+        final InputStream in = new BufferedInputStream(source.mStream, OUTPUT_BUFFER_SIZE);
+        int last = '\n';
+        int c;
+        while ((c = in.read()) >= 0) {
+            out.write(c);
+            last = c;
+        }
+        if (last != '\n') {
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Returns whether a body can be sent with an 8bit transfer encoding: no NUL bytes, no CR or
+     * LF other than as a CRLF pair (RFC 6152), and no line longer than {@link #MAX_LINE_LENGTH}.
+     * This scans a separately opened copy of the
+     * body, and the answer is kept so that the size and write passes agree.
+     *
+     * @param html whether to check the HTML body rather than the plain text one
+     */
+    private boolean isBody8BitSafe(boolean html) throws IOException {
+        Boolean known = html ? mHtmlIs8BitSafe : mTextIs8BitSafe;
+        if (known == null) {
+            final long messageId = mMessage.mId;
+            // The whole body is checked even if it's cut off, which is never less safe
+            final PartSource source = html
+                    ? openUri(Body.getBodyHtmlUriForMessageWithId(messageId), true)
+                    : openUri(Body.getBodyTextUriForMessageWithId(messageId), false);
+            boolean safe = true;
+            if (source != null) {
+                try {
+                    final InputStream in =
+                            new BufferedInputStream(source.mStream, OUTPUT_BUFFER_SIZE);
+                    int lineLength = 0;
+                    int last = -1;
+                    int c;
+                    while ((c = in.read()) >= 0) {
+                        if (c == 0 || (c == '\n') != (last == '\r')) {
+                            // A NUL, a bare LF, or a CR that isn't followed by LF
+                            safe = false;
+                            break;
+                        } else if (c == '\n') {
+                            lineLength = 0;
+                        } else if (c != '\r' && ++lineLength > MAX_LINE_LENGTH) {
+                            safe = false;
+                            break;
+                        }
+                        last = c;
+                    }
+                    // Nor may the body end with a bare CR
+                    safe &= last != '\r';
+                } finally {
+                    source.close();
+                }
+            }
+            known = safe;
+            if (html) {
+                mHtmlIs8BitSafe = known;
+            } else {
+                mTextIs8BitSafe = known;
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Fill the buffer as far as the stream allows, so that every chunk but the last is a whole
+     * number of base64 lines.
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            final int read = in.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of bytes {@link #encodeBase64} produces for {@code length} input bytes,
+     * including the line terminators.
+     */
+    /*package*/ static int getBase64Length(long length) {
+        if (length <= 0) {
+            return 0;
+        }
+        final long chars = (length + 2) / 3 * 4;
+        final long lines = (chars + BASE64_LINE_LENGTH - 1) / BASE64_LINE_LENGTH;
+        return (int) (chars + lines * 2);
+    }
+
+    /**
+     * Base64-encode {@code length} bytes of {@code in} into {@code out}, breaking lines at 76
+     * characters with CRLF and terminating the last line.  The output matches
+     * {@code Base64.encode(in, Base64.CRLF)} for the same bytes.
+     *
+     * @return the number of bytes written to {@code out}
+     */
+    /*package*/ static int encodeBase64(byte[] in, int length, byte[] out) {
+        int op = 0;
+        int lineChars = 0;
+        int ip = 0;
+        while (ip + 3 <= length) {
+            final int v = ((in[ip] & 0xff) << 16) | ((in[ip + 1] & 0xff) << 8)
+                    | (in[ip + 2] & 0xff);
+            ip += 3;
+            out[op++] = BASE64_ALPHABET[(v >> 18) & 0x3f];
+            out[op++] = BASE64_ALPHABET[(v >> 12) & 0x3f];
+            out[op++] = BASE64_ALPHABET[(v >> 6) & 0x3f];
+            out[op++] = BASE64_ALPHABET[v & 0x3f];
+            lineChars += 4;
+            if (lineChars == BASE64_LINE_LENGTH) {
+                out[op++] = '\r';
+                out[op++] = '\n';
+                lineChars = 0;
+            }
+        }
+        final int remaining = length - ip;
+        if (remaining > 0) {
+            int v = (in[ip] & 0xff) << 16;
+            if (remaining == 2) {
+                v |= (in[ip + 1] & 0xff) << 8;
+            }
+            out[op++] = BASE64_ALPHABET[(v >> 18) & 0x3f];
+            out[op++] = BASE64_ALPHABET[(v >> 12) & 0x3f];
+            out[op++] = remaining == 2 ? BASE64_ALPHABET[(v >> 6) & 0x3f] : (byte) '=';
+            out[op++] = '=';
+            lineChars += 4;
+        }
+        if (lineChars > 0) {
+            out[op++] = '\r';
+            out[op++] = '\n';
+        }
+        return op;
+    }
+
     /**
      * Write a single header with no wrapping or encoding
      *
@@ -354,33 +841,57 @@ public class Rfc822Output {
     /**
      * Write the body text.
      *
-     * Note this always uses base64, even when not required.  Slightly less efficient for
-     * US-ASCII text, but handles all formats even when non-ascii chars are involved.  A small
-     * optimization might be to prescan the string for safety and send raw if possible.
+     * This uses base64 unless the transfer mode allows 8bit and a prescan of the body shows it
+     * is safe to send raw.
      *
      * @param writer the output writer
      * @param out the output stream inside the writer (used for byte[] access)
-     * @param bodyText Plain text and HTML versions of the original text of the message
+     * @param bodySource the plain text or HTML body to send, or null if there is none
      */
-    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText)
+    private void writeTextWithHeaders(Writer writer, OutputStream out, PartSource bodySource)
             throws IOException {
-        boolean html = false;
-        String text = bodyText[INDEX_BODY_TEXT];
-        if (TextUtils.isEmpty(text)) {
-            text = bodyText[INDEX_BODY_HTML];
-            html = true;
-        }
-        if (TextUtils.isEmpty(text)) {
+        if (bodySource == null) {
             writer.write("\r\n");       // a truly empty message
         } else {
             // first multipart element is the body
-            final String mimeType = "text/" + (html ? "html" : "plain");
+            final String mimeType = "text/" + (bodySource.mHtml ? "html" : "plain");
+            final boolean eightBit =
+                    mTransferMode != TRANSFER_7BIT && isBody8BitSafe(bodySource.mHtml);
             writeHeader(writer, "Content-Type", mimeType + "; charset=utf-8");
-            writeHeader(writer, "Content-Transfer-Encoding", "base64");
+            writeHeader(writer, "Content-Transfer-Encoding", eightBit ? "8bit" : "base64");
             writer.write("\r\n");
-            final byte[] textBytes = text.getBytes("UTF-8");
             writer.flush();
-            out.write(Base64.encode(textBytes, Base64.CRLF));
+            if (eightBit) {
+                writeEightBit(out, bodySource);
+            } else {
+                writeBase64(out, bodySource);
+            }
+        }
+    }
+
+    /**
+     * A body or attachment payload to be encoded, with its length in bytes if known (-1 if not).
+     */
+    private static class PartSource {
+        final InputStream mStream;
+        final long mLength;
+        final boolean mHtml;
+
+        PartSource(InputStream stream, long length, boolean html) {
+            mStream = stream;
+            mLength = length;
+            mHtml = html;
+        }
+
+        void close() {
+            if (mStream == null) {
+                return;
+            }
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
         }
     }
 
@@ -200,6 +200,7 @@ public abstract class EmailContent {
             Message.initMessage();
             MessageMove.init();
             MessageStateChange.init();
+            SearchResult.init();
             Body.initBody();
             Attachment.initAttachment();
             SuggestedContact.initSuggestedContact();
@@ -708,6 +709,12 @@ public abstract class EmailContent {
         // can be addressed.
         public static final String MAIN_MAILBOX_KEY = "mainMailboxKey";
 
+        // The message-ids this message refers to, from its References and In-Reply-To headers,
+        // oldest first and separated by spaces
+        public static final String THREAD_REFERENCES = "threadReferences";
+        // The thread of the message within its mailbox; set by EmailProvider on insertion, and
+        // not to be written by sync adapters
+        public static final String THREAD_ROOT = "threadRoot";
     }
 
     public static final class Message extends EmailContent {
@@ -768,6 +775,7 @@ public abstract class EmailContent {
         public static final int CONTENT_SYNC_DATA_COLUMN = 24;
         public static final int CONTENT_FLAG_SEEN_COLUMN = 25;
         public static final int CONTENT_MAIN_MAILBOX_KEY_COLUMN = 26;
+        public static final int CONTENT_THREAD_REFERENCES_COLUMN = 27;
 
         public static final String[] CONTENT_PROJECTION = {
             MessageColumns._ID,
@@ -783,7 +791,8 @@ public abstract class EmailContent {
             SyncColumns.SERVER_TIMESTAMP, MessageColumns.MEETING_INFO,
             MessageColumns.SNIPPET, MessageColumns.PROTOCOL_SEARCH_INFO,
             MessageColumns.THREAD_TOPIC, MessageColumns.SYNC_DATA,
-            MessageColumns.FLAG_SEEN, MessageColumns.MAIN_MAILBOX_KEY
+            MessageColumns.FLAG_SEEN, MessageColumns.MAIN_MAILBOX_KEY,
+            MessageColumns.THREAD_REFERENCES
         };
 
         public static final int LIST_ID_COLUMN = 0;
@@ -920,6 +929,8 @@ public abstract class EmailContent {
 
         public String mThreadTopic;
 
+        public String mThreadReferences;
+
         public String mSyncData;
 
         /**
@@ -1032,6 +1043,7 @@ public abstract class EmailContent {
             values.put(MessageColumns.THREAD_TOPIC, mThreadTopic);
             values.put(MessageColumns.SYNC_DATA, mSyncData);
             values.put(MessageColumns.MAIN_MAILBOX_KEY, mMainMailboxKey);
+            values.put(MessageColumns.THREAD_REFERENCES, mThreadReferences);
             return values;
         }
 
@@ -1069,6 +1081,7 @@ public abstract class EmailContent {
             mSnippet = cursor.getString(CONTENT_SNIPPET_COLUMN);
             mProtocolSearchInfo = cursor.getString(CONTENT_PROTOCOL_SEARCH_INFO_COLUMN);
             mThreadTopic = cursor.getString(CONTENT_THREAD_TOPIC_COLUMN);
+            mThreadReferences = cursor.getString(CONTENT_THREAD_REFERENCES_COLUMN);
             mSyncData = cursor.getString(CONTENT_SYNC_DATA_COLUMN);
         }
 
@@ -1332,6 +1345,9 @@ public abstract class EmailContent {
         public static final String UI_DESTINATION = "uiDestination";
         // The UIProvider downloaded size of the attachment
         public static final String UI_DOWNLOADED_SIZE = "uiDownloadedSize";
+        // The number of bytes of an interrupted download that are saved, and need not be
+        // downloaded again
+        public static final String FETCH_OFFSET = "fetchOffset";
     }
 
     public static final class Attachment extends EmailContent implements Parcelable {
@@ -1375,6 +1391,7 @@ public abstract class EmailContent {
         public int mUiState;
         public int mUiDestination;
         public int mUiDownloadedSize;
+        public long mFetchOffset;
 
         public static final int CONTENT_ID_COLUMN = 0;
         public static final int CONTENT_FILENAME_COLUMN = 1;
@@ -1393,6 +1410,7 @@ public abstract class EmailContent {
         public static final int CONTENT_UI_STATE_COLUMN = 14;
         public static final int CONTENT_UI_DESTINATION_COLUMN = 15;
         public static final int CONTENT_UI_DOWNLOADED_SIZE_COLUMN = 16;
+        public static final int CONTENT_FETCH_OFFSET_COLUMN = 17;
         public static final String[] CONTENT_PROJECTION = {
             AttachmentColumns._ID, AttachmentColumns.FILENAME, AttachmentColumns.MIME_TYPE,
             AttachmentColumns.SIZE, AttachmentColumns.CONTENT_ID, AttachmentColumns.CONTENT_URI,
@@ -1400,7 +1418,7 @@ public abstract class EmailContent {
             AttachmentColumns.LOCATION, AttachmentColumns.ENCODING, AttachmentColumns.CONTENT,
             AttachmentColumns.FLAGS, AttachmentColumns.CONTENT_BYTES, AttachmentColumns.ACCOUNT_KEY,
             AttachmentColumns.UI_STATE, AttachmentColumns.UI_DESTINATION,
-            AttachmentColumns.UI_DOWNLOADED_SIZE
+            AttachmentColumns.UI_DOWNLOADED_SIZE, AttachmentColumns.FETCH_OFFSET
         };
 
         // All attachments with an empty URI, regardless of mailbox
@@ -1565,6 +1583,7 @@ public abstract class EmailContent {
             mUiState = cursor.getInt(CONTENT_UI_STATE_COLUMN);
             mUiDestination = cursor.getInt(CONTENT_UI_DESTINATION_COLUMN);
             mUiDownloadedSize = cursor.getInt(CONTENT_UI_DOWNLOADED_SIZE_COLUMN);
+            mFetchOffset = cursor.getLong(CONTENT_FETCH_OFFSET_COLUMN);
         }
 
         @Override
@@ -1586,6 +1605,7 @@ public abstract class EmailContent {
             values.put(AttachmentColumns.UI_STATE, mUiState);
             values.put(AttachmentColumns.UI_DESTINATION, mUiDestination);
             values.put(AttachmentColumns.UI_DOWNLOADED_SIZE, mUiDownloadedSize);
+            values.put(AttachmentColumns.FETCH_OFFSET, mFetchOffset);
             return values;
         }
 
@@ -1619,6 +1639,7 @@ public abstract class EmailContent {
             dest.writeInt(mUiState);
             dest.writeInt(mUiDestination);
             dest.writeInt(mUiDownloadedSize);
+            dest.writeLong(mFetchOffset);
         }
 
         public Attachment(Parcel in) {
@@ -1646,6 +1667,7 @@ public abstract class EmailContent {
             mUiState = in.readInt();
             mUiDestination = in.readInt();
             mUiDownloadedSize = in.readInt();
+            mFetchOffset = in.readLong();
          }
 
         public static final Parcelable.Creator<EmailContent.Attachment> CREATOR
@@ -1667,7 +1689,7 @@ public abstract class EmailContent {
                     + mContentUri + ", " + mCachedFileUri + ", " + mMessageKey + ", "
                     + mLocation + ", " + mEncoding  + ", " + mFlags + ", " + mContentBytes + ", "
                     + mAccountKey +  "," + mUiState + "," + mUiDestination + ","
-                    + mUiDownloadedSize + "]";
+                    + mUiDownloadedSize + "," + mFetchOffset + "]";
         }
     }
 
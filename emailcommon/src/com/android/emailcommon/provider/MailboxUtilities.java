@@ -16,19 +16,27 @@
 
 package com.android.emailcommon.provider;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.provider.EmailContent.AccountColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 public class MailboxUtilities {
 
@@ -48,56 +56,10 @@ public class MailboxUtilities {
     @Deprecated
     public static void setFlagsAndChildrensParentKey(Context context, Cursor parentCursor,
             String accountSelector) {
-        ContentResolver resolver = context.getContentResolver();
-        String[] selectionArgs = new String[1];
-        ContentValues parentValues = new ContentValues();
-        // Get the data we need first
-        long parentId = parentCursor.getLong(Mailbox.CONTENT_ID_COLUMN);
-        int parentFlags = 0;
-        int parentType = parentCursor.getInt(Mailbox.CONTENT_TYPE_COLUMN);
-        String parentServerId = parentCursor.getString(Mailbox.CONTENT_SERVER_ID_COLUMN);
-        // All email-type boxes hold mail
-        if (parentType <= Mailbox.TYPE_NOT_EMAIL) {
-            parentFlags |= Mailbox.FLAG_HOLDS_MAIL + Mailbox.FLAG_SUPPORTS_SETTINGS;
-        }
-        // Outbox, Drafts, and Sent don't allow mail to be moved to them
-        if (parentType == Mailbox.TYPE_MAIL || parentType == Mailbox.TYPE_TRASH ||
-                parentType == Mailbox.TYPE_JUNK || parentType == Mailbox.TYPE_INBOX) {
-            parentFlags |= Mailbox.FLAG_ACCEPTS_MOVED_MAIL;
-        }
-        // There's no concept of "append" in EAS so FLAG_ACCEPTS_APPENDED_MAIL is never used
-        // Mark parent mailboxes as parents & add parent key to children
-        // An example of a mailbox with a null serverId would be an Outbox that we create locally
-        // for hotmail accounts (which don't have a server-based Outbox)
-        if (parentServerId != null) {
-            selectionArgs[0] = parentServerId;
-            Cursor childCursor = resolver.query(Mailbox.CONTENT_URI,
-                    Mailbox.ID_PROJECTION, MailboxColumns.PARENT_SERVER_ID + "=? AND " +
-                    accountSelector, selectionArgs, null);
-            if (childCursor == null) return;
-            try {
-                while (childCursor.moveToNext()) {
-                    parentFlags |= Mailbox.FLAG_HAS_CHILDREN | Mailbox.FLAG_CHILDREN_VISIBLE;
-                    ContentValues childValues = new ContentValues();
-                    childValues.put(Mailbox.PARENT_KEY, parentId);
-                    long childId = childCursor.getLong(Mailbox.ID_PROJECTION_COLUMN);
-                    resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, childId),
-                            childValues, null, null);
-                }
-            } finally {
-                childCursor.close();
-            }
-        } else {
-            // Mark this is having no parent, so that we don't examine this mailbox again
-            parentValues.put(Mailbox.PARENT_KEY, Mailbox.NO_MAILBOX);
-            LogUtils.w(Logging.LOG_TAG, "Mailbox with null serverId: " +
-                    parentCursor.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN) + ", type: " +
-                    parentType);
-        }
-        // Save away updated flags and parent key (if any)
-        parentValues.put(Mailbox.FLAGS, parentFlags);
-        resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, parentId),
-                parentValues, null, null);
+        final MailboxTree tree = MailboxTree.load(context, accountSelector);
+        tree.setFlagsAndChildrensParentKey(
+                tree.getMailbox(parentCursor.getLong(Mailbox.CONTENT_ID_COLUMN)));
+        tree.save(context);
     }
 
     /**
@@ -109,17 +71,14 @@ public class MailboxUtilities {
     @Deprecated
     public static void setFlagsAndChildrensParentKey(Context context, String accountSelector,
             String serverId) {
-        Cursor cursor = context.getContentResolver().query(Mailbox.CONTENT_URI,
-                Mailbox.CONTENT_PROJECTION, MailboxColumns.SERVER_ID + "=? AND " + accountSelector,
-                new String[] {serverId}, null);
-        if (cursor == null) return;
-        try {
-            if (cursor.moveToFirst()) {
-                setFlagsAndChildrensParentKey(context, cursor, accountSelector);
+        final MailboxTree tree = MailboxTree.load(context, accountSelector);
+        for (final MailboxTree.Node node : tree.getMailboxes()) {
+            if (serverId.equals(node.mServerId)) {
+                tree.setFlagsAndChildrensParentKey(node);
+                break;
             }
-        } finally {
-            cursor.close();
         }
+        tree.save(context);
     }
 
     /**
@@ -133,34 +92,10 @@ public class MailboxUtilities {
     public static void fixupUninitializedParentKeys(Context context, String accountSelector) {
         // Sanity check first on our arguments
         if (accountSelector == null) throw new IllegalArgumentException();
-        // The selection we'll use to find uninitialized parent key mailboxes
-        String noParentKeySelection = WHERE_PARENT_KEY_UNINITIALIZED + " AND " + accountSelector;
-
-        // We'll loop through mailboxes with an uninitialized parent key
-        ContentResolver resolver = context.getContentResolver();
-        Cursor noParentKeyMailboxCursor =
-                resolver.query(Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION,
-                        noParentKeySelection, null, null);
-        if (noParentKeyMailboxCursor == null) return;
-        try {
-            while (noParentKeyMailboxCursor.moveToNext()) {
-                setFlagsAndChildrensParentKey(context, noParentKeyMailboxCursor, accountSelector);
-                String parentServerId =
-                        noParentKeyMailboxCursor.getString(Mailbox.CONTENT_PARENT_SERVER_ID_COLUMN);
-                // Fixup the parent so that the children's parentKey is updated
-                if (parentServerId != null) {
-                    setFlagsAndChildrensParentKey(context, accountSelector, parentServerId);
-                }
-            }
-        } finally {
-            noParentKeyMailboxCursor.close();
-        }
-
-        // Any mailboxes without a parent key should have parentKey set to -1 (no parent)
-        ContentValues values = new ContentValues();
-        values.put(Mailbox.PARENT_KEY, Mailbox.NO_MAILBOX);
-        resolver.update(Mailbox.CONTENT_URI, values, noParentKeySelection, null);
-     }
+        final MailboxTree tree = MailboxTree.load(context, accountSelector);
+        tree.fixupUninitializedParentKeys();
+        tree.save(context);
+    }
 
     private static void setAccountSyncAdapterFlag(Context context, long accountId, boolean start) {
         Account account = Account.restoreAccountWithId(context, accountId);
@@ -219,61 +154,274 @@ public class MailboxUtilities {
         }
     }
 
-    private static final String[] HIERARCHY_PROJECTION = new String[] {
-        MailboxColumns._ID, MailboxColumns.DISPLAY_NAME, MailboxColumns.PARENT_KEY,
-        MailboxColumns.HIERARCHICAL_NAME
-    };
-    private static final int HIERARCHY_ID = 0;
-    private static final int HIERARCHY_NAME = 1;
-    private static final int HIERARCHY_PARENT_KEY = 2;
-    private static final int HIERARCHY_HIERARCHICAL_NAME = 3;
-
-    private static String getHierarchicalName(Context context, long id, HashMap<Long, String> map,
-            String name, long parentId) {
-        String hierarchicalName;
-        if (map.containsKey(id)) {
-            return map.get(id);
-        } else if (parentId == Mailbox.NO_MAILBOX) {
-            hierarchicalName = name;
-        } else {
-            Mailbox parent = Mailbox.restoreMailboxWithId(context, parentId);
-            if (parent == null) return name + "/" + "??";
-            hierarchicalName = getHierarchicalName(context, parentId, map, parent.mDisplayName,
-                    parent.mParentKey) + "/" + name;
-        }
-        map.put(id, hierarchicalName);
-        return hierarchicalName;
-    }
-
     public static void setupHierarchicalNames(Context context, long accountId) {
         Account account = Account.restoreAccountWithId(context, accountId);
         if (account == null) return;
-        // Start by clearing all names
-        ContentValues values = new ContentValues();
-        String accountSelector = Mailbox.ACCOUNT_KEY + "=" + account.mId;
-        ContentResolver resolver = context.getContentResolver();
-        HashMap<Long, String> nameMap = new HashMap<Long, String>();
-        Cursor c = resolver.query(Mailbox.CONTENT_URI, HIERARCHY_PROJECTION, accountSelector,
-                null, null);
-        try {
-            while(c.moveToNext()) {
-                long id = c.getLong(HIERARCHY_ID);
-                String displayName = c.getString(HIERARCHY_NAME);
-                String name = getHierarchicalName(context, id, nameMap, displayName,
-                        c.getLong(HIERARCHY_PARENT_KEY));
-                String oldHierarchicalName = c.getString(HIERARCHY_HIERARCHICAL_NAME);
+        final MailboxTree tree = MailboxTree.load(context, Mailbox.ACCOUNT_KEY + "=" + account.mId);
+        tree.setupHierarchicalNames();
+        tree.save(context);
+    }
+
+    /**
+     * The mailboxes of one or more accounts, read in one query, for working out their parent
+     * keys, flags and hierarchical names in memory.  Only the mailboxes whose values changed are
+     * written back, in one batch.  Parents and children are matched by server id within each
+     * account.
+     */
+    @VisibleForTesting
+    static class MailboxTree {
+        private static final String[] PROJECTION = new String[] {
+            MailboxColumns._ID, MailboxColumns.ACCOUNT_KEY, MailboxColumns.SERVER_ID,
+            MailboxColumns.PARENT_SERVER_ID, MailboxColumns.PARENT_KEY, MailboxColumns.TYPE,
+            MailboxColumns.FLAGS, MailboxColumns.DISPLAY_NAME, MailboxColumns.HIERARCHICAL_NAME
+        };
+        private static final int ID_COLUMN = 0;
+        private static final int ACCOUNT_KEY_COLUMN = 1;
+        private static final int SERVER_ID_COLUMN = 2;
+        private static final int PARENT_SERVER_ID_COLUMN = 3;
+        private static final int PARENT_KEY_COLUMN = 4;
+        private static final int TYPE_COLUMN = 5;
+        private static final int FLAGS_COLUMN = 6;
+        private static final int DISPLAY_NAME_COLUMN = 7;
+        private static final int HIERARCHICAL_NAME_COLUMN = 8;
+
+        static class Node {
+            final long mId;
+            final long mAccountKey;
+            final String mServerId;
+            final String mParentServerId;
+            final int mType;
+            final String mDisplayName;
+            final ArrayList<Node> mChildren = new ArrayList<Node>();
+
+            // As read, and as they are to be written
+            final long mOldParentKey;
+            final int mOldFlags;
+            final String mOldHierarchicalName;
+            long mParentKey;
+            int mFlags;
+            String mHierarchicalName;
+
+            private Node(Cursor c) {
+                mId = c.getLong(ID_COLUMN);
+                mAccountKey = c.getLong(ACCOUNT_KEY_COLUMN);
+                mServerId = c.getString(SERVER_ID_COLUMN);
+                mParentServerId = c.getString(PARENT_SERVER_ID_COLUMN);
+                mType = c.getInt(TYPE_COLUMN);
+                mDisplayName = c.getString(DISPLAY_NAME_COLUMN);
+                // A null parent key reads as 0, i.e. uninitialized
+                mOldParentKey = mParentKey = c.getLong(PARENT_KEY_COLUMN);
+                mOldFlags = mFlags = c.getInt(FLAGS_COLUMN);
+                mOldHierarchicalName = mHierarchicalName = c.getString(HIERARCHICAL_NAME_COLUMN);
+            }
+        }
+
+        /** The mailboxes by id, in the order read */
+        private final LinkedHashMap<Long, Node> mNodes = new LinkedHashMap<Long, Node>();
+        /** The mailboxes by account and server id */
+        private final HashMap<String, Node> mServerIds = new HashMap<String, Node>();
+
+        private static String getKey(long accountKey, String serverId) {
+            return accountKey + ":" + serverId;
+        }
+
+        /**
+         * Read the mailboxes selected, and link them to their children.
+         */
+        static MailboxTree load(Context context, String selection) {
+            final MailboxTree tree = new MailboxTree();
+            final Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI, PROJECTION,
+                    selection, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        tree.add(new Node(c));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            tree.linkChildren();
+            return tree;
+        }
+
+        private void add(Node node) {
+            mNodes.put(node.mId, node);
+            if (node.mServerId != null) {
+                final String key = getKey(node.mAccountKey, node.mServerId);
+                // As a query would, take the first of mailboxes with the same server id
+                if (!mServerIds.containsKey(key)) {
+                    mServerIds.put(key, node);
+                }
+            }
+        }
+
+        private void linkChildren() {
+            for (final Node node : mNodes.values()) {
+                final Node parent = getParent(node);
+                if (parent != null) {
+                    parent.mChildren.add(node);
+                }
+            }
+        }
+
+        /**
+         * @return the mailbox whose server id is the given mailbox's parent server id, if any
+         */
+        private Node getParent(Node node) {
+            if (node.mParentServerId == null) {
+                return null;
+            }
+            return mServerIds.get(getKey(node.mAccountKey, node.mParentServerId));
+        }
+
+        Node getMailbox(long id) {
+            return mNodes.get(id);
+        }
+
+        Collection<Node> getMailboxes() {
+            return mNodes.values();
+        }
+
+        /**
+         * Recalculate a mailbox's flags and the parent key of any children
+         */
+        void setFlagsAndChildrensParentKey(Node parent) {
+            if (parent == null) return;
+            int parentFlags = 0;
+            final int parentType = parent.mType;
+            // All email-type boxes hold mail
+            if (parentType <= Mailbox.TYPE_NOT_EMAIL) {
+                parentFlags |= Mailbox.FLAG_HOLDS_MAIL + Mailbox.FLAG_SUPPORTS_SETTINGS;
+            }
+            // Outbox, Drafts, and Sent don't allow mail to be moved to them
+            if (parentType == Mailbox.TYPE_MAIL || parentType == Mailbox.TYPE_TRASH ||
+                    parentType == Mailbox.TYPE_JUNK || parentType == Mailbox.TYPE_INBOX) {
+                parentFlags |= Mailbox.FLAG_ACCEPTS_MOVED_MAIL;
+            }
+            // There's no concept of "append" in EAS so FLAG_ACCEPTS_APPENDED_MAIL is never used
+            // Mark parent mailboxes as parents & add parent key to children
+            // An example of a mailbox with a null serverId would be an Outbox that we create
+            // locally for hotmail accounts (which don't have a server-based Outbox)
+            if (parent.mServerId != null) {
+                for (final Node child : parent.mChildren) {
+                    parentFlags |= Mailbox.FLAG_HAS_CHILDREN | Mailbox.FLAG_CHILDREN_VISIBLE;
+                    child.mParentKey = parent.mId;
+                }
+            } else {
+                // Mark this is having no parent, so that we don't examine this mailbox again
+                parent.mParentKey = Mailbox.NO_MAILBOX;
+                LogUtils.w(Logging.LOG_TAG, "Mailbox with null serverId: " +
+                        parent.mDisplayName + ", type: " + parentType);
+            }
+            parent.mFlags = parentFlags;
+        }
+
+        /**
+         * Set the flags of the mailboxes with an uninitialized parent key, and of their parents,
+         * and the parent keys of their children.  Those left without a parent get
+         * {@link Mailbox#NO_MAILBOX}.
+         */
+        void fixupUninitializedParentKeys() {
+            final ArrayList<Node> uninitialized = new ArrayList<Node>();
+            for (final Node node : mNodes.values()) {
+                if (node.mParentKey == Mailbox.PARENT_KEY_UNINITIALIZED) {
+                    uninitialized.add(node);
+                }
+            }
+            for (final Node node : uninitialized) {
+                setFlagsAndChildrensParentKey(node);
+                // Fixup the parent so that the children's parentKey is updated
+                setFlagsAndChildrensParentKey(getParent(node));
+            }
+            for (final Node node : uninitialized) {
+                if (node.mParentKey == Mailbox.PARENT_KEY_UNINITIALIZED) {
+                    node.mParentKey = Mailbox.NO_MAILBOX;
+                }
+            }
+        }
+
+        /**
+         * Set the hierarchical name of each mailbox that isn't top-level, e.g. "a/b/c" for c,
+         * from the display names of its ancestors (by parent key).
+         */
+        void setupHierarchicalNames() {
+            final HashMap<Long, String> names = new HashMap<Long, String>();
+            for (final Node node : mNodes.values()) {
+                final String name = getHierarchicalName(node, names, new HashSet<Long>());
                 // Don't write the name unless it has changed or we don't need one (it's top-level)
-                if (name.equals(oldHierarchicalName) ||
-                        ((name.equals(displayName)) && TextUtils.isEmpty(oldHierarchicalName))) {
+                if (TextUtils.equals(name, node.mOldHierarchicalName) ||
+                        (TextUtils.equals(name, node.mDisplayName) &&
+                                TextUtils.isEmpty(node.mOldHierarchicalName))) {
                     continue;
                 }
-                // If the name has changed, update it
-                values.put(MailboxColumns.HIERARCHICAL_NAME, name);
-                resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, id), values, null,
-                        null);
+                node.mHierarchicalName = name;
+            }
+        }
+
+        private String getHierarchicalName(Node node, HashMap<Long, String> names,
+                HashSet<Long> descendants) {
+            String hierarchicalName = names.get(node.mId);
+            if (hierarchicalName != null) {
+                return hierarchicalName;
+            }
+            if (node.mParentKey == Mailbox.NO_MAILBOX) {
+                hierarchicalName = node.mDisplayName;
+            } else {
+                final Node parent = mNodes.get(node.mParentKey);
+                descendants.add(node.mId);
+                // A missing parent, or one that is its own ancestor, has no name to give
+                if (parent == null || descendants.contains(parent.mId)) {
+                    return node.mDisplayName + "/" + "??";
+                }
+                hierarchicalName = getHierarchicalName(parent, names, descendants) + "/" +
+                        node.mDisplayName;
+            }
+            names.put(node.mId, hierarchicalName);
+            return hierarchicalName;
+        }
+
+        /**
+         * @return an update for each mailbox whose parent key, flags or hierarchical name changed
+         */
+        ArrayList<ContentProviderOperation> getUpdates() {
+            final ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>();
+            for (final Node node : mNodes.values()) {
+                final ContentValues values = new ContentValues();
+                if (node.mParentKey != node.mOldParentKey) {
+                    values.put(MailboxColumns.PARENT_KEY, node.mParentKey);
+                }
+                if (node.mFlags != node.mOldFlags) {
+                    values.put(MailboxColumns.FLAGS, node.mFlags);
+                }
+                if (!TextUtils.equals(node.mHierarchicalName, node.mOldHierarchicalName)) {
+                    values.put(MailboxColumns.HIERARCHICAL_NAME, node.mHierarchicalName);
+                }
+                if (values.size() > 0) {
+                    ops.add(ContentProviderOperation.newUpdate(
+                            ContentUris.withAppendedId(Mailbox.CONTENT_URI, node.mId))
+                            .withValues(values).build());
+                }
+            }
+            return ops;
+        }
+
+        /**
+         * Write the changed mailboxes, in one transaction.
+         */
+        void save(Context context) {
+            final ArrayList<ContentProviderOperation> ops = getUpdates();
+            if (ops.isEmpty()) {
+                return;
+            }
+            try {
+                context.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+            } catch (RemoteException e) {
+                LogUtils.w(Logging.LOG_TAG, e, "Failed to update %d mailboxes", ops.size());
+            } catch (OperationApplicationException e) {
+                LogUtils.w(Logging.LOG_TAG, e, "Failed to update %d mailboxes", ops.size());
             }
-        } finally {
-            c.close();
         }
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.provider;
+
+import android.net.Uri;
+
+/**
+ * {@link EmailContent}-like class for the SearchResult table, which lists the messages that
+ * a search mailbox shows.  A result refers to the message where it already is (e.g. the synced
+ * copy in the inbox); only messages that aren't stored locally are downloaded into the search
+ * mailbox itself, and those have results too.
+ */
+public class SearchResult {
+    /** The name for this table in the database. */
+    public static final String TABLE_NAME = "SearchResult";
+
+    /** The path for the URI for interacting with search results. */
+    public static final String PATH = "searchResult";
+
+    /** The URI for dealing with search results. */
+    public static Uri CONTENT_URI;
+
+    // DB columns.
+    /** Column name for the row key; this is an autoincrement key. */
+    public static final String ID = "_id";
+    /** Column name for a foreign key into Mailbox for the search mailbox showing the result. */
+    public static final String MAILBOX_KEY = "mailboxKey";
+    /** Column name for a foreign key into Message for the message found. */
+    public static final String MESSAGE_KEY = "messageKey";
+
+    /**
+     * Initialize static state for this class.
+     */
+    public static void init() {
+        CONTENT_URI = EmailContent.CONTENT_URI.buildUpon().appendEncodedPath(PATH).build();
+    }
+}
@@ -22,22 +22,34 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.ProviderInfo;
-import android.os.AsyncTask;
 import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
 
 import com.android.emailcommon.provider.EmailContent;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ServiceProxy is a superclass for proxy objects which make a single call to a service. It handles
- * connecting to the service, running a task supplied by the subclass when the connection is ready,
- * and disconnecting from the service afterwards. ServiceProxy objects cannot be reused (trying to
- * do so generates an {@link IllegalStateException}).
+ * connecting to the service and running a task supplied by the subclass when the connection is
+ * ready. ServiceProxy objects cannot be reused (trying to do so generates an
+ * {@link IllegalStateException}).
+ *
+ * All the proxies for a service share one connection to it, which stays bound while they have
+ * tasks to run and for {@link #DEFAULT_IDLE_TIMEOUT} ms after the last one completes, so that
+ * consecutive calls don't each pay for binding. Tasks for a service run on a pool of up to
+ * {@link #MAX_CONCURRENT_TASKS} threads of its own, so a slow call to one service doesn't hold
+ * up calls to the others.
  *
  * Subclasses must override {@link #onConnected} to store the binder. Then, when the subclass wants
  * to make a service call, it should call {@link #setTask}, supplying the {@link ProxyTask} that
@@ -49,18 +61,34 @@ public abstract class ServiceProxy {
     public static final String EXTRA_FORCE_SHUTDOWN = "ServiceProxy.FORCE_SHUTDOWN";
 
     private static final boolean DEBUG_PROXY = false; // DO NOT CHECK THIS IN SET TO TRUE
+    private static final String TAG = "ServiceProxy";
+
+    /** How long a connection stays bound after its last task completes (in ms) */
+    private static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+    /** How many tasks may run at once for each service */
+    private static final int MAX_CONCURRENT_TASKS = 4;
+
+    /** The shared connections, by the intent used to bind them; also guards their state */
+    private static final HashMap<Intent.FilterComparison, SharedConnection> sConnections =
+            new HashMap<Intent.FilterComparison, SharedConnection>();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static long sIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+
     private final String mTag;
 
     private final Context mContext;
     protected final Intent mIntent;
     private ProxyTask mTask;
     private String mName = " unnamed";
-    private final ServiceConnection mConnection = new ProxyConnection();
+    /** Notified when our task completes */
+    private final Object mLock = new Object();
     // Service call timeout (in seconds)
     private int mTimeout = 45;
     private long mStartTime;
     private boolean mTaskSet = false;
     private boolean mTaskCompleted = false;
+    /** The connection our task was started on; guarded by sConnections */
+    private SharedConnection mConnection;
 
     public static Intent getIntentForEmailPackage(Context context, String actionName) {
         /**
@@ -98,71 +126,186 @@ public abstract class ServiceProxy {
         }
     }
 
-    private class ProxyConnection implements ServiceConnection {
-        @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
-            if (DEBUG_PROXY) {
-                LogUtils.v(mTag, "Connected: " + name.getShortClassName() + " at " +
-                        (System.currentTimeMillis() - mStartTime) + "ms");
+    /**
+     * A connection to a service, shared by all the proxies that call it. It is bound when the
+     * first of them sets its task, and unbound once it has been idle for {@link #sIdleTimeout}
+     * ms, or when the service disconnects (e.g. because its process died); the next task then
+     * binds a new one.
+     */
+    private static class SharedConnection implements ServiceConnection, Runnable {
+        private final Context mContext;
+        private final Intent.FilterComparison mKey;
+        private final ThreadPoolExecutor mExecutor;
+        /** The proxies whose tasks are waiting for us to connect */
+        private final ArrayList<ServiceProxy> mPending = new ArrayList<ServiceProxy>();
+        private IBinder mBinder;
+        /** The number of tasks started and not yet completed */
+        private int mTaskCount;
+
+        private SharedConnection(final Context context, final Intent.FilterComparison key) {
+            mContext = context;
+            mKey = key;
+            mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_TASKS, MAX_CONCURRENT_TASKS,
+                    sIdleTimeout, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * Run the proxy's task as soon as we're connected. Called with sConnections held.
+         */
+        private void start(final ServiceProxy proxy) {
+            mTaskCount++;
+            sHandler.removeCallbacks(this);
+            if (mBinder != null) {
+                proxy.runTask(this, mBinder);
+            } else {
+                mPending.add(proxy);
             }
+        }
 
-            // Let subclasses handle the binder.
-            onConnected(binder);
+        /**
+         * Give up on a proxy whose task is still waiting for us to connect, e.g. because binding
+         * succeeded but the service never connected.  If we still aren't connected, we're
+         * closed, so that the next task binds again.  Called with sConnections held.
+         */
+        private void cancel(final ServiceProxy proxy) {
+            if (!mPending.remove(proxy)) {
+                // Already running, and released when done
+                return;
+            }
+            mTaskCount--;
+            if (mBinder == null) {
+                LogUtils.w(TAG, "Never connected to " + mKey.getIntent() + "; unbinding");
+                close();
+            } else if (mTaskCount == 0 && sConnections.get(mKey) == this) {
+                sHandler.postDelayed(this, sIdleTimeout);
+            }
+        }
 
-            // Do our work in another thread.
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(Void... params) {
-                    try {
-                        mTask.run();
-                    } catch (RemoteException e) {
-                        LogUtils.e(mTag, e, "RemoteException thrown running mTask!");
-                    } finally {
-                        // Make sure that we unbind the mConnection even on exceptions in the
-                        // task provided by the subclass.
-                        try {
-                            // Each ServiceProxy handles just one task, so we unbind after we're
-                            // done with our work.
-                            mContext.unbindService(mConnection);
-                        } catch (RuntimeException e) {
-                            // The exceptions that are thrown here look like IllegalStateException,
-                            // IllegalArgumentException and RuntimeException. Catching
-                            // RuntimeException which get them all. Reasons for these exceptions
-                            // include services that have already been stopped or unbound. This can
-                            // happen if the user ended the activity that was using the service.
-                            // This is harmless, but we've got to catch it.
-                            LogUtils.e(mTag, e,
-                                    "RuntimeException when trying to unbind from service");
-                        }
-                    }
-                    synchronized(mConnection) {
-                        mTaskCompleted = true;
-                        if (DEBUG_PROXY) {
-                            LogUtils.v(mTag, "Task " + mName + " completed; disconnecting");
-                        }
-                        mConnection.notify();
+        /**
+         * Called when a task started with {@link #start} completes.
+         */
+        private void release() {
+            synchronized (sConnections) {
+                if (--mTaskCount == 0 && sConnections.get(mKey) == this) {
+                    sHandler.postDelayed(this, sIdleTimeout);
+                }
+            }
+        }
+
+        /**
+         * Stop sharing this connection and unbind it. Called with sConnections held.
+         */
+        private void close() {
+            if (sConnections.get(mKey) == this) {
+                sConnections.remove(mKey);
+            }
+            sHandler.removeCallbacks(this);
+            mBinder = null;
+            try {
+                mContext.unbindService(this);
+            } catch (RuntimeException e) {
+                // The exceptions that are thrown here look like IllegalStateException,
+                // IllegalArgumentException and RuntimeException. Reasons for these exceptions
+                // include services that have already been stopped or unbound. This is harmless,
+                // but we've got to catch it.
+                LogUtils.e(TAG, e, "RuntimeException when trying to unbind from service");
+            }
+            // Let the running tasks complete; they'll fail if the service has gone away
+            mExecutor.shutdown();
+        }
+
+        /**
+         * Unbind if we've been idle for long enough.
+         */
+        @Override
+        public void run() {
+            synchronized (sConnections) {
+                if (mTaskCount == 0 && sConnections.get(mKey) == this) {
+                    if (DEBUG_PROXY) {
+                        LogUtils.v(TAG, "Idle; unbinding " + mKey.getIntent());
                     }
-                    return null;
+                    close();
                 }
-            }.executeOnExecutor(mTask.runInExecutor());
+            }
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            if (DEBUG_PROXY) {
+                LogUtils.v(TAG, "Connected: " + name.getShortClassName() + " with "
+                        + mPending.size() + " tasks pending");
+            }
+            synchronized (sConnections) {
+                if (sConnections.get(mKey) != this) {
+                    return;
+                }
+                mBinder = binder;
+                for (final ServiceProxy proxy : mPending) {
+                    proxy.runTask(this, binder);
+                }
+                mPending.clear();
+            }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             if (DEBUG_PROXY) {
-                LogUtils.v(mTag, "Disconnected: " + name.getShortClassName() + " at " +
-                        (System.currentTimeMillis() - mStartTime) + "ms");
+                LogUtils.v(TAG, "Disconnected: " + name.getShortClassName());
+            }
+            synchronized (sConnections) {
+                close();
             }
         }
     }
 
     protected abstract class ProxyTask {
+        /**
+         * @return the executor to run this task in, or null for the service's own
+         */
         public Executor runInExecutor() {
-            return AsyncTask.SERIAL_EXECUTOR;
+            return null;
         };
         public abstract void run() throws RemoteException;
     }
 
+    /**
+     * Run our task with the connection's binder. Called with sConnections held.
+     */
+    private void runTask(final SharedConnection connection, final IBinder binder) {
+        if (DEBUG_PROXY) {
+            LogUtils.v(mTag, "Running task " + mName + " after " +
+                    (System.currentTimeMillis() - mStartTime) + "ms");
+        }
+
+        // Let subclasses handle the binder.
+        onConnected(binder);
+
+        final Executor executor = mTask.runInExecutor();
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mTask.run();
+                } catch (RemoteException e) {
+                    LogUtils.e(mTag, e, "RemoteException thrown running mTask!");
+                } finally {
+                    // Make sure that we release the connection even on exceptions in the
+                    // task provided by the subclass.
+                    connection.release();
+                }
+                synchronized (mLock) {
+                    mTaskCompleted = true;
+                    if (DEBUG_PROXY) {
+                        LogUtils.v(mTag, "Task " + mName + " completed");
+                    }
+                    mLock.notify();
+                }
+            }
+        };
+        (executor != null ? executor : connection.mExecutor).execute(runnable);
+    }
+
     public ServiceProxy setTimeout(int secs) {
         mTimeout = secs;
         return this;
@@ -183,10 +326,30 @@ public abstract class ServiceProxy {
         if (DEBUG_PROXY) {
             LogUtils.v(mTag, "Bind requested for task " + mName);
         }
-        synchronized (mConnection) {
+        synchronized (mLock) {
             mTaskCompleted = false;
         }
-        return mContext.bindService(mIntent, mConnection, Context.BIND_AUTO_CREATE);
+        final Intent.FilterComparison key = new Intent.FilterComparison(mIntent);
+        synchronized (sConnections) {
+            SharedConnection connection = sConnections.get(key);
+            if (connection == null) {
+                // Bind with the application context, as the connection may outlive ours
+                final Context context = mContext.getApplicationContext();
+                connection = new SharedConnection(context, key);
+                if (!context.bindService(mIntent, connection, Context.BIND_AUTO_CREATE)) {
+                    return false;
+                }
+                sConnections.put(key, connection);
+            }
+            mConnection = connection;
+            connection.start(this);
+        }
+        return true;
+    }
+
+    @VisibleForTesting
+    static void setIdleTimeout(final long millis) {
+        sIdleTimeout = millis;
     }
 
     /**
@@ -205,14 +368,14 @@ public abstract class ServiceProxy {
             throw new IllegalStateException("This cannot be called on the main thread.");
         }
 
-        synchronized (mConnection) {
+        synchronized (mLock) {
             long time = System.currentTimeMillis();
             try {
                 if (DEBUG_PROXY) {
                     LogUtils.v(mTag, "Waiting for task " + mName + " to complete...");
                 }
                 if (!mTaskCompleted) {
-                    mConnection.wait(mTimeout * 1000L);
+                    mLock.wait(mTimeout * 1000L);
                 }
             } catch (InterruptedException e) {
                 // Can be ignored safely
@@ -222,6 +385,15 @@ public abstract class ServiceProxy {
                         (mTaskCompleted ? " finished in " : " timed out in ") +
                         (System.currentTimeMillis() - time) + "ms");
             }
+            if (mTaskCompleted) {
+                return;
+            }
+        }
+        // Don't leave the task holding the connection if it never got to run
+        synchronized (sConnections) {
+            if (mConnection != null) {
+                mConnection.cancel(this);
+            }
         }
     }
 
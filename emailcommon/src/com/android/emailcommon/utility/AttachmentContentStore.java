@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.R;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A content-addressed store for attachment files.  Attachments with the same decoded content
+ * (e.g. a document forwarded along a thread, or a logo in every message's signature) share one
+ * file, named by the SHA-1 of its content and reference counted by the attachments using it.  A
+ * file is deleted when its last attachment is.
+ *
+ * Each reference also records the attachment's size (as reported by the server, before
+ * download), content id and file name.  These are used as a hint that an attachment about to be
+ * downloaded is already stored, so the download can be skipped.  As nothing about the content
+ * is checked, the hint is only trusted within an account, and only for attachments with a
+ * content id (e.g. inline images), which the sender meant to identify the content.
+ *
+ * The store is optional; see {@link #isEnabled(Context)}.  When it is disabled, attachments are
+ * stored one file per attachment, as {@link AttachmentUtilities#getAttachmentFilename}.
+ */
+public class AttachmentContentStore {
+    private static final String DATABASE_NAME = "AttachmentStore.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String DIRECTORY_NAME = "attachment_store";
+
+    private static final String BLOB_TABLE = "Blob";
+    private static final String REF_TABLE = "Ref";
+
+    // Blob columns
+    private static final String HASH = "hash";
+    private static final String REF_COUNT = "refCount";
+    // Ref columns; the id is the attachment id
+    private static final String ID = "_id";
+    private static final String ACCOUNT_KEY = "accountKey";
+    private static final String HINT_SIZE = "hintSize";
+    private static final String CONTENT_ID = "contentId";
+    private static final String FILE_NAME = "fileName";
+
+    private static final String[] HASH_PROJECTION = new String[] { HASH };
+    private static final String[] REF_COUNT_PROJECTION = new String[] { REF_COUNT };
+    private static final String[] ID_PROJECTION = new String[] { ID };
+
+    private static AttachmentContentStore sInstance;
+
+    private final StoreDatabaseHelper mHelper;
+    private final File mDirectory;
+
+    private static class StoreDatabaseHelper extends SQLiteOpenHelper {
+        StoreDatabaseHelper(final Context context, final String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(final SQLiteDatabase db) {
+            db.execSQL("create table " + BLOB_TABLE + " ("
+                    + HASH + " text primary key, "
+                    + REF_COUNT + " integer)");
+            db.execSQL("create table " + REF_TABLE + " ("
+                    + ID + " integer primary key, "
+                    + ACCOUNT_KEY + " integer, "
+                    + HASH + " text, "
+                    + HINT_SIZE + " integer, "
+                    + CONTENT_ID + " text, "
+                    + FILE_NAME + " text)");
+            db.execSQL("create index ref_hint on " + REF_TABLE + " ("
+                    + HINT_SIZE + ", " + FILE_NAME + ")");
+            db.execSQL("create index ref_account on " + REF_TABLE + " (" + ACCOUNT_KEY + ")");
+        }
+
+        @Override
+        public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
+                final int newVersion) {
+        }
+    }
+
+    /**
+     * @return whether attachments should be stored in the content store
+     */
+    public static boolean isEnabled(final Context context) {
+        return context.getResources().getBoolean(R.bool.attachment_content_store);
+    }
+
+    public static synchronized AttachmentContentStore getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new AttachmentContentStore(context.getApplicationContext(),
+                    DATABASE_NAME, context.getDatabasePath(DIRECTORY_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param name the database name, or null for an in-memory database
+     * @param directory where to keep the content files
+     */
+    @VisibleForTesting
+    AttachmentContentStore(final Context context, final String name, final File directory) {
+        mHelper = new StoreDatabaseHelper(context, name);
+        mDirectory = directory;
+    }
+
+    /**
+     * Move a newly written attachment file into the store.  If the same content is already
+     * stored, the new file is deleted and the attachment shares the existing one.
+     * @param file the attachment file; it no longer exists when this returns successfully
+     * @param hintSize the size of the attachment as known before it was downloaded
+     * @return the file that now holds the attachment's content
+     */
+    public synchronized File store(final long accountId, final long attachmentId,
+            final long hintSize, final String contentId, final String fileName, final File file)
+            throws IOException {
+        final String hash = hashFile(file);
+        final File blob = getBlobFile(hash);
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            releaseLocked(db, attachmentId);
+            final int refCount = getRefCount(db, hash);
+            if (refCount > 0 && blob.exists()) {
+                // Already stored; we don't need this copy
+                file.delete();
+            } else {
+                if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                    throw new IOException("Could not create attachment store");
+                }
+                if (!file.renameTo(blob)) {
+                    throw new IOException("Could not move attachment into store");
+                }
+            }
+            setRefCount(db, hash, refCount + 1);
+            addRef(db, accountId, attachmentId, hash, hintSize, contentId, fileName);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return blob;
+    }
+
+    /**
+     * Look for stored content matching an attachment of the same account that is about to be
+     * downloaded, and if there is some, have the attachment share it.
+     * @return the file holding the attachment's content, or null if it has to be downloaded
+     */
+    public synchronized File linkByHint(final long accountId, final long attachmentId,
+            final long hintSize, final String contentId, final String fileName) {
+        // Without a size, a name and a content id, a match means too little
+        if (hintSize <= 0 || TextUtils.isEmpty(fileName) || TextUtils.isEmpty(contentId)) {
+            return null;
+        }
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        final String hash;
+        final Cursor c = db.query(REF_TABLE, HASH_PROJECTION,
+                ACCOUNT_KEY + "=? AND " + HINT_SIZE + "=? AND " + FILE_NAME + "=? AND "
+                + CONTENT_ID + "=? AND " + ID + "!=?",
+                new String[] { Long.toString(accountId), Long.toString(hintSize), fileName,
+                        contentId, Long.toString(attachmentId) },
+                null, null, null, "1");
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            hash = c.getString(0);
+        } finally {
+            c.close();
+        }
+        final File blob = getBlobFile(hash);
+        if (!blob.exists()) {
+            return null;
+        }
+        db.beginTransaction();
+        try {
+            releaseLocked(db, attachmentId);
+            setRefCount(db, hash, getRefCount(db, hash) + 1);
+            addRef(db, accountId, attachmentId, hash, hintSize, contentId, fileName);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return blob;
+    }
+
+    /**
+     * @return the stored file for an attachment, or null if the attachment isn't in the store
+     */
+    public synchronized File getFile(final long attachmentId) {
+        final String hash = getHash(mHelper.getReadableDatabase(), attachmentId);
+        return hash == null ? null : getBlobFile(hash);
+    }
+
+    /**
+     * Drop the given attachments' references, deleting content no longer referenced.
+     */
+    public synchronized void release(final List<Long> attachmentIds) {
+        if (attachmentIds.isEmpty()) {
+            return;
+        }
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final long attachmentId : attachmentIds) {
+                releaseLocked(db, attachmentId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drop all of an account's references, deleting content no longer referenced.
+     */
+    public synchronized void releaseAccount(final long accountId) {
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final Cursor c = mHelper.getReadableDatabase().query(REF_TABLE, ID_PROJECTION,
+                ACCOUNT_KEY + "=" + accountId, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        release(ids);
+    }
+
+    /**
+     * @return the ids of all attachments with content in the store
+     */
+    public synchronized List<Long> getAttachmentIds() {
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final Cursor c = mHelper.getReadableDatabase().query(REF_TABLE, ID_PROJECTION, null,
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private void releaseLocked(final SQLiteDatabase db, final long attachmentId) {
+        final String hash = getHash(db, attachmentId);
+        if (hash == null) {
+            return;
+        }
+        db.delete(REF_TABLE, ID + "=" + attachmentId, null);
+        final int refCount = getRefCount(db, hash) - 1;
+        if (refCount > 0) {
+            setRefCount(db, hash, refCount);
+        } else {
+            db.delete(BLOB_TABLE, HASH + "=?", new String[] { hash });
+            if (!getBlobFile(hash).delete()) {
+                LogUtils.w(Logging.LOG_TAG, "Failed to delete stored attachment " + hash);
+            }
+        }
+    }
+
+    private static String getHash(final SQLiteDatabase db, final long attachmentId) {
+        final Cursor c = db.query(REF_TABLE, HASH_PROJECTION, ID + "=" + attachmentId, null,
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int getRefCount(final SQLiteDatabase db, final String hash) {
+        final Cursor c = db.query(BLOB_TABLE, REF_COUNT_PROJECTION, HASH + "=?",
+                new String[] { hash }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void setRefCount(final SQLiteDatabase db, final String hash,
+            final int refCount) {
+        final ContentValues cv = new ContentValues(2);
+        cv.put(HASH, hash);
+        cv.put(REF_COUNT, refCount);
+        db.replace(BLOB_TABLE, null, cv);
+    }
+
+    private static void addRef(final SQLiteDatabase db, final long accountId,
+            final long attachmentId, final String hash, final long hintSize,
+            final String contentId, final String fileName) {
+        final ContentValues cv = new ContentValues(6);
+        cv.put(ID, attachmentId);
+        cv.put(ACCOUNT_KEY, accountId);
+        cv.put(HASH, hash);
+        cv.put(HINT_SIZE, hintSize);
+        cv.put(CONTENT_ID, contentId);
+        cv.put(FILE_NAME, fileName);
+        db.replace(REF_TABLE, null, cv);
+    }
+
+    private File getBlobFile(final String hash) {
+        return new File(mDirectory, hash);
+    }
+
+    @VisibleForTesting
+    static String hashFile(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A persistent record of the attachment files stored in each account's attachment directory,
+ * kept up to date by {@link AttachmentUtilities} as files are saved and deleted.  This lets the
+ * attachment service know how much storage an account uses without walking its directory, and
+ * pick the least recently viewed prefetched attachments to evict when the account is over its
+ * prefetch budget.
+ *
+ * Prefetched attachments that have been evicted stay in the ledger (with no size) so that they
+ * aren't immediately prefetched again.
+ */
+public class AttachmentStorageLedger {
+    private static final String DATABASE_NAME = "AttachmentLedger.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_NAME = "Ledger";
+    // The attachment id
+    private static final String ID = "_id";
+    private static final String ACCOUNT_KEY = "accountKey";
+    private static final String SIZE = "size";
+    private static final String PREFETCHED = "prefetched";
+    private static final String EVICTED = "evicted";
+    // When the attachment was saved or last viewed, whichever is later
+    private static final String LAST_USED = "lastUsed";
+
+    private static final String[] ID_PROJECTION = new String[] { ID };
+    private static final String[] SIZE_PROJECTION = new String[] { SIZE };
+    private static final String[] EVICTION_PROJECTION = new String[] { ID, SIZE };
+    private static final String EVICTION_SELECTION =
+            ACCOUNT_KEY + "=? AND " + PREFETCHED + "=1 AND " + EVICTED + "=0";
+
+    private static AttachmentStorageLedger sInstance;
+
+    private final LedgerDatabaseHelper mHelper;
+    // The bytes used by each account, loaded from the database on first use
+    private final HashMap<Long, Long> mAccountBytes = new HashMap<Long, Long>();
+
+    private static class LedgerDatabaseHelper extends SQLiteOpenHelper {
+        LedgerDatabaseHelper(final Context context, final String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(final SQLiteDatabase db) {
+            db.execSQL("create table " + TABLE_NAME + " ("
+                    + ID + " integer primary key, "
+                    + ACCOUNT_KEY + " integer, "
+                    + SIZE + " integer, "
+                    + PREFETCHED + " integer, "
+                    + EVICTED + " integer, "
+                    + LAST_USED + " integer)");
+            db.execSQL("create index ledger_lru on " + TABLE_NAME + " ("
+                    + ACCOUNT_KEY + ", " + PREFETCHED + ", " + EVICTED + ", " + LAST_USED + ")");
+        }
+
+        @Override
+        public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
+                final int newVersion) {
+        }
+    }
+
+    public static synchronized AttachmentStorageLedger getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new AttachmentStorageLedger(context.getApplicationContext(),
+                    DATABASE_NAME);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param name the database name, or null for an in-memory ledger
+     */
+    @VisibleForTesting
+    AttachmentStorageLedger(final Context context, final String name) {
+        mHelper = new LedgerDatabaseHelper(context, name);
+    }
+
+    /**
+     * Record that an attachment file has been written, replacing any previous record of it.
+     * @param prefetched whether the attachment was downloaded without the user asking for it,
+     *        which makes it a candidate for eviction
+     */
+    public synchronized void recordSave(final long accountId, final long attachmentId,
+            final long size, final boolean prefetched, final long now) {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        final long oldSize = getSize(db, attachmentId);
+        final ContentValues cv = new ContentValues(6);
+        cv.put(ID, attachmentId);
+        cv.put(ACCOUNT_KEY, accountId);
+        cv.put(SIZE, size);
+        cv.put(PREFETCHED, prefetched ? 1 : 0);
+        cv.put(EVICTED, 0);
+        cv.put(LAST_USED, now);
+        db.replace(TABLE_NAME, null, cv);
+        addBytes(accountId, size - oldSize);
+    }
+
+    /**
+     * Record that an attachment has been viewed, which makes it the last to be evicted.
+     */
+    public synchronized void recordViewed(final long attachmentId, final long now) {
+        final ContentValues cv = new ContentValues(1);
+        cv.put(LAST_USED, now);
+        mHelper.getWritableDatabase().update(TABLE_NAME, cv, ID + "=" + attachmentId, null);
+    }
+
+    /**
+     * Record that the files of the given attachments have been deleted.
+     */
+    public synchronized void recordDeleted(final long accountId, final List<Long> attachmentIds) {
+        if (attachmentIds.isEmpty()) {
+            return;
+        }
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        long bytes = 0;
+        db.beginTransaction();
+        try {
+            for (final long attachmentId : attachmentIds) {
+                bytes += getSize(db, attachmentId);
+                db.delete(TABLE_NAME, ID + "=" + attachmentId, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        addBytes(accountId, -bytes);
+    }
+
+    /**
+     * Record that prefetched attachments have been evicted.  Unlike deleted attachments, they
+     * are remembered so that they aren't prefetched again.
+     */
+    public synchronized void recordEvicted(final long accountId, final List<Long> attachmentIds) {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        final ContentValues cv = new ContentValues(2);
+        cv.put(SIZE, 0);
+        cv.put(EVICTED, 1);
+        long bytes = 0;
+        db.beginTransaction();
+        try {
+            for (final long attachmentId : attachmentIds) {
+                bytes += getSize(db, attachmentId);
+                db.update(TABLE_NAME, cv, ID + "=" + attachmentId, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        addBytes(accountId, -bytes);
+    }
+
+    /**
+     * Record that all of an account's attachment files have been deleted.
+     */
+    public synchronized void recordAccountDeleted(final long accountId) {
+        mHelper.getWritableDatabase().delete(TABLE_NAME, ACCOUNT_KEY + "=" + accountId, null);
+        mAccountBytes.put(accountId, 0L);
+    }
+
+    /**
+     * @return those of the given attachments that were prefetched and then evicted
+     */
+    public synchronized Set<Long> getEvicted(final Collection<Long> attachmentIds) {
+        final HashSet<Long> evicted = new HashSet<Long>();
+        if (attachmentIds.isEmpty()) {
+            return evicted;
+        }
+        final StringBuilder selection = new StringBuilder(EVICTED).append("=1 AND ")
+                .append(ID).append(" IN (");
+        boolean first = true;
+        for (final long attachmentId : attachmentIds) {
+            if (!first) {
+                selection.append(',');
+            }
+            selection.append(attachmentId);
+            first = false;
+        }
+        selection.append(')');
+        final Cursor c = mHelper.getReadableDatabase().query(TABLE_NAME, ID_PROJECTION,
+                selection.toString(), null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                evicted.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the number of bytes of attachment files stored for the account
+     */
+    public synchronized long getAccountBytes(final long accountId) {
+        Long bytes = mAccountBytes.get(accountId);
+        if (bytes == null) {
+            final Cursor c = mHelper.getReadableDatabase().rawQuery("select sum(" + SIZE
+                    + ") from " + TABLE_NAME + " where " + ACCOUNT_KEY + "=" + accountId, null);
+            try {
+                bytes = c.moveToFirst() ? c.getLong(0) : 0L;
+            } finally {
+                c.close();
+            }
+            mAccountBytes.put(accountId, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Find the least recently used prefetched attachments of an account that together free at
+     * least the given number of bytes (or as many as there are).
+     * @return the ids of the attachments, least recently used first
+     */
+    public synchronized List<Long> getEvictionCandidates(final long accountId,
+            final long bytesToFree) {
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final Cursor c = mHelper.getReadableDatabase().query(TABLE_NAME, EVICTION_PROJECTION,
+                EVICTION_SELECTION, new String[] { Long.toString(accountId) }, null, null,
+                LAST_USED + " ASC");
+        try {
+            long freed = 0;
+            while (freed < bytesToFree && c.moveToNext()) {
+                ids.add(c.getLong(0));
+                freed += c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private static long getSize(final SQLiteDatabase db, final long attachmentId) {
+        final Cursor c = db.query(TABLE_NAME, SIZE_PROJECTION, ID + "=" + attachmentId, null,
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void addBytes(final long accountId, final long delta) {
+        final Long bytes = mAccountBytes.get(accountId);
+        if (bytes != null) {
+            final long total = bytes + delta;
+            if (total < 0) {
+                LogUtils.w(Logging.LOG_TAG, "Attachment ledger for account %d went negative",
+                        accountId);
+                mAccountBytes.remove(accountId);
+            } else {
+                mAccountBytes.put(accountId, total);
+            }
+        }
+    }
+}
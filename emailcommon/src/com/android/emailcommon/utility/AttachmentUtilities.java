@@ -17,18 +17,22 @@
 package com.android.emailcommon.utility;
 
 import android.app.DownloadManager;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
@@ -43,6 +47,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class AttachmentUtilities {
 
@@ -172,6 +178,124 @@ public class AttachmentUtilities {
         return new File(getAttachmentDirectory(context, accountId), Long.toString(attachmentId));
     }
 
+    /**
+     * Return the local file behind an attachment's cached file or content uri, so that it can be
+     * checked with a stat and read without a round trip through a provider.  This covers file
+     * uris, the cached files of the EmailProvider, and the raw content of the attachment
+     * provider.  The file may not exist, or may not be readable from this process (e.g. from a
+     * sync adapter in another package), in which case callers go through the provider.
+     * @return the file, or null if the uri isn't one of these
+     */
+    public static File getLocalFile(Context context, String uriString) {
+        if (TextUtils.isEmpty(uriString)) {
+            return null;
+        }
+        final Uri uri = Uri.parse(uriString);
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return uri.getPath() == null ? null : new File(uri.getPath());
+        }
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            return null;
+        }
+        final List<String> segments = uri.getPathSegments();
+        if (EmailContent.AUTHORITY.equals(uri.getAuthority())) {
+            final String path = uri.getQueryParameter(Attachment.CACHED_FILE_QUERY_PARAM);
+            return path == null ? null : new File(path);
+        } else if (Attachment.ATTACHMENT_PROVIDER_AUTHORITY.equals(uri.getAuthority())
+                && segments.size() == 3 && FORMAT_RAW.equals(segments.get(2))) {
+            try {
+                return getAttachmentFileForRead(context, Long.parseLong(segments.get(0)),
+                        Long.parseLong(segments.get(1)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the file that holds the part of an attachment downloaded so far, while it is being
+     * downloaded in ranges.  Raw content (still in its content transfer encoding) and content
+     * decoded by the server are kept apart, so that a download is never resumed in the other
+     * form.
+     * @param decoded whether the content is decoded by the server
+     */
+    public static File getPartialAttachmentFile(Context context, long accountId,
+            long attachmentId, boolean decoded) {
+        return new File(getAttachmentDirectory(context, accountId),
+                attachmentId + (decoded ? ".bin.part" : ".part"));
+    }
+
+    /**
+     * Delete the partial downloads of an attachment, in either form.
+     */
+    public static void deletePartialAttachmentFiles(Context context, long accountId,
+            long attachmentId) {
+        getPartialAttachmentFile(context, accountId, attachmentId, false).delete();
+        getPartialAttachmentFile(context, accountId, attachmentId, true).delete();
+    }
+
+    /**
+     * Return the file holding a given attachment's content.  This should be used by any code
+     * that is going to *read* attachments: the content may be in the
+     * {@link AttachmentContentStore}, shared with other attachments, rather than in the file
+     * given by {@link #getAttachmentFilename}.
+     */
+    public static File getAttachmentFileForRead(Context context, long accountId,
+            long attachmentId) {
+        final File stored = AttachmentContentStore.getInstance(context).getFile(attachmentId);
+        return stored != null ? stored : getAttachmentFilename(context, accountId, attachmentId);
+    }
+
+    /**
+     * Move a newly written attachment file into the {@link AttachmentContentStore}, if it is
+     * enabled.  This is best-effort; if it fails, the file stays where it was written.
+     * @param hintSize the size of the attachment as known before it was downloaded
+     */
+    public static void storeAttachmentFile(Context context, long accountId,
+            Attachment attachment, long hintSize) {
+        if (!AttachmentContentStore.isEnabled(context)) {
+            return;
+        }
+        try {
+            AttachmentContentStore.getInstance(context).store(accountId, attachment.mId,
+                    hintSize, attachment.mContentId, attachment.mFileName,
+                    getAttachmentFilename(context, accountId, attachment.mId));
+        } catch (IOException e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Failed to store attachment %d", attachment.mId);
+        }
+    }
+
+    /**
+     * Before downloading an attachment, check whether the {@link AttachmentContentStore} very
+     * likely has its content already (an attachment of the same account with the same size,
+     * content id and file name), and if so, use it.
+     * @return whether the attachment is now saved, and need not be downloaded
+     */
+    public static boolean loadAttachmentFromStore(Context context, Attachment attachment) {
+        if (!AttachmentContentStore.isEnabled(context)
+                || attachment.mUiDestination != UIProvider.AttachmentDestination.CACHE) {
+            return false;
+        }
+        final long accountId = attachment.mAccountKey;
+        final File stored = AttachmentContentStore.getInstance(context).linkByHint(accountId,
+                attachment.mId, attachment.mSize, attachment.mContentId, attachment.mFileName);
+        if (stored == null) {
+            return false;
+        }
+        final long size = stored.length();
+        final ContentValues cv = new ContentValues(3);
+        cv.put(AttachmentColumns.SIZE, size);
+        cv.put(AttachmentColumns.CONTENT_URI,
+                getAttachmentUri(accountId, attachment.mId).toString());
+        cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.SAVED);
+        context.getContentResolver().update(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, attachment.mId), cv, null, null);
+        AttachmentStorageLedger.getInstance(context).recordSave(accountId, attachment.mId, size,
+                false, System.currentTimeMillis());
+        return true;
+    }
+
     /**
      * Return the directory for a given attachment.  This should be used by any code that is
      * going to *write* attachments.
@@ -290,7 +414,8 @@ public class AttachmentUtilities {
 
     /**
      * In support of deleting a message, find all attachments and delete associated attachment
-     * files.
+     * files.  This isn't needed before deleting the message itself: the provider deletes the
+     * files of deleted attachments in the background.
      * @param context
      * @param accountId the account for the message
      * @param messageId the message
@@ -299,18 +424,69 @@ public class AttachmentUtilities {
         Uri uri = ContentUris.withAppendedId(Attachment.MESSAGE_ID_URI, messageId);
         Cursor c = context.getContentResolver().query(uri, Attachment.ID_PROJECTION,
                 null, null, null);
+        final List<Long> attachmentIds = new ArrayList<Long>();
         try {
             while (c.moveToNext()) {
-                long attachmentId = c.getLong(Attachment.ID_PROJECTION_COLUMN);
-                File attachmentFile = getAttachmentFilename(context, accountId, attachmentId);
-                // Note, delete() throws no exceptions for basic FS errors (e.g. file not found)
-                // it just returns false, which we ignore, and proceed to the next file.
-                // This entire loop is best-effort only.
-                attachmentFile.delete();
+                attachmentIds.add(c.getLong(Attachment.ID_PROJECTION_COLUMN));
             }
         } finally {
             c.close();
         }
+        deleteAttachmentFiles(context, accountId, attachmentIds);
+    }
+
+    /**
+     * Delete the files of the given attachments, which need not exist any more.
+     * @param context
+     * @param accountId the account of the attachments
+     * @param attachmentIds the attachments
+     */
+    public static void deleteAttachmentFiles(Context context, long accountId,
+            List<Long> attachmentIds) {
+        for (final long attachmentId : attachmentIds) {
+            File attachmentFile = getAttachmentFilename(context, accountId, attachmentId);
+            // Note, delete() throws no exceptions for basic FS errors (e.g. file not found)
+            // it just returns false, which we ignore, and proceed to the next file.
+            // This entire loop is best-effort only.
+            attachmentFile.delete();
+            deletePartialAttachmentFiles(context, accountId, attachmentId);
+        }
+        AttachmentStorageLedger.getInstance(context).recordDeleted(accountId, attachmentIds);
+        AttachmentContentStore.getInstance(context).release(attachmentIds);
+    }
+
+    /**
+     * Evict the files of prefetched attachments to free up space, resetting the attachments so
+     * that they will be downloaded again if the user asks for them.
+     * @param context
+     * @param accountId the account of the attachments
+     * @param attachmentIds the attachments to evict
+     */
+    public static void evictAttachmentFiles(Context context, long accountId,
+            List<Long> attachmentIds) {
+        final ContentValues cv = new ContentValues(3);
+        cv.putNull(AttachmentColumns.CONTENT_URI);
+        cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.NOT_SAVED);
+        cv.put(AttachmentColumns.UI_DOWNLOADED_SIZE, 0);
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(attachmentIds.size());
+        for (final long attachmentId : attachmentIds) {
+            // Best-effort, as in deleteAllAttachmentFiles
+            getAttachmentFilename(context, accountId, attachmentId).delete();
+            ops.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Attachment.CONTENT_URI, attachmentId))
+                    .withValues(cv).build());
+        }
+        // Reset all the attachments in one transaction
+        try {
+            context.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Failed to reset %d evicted attachments", ops.size());
+        } catch (OperationApplicationException e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Failed to reset %d evicted attachments", ops.size());
+        }
+        AttachmentStorageLedger.getInstance(context).recordEvicted(accountId, attachmentIds);
+        AttachmentContentStore.getInstance(context).release(attachmentIds);
     }
 
     /**
@@ -370,6 +546,8 @@ public class AttachmentUtilities {
      * @param accountId the account to scrub
      */
     public static void deleteAllAccountAttachmentFiles(Context context, long accountId) {
+        AttachmentStorageLedger.getInstance(context).recordAccountDeleted(accountId);
+        AttachmentContentStore.getInstance(context).releaseAccount(accountId);
         File[] files = getAttachmentDirectory(context, accountId).listFiles();
         if (files == null) return;
         for (File file : files) {
@@ -405,6 +583,14 @@ public class AttachmentUtilities {
                 Uri attUri = getAttachmentUri(accountId, attachmentId);
                 size = copyFile(in, resolver.openOutputStream(attUri));
                 contentUri = attUri.toString();
+                // Anything the user didn't ask for (directly, by forwarding or by viewing the
+                // message it is inline in) was prefetched
+                final boolean prefetched = TextUtils.isEmpty(attachment.mContentId)
+                        && (attachment.mFlags & (Attachment.FLAG_DOWNLOAD_USER_REQUEST
+                                | Attachment.FLAG_DOWNLOAD_FORWARD)) == 0;
+                AttachmentStorageLedger.getInstance(context).recordSave(accountId, attachmentId,
+                        size, prefetched, System.currentTimeMillis());
+                storeAttachmentFile(context, accountId, attachment, attachment.mSize);
             } else if (Utility.isExternalStorageMounted()) {
                 if (TextUtils.isEmpty(attachment.mFileName)) {
                     // TODO: This will prevent a crash but does not surface the underlying problem
@@ -453,6 +639,7 @@ public class AttachmentUtilities {
             cv.put(AttachmentColumns.SIZE, size);
             cv.put(AttachmentColumns.CONTENT_URI, contentUri);
             cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.SAVED);
+            cv.put(AttachmentColumns.FETCH_OFFSET, 0);
         } catch (IOException e) {
             // Handle failures here...
             cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.FAILED);
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Doubles any '.' at the start of a line, as SMTP DATA requires (RFC 5321 section 4.5.2), so
+ * that message content can never be mistaken for the end-of-data marker.
+ */
+public class DotStuffingOutputStream extends FilterOutputStream {
+    private int mLastChar = '\n';
+
+    public DotStuffingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (oneByte == '.' && mLastChar == '\n') {
+            super.write('.');
+        }
+        super.write(oneByte);
+        mLastChar = oneByte;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        int start = offset;
+        final int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            final byte b = buffer[i];
+            if (b == '.' && mLastChar == '\n') {
+                // Flush up to and including this dot, then the dot again
+                out.write(buffer, start, i - start + 1);
+                out.write('.');
+                start = i + 1;
+            }
+            mLastChar = b;
+        }
+        if (start < end) {
+            out.write(buffer, start, end - start);
+        }
+    }
+}
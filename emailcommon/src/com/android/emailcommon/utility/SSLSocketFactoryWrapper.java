@@ -40,6 +40,11 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
     private final int mHandshakeTimeout;
     private final String[] mDefaultCipherSuites;
 
+    /** Max number of TLS sessions kept for resumption by each factory */
+    private static final int SESSION_CACHE_SIZE = 32;
+    /** How long a cached TLS session may be resumed, in seconds */
+    private static final int SESSION_TIMEOUT_SECONDS = 8 * 60 * 60;
+
     private final String[] DEPRECATED_CIPHER_SUITES_TO_ENABLE = new String[] {
             "TLS_ECDHE_ECDSA_WITH_3DES_EDE_CBC_SHA",
             "TLS_ECDHE_RSA_WITH_3DES_EDE_CBC_SHA",
@@ -96,6 +101,7 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
             throws NoSuchAlgorithmException, KeyManagementException{
         final SSLContext context = SSLContext.getInstance("TLS");
         context.init(keyManagers, null, null);
+        configureSessionCache(context);
         return new SSLSocketFactoryWrapper(context.getSocketFactory(), true, handshakeTimeout);
     }
 
@@ -105,9 +111,23 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
             throws NoSuchAlgorithmException, KeyManagementException {
         final SSLContext context = SSLContext.getInstance("TLS");
         context.init(keyManagers, trustManagers, null);
+        configureSessionCache(context);
         return new SSLSocketFactoryWrapper(context.getSocketFactory(), false, handshakeTimeout);
     }
 
+    /**
+     * Size the client session cache of a context.  Sessions are cached by peer host and port,
+     * so every socket created through the same factory with a host name (see
+     * {@link #createSocket(Socket, String, int, boolean)}) can resume an earlier handshake.
+     */
+    private static void configureSessionCache(final SSLContext context) {
+        final SSLSessionContext sessionContext = context.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+    }
+
     public Socket createSocket()throws IOException {
         return mFactory.createSocket();
     }
@@ -117,6 +137,10 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
         final SSLSocket sslSocket = (SSLSocket)mFactory.createSocket(socket, host, port, autoClose);
         setHandshakeTimeout(sslSocket, mHandshakeTimeout);
         sslSocket.setEnabledCipherSuites(mDefaultCipherSuites);
+        // Both must be set before the handshake; tickets let the server resume the session
+        // without keeping state for us
+        potentiallyEnableSni(sslSocket, host);
+        potentiallyEnableSessionTickets(sslSocket);
         if (mSecure) {
             verifyHostname(sslSocket, host);
         }
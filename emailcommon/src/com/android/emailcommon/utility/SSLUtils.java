@@ -42,6 +42,9 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.TrustManager;
@@ -51,6 +54,18 @@ import javax.net.ssl.X509TrustManager;
 public class SSLUtils {
     // All secure factories are the same; all insecure factories are associated with HostAuth's
     private static javax.net.ssl.SSLSocketFactory sSecureFactory;
+    // Insecure factories without a client certificate, kept per server so that their TLS
+    // session caches survive from one connection to the next; only the most recently used are
+    // kept
+    private static final int MAX_INSECURE_FACTORIES = 8;
+    private static final LinkedHashMap<String, InsecureFactory> sInsecureFactories =
+            new LinkedHashMap<String, InsecureFactory>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, InsecureFactory> eldest) {
+                    return size() > MAX_INSECURE_FACTORIES;
+                }
+            };
 
     private static final boolean LOG_ENABLED = false;
     private static final String TAG = "Email.Ssl";
@@ -70,22 +85,11 @@ public class SSLUtils {
         // The public key associated with the HostAuth; we'll lazily initialize it
         private PublicKey mPublicKey;
 
-        SameCertificateCheckingTrustManager(Context context, HostAuth hostAuth) {
+        SameCertificateCheckingTrustManager(Context context, HostAuth hostAuth,
+                byte[] serverCert) {
             mContext = context;
             mHostAuth = hostAuth;
-            // We must load the server cert manually (the ContentCache won't handle blobs
-            Cursor c = context.getContentResolver().query(HostAuth.CONTENT_URI,
-                    new String[] {HostAuthColumns.SERVER_CERT}, HostAuthColumns._ID + "=?",
-                    new String[] {Long.toString(hostAuth.mId)}, null);
-            if (c != null) {
-                try {
-                    if (c.moveToNext()) {
-                        mHostAuth.mServerCert = c.getBlob(0);
-                    }
-                } finally {
-                    c.close();
-                }
-            }
+            mHostAuth.mServerCert = serverCert;
         }
 
         @Override
@@ -116,6 +120,9 @@ public class SSLUtils {
                         }
                     }
                     if (!mPublicKey.equals(serverCert.getPublicKey())) {
+                        // The stored certificate may have been replaced since it was loaded,
+                        // so the next connection loads it again
+                        forgetInsecureFactory(this);
                         throw new CertificateException(
                                 "PublicKey has changed since initial connection!");
                     }
@@ -138,6 +145,51 @@ public class SSLUtils {
         }
     }
 
+    /** An insecure factory, and the trust manager holding the certificate it accepts */
+    private static class InsecureFactory {
+        final javax.net.ssl.SSLSocketFactory mFactory;
+        final SameCertificateCheckingTrustManager mTrustManager;
+
+        InsecureFactory(javax.net.ssl.SSLSocketFactory factory,
+                SameCertificateCheckingTrustManager trustManager) {
+            mFactory = factory;
+            mTrustManager = trustManager;
+        }
+    }
+
+    /**
+     * Stop reusing the cached factory that checks certificates with the given trust manager.
+     */
+    private synchronized static void forgetInsecureFactory(
+            SameCertificateCheckingTrustManager trustManager) {
+        final Iterator<InsecureFactory> it = sInsecureFactories.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mTrustManager == trustManager) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the server certificate stored for a HostAuth, if any
+     */
+    private static byte[] loadServerCert(Context context, HostAuth hostAuth) {
+        // We must load the server cert manually (the ContentCache won't handle blobs
+        Cursor c = context.getContentResolver().query(HostAuth.CONTENT_URI,
+                new String[] {HostAuthColumns.SERVER_CERT}, HostAuthColumns._ID + "=?",
+                new String[] {Long.toString(hostAuth.mId)}, null);
+        if (c != null) {
+            try {
+                if (c.moveToNext()) {
+                    return c.getBlob(0);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return null;
+    }
+
     public static abstract class ExternalSecurityProviderInstaller {
         abstract public void installIfNeeded(final Context context);
     }
@@ -167,11 +219,28 @@ public class SSLUtils {
             final KeyManager[] keyManagers = (keyManager == null ? null :
                     new KeyManager[]{keyManager});
             if (insecure) {
-                final TrustManager[] trustManagers = new TrustManager[]{
-                        new SameCertificateCheckingTrustManager(context, hostAuth)};
+                final String key = (keyManager == null && hostAuth.mId > 0)
+                        ? hostAuth.mId + "/" + hostAuth.mAddress + ":" + hostAuth.mPort : null;
+                if (key != null) {
+                    // The cached factory's trust manager keeps its copy of the stored
+                    // certificate up to date, and is forgotten if the server's certificate
+                    // stops matching it, so the certificate is only loaded on a miss
+                    final InsecureFactory cached = sInsecureFactories.get(key);
+                    if (cached != null) {
+                        return cached.mFactory;
+                    }
+                }
+                final SameCertificateCheckingTrustManager trustManager =
+                        new SameCertificateCheckingTrustManager(context.getApplicationContext(),
+                                hostAuth, loadServerCert(context, hostAuth));
+                final TrustManager[] trustManagers = new TrustManager[]{trustManager};
                 SSLSocketFactoryWrapper insecureFactory =
                         (SSLSocketFactoryWrapper) SSLSocketFactoryWrapper.getInsecure(
                                 keyManagers, trustManagers, SSL_HANDSHAKE_TIMEOUT);
+                if (key != null) {
+                    sInsecureFactories.put(key,
+                            new InsecureFactory(insecureFactory, trustManager));
+                }
                 return insecureFactory;
             } else {
                 if (sSecureFactory == null) {
@@ -651,46 +651,42 @@ public class Utility {
         } else if (attachment.mContentBytes != null) {
             return true;
         } else {
-            final String cachedFile = attachment.getCachedFileUri();
             // Try the cached file first
-            if (!TextUtils.isEmpty(cachedFile)) {
-                final Uri cachedFileUri = Uri.parse(cachedFile);
-                try {
-                    final InputStream inStream =
-                            context.getContentResolver().openInputStream(cachedFileUri);
-                    try {
-                        inStream.close();
-                    } catch (IOException e) {
-                        // Nothing to be done if can't close the stream
-                    }
-                    return true;
-                } catch (FileNotFoundException e) {
-                    // We weren't able to open the file, try the content uri below
-                    LogUtils.e(LogUtils.TAG, e, "not able to open cached file");
-                }
-            }
-            final String contentUri = attachment.getContentUri();
-            if (TextUtils.isEmpty(contentUri)) {
-                return false;
+            if (uriExists(context, attachment.getCachedFileUri())) {
+                return true;
             }
+            return uriExists(context, attachment.getContentUri());
+        }
+    }
+
+    /**
+     * Check whether the content behind an attachment uri can be read.  A file we can see is
+     * checked with a stat; only other uris (or files that aren't readable from this process) are
+     * opened through their provider.
+     */
+    private static boolean uriExists(Context context, String uriString) {
+        if (TextUtils.isEmpty(uriString)) {
+            return false;
+        }
+        final File file = AttachmentUtilities.getLocalFile(context, uriString);
+        if (file != null && file.isFile() && file.canRead()) {
+            return true;
+        }
+        try {
+            final InputStream inStream =
+                    context.getContentResolver().openInputStream(Uri.parse(uriString));
             try {
-                final Uri fileUri = Uri.parse(contentUri);
-                try {
-                    final InputStream inStream =
-                            context.getContentResolver().openInputStream(fileUri);
-                    try {
-                        inStream.close();
-                    } catch (IOException e) {
-                        // Nothing to be done if can't close the stream
-                    }
-                    return true;
-                } catch (FileNotFoundException e) {
-                    return false;
-                }
-            } catch (RuntimeException re) {
-                LogUtils.w(LogUtils.TAG, re, "attachmentExists RuntimeException");
-                return false;
+                inStream.close();
+            } catch (IOException e) {
+                // Nothing to be done if can't close the stream
             }
+            return true;
+        } catch (FileNotFoundException e) {
+            LogUtils.d(LogUtils.TAG, "not able to open attachment uri");
+            return false;
+        } catch (RuntimeException re) {
+            LogUtils.w(LogUtils.TAG, re, "attachmentExists RuntimeException");
+            return false;
         }
     }
 
@@ -706,6 +702,20 @@ public class Utility {
         Message msg = Message.restoreMessageWithId(context, messageId);
         if (msg == null) return false;
         Attachment[] atts = Attachment.restoreAttachmentsWithMessageId(context, messageId);
+        return hasUnloadedAttachments(context, msg.mAccountKey, msg.mFlags, atts);
+    }
+
+    /**
+     * {@link #hasUnloadedAttachments(Context, long)} for a message whose account, flags and
+     * attachments the caller has already loaded (e.g. for a whole outbox at once).
+     * @param context the caller's context
+     * @param accountId the id of the message's account
+     * @param messageFlags the message's flags
+     * @param atts the message's attachments
+     * @return whether or not the message has unloaded attachments
+     */
+    public static boolean hasUnloadedAttachments(Context context, long accountId,
+            int messageFlags, Attachment[] atts) {
         for (Attachment att: atts) {
             if (!attachmentExists(context, att)) {
                 // If the attachment doesn't exist and isn't marked for download, we're in trouble
@@ -716,12 +726,12 @@ public class Utility {
                         Attachment.FLAG_DOWNLOAD_USER_REQUEST)) == 0) {
                     LogUtils.d(LogUtils.TAG, "Unloaded attachment isn't marked for download: %s" +
                             ", #%d", att.mFileName, att.mId);
-                    Account acct = Account.restoreAccountWithId(context, msg.mAccountKey);
+                    Account acct = Account.restoreAccountWithId(context, accountId);
                     if (acct == null) return true;
                     // If smart forward is set and the message is a forward, we'll act as though
                     // the attachment has been loaded
                     // In Email1 this test wasn't necessary, as the UI handled it...
-                    if ((msg.mFlags & Message.FLAG_TYPE_FORWARD) != 0) {
+                    if ((messageFlags & Message.FLAG_TYPE_FORWARD) != 0) {
                         if ((acct.mFlags & Account.FLAGS_SUPPORTS_SMART_FORWARD) != 0) {
                             continue;
                         }
@@ -42,6 +42,7 @@ import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentStorageLedger;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
@@ -58,16 +59,57 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class LegacyConversions {
 
     /** DO NOT CHECK IN "TRUE" */
     private static final boolean DEBUG_ATTACHMENTS = false;
 
+    private static final String HEADER_IN_REPLY_TO = "In-Reply-To";
+    private static final String HEADER_REFERENCES = "References";
+
+    /** Matches a message-id, e.g. in a References header */
+    private static final Pattern MESSAGE_ID_PATTERN = Pattern.compile("<[^<>\\s]+>");
+
     /** Used for mapping folder names to type codes (e.g. inbox, drafts, trash) */
     private static final HashMap<String, Integer>
             sServerMailboxNames = new HashMap<String, Integer>();
 
+    /**
+     * Collect the message-ids a message refers to: those of its References header, from the
+     * start of its thread on, and then that of its In-Reply-To header if it isn't among them.
+     *
+     * @return the message-ids, separated by spaces, or null if there are none
+     */
+    @VisibleForTesting
+    static String getThreadReferences(final Message message) throws MessagingException {
+        final StringBuilder sb = new StringBuilder();
+        appendMessageIds(sb, message.getHeader(HEADER_REFERENCES));
+        appendMessageIds(sb, message.getHeader(HEADER_IN_REPLY_TO));
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static void appendMessageIds(final StringBuilder sb, final String[] headers) {
+        if (headers == null) {
+            return;
+        }
+        for (final String header : headers) {
+            final Matcher matcher = MESSAGE_ID_PATTERN.matcher(header);
+            while (matcher.find()) {
+                final String messageId = matcher.group();
+                if (sb.indexOf(messageId) < 0) {
+                    if (sb.length() > 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(messageId);
+                }
+            }
+        }
+    }
+
     /**
      * Copy field-by-field from a "store" message to a "provider" message
      *
@@ -130,6 +172,11 @@ public class LegacyConversions {
         if (messageId != null) {
             localMessage.mMessageId = messageId;
         }
+        // Used by EmailProvider to put replies in the same thread as what they reply to
+        final String threadReferences = getThreadReferences(message);
+        if (threadReferences != null) {
+            localMessage.mThreadReferences = threadReferences;
+        }
 
 //        public long mBodyKey;
         localMessage.mMailboxKey = mailboxId;
@@ -232,7 +279,10 @@ public class LegacyConversions {
         localAttachment.mContentId = part.getContentId();
         localAttachment.setContentUri(null); // Will be rewritten by saveAttachmentBody
         localAttachment.mLocation = partId;
-        localAttachment.mEncoding = "B"; // TODO - convert other known encodings
+        // Kept so that the attachment can be decoded if it's later downloaded as it is
+        final String[] encodings = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        localAttachment.mEncoding = encodings != null && !TextUtils.isEmpty(encodings[0])
+                ? encodings[0].trim().toLowerCase(Locale.US) : null;
 
         return localAttachment;
     }
@@ -350,6 +400,11 @@ public class LegacyConversions {
             final String contentUriString = AttachmentUtilities.getAttachmentUri(
                     accountId, attachmentId).toString();
 
+            AttachmentStorageLedger.getInstance(context).recordSave(accountId, attachmentId,
+                    copySize, false, System.currentTimeMillis());
+            AttachmentUtilities.storeAttachmentFile(context, accountId, localAttachment,
+                    localAttachment.mSize);
+
             localAttachment.mSize = copySize;
             localAttachment.setContentUri(contentUriString);
 
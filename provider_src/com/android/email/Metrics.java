@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.os.SystemClock;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and histograms of where sync, protocol and provider time goes, printed
+ * by the dump() of the services and the provider ("adb shell dumpsys activity service
+ * com.android.email/.service.ImapService").
+ *
+ * Recording a value costs a few atomic operations and nothing is logged, so this is always on.
+ * Metrics are named with dotted prefixes (e.g. "imap.command.uid_fetch"), so that each dump can
+ * print its own.  Callers on hot paths should keep the metric they get rather than look it up
+ * each time.
+ */
+public final class Metrics {
+    /** Histograms have a bucket per power of two, which is good enough for percentiles */
+    private static final int BUCKET_COUNT = 64;
+
+    private static final ConcurrentHashMap<String, Counter> sCounters =
+            new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentHashMap<String, Histogram> sHistograms =
+            new ConcurrentHashMap<String, Histogram>();
+
+    private Metrics() {}
+
+    /**
+     * A count of events, or a total (e.g. of bytes).
+     */
+    public static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(final long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * The distribution of a value (e.g. a latency in ms, or a size in bytes).  Values are kept
+     * in buckets by their highest bit, so percentiles are upper bounds within a factor of two.
+     */
+    public static final class Histogram {
+        private final String mUnit;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        private Histogram(final String unit) {
+            mUnit = unit;
+        }
+
+        public void record(final long value) {
+            mBuckets.incrementAndGet(getBucket(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * Record the time since {@code startMillis}, as returned by {@link Metrics#now}.
+         */
+        public void recordSince(final long startMillis) {
+            record(now() - startMillis);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * @return an upper bound of the given percentile of the values recorded, or 0 if none
+         */
+        public long getPercentile(final int percent) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (count * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(getBucketLimit(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        private void dump(final PrintWriter writer, final String name) {
+            final long count = getCount();
+            writer.println(String.format(Locale.US,
+                    "    %s: count=%d sum=%d%s avg=%d p50=%d p90=%d p99=%d max=%d",
+                    name, count, getSum(), mUnit, count > 0 ? getSum() / count : 0,
+                    getPercentile(50), getPercentile(90), getPercentile(99), getMax()));
+        }
+    }
+
+    /**
+     * Times the consecutive phases of an operation into histograms named for the operation
+     * and each phase, and the whole operation into one named for the operation and "total".
+     *
+     * <code>
+     *   Phases phases = Metrics.startPhases("sync.imap");
+     *   // Open the folder
+     *   phases.split("open");
+     *   // Search it
+     *   phases.split("search");
+     *   phases.stop();
+     * </code>
+     */
+    public static final class Phases {
+        private final String mName;
+        private final long mStart;
+        private long mLastSplit;
+
+        private Phases(final String name) {
+            mName = name;
+            mStart = now();
+            mLastSplit = mStart;
+        }
+
+        public void split(final String phase) {
+            final long now = now();
+            timer(mName + "." + phase).record(now - mLastSplit);
+            mLastSplit = now;
+        }
+
+        public void stop() {
+            timer(mName + ".total").record(now() - mStart);
+        }
+    }
+
+    /**
+     * @return the time to pass to {@link Histogram#recordSince}
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public static Counter counter(final String name) {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            sCounters.putIfAbsent(name, new Counter());
+            counter = sCounters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * @param unit the unit of the values, for the dump (e.g. "ms" or "B")
+     */
+    public static Histogram histogram(final String name, final String unit) {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            sHistograms.putIfAbsent(name, new Histogram(unit));
+            histogram = sHistograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return a histogram of durations in ms
+     */
+    public static Histogram timer(final String name) {
+        return histogram(name, "ms");
+    }
+
+    public static Phases startPhases(final String name) {
+        return new Phases(name);
+    }
+
+    /**
+     * @return a name for a protocol command, made of its first word, or first two if the first
+     * is "UID" (e.g. "uid_fetch" for "UID FETCH 1:* (FLAGS)"); "greeting" for no command (the
+     * server's greeting), and "other" for anything that isn't a word, which might be data
+     */
+    public static String getCommandName(final String command) {
+        if (command == null) {
+            return "greeting";
+        }
+        int end = command.indexOf(' ');
+        if (end > 0 && command.regionMatches(true, 0, "UID ", 0, 4)) {
+            final int next = command.indexOf(' ', end + 1);
+            end = next > 0 ? next : command.length();
+        } else if (end < 0) {
+            end = command.length();
+        }
+        if (end == 0) {
+            return "other";
+        }
+        for (int i = 0; i < end; i++) {
+            final char c = command.charAt(i);
+            if (!(c >= 'A' && c <= 'Z') && !(c >= 'a' && c <= 'z') && c != ' ') {
+                return "other";
+            }
+        }
+        return command.substring(0, end).replace(' ', '_').toLowerCase(Locale.US);
+    }
+
+    /**
+     * Print the metrics whose names start with any of the given prefixes, sorted by name.
+     */
+    public static void dump(final PrintWriter writer, final String... prefixes) {
+        writer.println("  Metrics:");
+        for (final String name : getSortedNames(sCounters.keySet(), prefixes)) {
+            writer.println("    " + name + ": " + sCounters.get(name).get());
+        }
+        for (final String name : getSortedNames(sHistograms.keySet(), prefixes)) {
+            sHistograms.get(name).dump(writer, name);
+        }
+    }
+
+    private static List<String> getSortedNames(final Iterable<String> names,
+            final String[] prefixes) {
+        final ArrayList<String> result = new ArrayList<String>();
+        for (final String name : names) {
+            for (final String prefix : prefixes) {
+                if (name.startsWith(prefix)) {
+                    result.add(name);
+                    break;
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the bucket of a value: 0 for values below 1, otherwise one more than the index of
+     * its highest bit, so that bucket i holds values from 2^(i-1) to 2^i - 1
+     */
+    @VisibleForTesting
+    static int getBucket(final long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    @VisibleForTesting
+    static long getBucketLimit(final int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @VisibleForTesting
+    static void reset() {
+        sCounters.clear();
+        sHistograms.clear();
+    }
+}
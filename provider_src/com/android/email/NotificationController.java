@@ -18,9 +18,11 @@ package com.android.email;
 
 import android.content.Context;
 import android.content.Intent;
+
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 
+import java.io.PrintWriter;
 
 public interface NotificationController {
     void watchForMessages();
@@ -36,4 +38,5 @@ public interface NotificationController {
     void showPasswordExpiringNotificationSynchronous(long accountId);
     void showPasswordExpiredNotificationSynchronous(long accountId);
     void cancelPasswordExpirationNotifications();
+    void dump(PrintWriter writer);
 }
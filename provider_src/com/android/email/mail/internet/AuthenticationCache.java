@@ -1,6 +1,9 @@
 package com.android.email.mail.internet;
 
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 
 import com.android.email.mail.internet.OAuthAuthenticator.AuthenticationResult;
@@ -9,27 +12,55 @@ import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.Credential;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Caches OAuth access tokens by account, and refreshes them.
+ *
+ * Refreshes run in the background, one at a time, and callers that need the same token refreshed
+ * wait for the same request. A token that's been used is refreshed ahead of time, before it gets
+ * within {@link #EXPIRATION_THRESHOLD} of expiring, so that connections rarely have to wait at
+ * all. If a refresh fails but the token hasn't expired yet, callers get the token they have.
+ */
 public class AuthenticationCache {
     private static AuthenticationCache sCache;
 
     // Threshold for refreshing a token. If the token is expected to expire within this amount of
     // time, we won't even bother attempting to use it and will simply force a refresh.
-    private static final long EXPIRATION_THRESHOLD = 5 * DateUtils.MINUTE_IN_MILLIS;
+    @VisibleForTesting
+    static final long EXPIRATION_THRESHOLD = 5 * DateUtils.MINUTE_IN_MILLIS;
+    // How long before the threshold tokens in use are refreshed in the background.
+    @VisibleForTesting
+    static final long REFRESH_LEAD_TIME = 5 * DateUtils.MINUTE_IN_MILLIS;
+    // After a failed refresh, a token that hasn't expired is used without retrying for this long.
+    private static final long RETRY_DELAY = DateUtils.MINUTE_IN_MILLIS;
 
     private final Map<Long, CacheEntry> mCache;
     private final OAuthAuthenticator mAuthenticator;
+    // Runs the refreshes, one at a time, as the authenticator's HttpClient is not thread safe.
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
 
+    // All but the ids are guarded by the entry's monitor.
     private class CacheEntry {
-        CacheEntry(long accountId, String providerId, String accessToken, String refreshToken,
-                long expirationTime) {
+        CacheEntry(long accountId, long credentialId, String providerId, String accessToken,
+                String refreshToken, long expirationTime) {
             mAccountId = accountId;
+            mCredentialId = credentialId;
             mProviderId = providerId;
             mAccessToken = accessToken;
             mRefreshToken = refreshToken;
@@ -37,24 +68,34 @@ public class AuthenticationCache {
         }
 
         final long mAccountId;
+        final long mCredentialId;
         String mProviderId;
         String mAccessToken;
         String mRefreshToken;
         long mExpirationTime;
+        // The refresh in progress, if any.
+        Future<Void> mRefresh;
+        // The background refresh, if one is scheduled.
+        ScheduledFuture<?> mScheduledRefresh;
+        // Whether the token has been retrieved since it was last refreshed.
+        boolean mUsed;
+        // Until when to use the current token without retrying, after a refresh failed.
+        long mRetryTime;
     }
 
     public static AuthenticationCache getInstance() {
         synchronized (AuthenticationCache.class) {
             if (sCache == null) {
-                sCache = new AuthenticationCache();
+                sCache = new AuthenticationCache(new OAuthAuthenticator());
             }
             return sCache;
         }
     }
 
-    private AuthenticationCache() {
+    @VisibleForTesting
+    AuthenticationCache(OAuthAuthenticator authenticator) {
         mCache = new HashMap<Long, CacheEntry>();
-        mAuthenticator = new OAuthAuthenticator();
+        mAuthenticator = authenticator;
     }
 
     // Gets an access token for the given account. This may be whatever is currently cached, or
@@ -64,27 +105,53 @@ public class AuthenticationCache {
         // Currently, we always use the same OAuth info for both sending and receiving.
         // If we start to allow different credential objects for sending and receiving, this
         // will need to be updated.
-        CacheEntry entry = null;
+        final CacheEntry entry;
         synchronized (mCache) {
             entry = getEntry(context, account);
         }
+        final Future<Void> refresh;
         synchronized (entry) {
-            final long actualExpiration = entry.mExpirationTime - EXPIRATION_THRESHOLD;
-            if (System.currentTimeMillis() > actualExpiration) {
-                // This access token is pretty close to end of life. Don't bother trying to use it,
-                // it might just time out while we're trying to sync. Go ahead and refresh it
-                // immediately.
-                refreshEntry(context, entry);
+            entry.mUsed = true;
+            final long now = System.currentTimeMillis();
+            if (now <= entry.mExpirationTime - EXPIRATION_THRESHOLD ||
+                    (now < entry.mExpirationTime && now < entry.mRetryTime)) {
+                return entry.mAccessToken;
             }
+            // This access token is pretty close to end of life. Don't bother trying to use it,
+            // it might just time out while we're trying to sync. Refresh it, or wait for the
+            // refresh that's already under way.
+            refresh = startRefresh(context, entry);
+        }
+        try {
+            awaitRefresh(refresh);
+        } catch (AuthenticationFailedException e) {
+            throw e;
+        } catch (MessagingException | IOException e) {
+            synchronized (entry) {
+                if (System.currentTimeMillis() < entry.mExpirationTime) {
+                    LogUtils.w(Logging.LOG_TAG, "refresh failed, using the unexpired token");
+                    return entry.mAccessToken;
+                }
+            }
+            throw e;
+        }
+        synchronized (entry) {
             return entry.mAccessToken;
         }
     }
 
     public String refreshAccessToken(Context context, Account account) throws
             MessagingException, IOException {
-        CacheEntry entry = getEntry(context, account);
+        final CacheEntry entry;
+        synchronized (mCache) {
+            entry = getEntry(context, account);
+        }
+        final Future<Void> refresh;
+        synchronized (entry) {
+            refresh = startRefresh(context, entry);
+        }
+        awaitRefresh(refresh);
         synchronized (entry) {
-            refreshEntry(context, entry);
             return entry.mAccessToken;
         }
     }
@@ -97,33 +164,133 @@ public class AuthenticationCache {
                 LogUtils.d(Logging.LOG_TAG, "initializing entry from database");
                 final HostAuth hostAuth = account.getOrCreateHostAuthRecv(context);
                 final Credential credential = hostAuth.getOrCreateCredential(context);
-                entry = new CacheEntry(account.mId, credential.mProviderId, credential.mAccessToken,
-                        credential.mRefreshToken, credential.mExpiration);
+                entry = new CacheEntry(account.mId, credential.mId, credential.mProviderId,
+                        credential.mAccessToken, credential.mRefreshToken, credential.mExpiration);
                 mCache.put(account.mId, entry);
+                synchronized (entry) {
+                    scheduleRefresh(context, entry);
+                }
             }
         } else {
             // This account is temporary, just create a temporary entry. Don't store
             // it in the cache, it won't be findable because we don't yet have an account Id.
             final HostAuth hostAuth = account.getOrCreateHostAuthRecv(context);
             final Credential credential = hostAuth.getCredential(context);
-            entry = new CacheEntry(account.mId, credential.mProviderId, credential.mAccessToken,
-                    credential.mRefreshToken, credential.mExpiration);
+            entry = new CacheEntry(account.mId, credential.mId, credential.mProviderId,
+                    credential.mAccessToken, credential.mRefreshToken, credential.mExpiration);
         }
         return entry;
     }
 
+    /**
+     * Starts refreshing the entry's token, unless a refresh is already under way.  Must be called
+     * with the entry's monitor held.
+     * @return the refresh
+     */
+    private Future<Void> startRefresh(final Context context, final CacheEntry entry) {
+        if (entry.mRefresh == null) {
+            entry.mRefresh = mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, MessagingException {
+                    try {
+                        refreshEntry(context, entry);
+                    } finally {
+                        synchronized (entry) {
+                            entry.mRefresh = null;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        return entry.mRefresh;
+    }
+
+    /**
+     * Waits for a refresh, and throws what it threw.
+     */
+    private static void awaitRefresh(Future<Void> refresh) throws MessagingException, IOException {
+        try {
+            refresh.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the access token");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof MessagingException) {
+                throw (MessagingException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new MessagingException("Refreshing the access token failed", cause);
+        }
+    }
+
+    /**
+     * Schedules the background refresh of a cached entry's token.  Must be called with the
+     * entry's monitor held.  The refresh only happens if the token is used in the meantime;
+     * a token nobody uses is left to expire, and is refreshed when it's next needed.
+     */
+    private void scheduleRefresh(final Context context, final CacheEntry entry) {
+        if (entry.mScheduledRefresh != null) {
+            entry.mScheduledRefresh.cancel(false);
+            entry.mScheduledRefresh = null;
+        }
+        if (TextUtils.isEmpty(entry.mRefreshToken)) {
+            return;
+        }
+        final long delay = entry.mExpirationTime - EXPIRATION_THRESHOLD - REFRESH_LEAD_TIME
+                - System.currentTimeMillis();
+        entry.mScheduledRefresh = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (entry) {
+                    entry.mScheduledRefresh = null;
+                    if (entry.mUsed && System.currentTimeMillis() >= entry.mRetryTime) {
+                        LogUtils.d(Logging.LOG_TAG, "refreshing %d ahead of expiration",
+                                entry.mAccountId);
+                        startRefresh(context, entry);
+                    }
+                }
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refreshes the entry's token.  Runs on {@link #mExecutor}, without holding the entry's
+     * monitor while waiting for the server.
+     */
     private void refreshEntry(Context context, CacheEntry entry) throws
             IOException, MessagingException {
         LogUtils.d(Logging.LOG_TAG, "AuthenticationCache refreshEntry %d", entry.mAccountId);
+        final String providerId;
+        final String refreshToken;
+        synchronized (entry) {
+            providerId = entry.mProviderId;
+            refreshToken = entry.mRefreshToken;
+        }
         try {
             final AuthenticationResult result = mAuthenticator.requestRefresh(context,
-                    entry.mProviderId, entry.mRefreshToken);
-            // Don't set the refresh token here, it's not returned by the refresh response,
-            // so setting it here would make it blank.
-            entry.mAccessToken = result.mAccessToken;
-            entry.mExpirationTime = result.mExpiresInSeconds * DateUtils.SECOND_IN_MILLIS +
-                    System.currentTimeMillis();
-            saveEntry(context, entry);
+                    providerId, refreshToken);
+            final boolean cached;
+            synchronized (mCache) {
+                cached = mCache.get(entry.mAccountId) == entry;
+            }
+            synchronized (entry) {
+                // Don't set the refresh token here, it's not returned by the refresh response,
+                // so setting it here would make it blank.
+                entry.mAccessToken = result.mAccessToken;
+                entry.mExpirationTime = result.mExpiresInSeconds * DateUtils.SECOND_IN_MILLIS +
+                        System.currentTimeMillis();
+                entry.mRetryTime = 0;
+                entry.mUsed = false;
+                saveEntry(context, entry);
+                if (cached) {
+                    scheduleRefresh(context, entry);
+                }
+            }
         } catch (AuthenticationFailedException e) {
             // This is fatal. Clear the tokens and rethrow the exception.
             LogUtils.d(Logging.LOG_TAG, "authentication failed, clearning");
@@ -131,32 +298,57 @@ public class AuthenticationCache {
             throw e;
         } catch (MessagingException e) {
             LogUtils.d(Logging.LOG_TAG, "messaging exception");
+            retryLater(entry);
             throw e;
         } catch (IOException e) {
             LogUtils.d(Logging.LOG_TAG, "IO exception");
+            retryLater(entry);
             throw e;
         }
     }
 
+    private static void retryLater(CacheEntry entry) {
+        synchronized (entry) {
+            entry.mRetryTime = System.currentTimeMillis() + RETRY_DELAY;
+        }
+    }
+
+    /**
+     * Saves the entry's tokens to its Credential row.  Must be called with the entry's monitor
+     * held.
+     */
     private void saveEntry(Context context, CacheEntry entry) {
         LogUtils.d(Logging.LOG_TAG, "saveEntry");
-
-        final Account account = Account.restoreAccountWithId(context,  entry.mAccountId);
-        final HostAuth hostAuth = account.getOrCreateHostAuthRecv(context);
-        final Credential cred = hostAuth.getOrCreateCredential(context);
-        cred.mProviderId = entry.mProviderId;
-        cred.mAccessToken = entry.mAccessToken;
-        cred.mRefreshToken = entry.mRefreshToken;
-        cred.mExpiration = entry.mExpirationTime;
-        cred.update(context, cred.toContentValues());
+        if (entry.mCredentialId == EmailContent.NOT_SAVED) {
+            // A temporary account, which will be saved with its tokens
+            return;
+        }
+        final ContentValues cv = new ContentValues(4);
+        cv.put(Credential.PROVIDER_COLUMN, entry.mProviderId);
+        cv.put(Credential.ACCESS_TOKEN_COLUMN, entry.mAccessToken);
+        cv.put(Credential.REFRESH_TOKEN_COLUMN, entry.mRefreshToken);
+        cv.put(Credential.EXPIRATION_COLUMN, entry.mExpirationTime);
+        context.getContentResolver().update(
+                ContentUris.withAppendedId(Credential.CONTENT_URI, entry.mCredentialId),
+                cv, null, null);
     }
 
     private void clearEntry(Context context, CacheEntry entry) {
         LogUtils.d(Logging.LOG_TAG, "clearEntry");
-        entry.mAccessToken = "";
-        entry.mRefreshToken = "";
-        entry.mExpirationTime = 0;
-        saveEntry(context, entry);
-        mCache.remove(entry.mAccountId);
+        synchronized (entry) {
+            entry.mAccessToken = "";
+            entry.mRefreshToken = "";
+            entry.mExpirationTime = 0;
+            if (entry.mScheduledRefresh != null) {
+                entry.mScheduledRefresh.cancel(false);
+                entry.mScheduledRefresh = null;
+            }
+            saveEntry(context, entry);
+        }
+        synchronized (mCache) {
+            if (mCache.get(entry.mAccountId) == entry) {
+                mCache.remove(entry.mAccountId);
+            }
+        }
     }
 }
@@ -9,6 +9,7 @@ import com.android.emailcommon.VendorPolicyLoader.OAuthProvider;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -117,6 +118,12 @@ public class OAuthAuthenticator {
             // exception, this will at least give the user a heads up to set up their account again.
             throw new AuthenticationFailedException("Invalid provider" + providerId);
         }
+        return requestRefresh(provider, refreshToken);
+    }
+
+    @VisibleForTesting
+    AuthenticationResult requestRefresh(final OAuthProvider provider, final String refreshToken)
+            throws MessagingException, IOException {
         final HttpPost post = new HttpPost(provider.refreshEndpoint);
         post.setHeader("Content-Type", "application/x-www-form-urlencoded");
         final List<BasicNameValuePair> nvp = new ArrayList<BasicNameValuePair>();
@@ -146,15 +153,26 @@ public class OAuthAuthenticator {
         } else if (status == HttpStatus.SC_FORBIDDEN || status == HttpStatus.SC_UNAUTHORIZED ||
                 status == HttpStatus.SC_BAD_REQUEST) {
             LogUtils.e(TAG, "HTTP Authentication error getting oauth tokens %d", status);
+            consumeContent(response);
             // This is fatal, and we probably should clear our tokens after this.
             throw new AuthenticationFailedException("Auth error getting auth token");
         } else {
             LogUtils.e(TAG, "HTTP Error %d getting oauth tokens", status);
+            consumeContent(response);
             // This is probably a transient error, we can try again later.
             throw new MessagingException("HTTPError " + status + " getting oauth token");
         }
     }
 
+    /**
+     * Releases the connection of a response whose content we won't read.
+     */
+    private static void consumeContent(HttpResponse response) throws IOException {
+        if (response.getEntity() != null) {
+            response.getEntity().consumeContent();
+        }
+    }
+
     private AuthenticationResult parseResponse(HttpResponse response) throws IOException,
             MessagingException {
         final BufferedReader reader = new BufferedReader(new InputStreamReader(
@@ -16,10 +16,12 @@
 
 package com.android.email.mail.store;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64;
 
 import com.android.email.DebugUtils;
+import com.android.email.Metrics;
 import com.android.email.mail.internet.AuthenticationCache;
 import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.imap.ImapConstants;
@@ -34,6 +36,7 @@ import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.net.SocketTimeoutException;
@@ -70,9 +73,20 @@ class ImapConnection {
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
     /** IDLE capability per RFC 2177 */
     public static final int CAPABILITY_IDLE      = 1 << 4;
+    /** BINARY capability per RFC 3516 */
+    public static final int CAPABILITY_BINARY    = 1 << 5;
+    /** SASL-IR capability per RFC 4959 */
+    public static final int CAPABILITY_SASL_IR   = 1 << 6;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
+    /** The capabilities as the server last listed them */
+    private String mCapabilityString;
+    /** Whether an ID command was sent, and its response is still to be read */
+    private boolean mIdPending;
+    /** The command awaiting its tagged response, and when it was sent, for the metrics */
+    private String mCommandName;
+    private long mCommandStart;
     static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
     MailTransport mTransport;
     private ImapResponseParser mParser;
@@ -96,6 +110,9 @@ class ImapConnection {
 
     private String mTransportTag;
 
+    /** When this connection was last returned to the pool (elapsed realtime) */
+    private long mPooledAt;
+
     // Keep others from instantiating directly
     ImapConnection(ImapStore store) {
         setStore(store);
@@ -109,6 +126,20 @@ class ImapConnection {
         mLoginPhrase = null;
     }
 
+    /**
+     * Record that the connection is going idle in a pool.
+     */
+    void markPooled() {
+        mPooledAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns how long the connection has been sitting in the pool, in milliseconds.
+     */
+    long getPooledMillis() {
+        return SystemClock.elapsedRealtime() - mPooledAt;
+    }
+
     void setTransportTag(String tag) {
         mTransportTag = tag;
         if (mTransport != null) {
@@ -155,11 +186,20 @@ class ImapConnection {
         return mLoginPhrase;
     }
 
+    /**
+     * Opens the connection and logs in, in as few round trips as we can: the capabilities are
+     * taken from the greeting and the login response when the server lists them there, ID is
+     * pipelined with the command that follows it, and what we learn about the server is saved
+     * in an {@link ImapServerProfile}, so that later connections needn't ask again.
+     */
     void open() throws IOException, MessagingException {
         if (mTransport != null && mTransport.isOpen()) {
             return;
         }
 
+        final ImapServerProfile profile = ImapServerProfile.restore(mImapStore.getContext(),
+                mImapStore.getHostAuth());
+        boolean opened = false;
         try {
             // copy configuration into a clean transport, if necessary
             if (mTransport == null) {
@@ -171,40 +211,64 @@ class ImapConnection {
 
             createParser();
 
-            // BANNER
-            mParser.readResponse();
+            // BANNER, which may list the capabilities
+            ImapList capabilities = getCapabilities(mParser.readResponse());
 
-            // CAPABILITY
-            ImapResponse capabilities = queryCapabilities();
-
-            boolean hasStartTlsCapability =
-                capabilities.contains(ImapConstants.STARTTLS);
-
-            // TLS
-            ImapResponse newCapabilities = doStartTls(hasStartTlsCapability);
-            if (newCapabilities != null) {
-                capabilities = newCapabilities;
+            // TLS, after which the capabilities must be gathered again (RFC 3501 6.2.1)
+            if (mTransport.canTryTlsSecurity()) {
+                if (capabilities == null) {
+                    capabilities = queryCapabilities();
+                }
+                doStartTls(capabilities.contains(ImapConstants.STARTTLS));
+                capabilities = null;
             }
 
+            // CAPABILITY, unless the server listed them already or we know them from before
             // NOTE: An IMAP response MUST be processed before issuing any new IMAP
             // requests. Subsequent requests may destroy previous response data. As
             // such, we save away capability information here for future use.
-            setCapabilities(capabilities);
-            String capabilityString = capabilities.flatten();
+            if (capabilities == null && profile == null) {
+                capabilities = queryCapabilities();
+            }
+            if (capabilities != null) {
+                setCapabilities(capabilities);
+            } else {
+                mCapabilities = profile.mCapabilities;
+                mCapabilityString = profile.mCapabilityString;
+            }
 
-            // ID
-            doSendId(isCapable(CAPABILITY_ID), capabilityString);
+            // ID, which is sent along with NAMESPACE if we have to ask for that (it's only
+            // valid in the Authenticated state), and otherwise with LOGIN
+            final String idPhrase = getIdPhrase(isCapable(CAPABILITY_ID));
+            final boolean getNamespace = profile == null && isCapable(CAPABILITY_NAMESPACE)
+                    && !mImapStore.isUserPrefixSet();
+            if (idPhrase != null && !getNamespace) {
+                sendCommand(idPhrase, false);
+                mIdPending = true;
+            }
 
-            // LOGIN
-            doLogin();
+            // LOGIN, whose response may list the capabilities of the Authenticated state
+            capabilities = doLogin();
+            if (capabilities != null) {
+                setCapabilities(capabilities);
+            }
 
-            // NAMESPACE (only valid in the Authenticated state)
-            doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
+            if (profile == null) {
+                // NAMESPACE (only valid in the Authenticated state)
+                doGetNamespace(isCapable(CAPABILITY_NAMESPACE), getNamespace ? idPhrase : null);
 
-            // Gets the path separator from the server
-            doGetPathSeparator();
+                // Gets the path separator from the server
+                doGetPathSeparator();
 
-            mImapStore.ensurePrefixIsValid();
+                mImapStore.ensurePrefixIsValid();
+                new ImapServerProfile(mCapabilities, mCapabilityString,
+                        mImapStore.getPathPrefix(), mImapStore.getPathSeparator())
+                        .save(mImapStore.getContext(), mImapStore.getHostAuth());
+            } else if (!mImapStore.isUserPrefixSet() || profile.mPathSeparator != null) {
+                mImapStore.setPathPrefix(profile.mPathPrefix);
+                mImapStore.setPathSeparator(profile.mPathSeparator);
+            }
+            opened = true;
         } catch (SSLException e) {
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, e, "SSLException");
@@ -219,7 +283,12 @@ class ImapConnection {
             }
             throw ioe;
         } finally {
+            mIdPending = false;
             destroyResponses();
+            // The profile may be what's wrong, so find out afresh next time
+            if (!opened && profile != null) {
+                ImapServerProfile.clear(mImapStore.getContext(), mImapStore.getHostAuth());
+            }
         }
     }
 
@@ -263,7 +332,8 @@ class ImapConnection {
      * Note: We only set the capability flags that we are interested in. There are many IMAP
      * capabilities that we do not track.
      */
-    private void setCapabilities(ImapResponse capabilities) {
+    private void setCapabilities(ImapList capabilities) {
+        mCapabilityString = capabilities.flatten();
         if (capabilities.contains(ImapConstants.ID)) {
             mCapabilities |= CAPABILITY_ID;
         }
@@ -279,6 +349,41 @@ class ImapConnection {
         if (capabilities.contains(ImapConstants.IDLE)) {
             mCapabilities |= CAPABILITY_IDLE;
         }
+        if (capabilities.contains(ImapConstants.BINARY)) {
+            mCapabilities |= CAPABILITY_BINARY;
+        }
+        if (capabilities.contains(ImapConstants.SASL_IR)) {
+            mCapabilities |= CAPABILITY_SASL_IR;
+        }
+    }
+
+    /**
+     * @return the capabilities listed in a CAPABILITY response, or in the CAPABILITY response
+     * code of a status response (e.g. "* OK [CAPABILITY IMAP4rev1 ...] Ready"), or null
+     */
+    private static ImapList getCapabilities(ImapResponse response) {
+        if (response.isDataResponse(0, ImapConstants.CAPABILITY)) {
+            return response;
+        }
+        if (response.isStatusResponse()
+                && response.getResponseCodeOrEmpty().is(ImapConstants.CAPABILITY)) {
+            return response.getListOrEmpty(1);
+        }
+        return null;
+    }
+
+    /**
+     * @return the last capabilities listed in any of the responses, or null
+     */
+    private static ImapList getCapabilities(List<ImapResponse> responses) {
+        ImapList capabilities = null;
+        for (ImapResponse response : responses) {
+            final ImapList listed = getCapabilities(response);
+            if (listed != null) {
+                capabilities = listed;
+            }
+        }
+        return capabilities;
     }
 
     /**
@@ -300,12 +405,36 @@ class ImapConnection {
         }
     }
 
-    boolean isTransportOpenForTest() {
+    /**
+     * Returns whether the underlying socket is still open, as far as we can tell locally.
+     */
+    boolean isTransportOpen() {
         return mTransport != null && mTransport.isOpen();
     }
 
+    boolean isTransportOpenForTest() {
+        return isTransportOpen();
+    }
+
+    @VisibleForTesting
+    void setPooledMillisForTest(long pooledMillis) {
+        mPooledAt = SystemClock.elapsedRealtime() - pooledMillis;
+    }
+
     ImapResponse readResponse() throws IOException, MessagingException {
-        return mParser.readResponse();
+        final ImapResponse response = mParser.readResponse();
+        recordCommandTime(response);
+        return response;
+    }
+
+    /**
+     * Record the time a command took, once its tagged response has been read.
+     */
+    private void recordCommandTime(ImapResponse response) {
+        if (response.isTagged() && mCommandName != null) {
+            Metrics.timer("imap.command." + mCommandName).recordSince(mCommandStart);
+            mCommandName = null;
+        }
     }
 
     /**
@@ -335,6 +464,11 @@ class ImapConnection {
             throw new IOException("Null transport");
         }
         String tag = Integer.toString(mNextCommandTag.incrementAndGet());
+        // DONE and the empty line ending a SASL exchange are part of an earlier command
+        if (!command.equals(ImapConstants.DONE) && !command.isEmpty()) {
+            mCommandName = Metrics.getCommandName(command);
+            mCommandStart = Metrics.now();
+        }
         final String commandToSend;
         if (command.equals(ImapConstants.DONE)) {
             // Do not send a tag for DONE command
@@ -359,6 +493,8 @@ class ImapConnection {
             IOException {
         open();
         String tag = Integer.toString(mNextCommandTag.incrementAndGet());
+        mCommandName = Metrics.getCommandName(commands.get(0));
+        mCommandStart = Metrics.now();
         int len = commands.size();
         for (int i = 0; i < len; i++) {
             String commandToSend = commands.get(i);
@@ -406,6 +542,7 @@ class ImapConnection {
         try {
             do {
                 response = parser.readResponse();
+                recordCommandTime(response);
                 if (idling) {
                     setReadTimeout(IDLE_OP_READ_TIMEOUT);
                     throwSocketTimeoutEx = false;
@@ -496,24 +633,23 @@ class ImapConnection {
     }
 
     /**
-     * Sends client identification information to the IMAP server per RFC 2971. If
-     * the server does not support the ID command, this will perform no operation.
+     * Returns the command to send client identification information to the IMAP server per
+     * RFC 2971, or null if the server does not support the ID command.
      *
      * Interoperability hack:  Never send ID to *.secureserver.net, which sends back a
      * malformed response that our parser can't deal with.
      */
-    private void doSendId(boolean hasIdCapability, String capabilities)
-            throws MessagingException {
-        if (!hasIdCapability) return;
+    private String getIdPhrase(boolean hasIdCapability) {
+        if (!hasIdCapability) return null;
 
         // Never send ID to *.secureserver.net
         String host = mTransport.getHost();
-        if (host.toLowerCase().endsWith(".secureserver.net")) return;
+        if (host.toLowerCase().endsWith(".secureserver.net")) return null;
 
         // Assign user-agent string (for RFC2971 ID command)
         String mUserAgent =
                 ImapStore.getImapId(mImapStore.getContext(), mImapStore.getUsername(), host,
-                        capabilities);
+                        mCapabilityString);
 
         if (mUserAgent != null) {
             mIdPhrase = ImapConstants.ID + " (" + mUserAgent + ")";
@@ -521,21 +657,33 @@ class ImapConnection {
             mIdPhrase = ImapConstants.ID + " " + ImapConstants.NIL;
         }
         // else: mIdPhrase = null, no ID will be emitted
+        return mIdPhrase;
+    }
 
-        // Send user-agent in an RFC2971 ID command
-        if (mIdPhrase != null) {
-            try {
-                executeSimpleCommand(mIdPhrase);
-            } catch (ImapException ie) {
-                // Log for debugging, but this is not a fatal problem.
-                if (DebugUtils.DEBUG) {
-                    LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
-                }
-            } catch (IOException ioe) {
-                // Special case to handle malformed OK responses and ignore them.
-                // A true IOException will recur on the following login steps
-                // This can go away after the parser is fixed - see bug 2138981
+    /**
+     * Reads the response to the ID command sent ahead of another command, if any.  The
+     * response doesn't matter, and we can't stop the other command anyway, so it's ignored.
+     */
+    private void readIdResponse() {
+        if (!mIdPending) return;
+        mIdPending = false;
+        // With two commands in flight, the metrics can't tell which one was answered
+        mCommandName = null;
+        try {
+            getCommandResponses();
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+            }
+        } catch (MessagingException me) {
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, me, "MessagingException");
             }
+        } catch (IOException ioe) {
+            // Special case to handle malformed OK responses and ignore them.
+            // A true IOException will recur on the following command
+            // This can go away after the parser is fixed - see bug 2138981
         }
     }
 
@@ -543,14 +691,31 @@ class ImapConnection {
      * Gets the user's Personal Namespace from the IMAP server per RFC 2342. If the user
      * explicitly sets a namespace (using setup UI) or if the server does not support the
      * namespace command, this will perform no operation.
+     *
+     * @param idPhrase an ID command to send ahead of NAMESPACE, or null
      */
-    private void doGetNamespace(boolean hasNamespaceCapability) throws MessagingException {
+    private void doGetNamespace(boolean hasNamespaceCapability, String idPhrase)
+            throws MessagingException {
         // user did not specify a hard-coded prefix; try to get it from the server
-        if (hasNamespaceCapability && !mImapStore.isUserPrefixSet()) {
+        final boolean getNamespace = hasNamespaceCapability && !mImapStore.isUserPrefixSet();
+        if (idPhrase != null) {
+            try {
+                sendCommand(idPhrase, false);
+                mIdPending = true;
+                if (!getNamespace) {
+                    readIdResponse();
+                }
+            } catch (IOException ioe) {
+                // A true IOException will recur on the following command
+            }
+        }
+        if (getNamespace) {
             List<ImapResponse> responseList = Collections.emptyList();
 
             try {
-                responseList = executeSimpleCommand(ImapConstants.NAMESPACE);
+                sendCommand(ImapConstants.NAMESPACE, false);
+                readIdResponse();
+                responseList = getCommandResponses();
             } catch (ImapException ie) {
                 // Log for debugging, but this is not a fatal problem.
                 if (DebugUtils.DEBUG) {
@@ -575,16 +740,21 @@ class ImapConnection {
     }
 
     /**
-     * Logs into the IMAP server
+     * Logs into the IMAP server, after reading the response to any ID sent ahead of it
+     *
+     * @return the capabilities listed in the response, or null
      */
-    private void doLogin() throws IOException, MessagingException, AuthenticationFailedException {
+    private ImapList doLogin()
+            throws IOException, MessagingException, AuthenticationFailedException {
         try {
             if (mImapStore.getUseOAuth()) {
                 // SASL authentication can take multiple steps. Currently the only SASL
                 // authentication supported is OAuth.
-                doSASLAuth();
+                return getCapabilities(doSASLAuth());
             } else {
-                executeSimpleCommand(getLoginPhrase(), true);
+                sendCommand(getLoginPhrase(), true);
+                readIdResponse();
+                return getCapabilities(getCommandResponses());
             }
         } catch (ImapException ie) {
             if (DebugUtils.DEBUG) {
@@ -609,10 +779,11 @@ class ImapConnection {
     /**
      * Performs an SASL authentication. Currently, the only type of SASL authentication supported
      * is OAuth.
+     * @return the tagged response
      * @throws MessagingException
      * @throws IOException
      */
-    private void doSASLAuth() throws MessagingException, IOException {
+    private ImapResponse doSASLAuth() throws MessagingException, IOException {
         LogUtils.d(Logging.LOG_TAG, "doSASLAuth");
         ImapResponse response = getOAuthResponse();
         if (!response.isOk()) {
@@ -633,15 +804,37 @@ class ImapConnection {
                 throw new AuthenticationFailedException("OAuth failed after refresh");
             }
         }
+        return response;
     }
 
+    /**
+     * Sends AUTHENTICATE XOAUTH2 and returns the tagged response.  The initial client response
+     * is sent with the command if the server supports SASL-IR, and otherwise once the server
+     * asks for it.
+     */
     private ImapResponse getOAuthResponse() throws IOException, MessagingException {
         ImapResponse response;
-        sendCommandInternal(getLoginPhrase(), true);
+        final String loginPhrase = getLoginPhrase();
+        final boolean initialResponse = isCapable(CAPABILITY_SASL_IR);
+        if (initialResponse) {
+            sendCommandInternal(loginPhrase, true);
+        } else {
+            sendCommandInternal(loginPhrase.substring(0, loginPhrase.lastIndexOf(' ')), true);
+        }
+        readIdResponse();
         do {
-            response = mParser.readResponse();
+            response = readResponse();
         } while (!response.isTagged() && !response.isContinuationRequest());
 
+        if (!initialResponse && response.isContinuationRequest()) {
+            final String clientResponse = loginPhrase.substring(loginPhrase.lastIndexOf(' ') + 1);
+            mTransport.writeLine(clientResponse, IMAP_REDACTED_LOG);
+            mDiscourse.addSentCommand(IMAP_REDACTED_LOG);
+            do {
+                response = readResponse();
+            } while (!response.isTagged() && !response.isContinuationRequest());
+        }
+
         if (response.isContinuationRequest()) {
             // SASL allows for a challenge/response type authentication, so if it doesn't yet have
             // enough info, it will send back a continuation request.
@@ -696,7 +889,7 @@ class ImapConnection {
      * to use TLS or the server does not support the TLS capability, this will perform
      * no operation.
      */
-    private ImapResponse doStartTls(boolean hasStartTlsCapability)
+    private void doStartTls(boolean hasStartTlsCapability)
             throws IOException, MessagingException {
         if (mTransport.canTryTlsSecurity()) {
             if (hasStartTlsCapability) {
@@ -705,8 +898,6 @@ class ImapConnection {
 
                 mTransport.reopenTls();
                 createParser();
-                // Per RFC requirement (3501-6.2.1) gather new capabilities
-                return(queryCapabilities());
             } else {
                 if (DebugUtils.DEBUG) {
                     LogUtils.d(Logging.LOG_TAG, "TLS not supported but required");
@@ -714,7 +905,6 @@ class ImapConnection {
                 throw new MessagingException(MessagingException.TLS_REQUIRED);
             }
         }
-        return null;
     }
 
     /** @see DiscourseLogger#logLastDiscourse() */
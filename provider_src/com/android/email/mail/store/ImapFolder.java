@@ -36,6 +36,7 @@ import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.internet.Rfc822Output;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.FetchProfile;
@@ -44,6 +45,7 @@ import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Message;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.CountingOutputStream;
@@ -66,6 +68,7 @@ import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -944,7 +947,8 @@ public class ImapFolder extends Folder {
          * Figure out what command we are going to run:
          * FLAGS     - UID FETCH (FLAGS)
          * ENVELOPE  - UID FETCH (INTERNALDATE UID RFC822.SIZE FLAGS BODY.PEEK[
-         *                            HEADER.FIELDS (date subject from content-type to cc)])
+         *                            HEADER.FIELDS (date subject from content-type to cc
+         *                            message-id in-reply-to references)])
          * STRUCTURE - UID FETCH (BODYSTRUCTURE)
          * BODY_SANE - UID FETCH (BODY.PEEK[]<0.N>) where N = max bytes returned
          * BODY      - UID FETCH (BODY.PEEK[])
@@ -1137,6 +1141,69 @@ public class ImapFolder extends Folder {
         return tempBody;
     }
 
+    /**
+     * @return whether the server can remove the content transfer encoding of parts itself
+     * (RFC 3516), so that {@link #fetchPartRange} may be asked for decoded content
+     */
+    public boolean canFetchBinary() throws MessagingException {
+        checkOpen();
+        return mConnection.isCapable(ImapConnection.CAPABILITY_BINARY);
+    }
+
+    /**
+     * Fetch a range of one MIME part of a message, with a partial fetch such as
+     * "UID FETCH 12 (UID BODY.PEEK[2]<0.65536>)", and write it to a stream.  Large parts can be
+     * downloaded a range at a time, so that an interrupted download can be resumed.
+     *
+     * @param uid the UID of the message
+     * @param partId the part, as in {@link MimeHeader#HEADER_ANDROID_ATTACHMENT_STORE_DATA}
+     * @param offset the offset of the range in the part
+     * @param length the length of the range
+     * @param binary if true, the range is of the content decoded by the server (BINARY.PEEK),
+     *     otherwise it is of the content as it is, in its content transfer encoding
+     * @param out the stream to write the range to
+     * @return the number of bytes written, which is less than {@code length} only if the range
+     *     reaches the end of the part, or -1 if {@code binary} was asked for but the server can't
+     *     decode the part, in which case it has to be fetched as it is
+     */
+    public int fetchPartRange(String uid, String partId, long offset, int length, boolean binary,
+            OutputStream out) throws MessagingException {
+        checkOpen();
+        final String field = binary ? ImapConstants.FETCH_FIELD_BINARY_PEEK_BARE
+                : ImapConstants.FETCH_FIELD_BODY_PEEK_BARE;
+        final String key = (binary ? ImapConstants.BINARY : ImapConstants.BODY) + "[";
+        try {
+            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                    String.format(Locale.US, ImapConstants.UID_FETCH + " %s (%s %s[%s]<%d.%d>)",
+                            uid, ImapConstants.UID, field, partId, offset, length));
+            for (final ImapResponse response : responses) {
+                if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                    continue;
+                }
+                final ImapList fetchList = response.getListOrEmpty(2);
+                if (!uid.equals(fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString())) {
+                    continue;
+                }
+                final InputStream in = fetchList.getKeyedStringOrEmpty(key, true).getAsStream();
+                try {
+                    return IOUtils.copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+            throw new MessagingException("No " + field + "[" + partId + "] for " + uid);
+        } catch (ImapException ie) {
+            if (binary && ImapConstants.UNKNOWN_CTE.equals(ie.getResponseCode())) {
+                return -1;
+            }
+            throw ie;
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
     @Override
     public Flag[] getPermanentFlags() {
         return PERMANENT_FLAGS;
@@ -1393,75 +1460,53 @@ public class ImapFolder extends Folder {
                 }
             }
 
-            mConnection.sendCommand(
-                    String.format(Locale.US, ImapConstants.APPEND + " \"%s\" (%s) {%d}",
-                            ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
-                            flagList,
-                            out.getCount()), false);
-            ImapResponse response;
-            do {
-                final int socketTimeout = mConnection.mTransport.getSoTimeout();
-                try {
-                    // Need to set the timeout to unlimited since we might be upsyncing a pretty
-                    // big attachment so who knows how long it'll take. It would sure be nice
-                    // if this only timed out after the send buffer drained but welp.
-                    if (noTimeout) {
-                        // For now, only unset the timeout if we're doing a manual sync
-                        mConnection.mTransport.setSoTimeout(0);
-                    }
-                    response = mConnection.readResponse();
-                    if (response.isContinuationRequest()) {
-                        final OutputStream transportOutputStream =
-                                mConnection.mTransport.getOutputStream();
-                        IOUtils.copyLarge(new FileInputStream(tempFile), transportOutputStream);
-                        transportOutputStream.write('\r');
-                        transportOutputStream.write('\n');
-                        transportOutputStream.flush();
-                    } else if (!response.isTagged()) {
-                        handleUntaggedResponse(response);
-                    }
-                } finally {
-                    mConnection.mTransport.setSoTimeout(socketTimeout);
-                }
-            } while (!response.isTagged());
-
-            // TODO Why not check the response?
-
-                /*
-                 * Try to recover the UID of the message from an APPENDUID response.
-                 * e.g. 11 OK [APPENDUID 2 238268] APPEND completed
-                 */
-            final ImapList appendList = response.getListOrEmpty(1);
-            if ((appendList.size() >= 3) && appendList.is(0, ImapConstants.APPENDUID)) {
-                String serverUid = appendList.getStringOrEmpty(2).getString();
-                if (!TextUtils.isEmpty(serverUid)) {
-                    message.setUid(serverUid);
-                    return;
+            final String uid = doAppend(flagList, out.getCount(), new LiteralWriter() {
+                @Override
+                public void writeTo(OutputStream transportOutputStream) throws IOException {
+                    IOUtils.copyLarge(new FileInputStream(tempFile), transportOutputStream);
                 }
+            }, message.getMessageId(), noTimeout);
+            if (uid != null) {
+                message.setUid(uid);
             }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
 
-            /*
-             * Try to find the UID of the message we just appended using the
-             * Message-ID header.  If there are more than one response, take the
-             * last one, as it's most likely the newest (the one we just uploaded).
-             */
-            final String messageId = message.getMessageId();
-            if (messageId == null || messageId.length() == 0) {
-                return;
-            }
-            // Most servers don't care about parenthesis in the search query [and, some
-            // fail to work if they are used]
-            String[] uids = searchForUids(
-                    String.format(Locale.US, "HEADER MESSAGE-ID %s", messageId));
-            if (uids.length > 0) {
-                message.setUid(uids[0]);
+    /**
+     * Append a provider message to this folder.  The message is streamed straight from the
+     * provider by {@link Rfc822Output}, whose dry run supplies the literal size, so unlike
+     * {@link #appendMessage(Context, Message, boolean)} no temp file copy is made.
+     *
+     * @return the UID the server assigned to the message, or null if it can't be determined
+     */
+    public String appendMessage(final Context context, final EmailContent.Message message,
+            final boolean noTimeout) throws MessagingException {
+        checkOpen();
+        try {
+            String flagList = "";
+            if (message.mFlagRead) {
+                flagList = ImapConstants.FLAG_SEEN;
             }
-            // However, there's at least one server [AOL] that fails to work unless there
-            // are parenthesis, so, try this as a last resort
-            uids = searchForUids(String.format(Locale.US, "(HEADER MESSAGE-ID %s)", messageId));
-            if (uids.length > 0) {
-                message.setUid(uids[0]);
+            if (message.mFlagFavorite) {
+                flagList += (flagList.isEmpty() ? "" : " ") + ImapConstants.FLAG_FLAGGED;
             }
+            final Rfc822Output output = Rfc822Output.prepare(context, message,
+                    false /* do not use smart reply */,
+                    true  /* keep BCC in our own copy */,
+                    null  /* attachments are in the message itself */);
+            // The server's copy is the one other clients see, so it keeps both bodies
+            output.setAlternativeBodies(true);
+            return doAppend(flagList, output.getEncodedSize(), new LiteralWriter() {
+                @Override
+                public void writeTo(OutputStream transportOutputStream)
+                        throws IOException, MessagingException {
+                    output.writeTo(transportOutputStream);
+                }
+            }, message.mMessageId, noTimeout);
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         } finally {
@@ -1469,6 +1514,98 @@ public class ImapFolder extends Folder {
         }
     }
 
+    /**
+     * Writes the literal of an APPEND command.
+     */
+    private interface LiteralWriter {
+        void writeTo(OutputStream transportOutputStream) throws IOException, MessagingException;
+    }
+
+    /**
+     * Issue an APPEND command and send the message literal once the server asks for it.
+     *
+     * @param flagList space separated flags to set on the message
+     * @param size exact size of the literal in bytes
+     * @param literal writes exactly {@code size} bytes
+     * @param messageId Message-ID header of the message, used to find the UID if the server
+     * doesn't report it with APPENDUID
+     * @param noTimeout whether to disable the socket timeout while uploading
+     * @return the UID of the appended message, or null if it can't be determined
+     */
+    private String doAppend(final String flagList, final long size, final LiteralWriter literal,
+            final String messageId, final boolean noTimeout)
+            throws IOException, MessagingException {
+        mConnection.sendCommand(
+                String.format(Locale.US, ImapConstants.APPEND + " \"%s\" (%s) {%d}",
+                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
+                        flagList,
+                        size), false);
+        ImapResponse response;
+        do {
+            final int socketTimeout = mConnection.mTransport.getSoTimeout();
+            try {
+                // Need to set the timeout to unlimited since we might be upsyncing a pretty
+                // big attachment so who knows how long it'll take. It would sure be nice
+                // if this only timed out after the send buffer drained but welp.
+                if (noTimeout) {
+                    // For now, only unset the timeout if we're doing a manual sync
+                    mConnection.mTransport.setSoTimeout(0);
+                }
+                response = mConnection.readResponse();
+                if (response.isContinuationRequest()) {
+                    final OutputStream transportOutputStream =
+                            mConnection.mTransport.getOutputStream();
+                    literal.writeTo(transportOutputStream);
+                    transportOutputStream.write('\r');
+                    transportOutputStream.write('\n');
+                    transportOutputStream.flush();
+                } else if (!response.isTagged()) {
+                    handleUntaggedResponse(response);
+                }
+            } finally {
+                mConnection.mTransport.setSoTimeout(socketTimeout);
+            }
+        } while (!response.isTagged());
+
+        // TODO Why not check the response?
+
+        /*
+         * Try to recover the UID of the message from an APPENDUID response.
+         * e.g. 11 OK [APPENDUID 2 238268] APPEND completed
+         */
+        final ImapList appendList = response.getListOrEmpty(1);
+        if ((appendList.size() >= 3) && appendList.is(0, ImapConstants.APPENDUID)) {
+            String serverUid = appendList.getStringOrEmpty(2).getString();
+            if (!TextUtils.isEmpty(serverUid)) {
+                return serverUid;
+            }
+        }
+
+        /*
+         * Try to find the UID of the message we just appended using the
+         * Message-ID header.  If there are more than one response, take the
+         * last one, as it's most likely the newest (the one we just uploaded).
+         */
+        if (messageId == null || messageId.length() == 0) {
+            return null;
+        }
+        String uid = null;
+        // Most servers don't care about parenthesis in the search query [and, some
+        // fail to work if they are used]
+        String[] uids = searchForUids(
+                String.format(Locale.US, "HEADER MESSAGE-ID %s", messageId));
+        if (uids.length > 0) {
+            uid = uids[0];
+        }
+        // However, there's at least one server [AOL] that fails to work unless there
+        // are parenthesis, so, try this as a last resort
+        uids = searchForUids(String.format(Locale.US, "(HEADER MESSAGE-ID %s)", messageId));
+        if (uids.length > 0) {
+            uid = uids[0];
+        }
+        return uid;
+    }
+
     @Override
     public Message[] expunge() throws MessagingException {
         checkOpen();
@@ -1482,6 +1619,31 @@ public class ImapFolder extends Folder {
         return null;
     }
 
+    /**
+     * Expunge some messages of the folder, which have been flagged \Deleted.  If the server
+     * supports UIDPLUS (RFC 4315), only those messages are expunged with UID EXPUNGE, and not
+     * any that other clients have flagged; otherwise the whole folder is, as by {@link #expunge}.
+     * @param uids the uids of the messages
+     */
+    public void expungeUids(final Collection<String> uids) throws MessagingException {
+        checkOpen();
+        if (uids.isEmpty()) {
+            return;
+        }
+        if (!mConnection.isCapable(ImapConnection.CAPABILITY_UIDPLUS)) {
+            expunge();
+            return;
+        }
+        try {
+            handleUntaggedResponses(mConnection.executeSimpleCommand(
+                    ImapConstants.UID_EXPUNGE + " " + TextUtils.join(",", uids)));
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
     @Override
     public void setFlags(Message[] messages, Flag[] flags, boolean value)
             throws MessagingException {
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import com.android.email.mail.Store;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.Flag;
+import com.android.emailcommon.mail.Folder;
+import com.android.emailcommon.mail.Folder.FolderType;
+import com.android.emailcommon.mail.Folder.OpenMode;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The remote folders used by one pass over an account's pending actions (see
+ * ImapService#processPendingActionsSynchronous), kept SELECTed from one action to the next so
+ * that consecutive actions on the same folders don't each STATUS, SELECT and close them again.
+ *
+ * Messages deleted through {@link #deleteMessage} are flagged \Deleted at once, but expunged
+ * together when their folder is closed: with UID EXPUNGE if the server supports UIDPLUS, so
+ * that messages other clients have flagged are left alone (see
+ * {@link ImapFolder#expungeUids}).  Each open folder holds a connection, so only the few most
+ * recently used are kept open.  {@link #close} must be called at the end of the pass.
+ */
+public class ImapFolderSessions {
+    /** The most folders kept open at once */
+    @VisibleForTesting
+    static final int MAX_OPEN_FOLDERS = 3;
+
+    /** The most deleted messages of a folder left to expunge at once */
+    @VisibleForTesting
+    static final int MAX_PENDING_EXPUNGES = 100;
+
+    private final Store mStore;
+    /** The folders used, by server id, least recently used first */
+    private final LinkedHashMap<String, Session> mSessions =
+            new LinkedHashMap<String, Session>(16, 0.75f, true);
+
+    private static class Session {
+        final Folder mFolder;
+        /** Whether the folder exists, or null if that's not known yet */
+        Boolean mExists;
+        boolean mCreateTried;
+        final ArrayList<String> mDeletedUids = new ArrayList<String>();
+
+        Session(final Folder folder) {
+            mFolder = folder;
+        }
+
+        void expunge() throws MessagingException {
+            if (mDeletedUids.isEmpty()) {
+                return;
+            }
+            try {
+                // Copying to a folder without UIDPLUS opens and closes the folder copied to
+                if (!mFolder.isOpen()) {
+                    mFolder.open(OpenMode.READ_WRITE);
+                }
+                if (mFolder instanceof ImapFolder) {
+                    ((ImapFolder) mFolder).expungeUids(mDeletedUids);
+                } else {
+                    mFolder.expunge();
+                }
+            } finally {
+                mDeletedUids.clear();
+            }
+        }
+
+        void close() {
+            try {
+                expunge();
+            } catch (MessagingException e) {
+                // The messages are flagged, and will be expunged some other time
+                LogUtils.d(Logging.LOG_TAG, "Unable to expunge " + mFolder.getName() + ": " + e);
+            }
+            try {
+                mFolder.close(false);
+            } catch (MessagingException e) {
+                LogUtils.d(Logging.LOG_TAG, "Unable to close " + mFolder.getName() + ": " + e);
+            }
+        }
+    }
+
+    public ImapFolderSessions(final Store store) {
+        mStore = store;
+    }
+
+    private Session getSession(final String serverId) {
+        Session session = mSessions.get(serverId);
+        if (session == null) {
+            if (mSessions.size() >= MAX_OPEN_FOLDERS) {
+                final Iterator<Session> eldest = mSessions.values().iterator();
+                final Session evicted = eldest.next();
+                eldest.remove();
+                evicted.close();
+            }
+            session = new Session(mStore.getFolder(serverId));
+            mSessions.put(serverId, session);
+        }
+        return session;
+    }
+
+    /**
+     * @return the folder with a server id, which may not be open
+     */
+    public Folder getFolder(final String serverId) {
+        return getSession(serverId).mFolder;
+    }
+
+    /**
+     * Check whether a folder exists, the first time this is asked for it.
+     * @param serverId the folder's server id
+     * @param create whether to create the folder if it doesn't exist
+     * @return whether the folder exists
+     */
+    public boolean exists(final String serverId, final boolean create)
+            throws MessagingException {
+        final Session session = getSession(serverId);
+        if (session.mExists == null) {
+            session.mExists = session.mFolder.exists();
+        }
+        if (!session.mExists && create && !session.mCreateTried) {
+            session.mCreateTried = true;
+            session.mFolder.create(FolderType.HOLDS_MESSAGES);
+            session.mExists = session.mFolder.exists();
+        }
+        return session.mExists;
+    }
+
+    /**
+     * Open a folder for writing, if it isn't open already.
+     * @param serverId the folder's server id
+     * @return the folder, or null if it doesn't exist or can't be written to
+     */
+    public Folder open(final String serverId) throws MessagingException {
+        if (!exists(serverId, false)) {
+            return null;
+        }
+        final Folder folder = getSession(serverId).mFolder;
+        if (!folder.isOpen()) {
+            folder.open(OpenMode.READ_WRITE);
+        }
+        return folder.getMode() == OpenMode.READ_WRITE ? folder : null;
+    }
+
+    /**
+     * Delete a message from an open folder: flag it \Deleted now, and expunge it later.
+     * @param serverId the folder's server id
+     * @param message the message
+     */
+    public void deleteMessage(final String serverId, final Message message)
+            throws MessagingException {
+        final Session session = getSession(serverId);
+        message.setFlag(Flag.DELETED, true);
+        session.mDeletedUids.add(message.getUid());
+        if (session.mDeletedUids.size() >= MAX_PENDING_EXPUNGES) {
+            session.expunge();
+        }
+    }
+
+    /**
+     * Expunge the messages deleted from the folders, and close them.
+     */
+    public void close() {
+        for (final Session session : mSessions.values()) {
+            session.close();
+        }
+        mSessions.clear();
+    }
+}
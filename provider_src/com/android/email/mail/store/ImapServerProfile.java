@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.provider.HostAuth;
+
+/**
+ * What we learned about an IMAP server on the last connection to it: its capabilities, its
+ * namespace prefix and its hierarchy separator. Later connections use the profile instead of
+ * sending CAPABILITY, NAMESPACE and LIST to find these out again.
+ *
+ * Profiles are kept in shared preferences by HostAuth id. A profile is discarded when the
+ * HostAuth's connection settings change, when it is {@link #MAX_AGE_MILLIS} old (servers do get
+ * upgraded), and when a connection that used it fails to open.
+ */
+class ImapServerProfile {
+    private static final String PREFERENCES_FILE = "ImapServerProfiles";
+    private static final long MAX_AGE_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    private static final String KEY_SETTINGS = ".settings";
+    private static final String KEY_SAVED_AT = ".savedAt";
+    private static final String KEY_CAPABILITIES = ".capabilities";
+    private static final String KEY_CAPABILITY_STRING = ".capabilityString";
+    private static final String KEY_PATH_PREFIX = ".pathPrefix";
+    private static final String KEY_PATH_SEPARATOR = ".pathSeparator";
+
+    /** A set of ImapConnection.CAPABILITY_* values */
+    final int mCapabilities;
+    /** The capabilities as the server listed them, for the ID command */
+    final String mCapabilityString;
+    final String mPathPrefix;
+    final String mPathSeparator;
+
+    ImapServerProfile(int capabilities, String capabilityString, String pathPrefix,
+            String pathSeparator) {
+        mCapabilities = capabilities;
+        mCapabilityString = capabilityString;
+        mPathPrefix = pathPrefix;
+        mPathSeparator = pathSeparator;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the settings of the HostAuth that a profile depends on; a profile saved with other
+     * settings was for another server, or for other credentials or another prefix
+     */
+    private static String getSettings(HostAuth hostAuth) {
+        return hostAuth.mAddress + ":" + hostAuth.mPort + ":" + hostAuth.mFlags + ":"
+                + hostAuth.mLogin + ":" + hostAuth.mDomain;
+    }
+
+    /**
+     * @return the profile saved for the given HostAuth, or null if there is none, or it's stale
+     */
+    static ImapServerProfile restore(Context context, HostAuth hostAuth) {
+        if (!hostAuth.isSaved()) {
+            return null;
+        }
+        final SharedPreferences prefs = getPreferences(context);
+        final String key = Long.toString(hostAuth.mId);
+        if (!getSettings(hostAuth).equals(prefs.getString(key + KEY_SETTINGS, null))) {
+            return null;
+        }
+        final long age = System.currentTimeMillis() - prefs.getLong(key + KEY_SAVED_AT, 0);
+        if (age < 0 || age >= MAX_AGE_MILLIS) {
+            return null;
+        }
+        return new ImapServerProfile(prefs.getInt(key + KEY_CAPABILITIES, 0),
+                prefs.getString(key + KEY_CAPABILITY_STRING, ""),
+                prefs.getString(key + KEY_PATH_PREFIX, null),
+                prefs.getString(key + KEY_PATH_SEPARATOR, null));
+    }
+
+    void save(Context context, HostAuth hostAuth) {
+        if (!hostAuth.isSaved()) {
+            return;
+        }
+        final String key = Long.toString(hostAuth.mId);
+        final SharedPreferences.Editor editor = getPreferences(context).edit()
+                .putString(key + KEY_SETTINGS, getSettings(hostAuth))
+                .putLong(key + KEY_SAVED_AT, System.currentTimeMillis())
+                .putInt(key + KEY_CAPABILITIES, mCapabilities)
+                .putString(key + KEY_CAPABILITY_STRING, mCapabilityString);
+        if (TextUtils.isEmpty(mPathPrefix)) {
+            editor.remove(key + KEY_PATH_PREFIX);
+        } else {
+            editor.putString(key + KEY_PATH_PREFIX, mPathPrefix);
+        }
+        if (TextUtils.isEmpty(mPathSeparator)) {
+            editor.remove(key + KEY_PATH_SEPARATOR);
+        } else {
+            editor.putString(key + KEY_PATH_SEPARATOR, mPathSeparator);
+        }
+        editor.apply();
+    }
+
+    static void clear(Context context, HostAuth hostAuth) {
+        if (!hostAuth.isSaved()) {
+            return;
+        }
+        final String key = Long.toString(hostAuth.mId);
+        getPreferences(context).edit()
+                .remove(key + KEY_SETTINGS)
+                .remove(key + KEY_SAVED_AT)
+                .remove(key + KEY_CAPABILITIES)
+                .remove(key + KEY_CAPABILITY_STRING)
+                .remove(key + KEY_PATH_PREFIX)
+                .remove(key + KEY_PATH_SEPARATOR)
+                .apply();
+    }
+}
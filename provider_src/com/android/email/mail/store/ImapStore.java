@@ -60,6 +60,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 
@@ -89,10 +94,29 @@ public class ImapStore extends Store {
     @VisibleForTesting String mPathSeparator;
 
     private boolean mUseOAuth;
+    private final HostAuth mHostAuth;
 
     private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
             new ConcurrentLinkedQueue<ImapConnection>();
 
+    /**
+     * Pooled connections idle for less than this are handed out without a NOOP round trip;
+     * older ones are checked first, since a server or NAT may have dropped them silently.
+     */
+    private static final long POOLED_CONNECTION_VALID_MILLIS = 60 * 1000;
+
+    /** Warm-ups are few and short; two threads, which go away when idle, are plenty */
+    private static final int WARM_UP_THREADS = 2;
+    private static final ThreadPoolExecutor sWarmUpExecutor = new ThreadPoolExecutor(
+            WARM_UP_THREADS, WARM_UP_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    static {
+        sWarmUpExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** The connection being opened ahead of time by {@link #warmUp()}, if any */
+    private Future<?> mWarmUp;
+
     /**
      * Static named constructor.
      */
@@ -112,6 +136,7 @@ public class ImapStore extends Store {
         if (recvAuth == null) {
             throw new MessagingException("No HostAuth in ImapStore?");
         }
+        mHostAuth = recvAuth;
         mTransport = new MailTransport(context, "IMAP", recvAuth);
 
         String[] userInfo = recvAuth.getLogin();
@@ -536,6 +561,19 @@ public class ImapStore extends Store {
         return mContext;
     }
 
+    /** Gets the HostAuth this store connects with */
+    HostAuth getHostAuth() {
+        return mHostAuth;
+    }
+
+    String getPathPrefix() {
+        return mPathPrefix;
+    }
+
+    String getPathSeparator() {
+        return mPathSeparator;
+    }
+
     /** Returns a clone of the transport associated with this store. */
     MailTransport cloneTransport() {
         return mTransport.clone();
@@ -561,12 +599,19 @@ public class ImapStore extends Store {
         // TODO Why would we ever have (or need to have) more than one active connection?
         // TODO We set new username/password each time, but we don't actually close the transport
         // when we do this. So if that information has changed, this connection will fail.
+        awaitWarmUp();
         ImapConnection connection;
         while ((connection = mConnectionPool.poll()) != null) {
             try {
                 connection.setStore(this);
+                if (!connection.isTransportOpen()) {
+                    connection.close();
+                    continue;
+                }
                 connection.setReadTimeout(MailTransport.SOCKET_READ_TIMEOUT);
-                connection.executeSimpleCommand(ImapConstants.NOOP);
+                if (connection.getPooledMillis() >= POOLED_CONNECTION_VALID_MILLIS) {
+                    connection.executeSimpleCommand(ImapConstants.NOOP);
+                }
                 break;
             } catch (MessagingException e) {
                 // Fall through
@@ -589,10 +634,60 @@ public class ImapStore extends Store {
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
             connection.destroyResponses();
+            connection.markPooled();
             mConnectionPool.add(connection);
         }
     }
 
+    /**
+     * Start opening (and logging in) a connection in the background, so that it is ready in
+     * the pool by the time a sync asks for one.  The handshake overlaps with whatever local
+     * work the caller does first; {@link #getConnection()} waits for it rather than racing it
+     * with a second connection.  Does nothing if a connection is already pooled.
+     */
+    public synchronized void warmUp() {
+        if (!mConnectionPool.isEmpty() || (mWarmUp != null && !mWarmUp.isDone())) {
+            return;
+        }
+        mWarmUp = sWarmUpExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final ImapConnection connection = new ImapConnection(ImapStore.this);
+                try {
+                    connection.open();
+                    poolConnection(connection);
+                } catch (IOException e) {
+                    LogUtils.d(Logging.LOG_TAG, e, "ImapStore warm up failed");
+                    connection.close();
+                } catch (MessagingException e) {
+                    LogUtils.d(Logging.LOG_TAG, e, "ImapStore warm up failed");
+                    connection.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for a pending {@link #warmUp()} to finish.  Failures are ignored; the caller just
+     * opens its own connection.
+     */
+    private void awaitWarmUp() {
+        final Future<?> warmUp;
+        synchronized (this) {
+            warmUp = mWarmUp;
+            mWarmUp = null;
+        }
+        if (warmUp != null) {
+            try {
+                warmUp.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // Fall through and open a new connection
+            }
+        }
+    }
+
     /**
      * Prepends the folder name with the given prefix and UTF-7 encodes it.
      */
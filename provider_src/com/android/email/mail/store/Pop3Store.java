@@ -20,6 +20,7 @@ import android.content.Context;
 import android.os.Bundle;
 
 import com.android.email.DebugUtils;
+import com.android.email.Metrics;
 import com.android.email.mail.Store;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
@@ -729,11 +730,15 @@ public class Pop3Store extends Store {
                 throws IOException, MessagingException {
             open(OpenMode.READ_WRITE);
 
+            final long start = Metrics.now();
             if (command != null) {
                 mTransport.writeLine(command, sensitiveReplacement);
             }
 
             String response = mTransport.readLine(true);
+            Metrics.timer("pop3.command." + Metrics.getCommandName(
+                    sensitiveReplacement != null ? sensitiveReplacement : command))
+                    .recordSince(start);
 
             if (response.length() > 1 && response.charAt(0) == '-') {
                 throw new MessagingException(response);
@@ -25,16 +25,19 @@ public final class ImapConstants {
 
     public static final String FETCH_FIELD_BODY_PEEK_BARE = "BODY.PEEK";
     public static final String FETCH_FIELD_BODY_PEEK = FETCH_FIELD_BODY_PEEK_BARE + "[]";
+    public static final String FETCH_FIELD_BINARY_PEEK_BARE = "BINARY.PEEK";
     public static final String FETCH_FIELD_BODY_PEEK_SANE
             = String.format(Locale.US, "BODY.PEEK[]<0.%d>", Store.FETCH_BODY_SANE_SUGGESTED_SIZE);
     public static final String FETCH_FIELD_HEADERS =
-            "BODY.PEEK[HEADER.FIELDS (date subject from content-type to cc message-id)]";
+            "BODY.PEEK[HEADER.FIELDS (date subject from content-type to cc message-id"
+            + " in-reply-to references)]";
 
     public static final String ALERT = "ALERT";
     public static final String APPEND = "APPEND";
     public static final String AUTHENTICATE = "AUTHENTICATE";
     public static final String BAD = "BAD";
     public static final String BADCHARSET = "BADCHARSET";
+    public static final String BINARY = "BINARY";
     public static final String BODY = "BODY";
     public static final String BODY_BRACKET_HEADER = "BODY[HEADER";
     public static final String BODYSTRUCTURE = "BODYSTRUCTURE";
@@ -79,6 +82,7 @@ public final class ImapConstants {
     public static final String RECENT = "RECENT";
     public static final String RENAME = "RENAME";
     public static final String RFC822_SIZE = "RFC822.SIZE";
+    public static final String SASL_IR = "SASL-IR";
     public static final String SEARCH = "SEARCH";
     public static final String SELECT = "SELECT";
     public static final String STARTTLS = "STARTTLS";
@@ -89,6 +93,7 @@ public final class ImapConstants {
     public static final String TRYCREATE = "TRYCREATE";
     public static final String UID = "UID";
     public static final String UID_COPY = "UID COPY";
+    public static final String UID_EXPUNGE = "UID EXPUNGE";
     public static final String UID_FETCH = "UID FETCH";
     public static final String UID_SEARCH = "UID SEARCH";
     public static final String UID_STORE = "UID STORE";
@@ -105,4 +110,5 @@ public final class ImapConstants {
     public static final String EXPIRED = "EXPIRED";
     public static final String AUTHENTICATIONFAILED = "AUTHENTICATIONFAILED";
     public static final String UNAVAILABLE = "UNAVAILABLE";
+    public static final String UNKNOWN_CTE = "UNKNOWN-CTE";
 }
@@ -384,6 +384,14 @@ public class ImapResponseParser {
                 return new ImapSimpleString(readUntil('"'));
             case '{':
                 return parseLiteral();
+            case '~':
+                // "~{" starts a literal8 (RFC 3516), which may contain any octet; otherwise
+                // '~' is part of an atom.
+                readByte(); // Consume ~
+                if (peek() == '{') {
+                    return parseLiteral();
+                }
+                return parseBareString("~");
             case '\r':  // CR
                 readByte(); // Consume \r
                 expect('\n'); // Should be followed by LF.
@@ -406,7 +414,15 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
+        return parseBareString("");
+    }
+
+    /**
+     * Parses an atom, the first characters of which have already been consumed.
+     */
+    private ImapString parseBareString(String prefix) throws IOException, MessagingException {
         mParseBareString.setLength(0);
+        mParseBareString.append(prefix);
         for (;;) {
             final int ch = peek();
 
@@ -17,8 +17,10 @@
 package com.android.email.mail.transport;
 
 import android.content.Context;
+import android.os.SystemClock;
 
 import com.android.email.DebugUtils;
+import com.android.email.Metrics;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
@@ -29,6 +31,8 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,6 +41,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.Locale;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -54,6 +59,12 @@ public class MailTransport {
     private static final HostnameVerifier HOSTNAME_VERIFIER =
             HttpsURLConnection.getDefaultHostnameVerifier();
 
+    /** TLS handshakes performed by all transports, and how many of them resumed a session */
+    private static final Metrics.Histogram sHandshakeTime =
+            Metrics.timer("transport.tls_handshake");
+    private static final Metrics.Counter sResumedHandshakeCount =
+            Metrics.counter("transport.tls_resumed");
+
     private final String mDebugLabel;
     private String mDebugTag;
     private final Context mContext;
@@ -62,6 +73,9 @@ public class MailTransport {
     private Socket mSocket;
     private InputStream mIn;
     private OutputStream mOut;
+    /** Bytes read and written since the connection was opened, across any TLS upgrade */
+    private long mBytesIn;
+    private long mBytesOut;
 
     public MailTransport(Context context, String debugLabel, HostAuth hostAuth) {
         super();
@@ -116,13 +130,18 @@ public class MailTransport {
 
         try {
             SocketAddress socketAddress = new InetSocketAddress(getHost(), getPort());
+            mSocket = new Socket();
+            mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
             if (canTrySslSecurity()) {
+                // Layer TLS over the connected socket with the host name and port, which is
+                // what the factory's session cache is keyed by; a repeat connection to the
+                // same server can then resume the session instead of a full handshake.
+                final long start = SystemClock.elapsedRealtime();
                 mSocket = SSLUtils.getSSLSocketFactory(
-                        mContext, mHostAuth, null, canTrustAllCertificates()).createSocket();
-            } else {
-                mSocket = new Socket();
+                        mContext, mHostAuth, null, canTrustAllCertificates())
+                        .createSocket(mSocket, getHost(), getPort(), true);
+                recordHandshake((SSLSocket) mSocket, start);
             }
-            mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
             // After the socket connects to an SSL server, confirm that the hostname is as expected
             if (canTrySslSecurity() && !canTrustAllCertificates()) {
                 verifyHostname(mSocket, getHost());
@@ -137,9 +156,13 @@ public class MailTransport {
                             sslSocket.getSession().getCipherSuite(), 0);
                 }
             }
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mIn = new BufferedInputStream(new CountingInputStream(mSocket.getInputStream()), 1024);
+            mOut = new BufferedOutputStream(
+                    new CountingOutputStream(mSocket.getOutputStream()), 512);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
+            mBytesIn = 0;
+            mBytesOut = 0;
+            Metrics.counter("transport." + getMetricsLabel() + ".connections").increment();
         } catch (SSLException e) {
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, e.toString());
@@ -168,12 +191,15 @@ public class MailTransport {
      */
     public void reopenTls() throws MessagingException {
         try {
+            final long start = SystemClock.elapsedRealtime();
             mSocket = SSLUtils.getSSLSocketFactory(mContext, mHostAuth, null,
                     canTrustAllCertificates())
                     .createSocket(mSocket, getHost(), getPort(), true);
+            recordHandshake((SSLSocket) mSocket, start);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mIn = new BufferedInputStream(new CountingInputStream(mSocket.getInputStream()), 1024);
+            mOut = new BufferedOutputStream(
+                    new CountingOutputStream(mSocket.getOutputStream()), 512);
 
             Analytics.getInstance().sendEvent("socket_certificates",
                     "reopenTls", Boolean.toString(canTrustAllCertificates()), 0);
@@ -196,6 +222,27 @@ public class MailTransport {
         }
     }
 
+    /**
+     * Complete the handshake of a new TLS socket, if the factory didn't already, and account
+     * for it in the handshake statistics.  A session created before the handshake started was
+     * resumed from the session cache.
+     */
+    private static void recordHandshake(SSLSocket socket, long startMillis) throws IOException {
+        socket.startHandshake();
+        final long elapsed = SystemClock.elapsedRealtime() - startMillis;
+        sHandshakeTime.record(elapsed);
+        final SSLSession session = socket.getSession();
+        final boolean resumed = session != null
+                && session.getCreationTime() < System.currentTimeMillis() - elapsed;
+        if (resumed) {
+            sResumedHandshakeCount.increment();
+        }
+        if (DebugUtils.DEBUG) {
+            LogUtils.d(Logging.LOG_TAG, "TLS handshake with %s took %dms%s",
+                    socket.getInetAddress(), elapsed, resumed ? " (resumed)" : "");
+        }
+    }
+
     public int getReadTimeout() throws IOException {
         return mSocket.getSoTimeout();
     }
@@ -269,6 +316,14 @@ public class MailTransport {
      * Close the connection.  MUST NOT return any exceptions - must be "best effort" and safe.
      */
     public void close() {
+        if (mSocket != null) {
+            // Account for the traffic of the connection as a whole
+            final String label = getMetricsLabel();
+            Metrics.histogram("transport." + label + ".bytes_in", "B").record(mBytesIn);
+            Metrics.histogram("transport." + label + ".bytes_out", "B").record(mBytesOut);
+            mBytesIn = 0;
+            mBytesOut = 0;
+        }
         try {
             mIn.close();
         } catch (Exception e) {
@@ -297,6 +352,58 @@ public class MailTransport {
         return mOut;
     }
 
+    private String getMetricsLabel() {
+        return mDebugLabel.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Counts the bytes read from the socket into {@link #mBytesIn}.
+     */
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                mBytesIn++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                mBytesIn += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the socket into {@link #mBytesOut}.
+     */
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mBytesOut++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            mBytesOut += count;
+        }
+    }
+
     private String getFormattedDebugTag() {
         if (mDebugTag != null) {
             return "(" + mDebugTag + ") ";
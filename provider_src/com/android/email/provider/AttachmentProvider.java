@@ -23,27 +23,21 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.MatrixCursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.ParcelFileDescriptor;
 
-import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.utility.AttachmentStorageLedger;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.emailcommon.utility.AttachmentUtilities.Columns;
-import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MatrixCursorWithCachedColumns;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.List;
 
 /*
@@ -58,11 +52,13 @@ import java.util.List;
  * The on-disk (storage) schema is as follows.
  *
  * Attachments are stored at:  <database-path>/account#.db_att/item#
- * Thumbnails are stored at:   <cache-path>/thmb_account#_item#
+ * Thumbnails are stored at:   <cache-path>/thumbnails/thmb_account#_item#_size#
  *
  * Using the standard application context, account #10 and attachment # 20, this would be:
  *      /data/data/com.android.email/databases/10.db_att/20
- *      /data/data/com.android.email/cache/thmb_10_20
+ *      /data/data/com.android.email/cache/thumbnails/thmb_10_20_128
+ *
+ * Thumbnails are generated and cached by {@link ThumbnailCache}.
  */
 public class AttachmentProvider extends ContentProvider {
 
@@ -95,7 +91,7 @@ public class AttachmentProvider extends ContentProvider {
 
     /**
      * Returns the mime type for a given attachment.  There are three possible results:
-     *  - If thumbnail Uri, always returns "image/png" (even if there's no attachment)
+     *  - If thumbnail Uri, always returns "image/jpeg" (even if there's no attachment)
      *  - If the attachment does not exist, returns null
      *  - Returns the mime type of the attachment
      */
@@ -107,7 +103,7 @@ public class AttachmentProvider extends ContentProvider {
             String id = segments.get(1);
             String format = segments.get(2);
             if (AttachmentUtilities.FORMAT_THUMBNAIL.equals(format)) {
-                return "image/png";
+                return "image/jpeg";
             } else {
                 uri = ContentUris.withAppendedId(Attachment.CONTENT_URI, Long.parseLong(id));
                 Cursor c = getContext().getContentResolver().query(uri, MIME_TYPE_PROJECTION, null,
@@ -133,7 +129,8 @@ public class AttachmentProvider extends ContentProvider {
      * Open an attachment file.  There are two "formats" - "raw", which returns an actual file,
      * and "thumbnail", which attempts to generate a thumbnail image.
      *
-     * Thumbnails are cached for easy space recovery and cleanup.
+     * Thumbnails are cached for easy space recovery and cleanup.  A thumbnail that isn't cached
+     * yet is generated in the background, and written to the returned pipe when it's ready.
      *
      * TODO:  The thumbnail format returns null for its failure cases, instead of throwing
      * FileNotFoundException, and should be fixed for consistency.
@@ -170,56 +167,44 @@ public class AttachmentProvider extends ContentProvider {
             String id = segments.get(1);
             String format = segments.get(2);
             if (AttachmentUtilities.FORMAT_THUMBNAIL.equals(format)) {
-                int width = Integer.parseInt(segments.get(3));
-                int height = Integer.parseInt(segments.get(4));
-                String filename = "thmb_" + accountId + "_" + id;
-                File dir = getContext().getCacheDir();
-                File file = new File(dir, filename);
-                if (!file.exists()) {
-                    Uri attachmentUri = AttachmentUtilities.
-                        getAttachmentUri(Long.parseLong(accountId), Long.parseLong(id));
-                    Cursor c = query(attachmentUri,
-                            new String[] { Columns.DATA }, null, null, null);
-                    if (c != null) {
-                        try {
-                            if (c.moveToFirst()) {
-                                attachmentUri = Uri.parse(c.getString(0));
-                            } else {
-                                return null;
-                            }
-                        } finally {
-                            c.close();
-                        }
-                    }
-                    String type = getContext().getContentResolver().getType(attachmentUri);
+                final int width = Integer.parseInt(segments.get(3));
+                final int height = Integer.parseInt(segments.get(4));
+                final ThumbnailCache cache = ThumbnailCache.getInstance(getContext());
+                final File file = cache.getCachedFile(Long.parseLong(accountId),
+                        Long.parseLong(id), width, height);
+                if (file != null) {
+                    return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+                }
+                Uri attachmentUri = AttachmentUtilities.
+                    getAttachmentUri(Long.parseLong(accountId), Long.parseLong(id));
+                Cursor c = query(attachmentUri,
+                        new String[] { Columns.DATA }, null, null, null);
+                if (c != null) {
                     try {
-                        InputStream in =
-                            getContext().getContentResolver().openInputStream(attachmentUri);
-                        Bitmap thumbnail = createThumbnail(type, in);
-                        if (thumbnail == null) {
+                        if (c.moveToFirst()) {
+                            attachmentUri = Uri.parse(c.getString(0));
+                        } else {
                             return null;
                         }
-                        thumbnail = Bitmap.createScaledBitmap(thumbnail, width, height, true);
-                        FileOutputStream out = new FileOutputStream(file);
-                        thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
-                        out.close();
-                        in.close();
-                    } catch (IOException ioe) {
-                        LogUtils.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
-                                ioe.getMessage());
-                        return null;
-                    } catch (OutOfMemoryError oome) {
-                        LogUtils.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
-                                oome.getMessage());
-                        return null;
+                    } finally {
+                        c.close();
                     }
                 }
-                return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+                String type = getContext().getContentResolver().getType(attachmentUri);
+                if (!MimeUtility.mimeTypeMatches(type, "image/*")) {
+                    return null;
+                }
+                return cache.openThumbnail(Long.parseLong(accountId), Long.parseLong(id),
+                        width, height, attachmentUri);
             }
             else {
-                return ParcelFileDescriptor.open(
-                        new File(getContext().getDatabasePath(accountId + ".db_att"), id),
+                final ParcelFileDescriptor fd = ParcelFileDescriptor.open(
+                        AttachmentUtilities.getAttachmentFileForRead(getContext(),
+                                Long.parseLong(accountId), Long.parseLong(id)),
                         ParcelFileDescriptor.MODE_READ_ONLY);
+                AttachmentStorageLedger.getInstance(getContext()).recordViewed(
+                        Long.parseLong(id), System.currentTimeMillis());
+                return fd;
             }
         } finally {
             Binder.restoreCallingIdentity(callingId);
@@ -308,26 +293,6 @@ public class AttachmentProvider extends ContentProvider {
         return 0;
     }
 
-    private static Bitmap createThumbnail(String type, InputStream data) {
-        if(MimeUtility.mimeTypeMatches(type, "image/*")) {
-            return createImageThumbnail(data);
-        }
-        return null;
-    }
-
-    private static Bitmap createImageThumbnail(InputStream data) {
-        try {
-            Bitmap bitmap = BitmapFactory.decodeStream(data);
-            return bitmap;
-        } catch (OutOfMemoryError oome) {
-            LogUtils.d(Logging.LOG_TAG, "createImageThumbnail failed with " + oome.getMessage());
-            return null;
-        } catch (Exception e) {
-            LogUtils.d(Logging.LOG_TAG, "createImageThumbnail failed with " + e.getMessage());
-            return null;
-        }
-    }
-
     /**
      * Need this to suppress warning in unit tests.
      */
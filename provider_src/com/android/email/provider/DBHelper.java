@@ -57,6 +57,7 @@ import com.android.emailcommon.provider.MessageMove;
 import com.android.emailcommon.provider.MessageStateChange;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.provider.QuickResponse;
+import com.android.emailcommon.provider.SearchResult;
 import com.android.emailcommon.provider.SuggestedContact;
 import com.android.emailcommon.service.EmailServiceProxy;
 import com.android.emailcommon.service.LegacyPolicySet;
@@ -81,15 +82,19 @@ public final class DBHelper {
 
     private static final String WHERE_ID = BaseColumns._ID + "=?";
 
+    // The messages themselves are left to the MailboxPurger; see createMailboxPurgeTable
     private static final String TRIGGER_MAILBOX_DELETE =
         "create trigger mailbox_delete before delete on " + Mailbox.TABLE_NAME +
         " begin" +
-        " delete from " + Message.TABLE_NAME +
-        "  where " + MessageColumns.MAILBOX_KEY + "=old." + BaseColumns._ID +
+        " insert into " + MailboxPurger.TABLE_NAME + " (" + MailboxPurger.MAILBOX_KEY + ", " +
+        MailboxPurger.ACCOUNT_KEY + ") values (old." + BaseColumns._ID + ", old." +
+        MailboxColumns.ACCOUNT_KEY + ")" +
         "; delete from " + Message.UPDATED_TABLE_NAME +
         "  where " + MessageColumns.MAILBOX_KEY + "=old." + BaseColumns._ID +
         "; delete from " + Message.DELETED_TABLE_NAME +
         "  where " + MessageColumns.MAILBOX_KEY + "=old." + BaseColumns._ID +
+        "; delete from " + MessageThreader.TABLE_NAME +
+        "  where " + MessageThreader.MAILBOX_KEY + "=old." + BaseColumns._ID +
         "; end";
 
     private static final String TRIGGER_ACCOUNT_DELETE =
@@ -189,7 +194,13 @@ public final class DBHelper {
     //              version above 12.0
     // Version 129: Update all IMAP INBOX mailboxes to force synchronization
     // Version 130: Account capabilities (check EmailServiceProxy#CAPABILITY_*)
-    public static final int DATABASE_VERSION = 130;
+    // Version 131: Add FileTombstone table, filled by triggers on Message and Attachment
+    // Version 132: Add fetchOffset column to Attachment, for resuming interrupted downloads
+    // Version 133: Add SearchResult table, so that search mailboxes refer to local messages
+    // Version 134: Add CountSuspension table, and make the count triggers depend on it
+    // Version 135: Add MailboxPurge table, and queue the messages of deleted mailboxes in it
+    // Version 136: Add threadReferences and threadRoot columns to Message, and MessageThread table
+    public static final int DATABASE_VERSION = 136;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -220,10 +231,29 @@ public final class DBHelper {
             + " on " + tableName + " (" + columnName + ");";
     }
 
+    /**
+     * While this table has rows, the triggers that maintain the message and unread counts of
+     * mailboxes leave them alone.  The provider suspends them for deletes and moves of many
+     * messages, and recounts the mailboxes affected once, in the same transaction.
+     */
+    static final String COUNT_SUSPENSION_TABLE = "CountSuspension";
+    static final String COUNT_SUSPENSION_ID = "_id";
+
+    /** The condition of the count triggers */
+    private static final String COUNTS_NOT_SUSPENDED =
+            "not exists (select 1 from " + COUNT_SUSPENSION_TABLE + ")";
+
+    private static void createCountSuspensionTable(final SQLiteDatabase db) {
+        db.execSQL("create table if not exists " + COUNT_SUSPENSION_TABLE + " ("
+                + COUNT_SUSPENSION_ID + " integer primary key autoincrement);");
+    }
+
     static void createMessageCountTriggers(final SQLiteDatabase db) {
+        createCountSuspensionTable(db);
+
         // Insert a message.
         db.execSQL("create trigger message_count_message_insert after insert on " +
-                Message.TABLE_NAME +
+                Message.TABLE_NAME + " when " + COUNTS_NOT_SUSPENDED +
                 " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT +
                 '=' + MailboxColumns.MESSAGE_COUNT + "+1" +
                 "  where " + BaseColumns._ID + "=NEW." + MessageColumns.MAILBOX_KEY +
@@ -231,7 +261,7 @@ public final class DBHelper {
 
         // Delete a message.
         db.execSQL("create trigger message_count_message_delete after delete on " +
-                Message.TABLE_NAME +
+                Message.TABLE_NAME + " when " + COUNTS_NOT_SUSPENDED +
                 " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT +
                 '=' + MailboxColumns.MESSAGE_COUNT + "-1" +
                 "  where " + BaseColumns._ID + "=OLD." + MessageColumns.MAILBOX_KEY +
@@ -240,6 +270,7 @@ public final class DBHelper {
         // Change a message's mailbox.
         db.execSQL("create trigger message_count_message_move after update of " +
                 MessageColumns.MAILBOX_KEY + " on " + Message.TABLE_NAME +
+                " when " + COUNTS_NOT_SUSPENDED +
                 " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT +
                 '=' + MailboxColumns.MESSAGE_COUNT + "-1" +
                 "  where " + BaseColumns._ID + "=OLD." + MessageColumns.MAILBOX_KEY +
@@ -329,7 +360,9 @@ public final class DBHelper {
             + MessageColumns.THREAD_TOPIC + " text, "
             + MessageColumns.SYNC_DATA + " text, "
             + MessageColumns.FLAG_SEEN + " integer, "
-            + MessageColumns.MAIN_MAILBOX_KEY + " integer"
+            + MessageColumns.MAIN_MAILBOX_KEY + " integer, "
+            + MessageColumns.THREAD_REFERENCES + " text, "
+            + MessageColumns.THREAD_ROOT + " text"
             + ");";
 
         // This String and the following String MUST have the same columns, except for the type
@@ -373,13 +406,173 @@ public final class DBHelper {
                 "; end");
 
         // Add triggers to keep unread count accurate per mailbox
+        createUnreadCountTriggers(db);
+
+        // Add triggers to maintain message_count.
+        createMessageCountTriggers(db);
+        createDeleteDuplicateMessagesTrigger(context, db);
+
+        // Add the threads of messages, and the triggers that maintain them
+        db.execSQL(CREATE_MESSAGE_THREAD_INDEX);
+        createMessageThreadTable(db);
+        createMessageThreadTriggers(db);
+    }
+
+    /** The index by which the messages of a thread are found */
+    private static final String CREATE_MESSAGE_THREAD_INDEX = "create index if not exists message_"
+            + MessageColumns.THREAD_ROOT + " on " + Message.TABLE_NAME + " ("
+            + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.THREAD_ROOT + ")";
+
+    /**
+     * Create the MessageThread table, which has a row per thread of messages in a mailbox; see
+     * {@link MessageThreader}.  Messages refer to their thread by mailbox and root.
+     */
+    static void createMessageThreadTable(final SQLiteDatabase db) {
+        db.execSQL("create table if not exists " + MessageThreader.TABLE_NAME + " ("
+                + MessageThreader.ID + " integer primary key autoincrement, "
+                + MessageThreader.MAILBOX_KEY + " integer, "
+                + MessageThreader.ACCOUNT_KEY + " integer, "
+                + MessageThreader.ROOT + " text, "
+                + MessageThreader.TOPIC + " text, "
+                + MessageThreader.MESSAGE_COUNT + " integer, "
+                + MessageThreader.UNREAD_COUNT + " integer, "
+                + MessageThreader.TIMESTAMP + " integer, "
+                + MessageThreader.LATEST_MESSAGE_KEY + " integer, "
+                + MessageThreader.SNIPPET + " text, "
+                + MessageThreader.PARTICIPANTS + " text);");
+        db.execSQL("create unique index if not exists messagethread_root on "
+                + MessageThreader.TABLE_NAME + " (" + MessageThreader.MAILBOX_KEY + ", "
+                + MessageThreader.ROOT + ")");
+        db.execSQL("create index if not exists messagethread_timestamp on "
+                + MessageThreader.TABLE_NAME + " (" + MessageThreader.MAILBOX_KEY + ", "
+                + MessageThreader.TIMESTAMP + ")");
+        db.execSQL("create index if not exists messagethread_topic on "
+                + MessageThreader.TABLE_NAME + " (" + MessageThreader.MAILBOX_KEY + ", "
+                + MessageThreader.TOPIC + ")");
+    }
+
+    /** Whether a message (NEW or OLD) is listed, and so counts in its thread */
+    private static String threadVisible(final String row) {
+        return row + "." + MessageColumns.FLAG_LOADED + " in (" + Message.FLAG_LOADED_COMPLETE
+                + "," + Message.FLAG_LOADED_PARTIAL + ")";
+    }
+
+    /** Add the thread of a message (NEW or OLD) if it's listed and its thread doesn't exist */
+    private static String addThread(final String row, final String root) {
+        return "insert or ignore into " + MessageThreader.TABLE_NAME + " ("
+                + MessageThreader.MAILBOX_KEY + ", " + MessageThreader.ACCOUNT_KEY + ", "
+                + MessageThreader.ROOT + ", " + MessageThreader.TOPIC + ", "
+                + MessageThreader.MESSAGE_COUNT + ", " + MessageThreader.UNREAD_COUNT + ", "
+                + MessageThreader.TIMESTAMP + ") select " + row + "." + MessageColumns.MAILBOX_KEY
+                + ", " + row + "." + MessageColumns.ACCOUNT_KEY + ", " + root + ", coalesce("
+                + row + "." + MessageColumns.THREAD_TOPIC + ", " + row + "."
+                + MessageColumns.SUBJECT + "), 0, 0, 0 where " + threadVisible(row);
+    }
+
+    /** Select the thread of a message (NEW or OLD) */
+    private static String whereThread(final String row, final String root) {
+        return " where " + MessageThreader.MAILBOX_KEY + "=" + row + "."
+                + MessageColumns.MAILBOX_KEY + " and " + MessageThreader.ROOT + "=" + root;
+    }
+
+    /** Work out the thread of a message (NEW or OLD) from its messages, or delete it if empty */
+    private static String recalculateThread(final String row) {
+        final String mailboxKey = row + "." + MessageColumns.MAILBOX_KEY;
+        final String root = row + "." + MessageColumns.THREAD_ROOT;
+        return MessageThreader.getRecalculateThreadSql(mailboxKey, root)
+                + whereThread(row, root)
+                + "; delete from " + MessageThreader.TABLE_NAME + whereThread(row, root)
+                + " and " + MessageThreader.MESSAGE_COUNT + "=0";
+    }
+
+    static void createMessageThreadTriggers(final SQLiteDatabase db) {
+        createCountSuspensionTable(db);
+
+        // Name the thread of a message which started it and has no message-id, by the message's id
+        db.execSQL("create trigger message_thread_root after insert on " + Message.TABLE_NAME +
+                " when NEW." + MessageColumns.THREAD_ROOT + " is null" +
+                " begin update " + Message.TABLE_NAME + " set " + MessageColumns.THREAD_ROOT +
+                "='#'||NEW." + BaseColumns._ID + " where " + BaseColumns._ID + "=NEW." +
+                BaseColumns._ID + "; end");
+
+        // Insert a message; it's the latest of its thread unless it's older than that
+        final String root = "coalesce(NEW." + MessageColumns.THREAD_ROOT + ", '#'||NEW." +
+                BaseColumns._ID + ")";
+        final String isLatest = "(" + MessageThreader.LATEST_MESSAGE_KEY + " is null or" +
+                " coalesce(NEW." + MessageColumns.TIMESTAMP + ",0)>=" + MessageThreader.TIMESTAMP +
+                ")";
+        final String separator = "'" + MessageThreader.PARTICIPANT_SEPARATOR + "'";
+        final String participants = MessageThreader.PARTICIPANTS;
+        final String sender = "NEW." + MessageColumns.FROM_LIST;
+        db.execSQL("create trigger message_thread_insert after insert on " + Message.TABLE_NAME +
+                " when " + threadVisible("NEW") + " and " + COUNTS_NOT_SUSPENDED +
+                " begin " + addThread("NEW", root) +
+                "; update " + MessageThreader.TABLE_NAME + " set " +
+                MessageThreader.MESSAGE_COUNT + '=' + MessageThreader.MESSAGE_COUNT + "+1, " +
+                MessageThreader.UNREAD_COUNT + '=' + MessageThreader.UNREAD_COUNT +
+                "+case when NEW." + MessageColumns.FLAG_READ + "=0 then 1 else 0 end, " +
+                MessageThreader.LATEST_MESSAGE_KEY + "=case when " + isLatest + " then NEW." +
+                BaseColumns._ID + " else " + MessageThreader.LATEST_MESSAGE_KEY + " end, " +
+                MessageThreader.SNIPPET + "=case when " + isLatest + " then NEW." +
+                MessageColumns.SNIPPET + " else " + MessageThreader.SNIPPET + " end, " +
+                MessageThreader.TIMESTAMP + "=case when " + isLatest + " then coalesce(NEW." +
+                MessageColumns.TIMESTAMP + ",0) else " + MessageThreader.TIMESTAMP + " end, " +
+                // Add the sender, unless it's there already or the thread has enough of them
+                participants + "=case when " + sender + " is null then " + participants +
+                " when " + participants + " is null then " + sender +
+                " when length(replace(" + separator + "||" + participants + "||" + separator +
+                ", " + separator + "||" + sender + "||" + separator + ", ''))<length(" +
+                participants + ")+2 or length(" + participants + ")-length(replace(" +
+                participants + ", " + separator + ", ''))>=" +
+                (MessageThreader.MAX_PARTICIPANTS - 1) + " then " + participants +
+                " else " + participants + "||" + separator + "||" + sender + " end" +
+                whereThread("NEW", root) + "; end");
+
+        // Delete a message
+        db.execSQL("create trigger message_thread_delete after delete on " + Message.TABLE_NAME +
+                " when " + threadVisible("OLD") + " and " + COUNTS_NOT_SUSPENDED +
+                " begin " + recalculateThread("OLD") + "; end");
+
+        // Change what a message's thread shows of it, or move it; work out the thread it leaves
+        // and the thread it joins
+        final String changed = "(OLD." + MessageColumns.MAILBOX_KEY + " is not NEW." +
+                MessageColumns.MAILBOX_KEY + " or OLD." + MessageColumns.FLAG_LOADED +
+                " is not NEW." + MessageColumns.FLAG_LOADED + " or OLD." +
+                MessageColumns.TIMESTAMP + " is not NEW." + MessageColumns.TIMESTAMP +
+                " or OLD." + MessageColumns.FROM_LIST + " is not NEW." +
+                MessageColumns.FROM_LIST + " or OLD." + MessageColumns.SNIPPET + " is not NEW." +
+                MessageColumns.SNIPPET + ")";
+        db.execSQL("create trigger message_thread_update after update of " +
+                MessageColumns.MAILBOX_KEY + ", " + MessageColumns.FLAG_LOADED + ", " +
+                MessageColumns.TIMESTAMP + ", " + MessageColumns.FROM_LIST + ", " +
+                MessageColumns.SNIPPET + " on " + Message.TABLE_NAME +
+                " when " + changed + " and " + COUNTS_NOT_SUSPENDED +
+                " begin " + recalculateThread("OLD") +
+                "; " + addThread("NEW", "NEW." + MessageColumns.THREAD_ROOT) +
+                "; " + recalculateThread("NEW") + "; end");
+
+        // Change a message's read state, and nothing else its thread shows
+        db.execSQL("create trigger message_thread_read after update of " +
+                MessageColumns.FLAG_READ + " on " + Message.TABLE_NAME +
+                " when OLD." + MessageColumns.FLAG_READ + " is not NEW." +
+                MessageColumns.FLAG_READ + " and not " + changed + " and " +
+                threadVisible("NEW") + " and " + COUNTS_NOT_SUSPENDED +
+                " begin update " + MessageThreader.TABLE_NAME + " set " +
+                MessageThreader.UNREAD_COUNT + '=' + MessageThreader.UNREAD_COUNT +
+                "+case when NEW." + MessageColumns.FLAG_READ + "=0 then 1" +
+                " when OLD." + MessageColumns.FLAG_READ + "=0 then -1 else 0 end" +
+                whereThread("NEW", "NEW." + MessageColumns.THREAD_ROOT) + "; end");
+    }
+
+    static void createUnreadCountTriggers(final SQLiteDatabase db) {
+        createCountSuspensionTable(db);
 
         // NOTE: SQLite's before triggers are not safe when recursive triggers are involved.
         // Use caution when changing them.
 
         // Insert a message; if flagRead is zero, add to the unread count of the message's mailbox
         db.execSQL("create trigger unread_message_insert before insert on " + Message.TABLE_NAME +
-                " when NEW." + MessageColumns.FLAG_READ + "=0" +
+                " when NEW." + MessageColumns.FLAG_READ + "=0 and " + COUNTS_NOT_SUSPENDED +
                 " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNREAD_COUNT +
                 '=' + MailboxColumns.UNREAD_COUNT + "+1" +
                 "  where " + BaseColumns._ID + "=NEW." + MessageColumns.MAILBOX_KEY +
@@ -387,7 +580,7 @@ public final class DBHelper {
 
         // Delete a message; if flagRead is zero, decrement the unread count of the msg's mailbox
         db.execSQL("create trigger unread_message_delete before delete on " + Message.TABLE_NAME +
-                " when OLD." + MessageColumns.FLAG_READ + "=0" +
+                " when OLD." + MessageColumns.FLAG_READ + "=0 and " + COUNTS_NOT_SUSPENDED +
                 " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNREAD_COUNT +
                 '=' + MailboxColumns.UNREAD_COUNT + "-1" +
                 "  where " + BaseColumns._ID + "=OLD." + MessageColumns.MAILBOX_KEY +
@@ -396,7 +589,7 @@ public final class DBHelper {
         // Change a message's mailbox
         db.execSQL("create trigger unread_message_move before update of " +
                 MessageColumns.MAILBOX_KEY + " on " + Message.TABLE_NAME +
-                " when OLD." + MessageColumns.FLAG_READ + "=0" +
+                " when OLD." + MessageColumns.FLAG_READ + "=0 and " + COUNTS_NOT_SUSPENDED +
                 " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNREAD_COUNT +
                 '=' + MailboxColumns.UNREAD_COUNT + "-1" +
                 "  where " + BaseColumns._ID + "=OLD." + MessageColumns.MAILBOX_KEY +
@@ -409,15 +602,12 @@ public final class DBHelper {
         db.execSQL("create trigger unread_message_read before update of " +
                 MessageColumns.FLAG_READ + " on " + Message.TABLE_NAME +
                 " when OLD." + MessageColumns.FLAG_READ + "!=NEW." + MessageColumns.FLAG_READ +
+                " and " + COUNTS_NOT_SUSPENDED +
                 " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNREAD_COUNT +
                 '=' + MailboxColumns.UNREAD_COUNT + "+ case OLD." + MessageColumns.FLAG_READ +
                 " when 0 then -1 else 1 end" +
                 "  where " + BaseColumns._ID + "=OLD." + MessageColumns.MAILBOX_KEY +
                 "; end");
-
-        // Add triggers to maintain message_count.
-        createMessageCountTriggers(db);
-        createDeleteDuplicateMessagesTrigger(context, db);
     }
 
     static void resetMessageTable(Context context, SQLiteDatabase db,
@@ -504,6 +694,23 @@ public final class DBHelper {
         createMessageChangeLogTableTriggers(db, MessageStateChange.TABLE_NAME);
     }
 
+    /**
+     * Create the SearchResult table, which lists the messages shown by each search mailbox.
+     * @param db The {@link SQLiteDatabase}.
+     */
+    static void createSearchResultTable(final SQLiteDatabase db) {
+        db.execSQL("create table " + SearchResult.TABLE_NAME + " ("
+                + SearchResult.ID + " integer primary key autoincrement, "
+                + SearchResult.MAILBOX_KEY + " integer, "
+                + SearchResult.MESSAGE_KEY + " integer);");
+        db.execSQL(createIndex(SearchResult.TABLE_NAME, SearchResult.MAILBOX_KEY));
+        // Results go with their search mailbox (e.g. when the account is deleted)
+        db.execSQL("create trigger search_result_delete_mailbox before delete on "
+                + Mailbox.TABLE_NAME + " for each row begin delete from "
+                + SearchResult.TABLE_NAME + " where " + SearchResult.MAILBOX_KEY + "=old."
+                + MailboxColumns._ID + "; end");
+    }
+
     @SuppressWarnings("deprecation")
     static void createAccountTable(SQLiteDatabase db) {
         String s = " (" + AccountColumns._ID + " integer primary key autoincrement, "
@@ -630,10 +837,23 @@ public final class DBHelper {
                 + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.SERVER_ID + ")");
         db.execSQL("create index mailbox_" + MailboxColumns.ACCOUNT_KEY
                 + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.ACCOUNT_KEY + ")");
-        // Deleting a Mailbox deletes associated Messages in all three tables
+        // Deleting a Mailbox deletes its pending changes, and queues its Messages for purging
+        createMailboxPurgeTable(db);
         db.execSQL(TRIGGER_MAILBOX_DELETE);
     }
 
+    /**
+     * Create the MailboxPurge table, which lists the deleted mailboxes whose messages the
+     * {@link MailboxPurger} has yet to delete.  It is filled by the mailbox_delete trigger, so
+     * deleting a mailbox, or an account with all its mailboxes, doesn't wait for its messages.
+     */
+    static void createMailboxPurgeTable(SQLiteDatabase db) {
+        db.execSQL("create table if not exists " + MailboxPurger.TABLE_NAME + " ("
+                + MailboxPurger.ID + " integer primary key autoincrement, "
+                + MailboxPurger.MAILBOX_KEY + " integer, "
+                + MailboxPurger.ACCOUNT_KEY + " integer);");
+    }
+
     static void resetMailboxTable(SQLiteDatabase db, int oldVersion, int newVersion) {
         try {
             db.execSQL("drop table " + Mailbox.TABLE_NAME);
@@ -659,7 +879,8 @@ public final class DBHelper {
             + AttachmentColumns.UI_STATE + " integer, "
             + AttachmentColumns.UI_DESTINATION + " integer, "
             + AttachmentColumns.UI_DOWNLOADED_SIZE + " integer, "
-            + AttachmentColumns.CACHED_FILE + " text"
+            + AttachmentColumns.CACHED_FILE + " text, "
+            + AttachmentColumns.FETCH_OFFSET + " integer default 0"
             + ");";
         db.execSQL("create table " + Attachment.TABLE_NAME + s);
         db.execSQL(createIndex(Attachment.TABLE_NAME, AttachmentColumns.MESSAGE_KEY));
@@ -673,6 +894,32 @@ public final class DBHelper {
         createAttachmentTable(db);
     }
 
+    /**
+     * Create the FileTombstone table, which records the messages and attachments whose files
+     * are to be deleted by the {@link FileReaper}.  It is filled by triggers, so that every way
+     * a message or attachment row can be deleted (including cascades from mailboxes and
+     * accounts) is covered, and nothing touches the filesystem while the deletion is made.
+     */
+    static void createFileTombstoneTable(SQLiteDatabase db) {
+        db.execSQL("create table " + FileReaper.TABLE_NAME + " ("
+                + FileReaper.ID + " integer primary key autoincrement, "
+                + FileReaper.MESSAGE_KEY + " integer, "
+                + FileReaper.ATTACHMENT_KEY + " integer, "
+                + FileReaper.ACCOUNT_KEY + " integer);");
+        // A deleted message leaves its body files behind
+        db.execSQL("create trigger message_file_tombstone after delete on " + Message.TABLE_NAME
+                + " begin insert into " + FileReaper.TABLE_NAME + " ("
+                + FileReaper.MESSAGE_KEY + ", " + FileReaper.ACCOUNT_KEY + ") values (old."
+                + MessageColumns._ID + ", old." + MessageColumns.ACCOUNT_KEY + "); end");
+        // A deleted attachment leaves its file behind
+        db.execSQL("create trigger attachment_file_tombstone after delete on "
+                + Attachment.TABLE_NAME + " begin insert into " + FileReaper.TABLE_NAME + " ("
+                + FileReaper.MESSAGE_KEY + ", " + FileReaper.ATTACHMENT_KEY + ", "
+                + FileReaper.ACCOUNT_KEY + ") values (old." + AttachmentColumns.MESSAGE_KEY
+                + ", old." + AttachmentColumns._ID + ", old." + AttachmentColumns.ACCOUNT_KEY
+                + "); end");
+    }
+
     static void createQuickResponseTable(SQLiteDatabase db) {
         String s = " (" + QuickResponseColumns._ID + " integer primary key autoincrement, "
                 + QuickResponseColumns.TEXT + " text, "
@@ -885,6 +1132,20 @@ public final class DBHelper {
                     Mailbox.TABLE_NAME + "." + MailboxColumns._ID + ")");
     }
 
+    /**
+     * Recounts the messages and unread messages of some mailboxes, e.g. after their count
+     * triggers were suspended.
+     */
+    static void recalculateMessageCounts(final SQLiteDatabase db, final String mailboxSelection) {
+        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT
+                + "=(select count(*) from " + Message.TABLE_NAME + " where "
+                + MessageColumns.MAILBOX_KEY + "=" + Mailbox.TABLE_NAME + "." + MailboxColumns._ID
+                + "), " + MailboxColumns.UNREAD_COUNT + "=(select count(*) from "
+                + Message.TABLE_NAME + " where " + MessageColumns.MAILBOX_KEY + "="
+                + Mailbox.TABLE_NAME + "." + MailboxColumns._ID + " and "
+                + MessageColumns.FLAG_READ + "=0) where " + mailboxSelection);
+    }
+
     protected static class DatabaseHelper extends SQLiteOpenHelper {
         final Context mContext;
 
@@ -907,6 +1168,8 @@ public final class DBHelper {
             createPolicyTable(db);
             createQuickResponseTable(db);
             createCredentialsTable(db);
+            createFileTombstoneTable(db);
+            createSearchResultTable(db);
         }
 
         @Override
@@ -957,6 +1220,8 @@ public final class DBHelper {
             if (oldVersion <= 6) {
                 // Use the newer mailbox_delete trigger
                 db.execSQL("drop trigger mailbox_delete;");
+                createMailboxPurgeTable(db);
+                createMessageThreadTable(db);
                 db.execSQL(TRIGGER_MAILBOX_DELETE);
             }
             if (oldVersion <= 7) {
@@ -1611,6 +1876,82 @@ public final class DBHelper {
                 }
             }
 
+            if (oldVersion < 131) {
+                try {
+                    createFileTombstoneTable(db);
+                } catch (final SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    LogUtils.w(TAG, "Exception upgrading EmailProvider.db from v130 to v131", e);
+                }
+            }
+            if (oldVersion < 132) {
+                try {
+                    db.execSQL("alter table " + Attachment.TABLE_NAME
+                            + " add column " + AttachmentColumns.FETCH_OFFSET
+                            + " integer default 0;");
+                } catch (final SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    LogUtils.w(TAG, "Exception upgrading EmailProvider.db from v131 to v132", e);
+                }
+            }
+            if (oldVersion < 133) {
+                try {
+                    createSearchResultTable(db);
+                } catch (final SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    LogUtils.w(TAG, "Exception upgrading EmailProvider.db from v132 to v133", e);
+                }
+            }
+            if (oldVersion < 134) {
+                try {
+                    for (final String trigger : new String[] {"unread_message_insert",
+                            "unread_message_delete", "unread_message_move", "unread_message_read",
+                            "message_count_message_insert", "message_count_message_delete",
+                            "message_count_message_move"}) {
+                        db.execSQL("drop trigger if exists " + trigger);
+                    }
+                    createUnreadCountTriggers(db);
+                    createMessageCountTriggers(db);
+                } catch (final SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    LogUtils.w(TAG, "Exception upgrading EmailProvider.db from v133 to v134", e);
+                }
+            }
+            if (oldVersion < 135) {
+                try {
+                    createMailboxPurgeTable(db);
+                    db.execSQL("drop trigger if exists mailbox_delete");
+                    db.execSQL(TRIGGER_MAILBOX_DELETE);
+                } catch (final SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    LogUtils.w(TAG, "Exception upgrading EmailProvider.db from v134 to v135", e);
+                }
+            }
+            if (oldVersion < 136) {
+                try {
+                    for (final String table : new String[] {Message.TABLE_NAME,
+                            Message.UPDATED_TABLE_NAME, Message.DELETED_TABLE_NAME}) {
+                        db.execSQL("alter table " + table + " add column "
+                                + MessageColumns.THREAD_REFERENCES + " text;");
+                        db.execSQL("alter table " + table + " add column "
+                                + MessageColumns.THREAD_ROOT + " text;");
+                    }
+                    // The references of existing messages weren't kept, so each starts a thread
+                    db.execSQL("update " + Message.TABLE_NAME + " set "
+                            + MessageColumns.THREAD_ROOT + "=coalesce("
+                            + MessageColumns.MESSAGE_ID + ", '#'||" + BaseColumns._ID + ")");
+                    db.execSQL(CREATE_MESSAGE_THREAD_INDEX);
+                    createMessageThreadTable(db);
+                    createMessageThreadTriggers(db);
+                    MessageThreader.rebuildThreads(db, null);
+                    db.execSQL("drop trigger if exists mailbox_delete");
+                    db.execSQL(TRIGGER_MAILBOX_DELETE);
+                } catch (final SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    LogUtils.w(TAG, "Exception upgrading EmailProvider.db from v135 to v136", e);
+                }
+            }
+
             // Due to a bug in commit 44a064e5f16ddaac25f2acfc03c118f65bc48aec,
             // AUTO_FETCH_ATTACHMENTS column could not be available in the Account table.
             // Since cm12 and up doesn't use this column, we are leave as is it. In case
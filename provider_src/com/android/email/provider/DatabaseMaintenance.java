@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.PolicyColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.provider.Policy;
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Database clean-up that used to run synchronously the first time the provider opened its
+ * database: orphaned rows left behind by deleted accounts and mailboxes, and mailbox parent keys
+ * left uninitialized by an interrupted folder sync.  None of this is needed before the first
+ * query can be answered, so it runs once the main thread has gone idle after startup.
+ *
+ * The work is split into steps, and each step into chunks of at most {@link #CHUNK_SIZE} rows,
+ * each in its own short transaction.  Progress is saved after every chunk, so a pass that is
+ * interrupted (e.g. by the process being killed) picks up where it left off next time.
+ */
+class DatabaseMaintenance {
+    private static final String TAG = "DatabaseMaintenance";
+
+    private static final String PREFERENCES_FILE = "DatabaseMaintenance";
+    private static final String PREF_STEP = "step";
+    private static final String PREF_LAST_ID = "lastId";
+
+    /** How long after startup to wait before looking for an idle moment. */
+    private static final long START_DELAY_MILLIS = 10 * DateUtils.SECOND_IN_MILLIS;
+
+    /** The number of rows examined per transaction. */
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 500;
+
+    /** Returned by a step when it has nothing left to do. */
+    private static final long STEP_DONE = -1;
+
+    /**
+     * One unit of maintenance.
+     */
+    private interface Step {
+        /**
+         * Do one chunk of work.
+         * @param db the EmailProvider database
+         * @param lastId the last row id handled by the previous chunk (0 to start)
+         * @return the last row id handled by this chunk, or {@link #STEP_DONE}
+         */
+        long runChunk(SQLiteDatabase db, long lastId);
+    }
+
+    private static class DeleteUnlinkedStep implements Step {
+        private final String mTable;
+        private final String mColumn;
+        private final String mForeignColumn;
+        private final String mForeignTable;
+
+        DeleteUnlinkedStep(final String table, final String column, final String foreignColumn,
+                final String foreignTable) {
+            mTable = table;
+            mColumn = column;
+            mForeignColumn = foreignColumn;
+            mForeignTable = foreignTable;
+        }
+
+        @Override
+        public long runChunk(final SQLiteDatabase db, final long lastId) {
+            return deleteUnlinkedChunk(db, mTable, mColumn, mForeignColumn, mForeignTable,
+                    lastId);
+        }
+    }
+
+    private static final Step[] STEPS = new Step[] {
+        new DeleteUnlinkedStep(Message.UPDATED_TABLE_NAME, MessageColumns.MAILBOX_KEY,
+                MailboxColumns._ID, Mailbox.TABLE_NAME),
+        new DeleteUnlinkedStep(Message.DELETED_TABLE_NAME, MessageColumns.MAILBOX_KEY,
+                MailboxColumns._ID, Mailbox.TABLE_NAME),
+        new DeleteUnlinkedStep(Mailbox.TABLE_NAME, MailboxColumns.ACCOUNT_KEY,
+                AccountColumns._ID, Account.TABLE_NAME),
+        new DeleteUnlinkedStep(Message.TABLE_NAME, MessageColumns.ACCOUNT_KEY,
+                AccountColumns._ID, Account.TABLE_NAME),
+        new DeleteUnlinkedStep(Policy.TABLE_NAME, PolicyColumns._ID,
+                AccountColumns.POLICY_KEY, Account.TABLE_NAME),
+        new Step() {
+            @Override
+            public long runChunk(final SQLiteDatabase db, final long lastId) {
+                // The mailbox table is small, so this is done in one go
+                EmailProvider.fixParentKeys(db);
+                return STEP_DONE;
+            }
+        },
+    };
+
+    /**
+     * Arrange for a maintenance pass to run in the background once the main thread is idle.
+     */
+    static void schedule(final Context context, final EmailProvider provider) {
+        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        EmailAsyncTask.runAsyncSerial(new Runnable() {
+                            @Override
+                            public void run() {
+                                runPass(context, provider.getDatabase(context));
+                            }
+                        });
+                        return false;
+                    }
+                });
+            }
+        }, START_DELAY_MILLIS);
+    }
+
+    /**
+     * Run (or resume) a full maintenance pass.
+     */
+    @VisibleForTesting
+    static void runPass(final Context context, final SQLiteDatabase db) {
+        final SharedPreferences prefs =
+                context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+        int step = prefs.getInt(PREF_STEP, 0);
+        long lastId = prefs.getLong(PREF_LAST_ID, 0);
+        if (step >= STEPS.length) {
+            step = 0;
+            lastId = 0;
+        }
+        LogUtils.d(TAG, "Starting maintenance at step %d, id %d", step, lastId);
+        final long start = SystemClock.elapsedRealtime();
+        traceBegin("EmailProvider maintenance");
+        try {
+            while (step < STEPS.length) {
+                final long next;
+                db.beginTransaction();
+                try {
+                    next = STEPS[step].runChunk(db, lastId);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (next == STEP_DONE) {
+                    step++;
+                    lastId = 0;
+                } else {
+                    lastId = next;
+                }
+                prefs.edit().putInt(PREF_STEP, step).putLong(PREF_LAST_ID, lastId).apply();
+            }
+            // Start from the beginning next time
+            prefs.edit().putInt(PREF_STEP, 0).putLong(PREF_LAST_ID, 0).apply();
+        } finally {
+            traceEnd();
+        }
+        LogUtils.d(TAG, "Maintenance took %dms", SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Delete the rows of one id range of a table whose column has no match in a foreign table.
+     * The range is the next {@link #CHUNK_SIZE} rows after lastId, whether or not they turn out
+     * to be orphans, which bounds the work done by each call.
+     * @return the last id in the range, or {@link #STEP_DONE} if there were no rows left
+     */
+    @VisibleForTesting
+    static long deleteUnlinkedChunk(final SQLiteDatabase db, final String table,
+            final String column, final String foreignColumn, final String foreignTable,
+            final long lastId) {
+        final Cursor c = db.rawQuery("select max(_id) from (select _id from " + table
+                + " where _id>? order by _id limit " + CHUNK_SIZE + ")",
+                new String[] { String.valueOf(lastId) });
+        final long endId;
+        try {
+            if (!c.moveToFirst() || c.isNull(0)) {
+                return STEP_DONE;
+            }
+            endId = c.getLong(0);
+        } finally {
+            c.close();
+        }
+        final int count = db.delete(table, "_id>? and _id<=? and " + column + " not in (select "
+                + foreignColumn + " from " + foreignTable + ")",
+                new String[] { String.valueOf(lastId), String.valueOf(endId) });
+        if (count > 0) {
+            LogUtils.w(TAG, "Found " + count + " orphaned row(s) in " + table);
+        }
+        return endId;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void traceBegin(final String section) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(section);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void traceEnd() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
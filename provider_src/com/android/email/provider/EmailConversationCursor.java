@@ -27,7 +27,9 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
+import android.util.SparseArray;
 
+import com.android.email.service.BodyPrefetcher;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.provider.EmailContent;
@@ -42,6 +44,8 @@ import com.android.mail.providers.UIProvider.ConversationColumns;
 import com.android.mail.utils.LogUtils;
 import com.google.common.collect.Lists;
 
+import java.util.HashSet;
+
 /**
  * Wrapper that handles the visibility feature (i.e. the conversation list is visible, so
  * any pending notifications for the corresponding mailbox should be canceled). We also handle
@@ -54,6 +58,9 @@ public class EmailConversationCursor extends CursorWrapper implements
     private final Context mContext;
     private final FolderList mFolderList;
     private final Bundle mExtras = new Bundle();
+    /** The conversation info of each row, worked out the first time the UI asks for it */
+    private final SparseArray<ConversationInfo> mConversationInfos =
+            new SparseArray<ConversationInfo>();
 
     /**
      * When showing a folder, if it's been at least this long since the last sync,
@@ -125,6 +132,10 @@ public class EmailConversationCursor extends CursorWrapper implements
             if (visible) {
                 // Mark all messages as seen
                 markContentsSeen();
+                // Bodies of the messages the user is looking at are fetched first
+                if (mMailboxTypeId != -1 && mMailboxTypeId != Mailbox.TYPE_SEARCH) {
+                    BodyPrefetcher.getInstance(mContext).setViewedMailbox(mMailboxId);
+                }
                 if (params.containsKey(
                         UIProvider.ConversationCursorCommand.COMMAND_KEY_ENTERED_FOLDER)) {
                     Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMailboxId);
@@ -162,7 +173,12 @@ public class EmailConversationCursor extends CursorWrapper implements
         final String convInfoKey =
                 UIProvider.ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO;
         if (params.containsKey(convInfoKey)) {
-            response.putParcelable(convInfoKey, generateConversationInfo());
+            ConversationInfo conversationInfo = mConversationInfos.get(getPosition());
+            if (conversationInfo == null) {
+                conversationInfo = generateConversationInfo();
+                mConversationInfos.put(getPosition(), conversationInfo);
+            }
+            response.putParcelable(convInfoKey, conversationInfo);
         }
 
         return response;
@@ -179,20 +195,10 @@ public class EmailConversationCursor extends CursorWrapper implements
         final boolean isRead = getInt(getColumnIndex(ConversationColumns.READ)) != 0;
         final String senderString = getString(getColumnIndex(EmailContent.MessageColumns.DISPLAY_NAME));
 
-        final String fromString = getString(getColumnIndex(EmailContent.MessageColumns.FROM_LIST));
-        final String senderEmail;
-
-        if (fromString != null) {
-            final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(fromString);
-            if (tokens.length > 0) {
-                senderEmail = tokens[0].getAddress();
-            } else {
-                LogUtils.d(LogUtils.TAG, "Couldn't parse sender email address");
-                senderEmail = fromString;
-            }
-        } else {
-            senderEmail = null;
-        }
+        // Threads (see MessageThreader) list their senders, earliest first
+        final int participantsIndex = getColumnIndex(MessageThreader.PARTICIPANTS);
+        final String participants =
+                participantsIndex >= 0 ? getString(participantsIndex) : null;
 
         // we *intentionally* report no participants for Draft emails so that the UI always
         // displays the single word "Draft" as per b/13304929
@@ -212,8 +218,34 @@ public class EmailConversationCursor extends CursorWrapper implements
                 // all recipients are said to have read all messages in the conversation
                 conversationInfo.addParticipant(new ParticipantInfo(name, email, 0, isRead));
             }
+        } else if (participants != null) {
+            // for threads in incoming mail mailboxes return each of their senders
+            final HashSet<String> emails = new HashSet<String>();
+            for (final String fromList :
+                    TextUtils.split(participants, MessageThreader.PARTICIPANT_SEPARATOR)) {
+                for (final Address address : Address.parse(fromList)) {
+                    if (emails.add(address.getAddress())) {
+                        conversationInfo.addParticipant(new ParticipantInfo(
+                                address.getSimplifiedName(), address.getAddress(), 0, isRead));
+                    }
+                }
+            }
         } else {
             // for conversations in incoming mail mailboxes return the sender
+            final String fromString =
+                    getString(getColumnIndex(EmailContent.MessageColumns.FROM_LIST));
+            final String senderEmail;
+            if (fromString != null) {
+                final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(fromString);
+                if (tokens.length > 0) {
+                    senderEmail = tokens[0].getAddress();
+                } else {
+                    LogUtils.d(LogUtils.TAG, "Couldn't parse sender email address");
+                    senderEmail = fromString;
+                }
+            } else {
+                senderEmail = null;
+            }
             conversationInfo.addParticipant(new ParticipantInfo(senderString, senderEmail, 0,
                     isRead));
         }
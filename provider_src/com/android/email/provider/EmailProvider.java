@@ -44,6 +44,7 @@ import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
@@ -57,6 +58,7 @@ import android.os.Looper;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
@@ -66,6 +68,7 @@ import android.util.SparseArray;
 
 import com.android.common.content.ProjectionMap;
 import com.android.email.DebugUtils;
+import com.android.email.Metrics;
 import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.Preferences;
@@ -74,6 +77,7 @@ import com.android.email.SecurityPolicy;
 import com.android.email.activity.setup.AccountSecurity;
 import com.android.email.activity.setup.AccountSettingsUtils;
 import com.android.email.service.AttachmentService;
+import com.android.email.service.BodyPrefetcher;
 import com.android.email.service.EmailServiceUtils;
 import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
 import com.android.emailcommon.Logging;
@@ -90,7 +94,6 @@ import com.android.emailcommon.provider.EmailContent.HostAuthColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
-import com.android.emailcommon.provider.EmailContent.PolicyColumns;
 import com.android.emailcommon.provider.EmailContent.QuickResponseColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.HostAuth;
@@ -101,6 +104,7 @@ import com.android.emailcommon.provider.MessageMove;
 import com.android.emailcommon.provider.MessageStateChange;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.provider.QuickResponse;
+import com.android.emailcommon.provider.SearchResult;
 import com.android.emailcommon.provider.SuggestedContact;
 import com.android.emailcommon.service.EmailServiceProxy;
 import com.android.emailcommon.service.EmailServiceStatus;
@@ -135,12 +139,18 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -149,6 +159,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 public class EmailProvider extends ContentProvider
@@ -156,6 +167,13 @@ public class EmailProvider extends ContentProvider
 
     private static final String TAG = LogTag.getLogTag();
 
+    /** Latency of each kind of provider call, for dump() */
+    private static final Metrics.Histogram sQueryTime = Metrics.timer("provider.query");
+    private static final Metrics.Histogram sInsertTime = Metrics.timer("provider.insert");
+    private static final Metrics.Histogram sUpdateTime = Metrics.timer("provider.update");
+    private static final Metrics.Histogram sDeleteTime = Metrics.timer("provider.delete");
+    private static final Metrics.Histogram sBatchTime = Metrics.timer("provider.apply_batch");
+
     // Time to delay upsync requests.
     public static final long SYNC_DELAY_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
 
@@ -194,16 +212,15 @@ public class EmailProvider extends ContentProvider
     public static final String NOTIFICATION_OP_INSERT = "insert";
     /** Appended to the notification URI for update operations */
     public static final String NOTIFICATION_OP_UPDATE = "update";
+    /**
+     * Query parameter naming the account of the changed message(s) in message notification URIs,
+     * when it is known.  Being a query parameter, it doesn't affect which observers are notified.
+     */
+    public static final String NOTIFICATION_PARAM_ACCOUNT = "accountKey";
 
     /** The query string to trigger a folder refresh. */
     protected static String QUERY_UIREFRESH = "uirefresh";
 
-    // Definitions for our queries looking for orphaned messages
-    private static final String[] ORPHANS_PROJECTION
-        = new String[] {MessageColumns._ID, MessageColumns.MAILBOX_KEY};
-    private static final int ORPHANS_ID = 0;
-    private static final int ORPHANS_MAILBOX_KEY = 1;
-
     private static final String WHERE_ID = BaseColumns._ID + "=?";
 
     private static final int ACCOUNT_BASE = 0;
@@ -227,6 +244,7 @@ public class EmailProvider extends ContentProvider
     private static final int MESSAGE_SELECTION = MESSAGE_BASE + 3;
     private static final int MESSAGE_MOVE = MESSAGE_BASE + 4;
     private static final int MESSAGE_STATE_CHANGE = MESSAGE_BASE + 5;
+    private static final int SEARCH_RESULT = MESSAGE_BASE + 6;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -279,6 +297,8 @@ public class EmailProvider extends ContentProvider
     private static final int UI_PURGE_FOLDER = UI_BASE + 20;
     private static final int UI_INBOX = UI_BASE + 21;
     private static final int UI_ACCTSETTINGS = UI_BASE + 22;
+    private static final int UI_THREAD = UI_BASE + 23;
+    private static final int UI_THREAD_MESSAGES = UI_BASE + 24;
 
     private static final int BODY_BASE = 0xA000;
     private static final int BODY = BODY_BASE;
@@ -394,6 +414,14 @@ public class EmailProvider extends ContentProvider
     private SQLiteDatabase mBodyDatabase;
     private SQLiteDatabase mExtrasDatabase;
 
+    /**
+     * Number of extra connections used for UI queries.  With the databases in WAL mode these can
+     * read while a sync holds a write transaction on mDatabase.
+     */
+    private static final int READER_POOL_SIZE = 2;
+    private SQLiteDatabase[] mReaderDatabases;
+    private final AtomicInteger mNextReader = new AtomicInteger();
+
     private Handler mDelayedSyncHandler;
     private final Set<SyncRequestMessage> mDelayedSyncRequests = new HashSet<SyncRequestMessage>();
 
@@ -450,7 +478,7 @@ public class EmailProvider extends ContentProvider
      * If we crash while this operation is in progress, the parent keys can be left uninitialized.
      * @param db SQLiteDatabase to modify
      */
-    private void fixParentKeys(SQLiteDatabase db) {
+    static void fixParentKeys(SQLiteDatabase db) {
         LogUtils.d(TAG, "Fixing parent keys");
 
         // Update the parentKey for each mailbox row to match the _id of the row whose
@@ -489,6 +517,8 @@ public class EmailProvider extends ContentProvider
             if (mDatabase != null) {
                 return mDatabase;
             }
+            final long start = SystemClock.elapsedRealtime();
+            DatabaseMaintenance.traceBegin("EmailProvider.getDatabase");
 
             // Whenever we create or re-cache the databases, make sure that we haven't lost one
             // to corruption
@@ -510,32 +540,106 @@ public class EmailProvider extends ContentProvider
                 String extrasFileName = mExtrasDatabase.getPath();
                 mDatabase.execSQL("attach \"" + extrasFileName + "\" as ExtrasDatabase");
             }
+            enableWriteAheadLogging(mDatabase);
 
             // Restore accounts if the database is corrupted...
             restoreIfNeeded(context, mDatabase);
-            // Check for any orphaned Messages in the updated/deleted tables
-            deleteMessageOrphans(mDatabase, Message.UPDATED_TABLE_NAME);
-            deleteMessageOrphans(mDatabase, Message.DELETED_TABLE_NAME);
-            // Delete orphaned mailboxes/messages/policies (account no longer exists)
-            deleteUnlinked(mDatabase, Mailbox.TABLE_NAME, MailboxColumns.ACCOUNT_KEY,
-                    AccountColumns._ID, Account.TABLE_NAME);
-            deleteUnlinked(mDatabase, Message.TABLE_NAME, MessageColumns.ACCOUNT_KEY,
-                    AccountColumns._ID, Account.TABLE_NAME);
-            deleteUnlinked(mDatabase, Policy.TABLE_NAME, PolicyColumns._ID,
-                    AccountColumns.POLICY_KEY, Account.TABLE_NAME);
-            fixParentKeys(mDatabase);
             initUiProvider();
+            openReaderDatabases();
+            // Orphan clean-up and parent key repair aren't needed to answer queries; they run
+            // in the background once startup is over.
+            DatabaseMaintenance.schedule(context, this);
+            // Finish reaping files left over from last time, and sweep for orphans if it's due
+            FileReaper.schedule(context, this);
+            // Finish purging the messages of mailboxes deleted last time
+            MailboxPurger.schedule(context, this);
+            DatabaseMaintenance.traceEnd();
+            LogUtils.d(TAG, "Opened databases in %dms", SystemClock.elapsedRealtime() - start);
             return mDatabase;
         }
     }
 
+    /**
+     * Put the main database and everything attached to it into write-ahead logging mode.
+     *
+     * SQLiteDatabase#enableWriteAheadLogging refuses to work on a database with attachments (and
+     * an ATTACH turns it back off), so the journal mode is set directly.  Without a schema name
+     * the pragma applies to every attached database, and the mode is persistent in each file.
+     */
+    private static void enableWriteAheadLogging(final SQLiteDatabase db) {
+        try {
+            final String mode = DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode=WAL", null);
+            if (!"wal".equalsIgnoreCase(mode)) {
+                LogUtils.w(TAG, "Could not enable WAL, journal mode is %s", mode);
+            }
+        } catch (final SQLiteException e) {
+            LogUtils.w(TAG, e, "Could not enable WAL");
+        }
+    }
+
+    /**
+     * Open the connections used for UI queries, each with the same attachments as mDatabase so
+     * that the same SQL works on either.  Must be called with sDatabaseLock held, after
+     * mDatabase has been opened.
+     */
+    private void openReaderDatabases() {
+        final String path = mDatabase.getPath();
+        final SQLiteDatabase[] readers = new SQLiteDatabase[READER_POOL_SIZE];
+        try {
+            for (int i = 0; i < READER_POOL_SIZE; i++) {
+                readers[i] = SQLiteDatabase.openDatabase(path, null,
+                        SQLiteDatabase.OPEN_READWRITE);
+                if (mBodyDatabase != null) {
+                    readers[i].execSQL(
+                            "attach \"" + mBodyDatabase.getPath() + "\" as BodyDatabase");
+                }
+                if (mExtrasDatabase != null) {
+                    readers[i].execSQL(
+                            "attach \"" + mExtrasDatabase.getPath() + "\" as ExtrasDatabase");
+                }
+            }
+            mReaderDatabases = readers;
+        } catch (final SQLiteException e) {
+            // Not fatal; everything just goes through mDatabase as it always used to
+            LogUtils.w(TAG, e, "Could not open reader databases");
+            closeReaderDatabases(readers);
+        }
+    }
+
+    private static void closeReaderDatabases(final SQLiteDatabase[] readers) {
+        if (readers != null) {
+            for (final SQLiteDatabase reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a database connection for queries that never write, such as the UI queries.  Reads on
+     * these connections see the last committed state and don't wait for a sync's write
+     * transaction to finish.  Falls back to {@link #getDatabase} if there are no readers.
+     */
+    // exposed for testing
+    SQLiteDatabase getReaderDatabase(final Context context) {
+        final SQLiteDatabase db = getDatabase(context);
+        final SQLiteDatabase[] readers = mReaderDatabases;
+        if (readers == null) {
+            return db;
+        }
+        final int next = mNextReader.getAndIncrement() & Integer.MAX_VALUE;
+        return readers[next % readers.length];
+    }
+
     /**
      * Perform startup actions related to UI
      */
     private void initUiProvider() {
-        // Clear mailbox sync status
+        // Clear mailbox sync status; only rows left mid-sync need touching
         mDatabase.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UI_SYNC_STATUS +
-                "=" + UIProvider.SyncStatus.NO_SYNC);
+                "=" + UIProvider.SyncStatus.NO_SYNC + " where " + MailboxColumns.UI_SYNC_STATUS +
+                "!=" + UIProvider.SyncStatus.NO_SYNC);
     }
 
     /**
@@ -583,6 +687,8 @@ public class EmailProvider extends ContentProvider
     /** {@inheritDoc} */
     @Override
     public void shutdown() {
+        closeReaderDatabases(mReaderDatabases);
+        mReaderDatabases = null;
         if (mDatabase != null) {
             mDatabase.close();
             mDatabase = null;
@@ -600,54 +706,91 @@ public class EmailProvider extends ContentProvider
     // exposed for testing
     public static void deleteMessageOrphans(SQLiteDatabase database, String tableName) {
         if (database != null) {
-            // We'll look at all of the items in the table; there won't be many typically
-            Cursor c = database.query(tableName, ORPHANS_PROJECTION, null, null, null, null, null);
-            // Usually, there will be nothing in these tables, so make a quick check
-            try {
-                if (c.getCount() == 0) return;
-                ArrayList<Long> foundMailboxes = new ArrayList<Long>();
-                ArrayList<Long> notFoundMailboxes = new ArrayList<Long>();
-                ArrayList<Long> deleteList = new ArrayList<Long>();
-                String[] bindArray = new String[1];
-                while (c.moveToNext()) {
-                    // Get the mailbox key and see if we've already found this mailbox
-                    // If so, we're fine
-                    long mailboxId = c.getLong(ORPHANS_MAILBOX_KEY);
-                    // If we already know this mailbox doesn't exist, mark the message for deletion
-                    if (notFoundMailboxes.contains(mailboxId)) {
-                        deleteList.add(c.getLong(ORPHANS_ID));
-                    // If we don't know about this mailbox, we'll try to find it
-                    } else if (!foundMailboxes.contains(mailboxId)) {
-                        bindArray[0] = Long.toString(mailboxId);
-                        Cursor boxCursor = database.query(Mailbox.TABLE_NAME,
-                                Mailbox.ID_PROJECTION, WHERE_ID, bindArray, null, null, null);
-                        try {
-                            // If it exists, we'll add it to the "found" mailboxes
-                            if (boxCursor.moveToFirst()) {
-                                foundMailboxes.add(mailboxId);
-                            // Otherwise, we'll add to "not found" and mark the message for deletion
-                            } else {
-                                notFoundMailboxes.add(mailboxId);
-                                deleteList.add(c.getLong(ORPHANS_ID));
-                            }
-                        } finally {
-                            boxCursor.close();
-                        }
-                    }
+            deleteUnlinked(database, tableName, MessageColumns.MAILBOX_KEY, MailboxColumns._ID,
+                    Mailbox.TABLE_NAME);
+        }
+    }
+
+    private static final long NO_COUNT_SUSPENSION = -1;
+
+    /**
+     * Suspend the triggers that maintain the message and unread counts of mailboxes, and their
+     * threads, for the current transaction.  They cost a statement or two per message, which adds
+     * up when thousands of messages are deleted or moved at once; {@link #resumeMessageCounts}
+     * recounts the mailboxes and threads affected instead.
+     *
+     * @return what to pass to {@link #resumeMessageCounts}
+     */
+    private static long suspendMessageCounts(final SQLiteDatabase db) {
+        return db.insert(DBHelper.COUNT_SUSPENSION_TABLE, DBHelper.COUNT_SUSPENSION_ID,
+                new ContentValues());
+    }
+
+    /**
+     * Recount the mailboxes of the given threads and rebuild those threads, and end a suspension
+     * of the count triggers (which resume when no suspension is left).
+     * @param threads the threads affected, as from {@link MessageThreader#getThreads}
+     */
+    private static void resumeMessageCounts(final SQLiteDatabase db, final long suspension,
+            final Map<Long, Set<String>> threads) {
+        if (threads != null && !threads.isEmpty()) {
+            DBHelper.recalculateMessageCounts(db,
+                    MailboxColumns._ID + " in (" + TextUtils.join(",", threads.keySet()) + ")");
+            MessageThreader.rebuildThreads(db, threads);
+        }
+        db.delete(DBHelper.COUNT_SUSPENSION_TABLE,
+                DBHelper.COUNT_SUSPENSION_ID + "=" + suspension, null);
+    }
+
+    /**
+     * Update the messages that match a selection, moving them or changing their read state,
+     * with the mailbox counts recounted once rather than per message.
+     */
+    private int updateMessageCounted(final SQLiteDatabase db, final ContentValues values,
+            final String selection, final String[] selectionArgs) {
+        final Map<Long, Set<String>> threads;
+        final int result;
+        db.beginTransaction();
+        try {
+            threads = MessageThreader.getThreads(db, selection, selectionArgs);
+            final Long newMailboxId = values.getAsLong(MessageColumns.MAILBOX_KEY);
+            if (newMailboxId != null) {
+                // Moved messages join the same threads in their new mailbox
+                final ArrayList<String> roots = new ArrayList<String>();
+                for (final Set<String> mailboxRoots : threads.values()) {
+                    roots.addAll(mailboxRoots);
                 }
-                // Now, delete the orphan messages
-                for (long messageId: deleteList) {
-                    bindArray[0] = Long.toString(messageId);
-                    database.delete(tableName, WHERE_ID, bindArray);
+                MessageThreader.addThread(threads, newMailboxId, null);
+                for (final String root : roots) {
+                    MessageThreader.addThread(threads, newMailboxId, root);
                 }
-            } finally {
-                c.close();
             }
+            final long suspension = suspendMessageCounts(db);
+            result = db.update(Message.TABLE_NAME, values, selection, selectionArgs);
+            resumeMessageCounts(db, suspension, threads);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
+        if (result > 0) {
+            for (final long mailboxId : threads.keySet()) {
+                notifyUIConversationMailbox(mailboxId);
+            }
+        }
+        return result;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final long start = Metrics.now();
+        try {
+            return deleteInternal(uri, selection, selectionArgs);
+        } finally {
+            sDeleteTime.recordSince(start);
+        }
+    }
+
+    private int deleteInternal(Uri uri, String selection, String[] selectionArgs) {
         Log.d(TAG, "Delete: " + uri);
         final int match = findMatch(uri, "delete");
         final Context context = getContext();
@@ -658,7 +801,10 @@ public class EmailProvider extends ContentProvider
         final SQLiteDatabase db = getDatabase(context);
         final int table = match >> BASE_SHIFT;
         String id = "0";
+        long notifierAccountId = Account.NO_ACCOUNT;
         boolean messageDeletion = false;
+        long countSuspension = NO_COUNT_SUSPENSION;
+        Map<Long, Set<String>> recountThreads = null;
 
         final String tableName = TABLE_NAMES.valueAt(table);
         int result = -1;
@@ -666,12 +812,17 @@ public class EmailProvider extends ContentProvider
         try {
             if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
                 if (!uri.getBooleanQueryParameter(IS_UIPROVIDER, false)) {
-                    notifyUIConversation(uri);
+                    notifierAccountId = notifyUIConversation(uri);
+                }
+                if (notifierAccountId == Account.NO_ACCOUNT) {
+                    notifierAccountId = getNotifierAccountId(uri, null);
                 }
             }
             switch (match) {
                 case UI_MESSAGE:
                     return uiDeleteMessage(uri);
+                case UI_THREAD:
+                    return uiDeleteThread(uri);
                 case UI_ACCOUNT_DATA:
                     return uiDeleteAccountData(uri);
                 case UI_ACCOUNT:
@@ -693,12 +844,8 @@ public class EmailProvider extends ContentProvider
                     } finally {
                         findCursor.close();
                     }
-                // These are cases in which one or more Messages might get deleted, either by
-                // cascade or explicitly
-                case MAILBOX_ID:
-                case MAILBOX:
-                case ACCOUNT_ID:
-                case ACCOUNT:
+                // These are cases in which one or more Messages might get deleted.  Those of
+                // deleted mailboxes and accounts are left to the MailboxPurger
                 case MESSAGE:
                 case SYNCED_MESSAGE_ID:
                 case MESSAGE_ID:
@@ -711,6 +858,12 @@ public class EmailProvider extends ContentProvider
                     // Bodies are auto-deleted here;  Attachments are auto-deleted via trigger
                     messageDeletion = true;
                     db.beginTransaction();
+                    if (match == MESSAGE) {
+                        // Many messages may go, so recount their mailboxes and threads once at
+                        // the end
+                        recountThreads = MessageThreader.getThreads(db, selection, selectionArgs);
+                        countSuspension = suspendMessageCounts(db);
+                    }
                     break;
             }
             switch (match) {
@@ -790,38 +943,34 @@ public class EmailProvider extends ContentProvider
                 case MESSAGE_STATE_CHANGE:
                     db.delete(MessageStateChange.TABLE_NAME, selection, selectionArgs);
                     break;
+                case SEARCH_RESULT:
+                    result = db.delete(SearchResult.TABLE_NAME, selection, selectionArgs);
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
             if (messageDeletion) {
+                // Body and attachment files are left to the FileReaper, which finds the deleted
+                // messages and attachments in the tombstones left by triggers
                 if (match == MESSAGE_ID) {
                     // Delete the Body record associated with the deleted message
-                    final long messageId = Long.valueOf(id);
-                    try {
-                        deleteBodyFiles(context, messageId);
-                    } catch (final IllegalStateException e) {
-                        LogUtils.v(LogUtils.TAG, e, "Exception while deleting bodies");
-                    }
                     db.execSQL(DELETE_BODY + id);
                 } else {
                     // Delete any orphaned Body records
-                    final Cursor orphans = db.rawQuery(ORPHAN_BODY_MESSAGE_ID_SELECT, null);
-                    try {
-                        while (orphans.moveToNext()) {
-                            final long messageId = orphans.getLong(0);
-                            try {
-                                deleteBodyFiles(context, messageId);
-                            } catch (final IllegalStateException e) {
-                                LogUtils.v(LogUtils.TAG, e, "Exception while deleting bodies");
-                            }
-                        }
-                    } finally {
-                        orphans.close();
-                    }
                     db.execSQL(DELETE_ORPHAN_BODIES);
                 }
+                if (countSuspension != NO_COUNT_SUSPENSION) {
+                    resumeMessageCounts(db, countSuspension, recountThreads);
+                }
                 db.setTransactionSuccessful();
             }
+            if (messageDeletion || match == ATTACHMENT || match == ATTACHMENT_ID
+                    || match == ATTACHMENTS_MESSAGE_ID) {
+                FileReaper.schedule(context, this);
+            } else if (match == MAILBOX || match == MAILBOX_ID || match == ACCOUNT
+                    || match == ACCOUNT_ID) {
+                MailboxPurger.schedule(context, this);
+            }
         } catch (SQLiteException e) {
             checkDatabases();
             throw e;
@@ -831,8 +980,24 @@ public class EmailProvider extends ContentProvider
             }
         }
 
-        // Notify all notifier cursors
-        sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
+        if (recountThreads != null && result > 0) {
+            for (final long mailboxId : recountThreads.keySet()) {
+                notifyUIConversationMailbox(mailboxId);
+            }
+        }
+
+        // Notify all notifier cursors, once for each account messages were deleted from
+        final Set<Long> notifierAccountIds = recountThreads != null && result > 0
+                ? getMailboxAccountIds(db, recountThreads.keySet()) : null;
+        if (notifierAccountIds != null && !notifierAccountIds.isEmpty()) {
+            for (final long accountId : notifierAccountIds) {
+                sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id,
+                        accountId);
+            }
+        } else {
+            sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id,
+                    notifierAccountId);
+        }
         sendSyncSettingChanged(getBaseSyncSettingChangedUri(match), NOTIFICATION_OP_DELETE, id);
 
         // Notify all email content cursors
@@ -925,6 +1090,15 @@ public class EmailProvider extends ContentProvider
 
     @Override
     public Uri insert(Uri uri, final ContentValues values) {
+        final long start = Metrics.now();
+        try {
+            return insertInternal(uri, values);
+        } finally {
+            sInsertTime.recordSince(start);
+        }
+    }
+
+    private Uri insertInternal(Uri uri, final ContentValues values) {
         Log.d(TAG, "Insert: " + uri);
         final int match = findMatch(uri, "insert");
         final Context context = getContext();
@@ -934,6 +1108,7 @@ public class EmailProvider extends ContentProvider
         final int table = match >> BASE_SHIFT;
         String id = "0";
         long longId;
+        long notifierAccountId = Account.NO_ACCOUNT;
 
         // We do NOT allow setting of unreadCount/messageCount via the provider
         // These columns are maintained via triggers
@@ -972,6 +1147,9 @@ public class EmailProvider extends ContentProvider
                 case DELETED_MESSAGE:
                 case MESSAGE:
                     decodeEmailAddresses(values);
+                    if (match == MESSAGE) {
+                        MessageThreader.assignThread(db, values);
+                    }
 
                     // Update the suggested contacts of this email in the background
                     if (!MailPrefs.get(context).getSuggestedContactMode().equals(
@@ -1002,6 +1180,9 @@ public class EmailProvider extends ContentProvider
                                 notifyUIConversationMailbox(mailboxId);
                             }
                             notifyUIFolder(mailboxId, values.getAsLong(MessageColumns.ACCOUNT_KEY));
+                            if (values.containsKey(MessageColumns.ACCOUNT_KEY)) {
+                                notifierAccountId = values.getAsLong(MessageColumns.ACCOUNT_KEY);
+                            }
                             break;
                         case MAILBOX:
                             if (values.containsKey(MailboxColumns.TYPE)) {
@@ -1066,6 +1247,12 @@ public class EmailProvider extends ContentProvider
                     longId = db.insert(TABLE_NAMES.valueAt(table), "foo", values);
                     resultUri = ContentUris.withAppendedId(Attachment.CONTENT_URI, longId);
                     break;
+                case SEARCH_RESULT:
+                    longId = db.insert(SearchResult.TABLE_NAME, "foo", values);
+                    // The result shows up in the search mailbox's conversation list
+                    notifyUI(UIPROVIDER_CONVERSATION_NOTIFIER,
+                            values.getAsString(SearchResult.MAILBOX_KEY));
+                    return ContentUris.withAppendedId(uri, longId);
                 default:
                     throw new IllegalArgumentException("Unknown URL " + uri);
             }
@@ -1075,7 +1262,8 @@ public class EmailProvider extends ContentProvider
         }
 
         // Notify all notifier cursors
-        sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id);
+        sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id,
+                notifierAccountId);
         sendSyncSettingChanged(getBaseSyncSettingChangedUri(match), NOTIFICATION_OP_INSERT, id);
 
         // Notify all existing cursors.
@@ -1227,6 +1415,7 @@ public class EmailProvider extends ContentProvider
             sURIMatcher.addURI(EmailContent.AUTHORITY, MessageMove.PATH, MESSAGE_MOVE);
             sURIMatcher.addURI(EmailContent.AUTHORITY, MessageStateChange.PATH,
                     MESSAGE_STATE_CHANGE);
+            sURIMatcher.addURI(EmailContent.AUTHORITY, SearchResult.PATH, SEARCH_RESULT);
 
             /**
              * THE URIs BELOW THIS POINT ARE INTENDED TO BE USED BY SYNC ADAPTERS ONLY
@@ -1277,6 +1466,8 @@ public class EmailProvider extends ContentProvider
             sURIMatcher.addURI(EmailContent.AUTHORITY, "uiaccountdata/#", UI_ACCOUNT_DATA);
             sURIMatcher.addURI(EmailContent.AUTHORITY, "uiloadmore/#", UI_FOLDER_LOAD_MORE);
             sURIMatcher.addURI(EmailContent.AUTHORITY, "uiconversation/#", UI_CONVERSATION);
+            sURIMatcher.addURI(EmailContent.AUTHORITY, "uithread/#", UI_THREAD);
+            sURIMatcher.addURI(EmailContent.AUTHORITY, "uithreadmessages/#", UI_THREAD_MESSAGES);
             sURIMatcher.addURI(EmailContent.AUTHORITY, "uirecentfolders/#", UI_RECENT_FOLDERS);
             sURIMatcher.addURI(EmailContent.AUTHORITY, "uidefaultrecentfolders/#",
                     UI_DEFAULT_RECENT_FOLDERS);
@@ -1302,6 +1493,8 @@ public class EmailProvider extends ContentProvider
     public void checkDatabases() {
         synchronized (sDatabaseLock) {
             // Uncache the databases
+            closeReaderDatabases(mReaderDatabases);
+            mReaderDatabases = null;
             if (mDatabase != null) {
                 mDatabase = null;
             }
@@ -1338,9 +1531,23 @@ public class EmailProvider extends ContentProvider
         }
     }
 
+    /**
+     * Note that this times building the cursor; most of the work of a query is done as the
+     * cursor's window is first filled, which is timed by the caller if at all.
+     */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        final long start = Metrics.now();
+        try {
+            return queryInternal(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            sQueryTime.recordSince(start);
+        }
+    }
+
+    private Cursor queryInternal(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
         Cursor c = null;
         int match;
         try {
@@ -1403,6 +1610,8 @@ public class EmailProvider extends ContentProvider
                 case UI_ATTACHMENTS:
                 case UI_ATTACHMENT_BY_CID:
                 case UI_CONVERSATION:
+                case UI_THREAD:
+                case UI_THREAD_MESSAGES:
                 case UI_RECENT_FOLDERS:
                 case UI_FULL_FOLDERS:
                 case UI_ALL_FOLDERS:
@@ -1441,6 +1650,9 @@ public class EmailProvider extends ContentProvider
                 case MESSAGE_STATE_CHANGE:
                     return db.query(MessageStateChange.TABLE_NAME, projection, selection,
                             selectionArgs, null, null, sortOrder, limit);
+                case SEARCH_RESULT:
+                    return db.query(SearchResult.TABLE_NAME, projection, selection,
+                            selectionArgs, null, null, sortOrder, limit);
                 case MESSAGE:
                 case UPDATED_MESSAGE:
                 case DELETED_MESSAGE:
@@ -2000,6 +2212,16 @@ public class EmailProvider extends ContentProvider
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final long start = Metrics.now();
+        try {
+            return updateInternal(uri, values, selection, selectionArgs);
+        } finally {
+            sUpdateTime.recordSince(start);
+        }
+    }
+
+    private int updateInternal(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
         LogUtils.d(TAG, "Update: " + uri);
         // Handle this special case the fastest possible way
         if (INTEGRITY_CHECK_URI.equals(uri)) {
@@ -2029,6 +2251,7 @@ public class EmailProvider extends ContentProvider
 
         final String tableName = TABLE_NAMES.valueAt(table);
         String id = "0";
+        long notifierAccountId = Account.NO_ACCOUNT;
 
         try {
             switch (match) {
@@ -2048,6 +2271,8 @@ public class EmailProvider extends ContentProvider
                     return uiUpdateAttachment(uri, values);
                 case UI_MESSAGE:
                     return uiUpdateMessage(uri, values);
+                case UI_THREAD:
+                    return uiUpdateThread(uri, values);
                 case ACCOUNT_CHECK:
                     id = uri.getLastPathSegment();
                     // With any error, return 1 (a failure)
@@ -2180,7 +2405,7 @@ public class EmailProvider extends ContentProvider
                     result = db.update(tableName, values, whereWithId(id, selection),
                             selectionArgs);
                     if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
-                        handleMessageUpdateNotifications(uri, id, values);
+                        notifierAccountId = handleMessageUpdateNotifications(uri, id, values);
                     } else if (match == ATTACHMENT_ID) {
                         long attId = Integer.parseInt(id);
                         if (values.containsKey(AttachmentColumns.FLAGS)) {
@@ -2330,7 +2555,12 @@ public class EmailProvider extends ContentProvider
                             syncSettingChanged = true;
                         }
                     }
-                    result = db.update(tableName, values, selection, selectionArgs);
+                    if (match == MESSAGE && (values.containsKey(MessageColumns.MAILBOX_KEY)
+                            || values.containsKey(MessageColumns.FLAG_READ))) {
+                        result = updateMessageCounted(db, values, selection, selectionArgs);
+                    } else {
+                        result = db.update(tableName, values, selection, selectionArgs);
+                    }
                     break;
                 case MESSAGE_MOVE:
                     result = db.update(MessageMove.TABLE_NAME, values, selection, selectionArgs);
@@ -2349,7 +2579,8 @@ public class EmailProvider extends ContentProvider
 
         // Notify all notifier cursors if some records where changed in the database
         if (result > 0) {
-            sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
+            sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id,
+                    notifierAccountId);
             if (syncSettingChanged) {
                 sendSyncSettingChanged(getBaseSyncSettingChangedUri(match),
                         NOTIFICATION_OP_UPDATE, id);
@@ -2481,13 +2712,25 @@ public class EmailProvider extends ContentProvider
      */
     private static void writeBodyFile(final Context c, final long messageId, final String ext,
             final String content) throws IOException {
+        final PackedBodyStore store = PackedBodyStore.getInstance(c);
+        if (PackedBodyStore.isEnabled(c)) {
+            store.write(messageId, ext, content);
+            // A file written before the store was enabled is out of date now
+            new File(getBodyDirectory(c, messageId), messageId + "." + ext).delete();
+            return;
+        }
+        // The store is read in preference to the file, so drop any copy there; a store that was
+        // never enabled has none, and mustn't create its index just to find that out
+        if (store.isCreated()) {
+            store.write(messageId, ext, null);
+        }
         final File textFile = getBodyFile(c, messageId, ext);
         if (TextUtils.isEmpty(content)) {
             if (!textFile.delete()) {
                 LogUtils.v(LogUtils.TAG, "did not delete text body for %d", messageId);
             }
         } else {
-            final FileWriter w = new FileWriter(textFile);
+            final Writer w = new OutputStreamWriter(new FileOutputStream(textFile), "UTF-8");
             try {
                 w.write(content);
             } finally {
@@ -2496,6 +2739,55 @@ public class EmailProvider extends ContentProvider
         }
     }
 
+    /**
+     * Opens a message body part, from the {@link PackedBodyStore} if it's there, or else from
+     * its own file.  Packed bodies can only be read, and are decompressed into a pipe.
+     *
+     * @param messageId id of message to open the body of
+     * @param ext "html" or "txt"
+     * @param mode the mode to open in, as for {@link #openFile}
+     */
+    private ParcelFileDescriptor openBodyFile(final Uri uri, final long messageId,
+            final String ext, final String mode) throws FileNotFoundException {
+        final Context context = getContext();
+        final PackedBodyStore store = PackedBodyStore.getInstance(context);
+        if (!"r".equals(mode)) {
+            // Whatever is written goes to the file, which must then be the only copy
+            try {
+                store.write(messageId, ext, null);
+            } catch (final IOException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+            return ParcelFileDescriptor.open(getBodyFile(context, messageId, ext),
+                    Utilities.parseMode(mode));
+        }
+        final InputStream in;
+        try {
+            in = store.openBody(messageId, ext);
+        } catch (final IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        if (in == null) {
+            return ParcelFileDescriptor.open(getBodyFile(context, messageId, ext),
+                    Utilities.parseMode(mode));
+        }
+        return openPipeHelper(uri, "text/plain", null, in, new PipeDataWriter<InputStream>() {
+            @Override
+            public void writeDataToPipe(final ParcelFileDescriptor output, final Uri uri,
+                    final String mimeType, final Bundle opts, final InputStream args) {
+                final OutputStream out = new FileOutputStream(output.getFileDescriptor());
+                try {
+                    IOUtils.copy(args, out);
+                } catch (final IOException e) {
+                    LogUtils.w(TAG, e, "Failed to read packed body for %d", messageId);
+                } finally {
+                    IOUtils.closeQuietly(args);
+                    IOUtils.closeQuietly(out);
+                }
+            }
+        });
+    }
+
     /**
      * Returns a {@link java.io.File} object pointing to the body content file for the message
      *
@@ -2509,16 +2801,35 @@ public class EmailProvider extends ContentProvider
         if (!TextUtils.equals(ext, "html") && !TextUtils.equals(ext, "txt")) {
             throw new IllegalArgumentException("ext must be one of 'html' or 'txt'");
         }
-        long l1 = messageId / 100 % 100;
-        long l2 = messageId % 100;
-        final File dir = new File(c.getFilesDir(),
-                "body/" + Long.toString(l1) + "/" + Long.toString(l2) + "/");
+        final File dir = getBodyDirectory(c, messageId);
         if (!dir.isDirectory() && !dir.mkdirs()) {
             throw new FileNotFoundException("Could not create directory for body file");
         }
         return new File(dir, Long.toString(messageId) + "." + ext);
     }
 
+    /**
+     * Returns the directory holding the body content files for the message.  This does not
+     * create the directory.
+     *
+     * @param c Context for finding files dir
+     * @param messageId id of message to locate
+     * @return the directory
+     */
+    static File getBodyDirectory(final Context c, final long messageId) {
+        long l1 = messageId / 100 % 100;
+        long l2 = messageId % 100;
+        return new File(getBodyRootDirectory(c),
+                Long.toString(l1) + "/" + Long.toString(l2) + "/");
+    }
+
+    /**
+     * @return the directory under which all body content files are kept
+     */
+    static File getBodyRootDirectory(final Context c) {
+        return new File(c.getFilesDir(), "body");
+    }
+
     @Override
     public ParcelFileDescriptor openFile(final Uri uri, final String mode)
             throws FileNotFoundException {
@@ -2549,13 +2860,11 @@ public class EmailProvider extends ContentProvider
                 break;
             case BODY_HTML: {
                 final long messageKey = Long.valueOf(uri.getLastPathSegment());
-                return ParcelFileDescriptor.open(getBodyFile(getContext(), messageKey, "html"),
-                        Utilities.parseMode(mode));
+                return openBodyFile(uri, messageKey, "html", mode);
             }
             case BODY_TEXT:{
                 final long messageKey = Long.valueOf(uri.getLastPathSegment());
-                return ParcelFileDescriptor.open(getBodyFile(getContext(), messageKey, "txt"),
-                        Utilities.parseMode(mode));
+                return openBodyFile(uri, messageKey, "txt", mode);
             }
         }
 
@@ -2612,14 +2921,22 @@ public class EmailProvider extends ContentProvider
      * @param op Optional operation to be appended to the URI.
      * @param id If a positive value, the ID to append to the base URI. Otherwise, no ID will be
      *           appended to the base URI.
+     * @param accountId The account the change belongs to, or {@link Account#NO_ACCOUNT} if it
+     *           isn't known (or the change isn't to messages).
      */
-    private void sendNotifierChange(Uri baseUri, String op, String id) {
+    private void sendNotifierChange(Uri baseUri, String op, String id, long accountId) {
         if (baseUri == null) return;
+        final boolean isMessageChange = baseUri.equals(Message.NOTIFIER_URI);
 
         // Append the operation, if specified
         if (op != null) {
             baseUri = baseUri.buildUpon().appendEncodedPath(op).build();
         }
+        // Scope message changes to their account, so observers can ignore other accounts
+        if (isMessageChange && accountId != Account.NO_ACCOUNT) {
+            baseUri = baseUri.buildUpon().appendQueryParameter(NOTIFICATION_PARAM_ACCOUNT,
+                    Long.toString(accountId)).build();
+        }
 
         long longId = 0L;
         try {
@@ -2637,6 +2954,60 @@ public class EmailProvider extends ContentProvider
         }
     }
 
+    /**
+     * Returns the account a message change belongs to, as given by the caller: the message's
+     * account key if it's among the values written, or else the
+     * {@link #NOTIFICATION_PARAM_ACCOUNT} query parameter of the URI, if any.
+     *
+     * @return the account, or {@link Account#NO_ACCOUNT} if the caller didn't give it
+     */
+    private static long getNotifierAccountId(final Uri uri, final ContentValues values) {
+        if (values != null && values.containsKey(MessageColumns.ACCOUNT_KEY)) {
+            return values.getAsLong(MessageColumns.ACCOUNT_KEY);
+        }
+        final String accountId = uri.getQueryParameter(NOTIFICATION_PARAM_ACCOUNT);
+        if (accountId != null) {
+            try {
+                return Long.parseLong(accountId);
+            } catch (NumberFormatException e) {
+                // Not scoped, then
+            }
+        }
+        return Account.NO_ACCOUNT;
+    }
+
+    /**
+     * Returns the accounts that own the given mailboxes, with a single query.
+     */
+    private static Set<Long> getMailboxAccountIds(final SQLiteDatabase db,
+            final Collection<Long> mailboxIds) {
+        final Set<Long> accountIds = new HashSet<Long>();
+        if (mailboxIds.isEmpty()) {
+            return accountIds;
+        }
+        final StringBuilder selection = new StringBuilder(MailboxColumns._ID).append(" in (");
+        boolean first = true;
+        for (final long mailboxId : mailboxIds) {
+            if (!first) {
+                selection.append(',');
+            }
+            selection.append(mailboxId);
+            first = false;
+        }
+        selection.append(')');
+        final Cursor c = db.query(true, Mailbox.TABLE_NAME,
+                new String[] { MailboxColumns.ACCOUNT_KEY }, selection.toString(), null, null,
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                accountIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return accountIds;
+    }
+
     private void sendSyncSettingChanged(Uri baseUri, String op, String id) {
         if (baseUri == null) return;
 
@@ -2689,6 +3060,7 @@ public class EmailProvider extends ContentProvider
         setBatchNotificationsSet(Sets.<Uri>newHashSet());
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
+        final long start = Metrics.now();
         db.beginTransaction();
         try {
             ContentProviderResult[] results = super.applyBatch(operations);
@@ -2696,6 +3068,7 @@ public class EmailProvider extends ContentProvider
             return results;
         } finally {
             db.endTransaction();
+            sBatchTime.recordSince(start);
             final Set<Uri> notifications = getBatchNotificationsSet();
             setBatchNotificationsSet(null);
             for (final Uri uri : notifications) {
@@ -2734,7 +3107,9 @@ public class EmailProvider extends ContentProvider
                 "SUM(CASE " + MessageColumns.FLAG_READ + " WHEN 0 THEN 1 ELSE 0 END), " +
                 "SUM(CASE " + MessageColumns.FLAG_SEEN + " WHEN 0 THEN 1 ELSE 0 END)\n" +
                 "FROM " + Message.TABLE_NAME + "\n" +
-                "WHERE " + MessageColumns.ACCOUNT_KEY + " = ?\n" +
+                "WHERE " + MessageColumns.ACCOUNT_KEY + " = ? AND " +
+                // Messages of deleted mailboxes are gone, even if not purged yet
+                MailboxPurger.NOT_PURGED_SELECTION + "\n" +
                 "GROUP BY " + MessageColumns.MAILBOX_KEY;
 
         final String[] selectionArgs = {accountId};
@@ -2843,6 +3218,53 @@ public class EmailProvider extends ContentProvider
     }
     private static ProjectionMap sMessageListMap;
 
+    /**
+     * Mapping of UIProvider columns to EmailProvider columns for the conversation list of a
+     * mailbox, whose rows are its threads (see {@link MessageThreader}) joined to their latest
+     * messages
+     */
+    private static ProjectionMap getThreadListMap() {
+        if (sThreadListMap == null) {
+            final String thread = MessageThreader.TABLE_NAME + ".";
+            final String message = Message.TABLE_NAME + ".";
+            sThreadListMap = ProjectionMap.builder()
+                .add(BaseColumns._ID, thread + MessageThreader.ID)
+                .add(UIProvider.ConversationColumns.URI,
+                        uriWithFQId("uithread", MessageThreader.TABLE_NAME))
+                .add(UIProvider.ConversationColumns.MESSAGE_LIST_URI,
+                        uriWithFQId("uithreadmessages", MessageThreader.TABLE_NAME))
+                .add(UIProvider.ConversationColumns.SUBJECT, message + MessageColumns.SUBJECT)
+                .add(UIProvider.ConversationColumns.SNIPPET, thread + MessageThreader.SNIPPET)
+                .add(UIProvider.ConversationColumns.CONVERSATION_INFO, null)
+                .add(UIProvider.ConversationColumns.DATE_RECEIVED_MS,
+                        thread + MessageThreader.TIMESTAMP)
+                .add(UIProvider.ConversationColumns.HAS_ATTACHMENTS,
+                        message + MessageColumns.FLAG_ATTACHMENT)
+                .add(UIProvider.ConversationColumns.NUM_MESSAGES,
+                        thread + MessageThreader.MESSAGE_COUNT)
+                .add(UIProvider.ConversationColumns.NUM_DRAFTS, "0")
+                .add(UIProvider.ConversationColumns.SENDING_STATE,
+                        Integer.toString(ConversationSendingState.OTHER))
+                .add(UIProvider.ConversationColumns.PRIORITY,
+                        Integer.toString(ConversationPriority.LOW))
+                .add(UIProvider.ConversationColumns.READ,
+                        thread + MessageThreader.UNREAD_COUNT + "=0")
+                .add(UIProvider.ConversationColumns.SEEN, message + MessageColumns.FLAG_SEEN)
+                .add(UIProvider.ConversationColumns.STARRED,
+                        message + MessageColumns.FLAG_FAVORITE)
+                .add(UIProvider.ConversationColumns.FLAGS, CONVERSATION_FLAGS)
+                .add(UIProvider.ConversationColumns.ACCOUNT_URI,
+                        uriWithColumn("uiaccount", message + MessageColumns.ACCOUNT_KEY))
+                .add(UIProvider.ConversationColumns.SENDER_INFO,
+                        message + MessageColumns.FROM_LIST)
+                .add(UIProvider.ConversationColumns.ORDER_KEY,
+                        thread + MessageThreader.TIMESTAMP)
+                .build();
+        }
+        return sThreadListMap;
+    }
+    private static ProjectionMap sThreadListMap;
+
     /**
      * Generate UIProvider draft type; note the test for "reply all" must come before "reply"
      */
@@ -3326,11 +3748,52 @@ public class EmailProvider extends ContentProvider
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQueryMailboxMessages(String[] uiProjection, final boolean unseenOnly) {
+        return genQueryMessageList(uiProjection, MessageColumns.MAILBOX_KEY + "=? ", unseenOnly);
+    }
+
+    /**
+     * Generate the "conversation list" SQLite query of a mailbox, which lists its threads
+     *
+     * @param uiProjection as passed from UnifiedEmail
+     * @param selection the threads to list
+     * @return the SQLite query to be executed on the EmailProvider database
+     */
+    private static String genQueryThreads(String[] uiProjection, final String selection) {
+        final StringBuilder sb = genSelect(getThreadListMap(), uiProjection);
+        appendConversationInfoColumns(sb);
+        sb.append(',').append(MessageThreader.TABLE_NAME).append('.')
+                .append(MessageThreader.PARTICIPANTS);
+        sb.append(" FROM " + MessageThreader.TABLE_NAME + " JOIN " + Message.TABLE_NAME +
+                " ON " + Message.TABLE_NAME + "." + MessageColumns._ID + "=" +
+                MessageThreader.TABLE_NAME + "." + MessageThreader.LATEST_MESSAGE_KEY +
+                " WHERE ").append(selection);
+        sb.append(" ORDER BY " + MessageThreader.TABLE_NAME + "." + MessageThreader.TIMESTAMP +
+                " DESC ");
+        sb.append("LIMIT " + UIProvider.CONVERSATION_PROJECTION_QUERY_CURSOR_WINDOW_LIMIT);
+        return sb.toString();
+    }
+
+    /**
+     * Generate the "message list" SQLite query of a search mailbox, which lists the messages
+     * its results refer to, wherever they're stored
+     *
+     * @param uiProjection as passed from UnifiedEmail
+     * @param unseenOnly <code>true</code> to only return unseen messages
+     * @return the SQLite query to be executed on the EmailProvider database
+     */
+    private static String genQuerySearchResultMessages(String[] uiProjection,
+            final boolean unseenOnly) {
+        return genQueryMessageList(uiProjection, MessageColumns._ID + " IN (SELECT "
+                + SearchResult.MESSAGE_KEY + " FROM " + SearchResult.TABLE_NAME + " WHERE "
+                + SearchResult.MAILBOX_KEY + "=?) ", unseenOnly);
+    }
+
+    private static String genQueryMessageList(String[] uiProjection, final String selection,
+            final boolean unseenOnly) {
         StringBuilder sb = genSelect(getMessageListMap(), uiProjection);
         appendConversationInfoColumns(sb);
         sb.append(" FROM " + Message.TABLE_NAME + " WHERE " +
-                Message.FLAG_LOADED_SELECTION + " AND " +
-                MessageColumns.MAILBOX_KEY + "=? ");
+                Message.FLAG_LOADED_SELECTION + " AND ").append(selection);
         if (unseenOnly) {
             sb.append("AND ").append(MessageColumns.FLAG_SEEN).append(" = 0 ");
             sb.append("AND ").append(MessageColumns.FLAG_READ).append(" = 0 ");
@@ -3378,12 +3841,14 @@ public class EmailProvider extends ContentProvider
                         "=" + Mailbox.TYPE_INBOX + ")");
                 break;
             case Mailbox.TYPE_STARRED:
-                sb.append(MessageColumns.FLAG_FAVORITE + "=1");
+                sb.append(MessageColumns.FLAG_FAVORITE + "=1 AND " +
+                        MailboxPurger.NOT_PURGED_SELECTION);
                 break;
             case Mailbox.TYPE_UNREAD:
                 sb.append(MessageColumns.FLAG_READ + "=0 AND " + MessageColumns.MAILBOX_KEY +
                         " NOT IN (SELECT " + MailboxColumns._ID + " FROM " + Mailbox.TABLE_NAME +
-                        " WHERE " + MailboxColumns.TYPE + "=" + Mailbox.TYPE_TRASH + ")");
+                        " WHERE " + MailboxColumns.TYPE + "=" + Mailbox.TYPE_TRASH + ") AND " +
+                        MailboxPurger.NOT_PURGED_SELECTION);
                 break;
             default:
                 throw new IllegalArgumentException("No virtual mailbox for: " + mailboxId);
@@ -4065,7 +4530,8 @@ public class EmailProvider extends ContentProvider
                             accountKeyClause + MessageColumns.FLAG_READ + "=0 AND "
                             + MessageColumns.MAILBOX_KEY + " NOT IN (SELECT " + MailboxColumns._ID
                             + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE + "="
-                            + Mailbox.TYPE_TRASH + ")", whereArgs);
+                            + Mailbox.TYPE_TRASH + ") AND " + MailboxPurger.NOT_PURGED_SELECTION,
+                            whereArgs);
                     values[i] = unreadCount;
                 } else if (mailboxType == Mailbox.TYPE_STARRED) {
                     final String accountKeyClause;
@@ -4078,7 +4544,8 @@ public class EmailProvider extends ContentProvider
                         whereArgs = new String[] { Long.toString(accountId) };
                     }
                     final int starredCount = EmailContent.count(getContext(), Message.CONTENT_URI,
-                            accountKeyClause + MessageColumns.FLAG_FAVORITE + "=1", whereArgs);
+                            accountKeyClause + MessageColumns.FLAG_FAVORITE + "=1 AND "
+                            + MailboxPurger.NOT_PURGED_SELECTION, whereArgs);
                     values[i] = starredCount;
                 }
             } else if (column.equals(UIProvider.FolderColumns.ICON_RES_ID)) {
@@ -4785,7 +5252,8 @@ public class EmailProvider extends ContentProvider
     private Cursor uiQuery(int match, Uri uri, String[] uiProjection, final boolean unseenOnly) {
         Context context = getContext();
         ContentResolver resolver = context.getContentResolver();
-        SQLiteDatabase db = getDatabase(context);
+        // All of these are plain reads, so they don't need to wait behind a sync
+        SQLiteDatabase db = getReaderDatabase(context);
         // Should we ever return null, or throw an exception??
         Cursor c = null;
         String id = uri.getPathSegments().get(1);
@@ -4847,9 +5315,18 @@ public class EmailProvider extends ContentProvider
                 }
                 if (isVirtualMailbox(mailboxId)) {
                     c = getVirtualMailboxMessagesCursor(db, uiProjection, mailboxId, unseenOnly);
+                } else if (folder.isType(UIProvider.FolderType.SEARCH)) {
+                    c = db.rawQuery(genQuerySearchResultMessages(uiProjection, unseenOnly),
+                            new String[] {id});
                 } else {
-                    c = db.rawQuery(
-                            genQueryMailboxMessages(uiProjection, unseenOnly), new String[] {id});
+                    if (unseenOnly) {
+                        c = db.rawQuery(genQueryMailboxMessages(uiProjection, true),
+                                new String[] {id});
+                    } else {
+                        // Each thread of the mailbox is a conversation
+                        c = db.rawQuery(genQueryThreads(uiProjection, MessageThreader.TABLE_NAME +
+                                "." + MessageThreader.MAILBOX_KEY + "=?"), new String[] {id});
+                    }
                 }
                 notifyUri = UIPROVIDER_CONVERSATION_NOTIFIER.buildUpon().appendPath(id).build();
                 c = new EmailConversationCursor(context, c, folder, mailboxId);
@@ -4945,6 +5422,32 @@ public class EmailProvider extends ContentProvider
             case UI_CONVERSATION:
                 c = db.rawQuery(genQueryConversation(uiProjection), new String[] {id});
                 break;
+            case UI_THREAD:
+                c = db.rawQuery(genQueryThreads(uiProjection, MessageThreader.TABLE_NAME + "." +
+                        MessageThreader.ID + "=?"), new String[] {id});
+                break;
+            case UI_THREAD_MESSAGES: {
+                final long[] messageIds = getThreadMessageIds(db, id);
+                final Cursor[] cursors = new Cursor[messageIds.length];
+                for (int i = 0; i < messageIds.length; i++) {
+                    final String messageId = Long.toString(messageIds[i]);
+                    final MessageQuery query = genQueryViewMessage(uiProjection, messageId);
+                    // With attachments, we have another argument to bind
+                    cursors[i] = db.rawQuery(query.query, query.attachmentJson != null
+                            ? new String[] {query.attachmentJson, messageId}
+                            : new String[] {messageId});
+                }
+                c = new EmailMessageCursor(getContext(), cursors.length > 0
+                        ? new MergeCursor(cursors) : new MatrixCursor(uiProjection),
+                        UIProvider.MessageColumns.BODY_HTML, UIProvider.MessageColumns.BODY_TEXT);
+                final long threadMailboxId = getThreadMailboxId(db, id);
+                if (threadMailboxId != Mailbox.NO_MAILBOX) {
+                    // Replies join the thread; they're notified as changes to its mailbox
+                    notifyUri = UIPROVIDER_CONVERSATION_NOTIFIER.buildUpon()
+                            .appendPath(Long.toString(threadMailboxId)).build();
+                }
+                break;
+            }
         }
         if (notifyUri != null) {
             c.setNotificationUri(resolver, notifyUri);
@@ -5548,6 +6051,12 @@ public class EmailProvider extends ContentProvider
             return 1;
         }
 
+        // The user is looking at the message; if its body hasn't been fetched yet, get it now
+        final Boolean viewed = values.getAsBoolean(UIProvider.ConversationColumns.VIEWED);
+        if (viewed != null && viewed) {
+            BodyPrefetcher.getInstance(context).prefetchMessage(msg.mId);
+        }
+
         // Another special case - deleting a draft.
         final String operation = values.getAsString(
                 UIProvider.ConversationOperations.OPERATION_KEY);
@@ -5585,7 +6094,125 @@ public class EmailProvider extends ContentProvider
             addToSequence(uri, op);
         }
 
-        return update(ourUri, ourValues, null, null);
+        final int result = update(ourUri, ourValues, null, null);
+        if (result > 0) {
+            notifyUISearchResults(msg.mId);
+        }
+        return result;
+    }
+
+    private static final String[] SEARCH_RESULT_MAILBOX_PROJECTION =
+            new String[] { SearchResult.MAILBOX_KEY };
+    private static final String SEARCH_RESULT_MESSAGE_SELECTION = SearchResult.MESSAGE_KEY + "=?";
+
+    /**
+     * Notify the search results a message is listed in.  They list messages that stay in their
+     * own mailboxes, so notifying the message's mailbox doesn't reach them.
+     * @param messageId the message that changed
+     */
+    private void notifyUISearchResults(final long messageId) {
+        final Cursor c = getDatabase(getContext()).query(true, SearchResult.TABLE_NAME,
+                SEARCH_RESULT_MAILBOX_PROJECTION, SEARCH_RESULT_MESSAGE_SELECTION,
+                new String[] { Long.toString(messageId) }, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                notifyUI(UIPROVIDER_CONVERSATION_NOTIFIER, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static final String THREAD_MESSAGE_IDS_SQL = "SELECT " + Message.TABLE_NAME + "." +
+            MessageColumns._ID + " FROM " + MessageThreader.TABLE_NAME + " JOIN " +
+            Message.TABLE_NAME + " ON " + Message.TABLE_NAME + "." + MessageColumns.MAILBOX_KEY +
+            "=" + MessageThreader.TABLE_NAME + "." + MessageThreader.MAILBOX_KEY + " AND " +
+            Message.TABLE_NAME + "." + MessageColumns.THREAD_ROOT + "=" +
+            MessageThreader.TABLE_NAME + "." + MessageThreader.ROOT + " WHERE " +
+            MessageThreader.TABLE_NAME + "." + MessageThreader.ID + "=? AND " +
+            Message.FLAG_LOADED_SELECTION + " ORDER BY " + Message.TABLE_NAME + "." +
+            MessageColumns.TIMESTAMP + " ASC";
+
+    /**
+     * @return the ids of the listed messages of a thread, oldest first
+     */
+    private static long[] getThreadMessageIds(final SQLiteDatabase db, final String threadId) {
+        final Cursor c = db.rawQuery(THREAD_MESSAGE_IDS_SQL, new String[] {threadId});
+        try {
+            final long[] messageIds = new long[c.getCount()];
+            while (c.moveToNext()) {
+                messageIds[c.getPosition()] = c.getLong(0);
+            }
+            return messageIds;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the mailbox of a thread, or {@link Mailbox#NO_MAILBOX} if the thread is gone
+     */
+    private static long getThreadMailboxId(final SQLiteDatabase db, final String threadId) {
+        try {
+            return DatabaseUtils.longForQuery(db, "SELECT " + MessageThreader.MAILBOX_KEY +
+                    " FROM " + MessageThreader.TABLE_NAME + " WHERE " + MessageThreader.ID + "=?",
+                    new String[] {threadId});
+        } catch (final SQLiteDoneException e) {
+            return Mailbox.NO_MAILBOX;
+        }
+    }
+
+    /**
+     * @return the uri of a message of a thread, with the query parameters (such as the undo
+     * sequence) of the thread's uri
+     */
+    private static Uri getThreadMessageUri(final Uri threadUri, final long messageId) {
+        return uiUri("uimessage", messageId).buildUpon()
+                .encodedQuery(threadUri.getEncodedQuery()).build();
+    }
+
+    /**
+     * Perform a conversation operation (e.g. mark read, star or move) on a thread, by performing
+     * it on each of its messages; undo reverts them together
+     * @param uri the thread
+     * @param values the operation, as for {@link #uiUpdateMessage}
+     * @return the number of messages changed
+     */
+    private int uiUpdateThread(final Uri uri, final ContentValues values) {
+        final long[] messageIds =
+                getThreadMessageIds(getDatabase(getContext()), uri.getLastPathSegment());
+        if (messageIds.length == 0) {
+            return 0;
+        }
+        if (values.containsKey(UIProvider.MessageOperations.RESPOND_COLUMN)) {
+            // A meeting response is to the latest invitation
+            return uiUpdateMessage(getThreadMessageUri(uri, messageIds[messageIds.length - 1]),
+                    values);
+        }
+        int result = 0;
+        for (final long messageId : messageIds) {
+            if (uiUpdateMessage(getThreadMessageUri(uri, messageId), values) > 0) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Perform a "Delete" operation on each message of a thread
+     * @param uri the thread
+     * @return the number of messages deleted
+     */
+    private int uiDeleteThread(final Uri uri) {
+        final long[] messageIds =
+                getThreadMessageIds(getDatabase(getContext()), uri.getLastPathSegment());
+        int result = 0;
+        for (final long messageId : messageIds) {
+            if (uiDeleteMessage(getThreadMessageUri(uri, messageId)) > 0) {
+                result++;
+            }
+        }
+        return result;
     }
 
     /**
@@ -5601,11 +6228,16 @@ public class EmailProvider extends ContentProvider
      * @param uri The {@link Uri} for this message update.
      * @param messageId The id of the message that's been updated.
      * @param values The {@link ContentValues} that were updated in the message.
+     * @return the message's account, or {@link Account#NO_ACCOUNT} if it isn't known.
      */
-    private void handleMessageUpdateNotifications(final Uri uri, final String messageId,
+    private long handleMessageUpdateNotifications(final Uri uri, final String messageId,
             final ContentValues values) {
+        long accountId = getNotifierAccountId(uri, values);
         if (!uri.getBooleanQueryParameter(IS_UIPROVIDER, false)) {
-            notifyUIConversation(uri);
+            final long messageAccountId = notifyUIConversation(uri);
+            if (accountId == Account.NO_ACCOUNT) {
+                accountId = messageAccountId;
+            }
         }
         notifyUIMessage(messageId);
         // TODO: Ideally, also test that the values actually changed.
@@ -5619,12 +6251,16 @@ public class EmailProvider extends ContentProvider
                     if (c.moveToFirst()) {
                         notifyUIFolder(c.getLong(MESSAGE_KEYS_MAILBOX_KEY_COLUMN),
                                 c.getLong(MESSAGE_KEYS_ACCOUNT_KEY_COLUMN));
+                        if (accountId == Account.NO_ACCOUNT) {
+                            accountId = c.getLong(MESSAGE_KEYS_ACCOUNT_KEY_COLUMN);
+                        }
                     }
                 } finally {
                     c.close();
                 }
             }
         }
+        return accountId;
     }
 
     /**
@@ -5640,7 +6276,7 @@ public class EmailProvider extends ContentProvider
         if (mailbox == null) return 0;
         if (mailbox.mType == Mailbox.TYPE_TRASH || mailbox.mType == Mailbox.TYPE_DRAFTS) {
             // We actually delete these, including attachments
-            AttachmentUtilities.deleteAllAttachmentFiles(context, msg.mAccountKey, msg.mId);
+            notifyUISearchResults(msg.mId);
             final int r = context.getContentResolver().delete(
                     ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, msg.mId), null, null);
             notifyUIFolder(mailbox.mId, mailbox.mAccountKey);
@@ -5688,15 +6324,31 @@ public class EmailProvider extends ContentProvider
         final String messageWhere = MessageColumns.MAILBOX_KEY + "=" + mailboxId;
         final Cursor messageCursor = db.query(Message.TABLE_NAME, messageProjection, messageWhere,
                 null, null, null, null);
-        int deletedCount = 0;
-
-        // Kill them with fire
-        while (messageCursor != null && messageCursor.moveToNext()) {
-            final long messageId = messageCursor.getLong(messageCursor.getColumnIndex(
-                    MessageColumns._ID));
-            AttachmentUtilities.deleteAllAttachmentFiles(context, accountId, messageId);
-            deletedCount += context.getContentResolver().delete(
-                    ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, messageId), null, null);
+        final ArrayList<Long> messageIds = new ArrayList<Long>();
+        try {
+            while (messageCursor.moveToNext()) {
+                messageIds.add(messageCursor.getLong(0));
+            }
+        } finally {
+            messageCursor.close();
+        }
+
+        // Kill them with fire, all at once. As for each synced message deleted, the upsync will
+        // find the messages in the deleted table, and not in the updated one
+        final int deletedCount;
+        db.beginTransaction();
+        try {
+            db.execSQL("insert or replace into " + Message.DELETED_TABLE_NAME + " select * from "
+                    + Message.TABLE_NAME + " where " + messageWhere);
+            db.execSQL("delete from " + Message.UPDATED_TABLE_NAME + " where "
+                    + MessageColumns._ID + " in (select " + MessageColumns._ID + " from "
+                    + Message.TABLE_NAME + " where " + messageWhere + ")");
+            deletedCount = delete(Message.CONTENT_URI, messageWhere, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        for (final long messageId : messageIds) {
             notifyUIMessage(messageId);
         }
 
@@ -5767,12 +6419,19 @@ public class EmailProvider extends ContentProvider
         return new MatrixCursorWithCachedColumns(projection, 0);
     }
 
-    private void notifyUIConversation(Uri uri) {
+    /**
+     * Notify about the mailbox of the message passed in
+     * @param uri the message's uri
+     * @return the message's account, or {@link Account#NO_ACCOUNT} if there's no such message
+     */
+    private long notifyUIConversation(Uri uri) {
         String id = uri.getLastPathSegment();
         Message msg = Message.restoreMessageWithId(getContext(), Long.parseLong(id));
         if (msg != null) {
             notifyUIConversationMailbox(msg.mMailboxKey);
+            return msg.mAccountKey;
         }
+        return Account.NO_ACCOUNT;
     }
 
     /**
@@ -6043,14 +6702,18 @@ public class EmailProvider extends ContentProvider
 
     //Number of additional messages to load when a user selects "Load more..." in POP/IMAP boxes
     public static final int VISIBLE_LIMIT_INCREMENT = 10;
-    //Number of additional messages to load when a user selects "Load more..." in a search
+    //Number of messages to load first in a search
     public static final int SEARCH_MORE_INCREMENT = 10;
+    //Most messages to load at once in a search; each "Load more..." doubles the last count
+    public static final int SEARCH_MORE_MAX_INCREMENT = 80;
 
     private Cursor uiFolderLoadMore(final Mailbox mailbox) {
         if (mailbox == null) return null;
         if (mailbox.mType == Mailbox.TYPE_SEARCH) {
-            // Ask for 10 more messages
-            mSearchParams.mOffset += SEARCH_MORE_INCREMENT;
+            // Ask for more messages than the last time; whoever keeps scrolling through the
+            // results wants many of them, and a round trip per 10 is slow
+            mSearchParams.mOffset += mSearchParams.mLimit;
+            mSearchParams.mLimit = Math.min(mSearchParams.mLimit * 2, SEARCH_MORE_MAX_INCREMENT);
             runSearchQuery(getContext(), mailbox.mAccountKey, mailbox.mId);
         } else {
             uiFolderRefresh(mailbox, VISIBLE_LIMIT_INCREMENT);
@@ -6139,6 +6802,7 @@ public class EmailProvider extends ContentProvider
         final long searchMailboxId = searchMailbox.mId;
 
         mSearchParams = new SearchParams(inbox.mId, filter, searchMailboxId);
+        mSearchParams.mLimit = SEARCH_MORE_INCREMENT;
 
         final Context context = getContext();
         if (mSearchParams.mOffset == 0) {
@@ -6162,9 +6826,11 @@ public class EmailProvider extends ContentProvider
             resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, searchMailboxId),
                     cv, null, null);
 
-            // Delete existing contents of search mailbox
-            resolver.delete(Message.CONTENT_URI, MessageColumns.MAILBOX_KEY + "=" + searchMailboxId,
-                    null);
+            // Forget the results of the last search. The messages it downloaded are kept, so
+            // that the service doesn't download again those that this search finds too
+            resolver.delete(SearchResult.CONTENT_URI,
+                    SearchResult.MAILBOX_KEY + "=" + searchMailboxId, null);
+            notifyUI(UIPROVIDER_CONVERSATION_NOTIFIER, searchMailboxId);
         }
 
         // Start the search running in the background
@@ -6345,10 +7011,8 @@ public class EmailProvider extends ContentProvider
             LogUtils.e(TAG, "Could not find email address for account %d", accountId);
         }
 
-        // Delete synced attachments
-        AttachmentUtilities.deleteAllAccountAttachmentFiles(context, accountId);
-
-        // Delete all mailboxes.
+        // Delete all mailboxes.  Their messages, and the messages' attachment files, are
+        // purged in the background.
         ContentResolver resolver = context.getContentResolver();
         String[] accountIdArgs = new String[] { Long.toString(accountId) };
         resolver.delete(Mailbox.CONTENT_URI, MAILBOXES_FOR_ACCOUNT_SELECTION, accountIdArgs);
@@ -6463,6 +7127,14 @@ public class EmailProvider extends ContentProvider
         } finally {
             cursor.close();
         }
+        final NotificationController controller =
+                NotificationControllerCreatorHolder.getInstance(context);
+        if (controller != null) {
+            writer.println();
+            controller.dump(writer);
+        }
+        writer.println();
+        Metrics.dump(writer, "provider.");
     }
 
     synchronized public Handler getDelayedSyncHandler() {
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.utility.AttachmentContentStore;
+import com.android.emailcommon.utility.AttachmentStorageLedger;
+import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deletes the body and attachment files of deleted messages and attachments in the background.
+ *
+ * Deleting a message or attachment row leaves a tombstone in the FileTombstone table (see
+ * {@link DBHelper#createFileTombstoneTable}), so whoever deletes messages, e.g. a mailbox sync,
+ * never waits for the filesystem.  The reaper runs on a background priority thread shortly after
+ * a deletion, and works through the tombstones in batches of {@link #BATCH_SIZE}: one query to
+ * read a batch, the files, then one statement to clear it.
+ *
+ * Files can still be orphaned, e.g. by a crash between writing a file and saving its row, so once
+ * a day the reaper also sweeps the body and attachment directories for files whose rows are gone.
+ * The reaper also does the background upkeep of the {@link PackedBodyStore}: compacting it after
+ * deletions, and packing the body files written before it was enabled.
+ */
+class FileReaper {
+    private static final String TAG = "FileReaper";
+
+    static final String TABLE_NAME = "FileTombstone";
+    static final String ID = "_id";
+    static final String MESSAGE_KEY = "messageKey";
+    // Null for a deleted message, whose body files are to be deleted
+    static final String ATTACHMENT_KEY = "attachmentKey";
+    static final String ACCOUNT_KEY = "accountKey";
+
+    private static final String[] TOMBSTONE_PROJECTION =
+            new String[] { ID, MESSAGE_KEY, ATTACHMENT_KEY, ACCOUNT_KEY };
+    private static final int TOMBSTONE_ID_COLUMN = 0;
+    private static final int TOMBSTONE_MESSAGE_KEY_COLUMN = 1;
+    private static final int TOMBSTONE_ATTACHMENT_KEY_COLUMN = 2;
+    private static final int TOMBSTONE_ACCOUNT_KEY_COLUMN = 3;
+
+    private static final String PREFERENCES_FILE = "FileReaper";
+    private static final String PREF_LAST_SWEEP = "lastSweep";
+    private static final String PREF_BODIES_PACKED = "bodiesPacked";
+
+    /** The number of tombstones (or, when sweeping, files) handled at a time. */
+    @VisibleForTesting
+    static final int BATCH_SIZE = 200;
+
+    /** How long to wait after a deletion, so that the deletions of a sync are reaped together. */
+    private static final long REAP_DELAY_MILLIS = 5 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final long SWEEP_INTERVAL_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    /** Files younger than this may belong to a row that is still being saved. */
+    @VisibleForTesting
+    static final long SWEEP_MIN_AGE_MILLIS = DateUtils.HOUR_IN_MILLIS;
+
+    private static final String BODY_EXTENSION_HTML = ".html";
+    private static final String BODY_EXTENSION_TEXT = ".txt";
+    private static final String ATTACHMENT_DIRECTORY_SUFFIX = ".db_att";
+
+    private static Handler sHandler;
+    private static boolean sPending;
+
+    /**
+     * Arrange for the tombstones to be reaped shortly, if that isn't arranged already.
+     */
+    static synchronized void schedule(final Context context, final EmailProvider provider) {
+        if (sPending) {
+            return;
+        }
+        if (sHandler == null) {
+            final HandlerThread thread =
+                    new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        sPending = true;
+        sHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FileReaper.class) {
+                    sPending = false;
+                }
+                run(context, provider.getDatabase(context));
+            }
+        }, REAP_DELAY_MILLIS);
+    }
+
+    private static void run(final Context context, final SQLiteDatabase db) {
+        int count = 0;
+        int reaped;
+        do {
+            reaped = reapBatch(context, db);
+            count += reaped;
+        } while (reaped > 0);
+        LogUtils.d(TAG, "Reaped files of %d deleted rows", count);
+        if (count > 0) {
+            PackedBodyStore.getInstance(context).compact();
+        }
+
+        final SharedPreferences prefs =
+                context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+        if (PackedBodyStore.isEnabled(context) && !prefs.getBoolean(PREF_BODIES_PACKED, false)) {
+            final int migrated = PackedBodyStore.getInstance(context).migrateLegacyBodies(context);
+            LogUtils.d(TAG, "Packed %d body files", migrated);
+            prefs.edit().putBoolean(PREF_BODIES_PACKED, true).apply();
+        }
+        final long now = System.currentTimeMillis();
+        final long lastSweep = prefs.getLong(PREF_LAST_SWEEP, 0);
+        if (now - lastSweep >= SWEEP_INTERVAL_MILLIS || now < lastSweep) {
+            sweep(context, db, now);
+            prefs.edit().putLong(PREF_LAST_SWEEP, now).apply();
+        }
+    }
+
+    /**
+     * Delete the files of the oldest batch of tombstones, and the tombstones.
+     * @return the number of tombstones handled; zero when there are none left
+     */
+    @VisibleForTesting
+    static int reapBatch(final Context context, final SQLiteDatabase db) {
+        final HashMap<Long, List<Long>> attachmentsByAccount = new HashMap<Long, List<Long>>();
+        final ArrayList<Long> messageIds = new ArrayList<Long>();
+        long lastId = 0;
+        int count = 0;
+        final Cursor c = db.query(TABLE_NAME, TOMBSTONE_PROJECTION, null, null, null, null,
+                ID + " ASC", Integer.toString(BATCH_SIZE));
+        try {
+            while (c.moveToNext()) {
+                lastId = c.getLong(TOMBSTONE_ID_COLUMN);
+                count++;
+                if (c.isNull(TOMBSTONE_ATTACHMENT_KEY_COLUMN)) {
+                    final long messageId = c.getLong(TOMBSTONE_MESSAGE_KEY_COLUMN);
+                    deleteBodyFiles(context, messageId);
+                    messageIds.add(messageId);
+                } else {
+                    final long accountId = c.getLong(TOMBSTONE_ACCOUNT_KEY_COLUMN);
+                    List<Long> ids = attachmentsByAccount.get(accountId);
+                    if (ids == null) {
+                        ids = new ArrayList<Long>();
+                        attachmentsByAccount.put(accountId, ids);
+                    }
+                    ids.add(c.getLong(TOMBSTONE_ATTACHMENT_KEY_COLUMN));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        PackedBodyStore.getInstance(context).delete(messageIds);
+        for (final Map.Entry<Long, List<Long>> entry : attachmentsByAccount.entrySet()) {
+            AttachmentUtilities.deleteAttachmentFiles(context, entry.getKey(), entry.getValue());
+            ThumbnailCache.getInstance(context).deleteThumbnails(entry.getKey(),
+                    entry.getValue());
+        }
+        if (count > 0) {
+            db.delete(TABLE_NAME, ID + "<=" + lastId, null);
+        }
+        return count;
+    }
+
+    private static void deleteBodyFiles(final Context context, final long messageId) {
+        final File dir = EmailProvider.getBodyDirectory(context, messageId);
+        // Best-effort; the files needn't exist
+        new File(dir, messageId + BODY_EXTENSION_HTML).delete();
+        new File(dir, messageId + BODY_EXTENSION_TEXT).delete();
+    }
+
+    /**
+     * Delete body and attachment files (at least {@link #SWEEP_MIN_AGE_MILLIS} old) whose
+     * message or attachment no longer exists, and release content store references of
+     * attachments that no longer exist.
+     */
+    @VisibleForTesting
+    static void sweep(final Context context, final SQLiteDatabase db, final long now) {
+        final long start = System.currentTimeMillis();
+        final long cutoff = now - SWEEP_MIN_AGE_MILLIS;
+        int count = 0;
+
+        // Body files are kept in body/<a>/<b>/<message id>.<ext>
+        final ArrayList<File> bodyFiles = new ArrayList<File>();
+        final File[] level1 = EmailProvider.getBodyRootDirectory(context).listFiles();
+        if (level1 != null) {
+            for (final File dir1 : level1) {
+                final File[] level2 = dir1.listFiles();
+                if (level2 == null) {
+                    continue;
+                }
+                for (final File dir2 : level2) {
+                    final File[] files = dir2.listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (final File file : files) {
+                        if (file.lastModified() < cutoff) {
+                            bodyFiles.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        count += deleteOrphanedFiles(db, Message.TABLE_NAME, bodyFiles).size();
+
+        // Attachment files are kept in databases/<account id>.db_att/<attachment id>
+        final File[] databaseFiles = context.getDatabasePath(ATTACHMENT_DIRECTORY_SUFFIX)
+                .getParentFile().listFiles();
+        if (databaseFiles != null) {
+            for (final File dir : databaseFiles) {
+                if (!dir.isDirectory() || !dir.getName().endsWith(ATTACHMENT_DIRECTORY_SUFFIX)) {
+                    continue;
+                }
+                final File[] files = dir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                final ArrayList<File> attachmentFiles = new ArrayList<File>();
+                for (final File file : files) {
+                    if (file.lastModified() < cutoff) {
+                        attachmentFiles.add(file);
+                    }
+                }
+                final List<Long> deleted =
+                        deleteOrphanedFiles(db, Attachment.TABLE_NAME, attachmentFiles);
+                final long accountId = getIdFromFileName(dir.getName());
+                if (accountId > 0) {
+                    AttachmentStorageLedger.getInstance(context).recordDeleted(accountId,
+                            deleted);
+                    ThumbnailCache.getInstance(context).deleteThumbnails(accountId, deleted);
+                }
+                count += deleted.size();
+            }
+        }
+
+        // Bodies in the packed store
+        final List<Long> packedIds = PackedBodyStore.getInstance(context).getMessageIds();
+        final List<Long> orphanedMessageIds = findMissingIds(db, Message.TABLE_NAME, packedIds);
+        PackedBodyStore.getInstance(context).delete(orphanedMessageIds);
+        count += orphanedMessageIds.size();
+
+        // Attachment content shared through the content store
+        final List<Long> storedIds = AttachmentContentStore.getInstance(context).getAttachmentIds();
+        final List<Long> orphanedIds = findMissingIds(db, Attachment.TABLE_NAME, storedIds);
+        AttachmentContentStore.getInstance(context).release(orphanedIds);
+        count += orphanedIds.size();
+
+        LogUtils.d(TAG, "Sweep removed %d orphaned files in %dms", count,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Delete the files, named by row id (and an optional extension), whose rows no longer
+     * exist in the given table.  Files with other names are left alone.
+     * @return the ids of the files deleted
+     */
+    private static List<Long> deleteOrphanedFiles(final SQLiteDatabase db, final String table,
+            final List<File> files) {
+        final ArrayList<Long> deleted = new ArrayList<Long>();
+        for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+            final List<File> batch = files.subList(i, Math.min(i + BATCH_SIZE, files.size()));
+            final HashMap<File, Long> fileIds = new HashMap<File, Long>();
+            for (final File file : batch) {
+                final long id = getIdFromFileName(file.getName());
+                if (id > 0) {
+                    fileIds.put(file, id);
+                }
+            }
+            final HashSet<Long> existing = findExistingIds(db, table, fileIds.values());
+            for (final Map.Entry<File, Long> entry : fileIds.entrySet()) {
+                if (!existing.contains(entry.getValue()) && entry.getKey().delete()) {
+                    deleted.add(entry.getValue());
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the id a file is named for (e.g. 12 for "12" or "12.html"), or -1 if it isn't
+     */
+    @VisibleForTesting
+    static long getIdFromFileName(final String name) {
+        final int dot = name.indexOf('.');
+        final String id = dot < 0 ? name : name.substring(0, dot);
+        if (TextUtils.isEmpty(id) || !TextUtils.isDigitsOnly(id)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(id);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return those of the given ids that don't exist in the table
+     */
+    private static List<Long> findMissingIds(final SQLiteDatabase db, final String table,
+            final List<Long> ids) {
+        final ArrayList<Long> missing = new ArrayList<Long>();
+        for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+            final List<Long> batch = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+            final HashSet<Long> existing = findExistingIds(db, table, batch);
+            for (final long id : batch) {
+                if (!existing.contains(id)) {
+                    missing.add(id);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return those of the given ids that exist in the table, found with one query
+     */
+    private static HashSet<Long> findExistingIds(final SQLiteDatabase db, final String table,
+            final Iterable<Long> ids) {
+        final HashSet<Long> existing = new HashSet<Long>();
+        final String idList = TextUtils.join(",", ids);
+        if (idList.isEmpty()) {
+            return existing;
+        }
+        final Cursor c = db.rawQuery("select _id from " + table + " where _id in (" + idList
+                + ")", null);
+        try {
+            while (c.moveToNext()) {
+                existing.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return existing;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Deletes the messages of deleted mailboxes (and so of deleted accounts) in the background.
+ *
+ * Deleting a mailbox used to delete its messages, their bodies and their attachments in the same
+ * statement, which for a large account held the database for as long as that took.  Now the
+ * mailbox row alone goes, and leaves a row in the MailboxPurge table (see
+ * {@link DBHelper#createMailboxPurgeTable}); its messages are no longer shown, as no mailbox
+ * refers to them, and queries that aren't by mailbox skip those queued here.  The purger then
+ * deletes them {@link #CHUNK_SIZE} at a time, each chunk in its own transaction, so that other
+ * queries and updates get the database in between.
+ *
+ * The queue is in the database, so a purge interrupted by the death of the process resumes the
+ * next time the provider starts.
+ */
+class MailboxPurger {
+    private static final String TAG = "MailboxPurger";
+
+    static final String TABLE_NAME = "MailboxPurge";
+    static final String ID = "_id";
+    static final String MAILBOX_KEY = "mailboxKey";
+    static final String ACCOUNT_KEY = "accountKey";
+
+    /** Selects the messages that aren't being purged; for queries that aren't by mailbox. */
+    static final String NOT_PURGED_SELECTION = MessageColumns.MAILBOX_KEY + " NOT IN (SELECT "
+            + MAILBOX_KEY + " FROM " + TABLE_NAME + ")";
+
+    private static final String[] PURGE_PROJECTION = new String[] { ID, MAILBOX_KEY };
+    private static final int PURGE_ID_COLUMN = 0;
+    private static final int PURGE_MAILBOX_KEY_COLUMN = 1;
+
+    /** The number of messages deleted in one transaction. */
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 200;
+
+    /** How long to wait after a deletion, so that the mailboxes of an account are purged once. */
+    private static final long PURGE_DELAY_MILLIS = DateUtils.SECOND_IN_MILLIS;
+
+    private static final String CHUNK_ID_SELECT = "select " + MessageColumns._ID + " from "
+            + Message.TABLE_NAME + " where " + MessageColumns.MAILBOX_KEY + "=? limit "
+            + CHUNK_SIZE;
+
+    private static Handler sHandler;
+    private static boolean sPending;
+
+    /**
+     * Arrange for the queued mailboxes to be purged shortly, if that isn't arranged already.
+     */
+    static synchronized void schedule(final Context context, final EmailProvider provider) {
+        if (sPending) {
+            return;
+        }
+        if (sHandler == null) {
+            final HandlerThread thread =
+                    new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        sPending = true;
+        sHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MailboxPurger.class) {
+                    sPending = false;
+                }
+                if (purgeAll(provider.getDatabase(context)) > 0) {
+                    // The body and attachment files of the messages are left to the reaper
+                    FileReaper.schedule(context, provider);
+                }
+            }
+        }, PURGE_DELAY_MILLIS);
+    }
+
+    /**
+     * Purge every queued mailbox, a chunk at a time.
+     * @return the number of messages deleted
+     */
+    @VisibleForTesting
+    static int purgeAll(final SQLiteDatabase db) {
+        final long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        int purged;
+        while ((purged = purgeChunk(db)) >= 0) {
+            count += purged;
+        }
+        if (count > 0) {
+            LogUtils.d(TAG, "Purged %d messages in %dms", count,
+                    SystemClock.elapsedRealtime() - start);
+        }
+        return count;
+    }
+
+    /**
+     * Delete the next chunk of messages of the oldest queued mailbox, with their bodies, or take
+     * the mailbox off the queue if it has none left.
+     * @return the number of messages deleted, or -1 if there was nothing to purge
+     */
+    @VisibleForTesting
+    static int purgeChunk(final SQLiteDatabase db) {
+        final long purgeId;
+        final long mailboxId;
+        final Cursor c = db.query(TABLE_NAME, PURGE_PROJECTION, null, null, null, null,
+                ID + " ASC", "1");
+        try {
+            if (!c.moveToFirst()) {
+                return -1;
+            }
+            purgeId = c.getLong(PURGE_ID_COLUMN);
+            mailboxId = c.getLong(PURGE_MAILBOX_KEY_COLUMN);
+        } finally {
+            c.close();
+        }
+
+        final String[] args = new String[] { Long.toString(mailboxId) };
+        final int count;
+        db.beginTransaction();
+        try {
+            // Attachments go by trigger, and leave tombstones for the reaper as messages do
+            db.execSQL("delete from " + Body.TABLE_NAME + " where " + BodyColumns.MESSAGE_KEY
+                    + " in (" + CHUNK_ID_SELECT + ")", args);
+            count = db.delete(Message.TABLE_NAME,
+                    MessageColumns._ID + " in (" + CHUNK_ID_SELECT + ")", args);
+            if (count == 0) {
+                db.delete(TABLE_NAME, ID + "=" + purgeId, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+}
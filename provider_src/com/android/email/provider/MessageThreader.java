@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.text.TextUtils;
+
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Groups the messages of each mailbox into threads, and keeps the MessageThread table (see
+ * {@link DBHelper#createMessageThreadTable}), which has a row per thread with its message and
+ * unread counts, its senders and its latest message, so that the conversation list of a mailbox
+ * is a single query of that table.
+ *
+ * A message is put in a thread as it's inserted, by its threadRoot column:
+ * <ul>
+ * <li>the first message-id of its References (see {@link MessageColumns#THREAD_REFERENCES}),
+ * i.e. the message that started the thread, if it has any</li>
+ * <li>if not, and its subject is that of a reply or a forward, the root of the latest thread
+ * of its mailbox with the same topic</li>
+ * <li>otherwise its own message-id, or if it has none, "#" and its id</li>
+ * </ul>
+ * The thread rows are then kept by triggers on the Message table, as the message counts of
+ * mailboxes are, and like them are left alone while those are suspended; the provider rebuilds
+ * the threads affected instead (see {@link #getThreads}).
+ */
+class MessageThreader {
+    static final String TABLE_NAME = "MessageThread";
+    static final String ID = "_id";
+    static final String MAILBOX_KEY = "mailboxKey";
+    static final String ACCOUNT_KEY = "accountKey";
+    static final String ROOT = "root";
+    static final String TOPIC = "topic";
+    static final String MESSAGE_COUNT = "messageCount";
+    static final String UNREAD_COUNT = "unreadCount";
+    static final String TIMESTAMP = "timestamp";
+    static final String LATEST_MESSAGE_KEY = "latestMessageKey";
+    static final String SNIPPET = "snippet";
+    static final String PARTICIPANTS = "participants";
+
+    /** Separates the from lists of the senders in {@link #PARTICIPANTS} */
+    static final String PARTICIPANT_SEPARATOR = "\n";
+
+    /** The most senders kept for a thread */
+    @VisibleForTesting
+    static final int MAX_PARTICIPANTS = 20;
+
+    /** Matches the "Re:", "Fwd:" (and translations) that start the subjects of replies */
+    private static final Pattern SUBJECT_PREFIX_PATTERN = Pattern.compile(
+            "^\\s*((re|fwd?|aw|wg|sv|vs|antw|rif|tr)\\s*(\\[\\d+\\])?\\s*:\\s*)+",
+            Pattern.CASE_INSENSITIVE);
+
+    /** The messages of a mailbox that are listed, i.e. those that are loaded */
+    private static final String VISIBLE = MessageColumns.FLAG_LOADED + " in ("
+            + Message.FLAG_LOADED_COMPLETE + "," + Message.FLAG_LOADED_PARTIAL + ")";
+
+    /** The most thread roots rebuilt by one statement */
+    @VisibleForTesting
+    static final int MAX_ROOTS_PER_REBUILD = 200;
+
+    private static final String ROOT_BY_TOPIC_SELECT = "select " + ROOT + " from " + TABLE_NAME
+            + " where " + MAILBOX_KEY + "=? and " + TOPIC + "=? order by " + TIMESTAMP
+            + " desc limit 1";
+
+    /**
+     * @return the topic of a subject, i.e. the subject without any reply or forward prefixes
+     */
+    @VisibleForTesting
+    static String getTopic(final String subject) {
+        if (subject == null) {
+            return null;
+        }
+        final Matcher matcher = SUBJECT_PREFIX_PATTERN.matcher(subject);
+        return matcher.find() ? subject.substring(matcher.end()).trim() : subject.trim();
+    }
+
+    /**
+     * Put a message that's about to be inserted in a thread, by setting its threadRoot column,
+     * and its threadTopic if that isn't set and its subject has a prefix.
+     * @param db the provider's database
+     * @param values the columns of the message
+     */
+    static void assignThread(final SQLiteDatabase db, final ContentValues values) {
+        if (values.containsKey(MessageColumns.THREAD_ROOT)) {
+            return;
+        }
+        final String subject = values.getAsString(MessageColumns.SUBJECT);
+        String topic = values.getAsString(MessageColumns.THREAD_TOPIC);
+        if (topic == null) {
+            topic = getTopic(subject);
+            if (topic != null && !topic.equals(subject)) {
+                values.put(MessageColumns.THREAD_TOPIC, topic);
+            }
+        }
+
+        String root = null;
+        final String references = values.getAsString(MessageColumns.THREAD_REFERENCES);
+        if (!TextUtils.isEmpty(references)) {
+            final int end = references.indexOf(' ');
+            root = end < 0 ? references : references.substring(0, end);
+        }
+        final Long mailboxId = values.getAsLong(MessageColumns.MAILBOX_KEY);
+        if (root == null && mailboxId != null && !TextUtils.isEmpty(topic)
+                && !topic.equals(subject)) {
+            // A reply without references, as some clients send; go by its subject
+            try {
+                root = DatabaseUtils.stringForQuery(db, ROOT_BY_TOPIC_SELECT,
+                        new String[] { mailboxId.toString(), topic });
+            } catch (final SQLiteDoneException e) {
+                // There's no such thread yet
+            }
+        }
+        if (root == null) {
+            root = values.getAsString(MessageColumns.MESSAGE_ID);
+        }
+        // Without a root, the message starts a thread of its own; a trigger names it by its id
+        if (root != null) {
+            values.put(MessageColumns.THREAD_ROOT, root);
+        }
+    }
+
+    /**
+     * @return the selection of the visible messages of a thread
+     */
+    private static String getThreadMessageSelection(final String mailboxKey, final String root) {
+        return Message.TABLE_NAME + "." + MessageColumns.MAILBOX_KEY + "=" + mailboxKey + " and "
+                + Message.TABLE_NAME + "." + MessageColumns.THREAD_ROOT + "=" + root + " and "
+                + Message.TABLE_NAME + "." + VISIBLE;
+    }
+
+    /**
+     * @return an update of the MessageThread table which works out the counts, latest message
+     * and senders of threads from their messages; the caller appends the where clause
+     */
+    static String getRecalculateThreadSql(final String mailboxKey, final String root) {
+        final String selection = getThreadMessageSelection(mailboxKey, root);
+        final String message = Message.TABLE_NAME + ".";
+        final String latest = " from " + Message.TABLE_NAME + " where " + selection
+                + " order by " + message + MessageColumns.TIMESTAMP + " desc limit 1)";
+        return "update " + TABLE_NAME + " set "
+                + MESSAGE_COUNT + "=(select count(*) from " + Message.TABLE_NAME + " where "
+                + selection + "), "
+                + UNREAD_COUNT + "=(select count(*) from " + Message.TABLE_NAME + " where "
+                + selection + " and " + message + MessageColumns.FLAG_READ + "=0), "
+                + TIMESTAMP + "=coalesce((select " + message + MessageColumns.TIMESTAMP + latest
+                + ",0), "
+                + LATEST_MESSAGE_KEY + "=(select " + message + MessageColumns._ID + latest + ", "
+                + SNIPPET + "=(select " + message + MessageColumns.SNIPPET + latest + ", "
+                + PARTICIPANTS + "=(select group_concat(f, '" + PARTICIPANT_SEPARATOR + "') from"
+                + " (select " + message + MessageColumns.FROM_LIST + " as f from "
+                + Message.TABLE_NAME + " where " + selection + " and " + message
+                + MessageColumns.FROM_LIST + " is not null group by f order by min(" + message
+                + MessageColumns.TIMESTAMP + ") limit " + MAX_PARTICIPANTS + "))";
+    }
+
+    /**
+     * @return the threads of the messages that match a selection, as the roots of the threads
+     * of each of their mailboxes
+     */
+    static Map<Long, Set<String>> getThreads(final SQLiteDatabase db, final String selection,
+            final String[] selectionArgs) {
+        final Map<Long, Set<String>> threads = new HashMap<Long, Set<String>>();
+        final Cursor c = db.query(true, Message.TABLE_NAME,
+                new String[] {MessageColumns.MAILBOX_KEY, MessageColumns.THREAD_ROOT}, selection,
+                selectionArgs, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                addThread(threads, c.getLong(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return threads;
+    }
+
+    /**
+     * Add a thread to those returned by {@link #getThreads}; a null root only adds the mailbox.
+     */
+    static void addThread(final Map<Long, Set<String>> threads, final long mailboxId,
+            final String root) {
+        Set<String> roots = threads.get(mailboxId);
+        if (roots == null) {
+            roots = new HashSet<String>();
+            threads.put(mailboxId, roots);
+        }
+        if (root != null) {
+            roots.add(root);
+        }
+    }
+
+    /**
+     * Work out some threads again from their messages, e.g. after the triggers that keep them
+     * were suspended.  Threads keep their ids.
+     * @param db the provider's database
+     * @param threads the threads, as returned by {@link #getThreads}
+     */
+    static void rebuildThreads(final SQLiteDatabase db, final Map<Long, Set<String>> threads) {
+        for (final Map.Entry<Long, Set<String>> entry : threads.entrySet()) {
+            final ArrayList<String> roots = new ArrayList<String>(entry.getValue());
+            for (int start = 0; start < roots.size(); start += MAX_ROOTS_PER_REBUILD) {
+                final StringBuilder sb = new StringBuilder(" in (");
+                final int end = Math.min(roots.size(), start + MAX_ROOTS_PER_REBUILD);
+                for (int i = start; i < end; i++) {
+                    if (i > start) {
+                        sb.append(',');
+                    }
+                    DatabaseUtils.appendEscapedSQLString(sb, roots.get(i));
+                }
+                sb.append(')');
+                final String mailboxSelection = MAILBOX_KEY + "=" + entry.getKey() + " and ";
+                rebuildThreads(db, mailboxSelection + MessageColumns.THREAD_ROOT + sb,
+                        mailboxSelection + ROOT + sb);
+            }
+        }
+    }
+
+    /**
+     * Work out the threads of some mailboxes again from their messages.  Threads keep their ids.
+     * @param db the provider's database
+     * @param mailboxIds the mailboxes, or null for all of them
+     */
+    static void rebuildThreads(final SQLiteDatabase db, final Collection<Long> mailboxIds) {
+        final String mailboxSelection;
+        if (mailboxIds == null) {
+            mailboxSelection = "1";
+        } else if (mailboxIds.isEmpty()) {
+            return;
+        } else {
+            mailboxSelection = MAILBOX_KEY + " in (" + TextUtils.join(",", mailboxIds) + ")";
+        }
+        rebuildThreads(db, mailboxSelection, mailboxSelection);
+    }
+
+    /**
+     * @param messageSelection the messages whose threads are rebuilt
+     * @param threadSelection the same threads, as a selection of the MessageThread table
+     */
+    private static void rebuildThreads(final SQLiteDatabase db, final String messageSelection,
+            final String threadSelection) {
+        db.execSQL("insert or ignore into " + TABLE_NAME + " (" + MAILBOX_KEY + ", "
+                + ACCOUNT_KEY + ", " + ROOT + ", " + TOPIC + ", " + MESSAGE_COUNT + ", "
+                + UNREAD_COUNT + ", " + TIMESTAMP + ") select " + MessageColumns.MAILBOX_KEY
+                + ", " + MessageColumns.ACCOUNT_KEY + ", " + MessageColumns.THREAD_ROOT
+                + ", coalesce(" + MessageColumns.THREAD_TOPIC + ", " + MessageColumns.SUBJECT
+                + "), 0, 0, 0 from " + Message.TABLE_NAME + " where " + VISIBLE + " and "
+                + MessageColumns.THREAD_ROOT + " is not null and " + messageSelection);
+        db.execSQL(getRecalculateThreadSql(TABLE_NAME + "." + MAILBOX_KEY,
+                TABLE_NAME + "." + ROOT) + " where " + threadSelection);
+        db.execSQL("delete from " + TABLE_NAME + " where " + MESSAGE_COUNT + "=0 and "
+                + threadSelection);
+    }
+}
@@ -0,0 +1,663 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import com.android.email.R;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Message bodies stored Deflate-compressed and packed into segment files, instead of one plain
+ * file per body part as written by {@link EmailProvider#getBodyFile}.  With tens of thousands of
+ * messages, one file per part wastes most of a filesystem block on each and makes every lookup
+ * an inode lookup in a large directory tree.
+ *
+ * Segments are append-only; a rewritten or deleted body leaves dead bytes behind, which
+ * {@link #compact()} reclaims by copying the live bodies of mostly dead segments into a new
+ * segment.  The offset of each body is kept in a small index database, which isn't created until
+ * a body is first written to the store.  Content is always
+ * encoded as UTF-8, and is decompressed as it is read, see {@link #openBody}.
+ *
+ * The store is optional; see {@link #isEnabled(Context)}.  Bodies written before it was enabled
+ * are read from their files until {@link #migrateLegacyBodies} has packed them.
+ */
+class PackedBodyStore {
+    private static final String TAG = "PackedBodyStore";
+
+    private static final String DATABASE_NAME = "BodyPack.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String DIRECTORY_NAME = "body_packed";
+    private static final String SEGMENT_PREFIX = "seg_";
+    /** Where {@link #compact()} copies live bodies to, before the copy becomes a segment */
+    private static final String COMPACTION_FILE = "compacting";
+
+    private static final String INDEX_TABLE = "BodyIndex";
+    private static final String SEGMENT_TABLE = "Segment";
+
+    // BodyIndex columns
+    private static final String MESSAGE_KEY = "messageKey";
+    // "html" or "txt", as in the legacy file names
+    private static final String PART = "part";
+    private static final String SEGMENT_KEY = "segmentKey";
+    private static final String OFFSET = "offset";
+    private static final String LENGTH = "length";
+    // Segment columns
+    private static final String ID = "_id";
+    private static final String LIVE_BYTES = "liveBytes";
+
+    private static final String[] LOCATION_PROJECTION =
+            new String[] { SEGMENT_KEY, OFFSET, LENGTH };
+    private static final String LOCATION_SELECTION = MESSAGE_KEY + "=? AND " + PART + "=?";
+
+    private static final String CHARSET = "UTF-8";
+
+    /** A segment is closed to new bodies once it is this large. */
+    @VisibleForTesting
+    static final long SEGMENT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /** The number of messages handled per transaction when deleting. */
+    private static final int BATCH_SIZE = 200;
+
+    private static PackedBodyStore sInstance;
+
+    private final IndexDatabaseHelper mHelper;
+    private final File mDirectory;
+    /** The index database file, or null for an in-memory index */
+    private final File mDatabaseFile;
+    /** Whether the index database is known to exist */
+    private volatile boolean mCreated;
+    /** Held while compacting, so that only one compaction runs at a time */
+    private final Object mCompactionLock = new Object();
+
+    /** Where a body is packed. */
+    static class Location {
+        final File mSegment;
+        final long mOffset;
+        final long mLength;
+
+        Location(final File segment, final long offset, final long length) {
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    private static class IndexDatabaseHelper extends SQLiteOpenHelper {
+        IndexDatabaseHelper(final Context context, final String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(final SQLiteDatabase db) {
+            db.execSQL("create table " + INDEX_TABLE + " ("
+                    + MESSAGE_KEY + " integer, "
+                    + PART + " text, "
+                    + SEGMENT_KEY + " integer, "
+                    + OFFSET + " integer, "
+                    + LENGTH + " integer, "
+                    + "primary key (" + MESSAGE_KEY + ", " + PART + "))");
+            db.execSQL("create index body_segment on " + INDEX_TABLE + " (" + SEGMENT_KEY + ")");
+            db.execSQL("create table " + SEGMENT_TABLE + " ("
+                    + ID + " integer primary key, "
+                    + LIVE_BYTES + " integer)");
+        }
+
+        @Override
+        public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
+                final int newVersion) {
+        }
+    }
+
+    /**
+     * @return whether new bodies should be written to the packed store
+     */
+    static boolean isEnabled(final Context context) {
+        return context.getResources().getBoolean(R.bool.packed_body_store);
+    }
+
+    static synchronized PackedBodyStore getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new PackedBodyStore(context.getApplicationContext(), DATABASE_NAME,
+                    new File(context.getFilesDir(), DIRECTORY_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param name the index database name, or null for an in-memory index
+     * @param directory where to keep the segment files
+     */
+    @VisibleForTesting
+    PackedBodyStore(final Context context, final String name, final File directory) {
+        mHelper = new IndexDatabaseHelper(context, name);
+        mDirectory = directory;
+        mDatabaseFile = name != null ? context.getDatabasePath(name) : null;
+    }
+
+    /**
+     * @return whether the index database exists, i.e. whether a body was ever written to the
+     *         store; if not, there is nothing to read or delete, and nothing should create it
+     */
+    boolean isCreated() {
+        if (!mCreated) {
+            mCreated = mDatabaseFile == null || mDatabaseFile.exists();
+        }
+        return mCreated;
+    }
+
+    /**
+     * Store a body part, replacing any previous version.
+     * @param part "html" or "txt"
+     * @param content the content; null or empty to delete the part
+     */
+    synchronized void write(final long messageId, final String part, final String content)
+            throws IOException {
+        if (TextUtils.isEmpty(content)) {
+            if (!isCreated()) {
+                return;
+            }
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                deleteLocked(db, messageId, part);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return;
+        }
+        writeLocked(mHelper.getWritableDatabase(), messageId, part,
+                deflate(content.getBytes(CHARSET)));
+    }
+
+    private void writeLocked(final SQLiteDatabase db, final long messageId, final String part,
+            final byte[] packed) throws IOException {
+        final long segmentId = getWritableSegment(db);
+        final File segment = getSegmentFile(segmentId);
+        final long offset = segment.length();
+        final FileOutputStream out = new FileOutputStream(segment, true);
+        try {
+            out.write(packed);
+            // On disk before the index points at it, or a crash could leave the index pointing
+            // past the end of the segment
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // The index is only updated once the body is safely in the segment
+        db.beginTransaction();
+        try {
+            deleteLocked(db, messageId, part);
+            final ContentValues cv = new ContentValues(5);
+            cv.put(MESSAGE_KEY, messageId);
+            cv.put(PART, part);
+            cv.put(SEGMENT_KEY, segmentId);
+            cv.put(OFFSET, offset);
+            cv.put(LENGTH, packed.length);
+            db.insert(INDEX_TABLE, null, cv);
+            addLiveBytes(db, segmentId, packed.length);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return where a body part is packed, or null if it isn't in the store
+     */
+    synchronized Location getLocation(final long messageId, final String part) {
+        if (!isCreated()) {
+            return null;
+        }
+        final Cursor c = mHelper.getReadableDatabase().query(INDEX_TABLE, LOCATION_PROJECTION,
+                LOCATION_SELECTION, new String[] { Long.toString(messageId), part }, null, null,
+                null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new Location(getSegmentFile(c.getLong(0)), c.getLong(1), c.getLong(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Open a body part for reading; the content is decompressed as it is read.
+     * @return a stream of the part's UTF-8 content, or null if it isn't in the store
+     */
+    synchronized InputStream openBody(final long messageId, final String part)
+            throws IOException {
+        final Location location = getLocation(messageId, part);
+        if (location == null) {
+            return null;
+        }
+        // Opened while locked, so that compaction can't delete the segment first
+        final FileInputStream in = new FileInputStream(location.mSegment);
+        try {
+            in.getChannel().position(location.mOffset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        // The compressed stream marks its own end, so reading stops at the end of the body
+        return new InflaterInputStream(new BufferedInputStream(in));
+    }
+
+    /**
+     * Read a whole body part.
+     * @return the part's content, or null if it isn't in the store
+     */
+    String read(final long messageId, final String part) throws IOException {
+        final InputStream in = openBody(messageId, part);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return new String(readFully(in), CHARSET);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete both parts of the bodies of the given messages.
+     */
+    synchronized void delete(final List<Long> messageIds) {
+        if (messageIds.isEmpty() || !isCreated()) {
+            return;
+        }
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        for (int i = 0; i < messageIds.size(); i += BATCH_SIZE) {
+            db.beginTransaction();
+            try {
+                for (final long messageId : messageIds.subList(i,
+                        Math.min(i + BATCH_SIZE, messageIds.size()))) {
+                    deleteLocked(db, messageId, "html");
+                    deleteLocked(db, messageId, "txt");
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private void deleteLocked(final SQLiteDatabase db, final long messageId, final String part) {
+        final String[] args = new String[] { Long.toString(messageId), part };
+        final Cursor c = db.query(INDEX_TABLE, LOCATION_PROJECTION, LOCATION_SELECTION, args,
+                null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return;
+            }
+            addLiveBytes(db, c.getLong(0), -c.getLong(2));
+        } finally {
+            c.close();
+        }
+        db.delete(INDEX_TABLE, LOCATION_SELECTION, args);
+    }
+
+    /**
+     * @return the ids of all messages with a body part in the store
+     */
+    synchronized List<Long> getMessageIds() {
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        if (!isCreated()) {
+            return ids;
+        }
+        final Cursor c = mHelper.getReadableDatabase().rawQuery("select distinct "
+                + MESSAGE_KEY + " from " + INDEX_TABLE, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Reclaim the space of deleted bodies: the live bodies of each segment (other than the one
+     * being written) that is at least half dead are copied to a new segment, and the segment is
+     * deleted.  Segments other than the last are never written to, so they are copied without
+     * holding the store's lock, which is only taken to pick the segments and to switch the index
+     * over to each copy; reads and writes carry on meanwhile.
+     * @return the number of segments deleted
+     */
+    int compact() {
+        synchronized (mCompactionLock) {
+            final List<Long> segments;
+            synchronized (this) {
+                if (!isCreated()) {
+                    return 0;
+                }
+                segments = getSegmentsToCompact(mHelper.getWritableDatabase());
+            }
+            int count = 0;
+            for (final long segmentId : segments) {
+                try {
+                    compactSegment(mHelper.getWritableDatabase(), segmentId);
+                    count++;
+                } catch (IOException e) {
+                    LogUtils.w(TAG, e, "Failed to compact body segment %d", segmentId);
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return the segments other than the last that are at least half dead
+     */
+    private List<Long> getSegmentsToCompact(final SQLiteDatabase db) {
+        final long writable = getLastSegment(db);
+        final ArrayList<Long> segments = new ArrayList<Long>();
+        final Cursor c = db.query(SEGMENT_TABLE, new String[] { ID, LIVE_BYTES },
+                ID + "<" + writable, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(0);
+                if (c.getLong(1) * 2 <= getSegmentFile(id).length()) {
+                    segments.add(id);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return segments;
+    }
+
+    /** A body to be moved by {@link #compactSegment} */
+    private static class Entry {
+        final long mMessageId;
+        final String mPart;
+        final long mOffset;
+        final long mLength;
+        long mNewOffset;
+
+        Entry(final long messageId, final String part, final long offset, final long length) {
+            mMessageId = messageId;
+            mPart = part;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    private void compactSegment(final SQLiteDatabase db, final long segmentId)
+            throws IOException {
+        final File segment = getSegmentFile(segmentId);
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        synchronized (this) {
+            final Cursor c = db.query(INDEX_TABLE,
+                    new String[] { MESSAGE_KEY, PART, OFFSET, LENGTH },
+                    SEGMENT_KEY + "=" + segmentId, null, null, null, OFFSET);
+            try {
+                while (c.moveToNext()) {
+                    entries.add(new Entry(c.getLong(0), c.getString(1), c.getLong(2),
+                            c.getLong(3)));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        if (entries.isEmpty()) {
+            synchronized (this) {
+                db.delete(SEGMENT_TABLE, ID + "=" + segmentId, null);
+                segment.delete();
+            }
+            return;
+        }
+
+        // Copy the live bodies, unlocked; a body rewritten or deleted meanwhile is just dead
+        // in the copy
+        final File copy = new File(mDirectory, COMPACTION_FILE);
+        final RandomAccessFile in = new RandomAccessFile(segment, "r");
+        final FileOutputStream out = new FileOutputStream(copy);
+        try {
+            final byte[] buffer = new byte[8192];
+            long offset = 0;
+            for (final Entry entry : entries) {
+                in.seek(entry.mOffset);
+                long remaining = entry.mLength;
+                while (remaining > 0) {
+                    final int count = (int) Math.min(buffer.length, remaining);
+                    in.readFully(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+                entry.mNewOffset = offset;
+                offset += entry.mLength;
+            }
+            // On disk before the index points at it
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        synchronized (this) {
+            // The copy becomes the last segment, which new bodies are appended to
+            final long newSegmentId = getLastSegment(db) + 1;
+            final File newSegment = getSegmentFile(newSegmentId);
+            if (!copy.renameTo(newSegment)) {
+                copy.delete();
+                throw new IOException("Could not rename compacted segment " + segmentId);
+            }
+            db.beginTransaction();
+            try {
+                long liveBytes = 0;
+                final ContentValues cv = new ContentValues(2);
+                for (final Entry entry : entries) {
+                    cv.put(SEGMENT_KEY, newSegmentId);
+                    cv.put(OFFSET, entry.mNewOffset);
+                    // Only if the body is still the one copied
+                    if (db.update(INDEX_TABLE, cv, LOCATION_SELECTION + " AND " + SEGMENT_KEY
+                            + "=" + segmentId + " AND " + OFFSET + "=" + entry.mOffset,
+                            new String[] { Long.toString(entry.mMessageId), entry.mPart }) > 0) {
+                        liveBytes += entry.mLength;
+                    }
+                }
+                cv.clear();
+                cv.put(ID, newSegmentId);
+                cv.put(LIVE_BYTES, liveBytes);
+                db.insert(SEGMENT_TABLE, null, cv);
+                db.delete(SEGMENT_TABLE, ID + "=" + segmentId, null);
+                db.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+                newSegment.delete();
+                throw e;
+            } finally {
+                db.endTransaction();
+            }
+            // Bodies already opened from the old segment can still be read to the end
+            if (!segment.delete()) {
+                LogUtils.w(TAG, "Failed to delete body segment %d", segmentId);
+            }
+        }
+    }
+
+    /**
+     * Move bodies written as one file per part (before the store was enabled) into the store.
+     * A body that has been written to the store since is newer, and its file is just deleted.
+     * @return the number of files migrated
+     */
+    int migrateLegacyBodies(final Context context) {
+        int count = 0;
+        final File[] level1 = EmailProvider.getBodyRootDirectory(context).listFiles();
+        if (level1 == null) {
+            return count;
+        }
+        for (final File dir1 : level1) {
+            final File[] level2 = dir1.listFiles();
+            if (level2 == null) {
+                continue;
+            }
+            for (final File dir2 : level2) {
+                final File[] files = dir2.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (final File file : files) {
+                    if (migrateLegacyBody(file)) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private synchronized boolean migrateLegacyBody(final File file) {
+        final String name = file.getName();
+        final int dot = name.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        final String part = name.substring(dot + 1);
+        if (!"html".equals(part) && !"txt".equals(part)) {
+            return false;
+        }
+        final long messageId;
+        try {
+            messageId = Long.parseLong(name.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        try {
+            if (getLocation(messageId, part) == null) {
+                final InputStream in = new FileInputStream(file);
+                final byte[] content;
+                try {
+                    content = readFully(in);
+                } finally {
+                    in.close();
+                }
+                if (content.length > 0) {
+                    writeLocked(mHelper.getWritableDatabase(), messageId, part,
+                            deflate(content));
+                }
+            }
+            file.delete();
+            return true;
+        } catch (IOException e) {
+            LogUtils.w(TAG, e, "Failed to migrate body file %s", name);
+            return false;
+        }
+    }
+
+    private long getLastSegment(final SQLiteDatabase db) {
+        final Cursor c = db.rawQuery("select max(" + ID + ") from " + SEGMENT_TABLE, null);
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the segment new bodies are appended to, starting a new one if the last is full
+     */
+    private long getWritableSegment(final SQLiteDatabase db) throws IOException {
+        long segmentId = getLastSegment(db);
+        if (segmentId == 0 || getSegmentFile(segmentId).length() >= SEGMENT_MAX_BYTES) {
+            segmentId++;
+            final ContentValues cv = new ContentValues(2);
+            cv.put(ID, segmentId);
+            cv.put(LIVE_BYTES, 0);
+            db.insert(SEGMENT_TABLE, null, cv);
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create body store");
+        }
+        return segmentId;
+    }
+
+    private static void addLiveBytes(final SQLiteDatabase db, final long segmentId,
+            final long delta) {
+        db.execSQL("update " + SEGMENT_TABLE + " set " + LIVE_BYTES + "=" + LIVE_BYTES + "+"
+                + delta + " where " + ID + "=" + segmentId);
+    }
+
+    private File getSegmentFile(final long segmentId) {
+        return new File(mDirectory, SEGMENT_PREFIX + segmentId);
+    }
+
+    /**
+     * @return the total size of the segment files, for measuring the store
+     */
+    @VisibleForTesting
+    long getDiskBytes() {
+        long bytes = 0;
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] deflate(final byte[] content) {
+        final Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
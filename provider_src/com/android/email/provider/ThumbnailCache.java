@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates and caches the thumbnails served by {@link AttachmentProvider}.
+ *
+ * Requested sizes are rounded up to a power of two between {@link #MIN_BUCKET} and
+ * {@link #MAX_BUCKET}, and a thumbnail is cached per attachment and size bucket, fitting a square
+ * of the bucket's size.  Images are decoded with a sample size chosen from their bounds, so a
+ * camera photo is never decoded at full size, and thumbnails are written as JPEG.
+ *
+ * Thumbnails are generated on a small background executor, and a request for a thumbnail that
+ * is already being generated waits for that generation rather than starting another.  The
+ * caller gets the read end of a pipe straight away, so the binder thread isn't held by decoding.
+ * Waiting pipes are written by a small pool of their own, so readers that stall hold up
+ * writes to other pipes but never generation.  The cache directory is kept under
+ * {@link #MAX_CACHE_BYTES} by deleting the least recently used thumbnails, and thumbnails are
+ * deleted with their attachments.
+ */
+class ThumbnailCache {
+    private static final String DIRECTORY_NAME = "thumbnails";
+    private static final String FILE_PREFIX = "thmb_";
+
+    @VisibleForTesting
+    static final int MIN_BUCKET = 64;
+    @VisibleForTesting
+    static final int MAX_BUCKET = 1024;
+
+    private static final int JPEG_QUALITY = 85;
+    private static final long MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static final int MAX_THREADS = 2;
+    private static final int MAX_QUEUED = 32;
+    private static final int MAX_WRITERS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static ThumbnailCache sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final ThreadPoolExecutor mExecutor;
+    /** Writes thumbnails to the pipes waiting for them */
+    private final ThreadPoolExecutor mWriters;
+
+    /** The write ends of the pipes waiting for each thumbnail being generated, by file name. */
+    private final HashMap<String, List<ParcelFileDescriptor>> mPending =
+            new HashMap<String, List<ParcelFileDescriptor>>();
+
+    /** The size of each cached thumbnail, least recently used first; loaded on first use. */
+    private LinkedHashMap<String, Long> mEntries;
+    private long mCacheBytes;
+
+    static synchronized ThumbnailCache getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ThumbnailCache");
+        }
+    };
+
+    private ThumbnailCache(final Context context) {
+        mContext = context;
+        mDirectory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED), THREAD_FACTORY);
+        mExecutor.allowCoreThreadTimeOut(true);
+        mWriters = new ThreadPoolExecutor(MAX_WRITERS, MAX_WRITERS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED), THREAD_FACTORY);
+        mWriters.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the size bucket for a requested thumbnail size
+     */
+    @VisibleForTesting
+    static int getSizeBucket(final int width, final int height) {
+        final int size = Math.max(width, height);
+        int bucket = MIN_BUCKET;
+        while (bucket < size && bucket < MAX_BUCKET) {
+            bucket <<= 1;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the largest power of two sample size that decodes an image of the given size to
+     *         at least the bucket's size
+     */
+    @VisibleForTesting
+    static int getSampleSize(final int width, final int height, final int bucket) {
+        final int size = Math.max(width, height);
+        int sampleSize = 1;
+        while (size / (sampleSize * 2) >= bucket) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static String getFileName(final long accountId, final long attachmentId,
+            final int bucket) {
+        return FILE_PREFIX + accountId + "_" + attachmentId + "_" + bucket;
+    }
+
+    /**
+     * @return the cached thumbnail for the attachment and size, or null if there isn't one
+     */
+    synchronized File getCachedFile(final long accountId, final long attachmentId,
+            final int width, final int height) {
+        loadEntries();
+        final String name = getFileName(accountId, attachmentId, getSizeBucket(width, height));
+        if (mEntries.get(name) == null) {
+            return null;
+        }
+        final File file = new File(mDirectory, name);
+        if (!file.exists()) {
+            mCacheBytes -= mEntries.remove(name);
+            return null;
+        }
+        // Keep the order across restarts
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Delete the cached thumbnails of attachments that have been deleted, so that none is served
+     * for an attachment that is gone or for a later one with the same id.
+     */
+    synchronized void deleteThumbnails(final long accountId, final List<Long> attachmentIds) {
+        loadEntries();
+        for (final long attachmentId : attachmentIds) {
+            for (int bucket = MIN_BUCKET; bucket <= MAX_BUCKET; bucket <<= 1) {
+                final String name = getFileName(accountId, attachmentId, bucket);
+                final Long length = mEntries.remove(name);
+                if (length != null) {
+                    mCacheBytes -= length;
+                    new File(mDirectory, name).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Generate a thumbnail in the background.
+     * @param source the image to make the thumbnail of
+     * @return the read end of a pipe the thumbnail will be written to; the pipe is closed
+     *         without data if the thumbnail can't be generated
+     */
+    ParcelFileDescriptor openThumbnail(final long accountId, final long attachmentId,
+            final int width, final int height, final Uri source) throws FileNotFoundException {
+        final int bucket = getSizeBucket(width, height);
+        final String name = getFileName(accountId, attachmentId, bucket);
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        synchronized (this) {
+            List<ParcelFileDescriptor> waiting = mPending.get(name);
+            if (waiting != null) {
+                // Already being generated
+                waiting.add(pipe[1]);
+                return pipe[0];
+            }
+            waiting = new ArrayList<ParcelFileDescriptor>();
+            waiting.add(pipe[1]);
+            mPending.put(name, waiting);
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final File file = generate(source, bucket, name);
+                    deliver(name, file);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LogUtils.d(Logging.LOG_TAG, "Too many thumbnail requests; dropping %s", name);
+            deliver(name, null);
+        }
+        return pipe[0];
+    }
+
+    /**
+     * Write the thumbnail (or nothing, if it is null) to every pipe waiting for it, each pipe
+     * in a task of its own.
+     */
+    private void deliver(final String name, final File file) {
+        final List<ParcelFileDescriptor> waiting;
+        synchronized (this) {
+            waiting = mPending.remove(name);
+        }
+        if (waiting == null) {
+            return;
+        }
+        for (final ParcelFileDescriptor fd : waiting) {
+            final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd);
+            if (file == null) {
+                closeQuietly(out);
+                continue;
+            }
+            final InputStream in;
+            try {
+                // Opened now, so that the thumbnail can be evicted while it's being written
+                in = new FileInputStream(file);
+            } catch (IOException e) {
+                LogUtils.d(Logging.LOG_TAG, "Failed to deliver thumbnail: %s", e.getMessage());
+                closeQuietly(out);
+                continue;
+            }
+            try {
+                mWriters.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(in, out);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                closeQuietly(in);
+                closeQuietly(out);
+            }
+        }
+    }
+
+    /**
+     * Copy a thumbnail to a pipe, and close both.
+     */
+    private static void write(final InputStream in, final OutputStream out) {
+        try {
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            // The reader went away
+            LogUtils.d(Logging.LOG_TAG, "Failed to deliver thumbnail: %s", e.getMessage());
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * Decode, scale and save a thumbnail.
+     * @return the thumbnail file, or null if no thumbnail could be made
+     */
+    private File generate(final Uri source, final int bucket, final String name) {
+        final ContentResolver resolver = mContext.getContentResolver();
+        try {
+            // Read the bounds, to decode no more of the image than needed
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            InputStream in = resolver.openInputStream(source);
+            try {
+                BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, bucket);
+            final Bitmap decoded;
+            in = resolver.openInputStream(source);
+            try {
+                decoded = BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
+            if (decoded == null) {
+                return null;
+            }
+            final Bitmap thumbnail = scaleToFit(decoded, bucket);
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                return null;
+            }
+            final File file = new File(mDirectory, name);
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            thumbnail.recycle();
+            addEntry(name, file.length());
+            return file;
+        } catch (IOException e) {
+            LogUtils.d(Logging.LOG_TAG, "Thumbnail generation failed with " + e.getMessage());
+        } catch (OutOfMemoryError e) {
+            LogUtils.d(Logging.LOG_TAG, "Thumbnail generation failed with " + e.getMessage());
+        } catch (RuntimeException e) {
+            // e.g. SecurityException from a content URI we can't read
+            LogUtils.d(Logging.LOG_TAG, "Thumbnail generation failed with " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Scale a bitmap down to fit a square of the bucket's size, on an opaque background since
+     * JPEG has no alpha.  The bitmap passed in is recycled if a new one is made.
+     */
+    private static Bitmap scaleToFit(final Bitmap bitmap, final int bucket) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final float scale = Math.min(1f, (float) bucket / Math.max(width, height));
+        if (scale == 1f && !bitmap.hasAlpha()) {
+            return bitmap;
+        }
+        final int scaledWidth = Math.max(1, Math.round(width * scale));
+        final int scaledHeight = Math.max(1, Math.round(height * scale));
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+        final Bitmap result;
+        if (bitmap.hasAlpha()) {
+            result = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.RGB_565);
+            final Canvas canvas = new Canvas(result);
+            canvas.drawColor(Color.WHITE);
+            canvas.drawBitmap(scaled, 0, 0, null);
+            if (scaled != bitmap) {
+                scaled.recycle();
+            }
+        } else {
+            result = scaled;
+        }
+        if (result != bitmap) {
+            bitmap.recycle();
+        }
+        return result;
+    }
+
+    private void loadEntries() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mCacheBytes = 0;
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (final File file : files) {
+            final long length = file.length();
+            mEntries.put(file.getName(), length);
+            mCacheBytes += length;
+        }
+    }
+
+    private synchronized void addEntry(final String name, final long length) {
+        loadEntries();
+        final Long old = mEntries.put(name, length);
+        mCacheBytes += length - (old != null ? old : 0);
+        // Evict the least recently used, but never the thumbnail just added
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mCacheBytes > MAX_CACHE_BYTES && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(name)) {
+                break;
+            }
+            new File(mDirectory, entry.getKey()).delete();
+            mCacheBytes -= entry.getValue();
+            it.remove();
+        }
+    }
+}
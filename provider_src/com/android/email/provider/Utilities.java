@@ -17,6 +17,7 @@
 package com.android.email.provider;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -33,6 +34,8 @@ import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
@@ -204,6 +207,68 @@ public class Utilities {
         }
     }
 
+    /**
+     * Add the operations that copy the body of one downloaded message (with its structure and
+     * viewable parts loaded) into an already-saved EmailProvider Message, so that several
+     * messages can be written in a single batch.  Only the columns that come from the body are
+     * written, so that changes made to the message meanwhile (e.g. marking it read) are kept.
+     * Attachment rows, which need ids of their own, are still saved right away.
+     *
+     * @param message the remote message we've just downloaded
+     * @param localMessage the EmailProvider Message, already saved
+     * @param loadStatus the message will be marked with this status
+     * @param ops the operations to add to
+     */
+    public static void addCopyMessageOps(Context context, Message message,
+            EmailContent.Message localMessage, int loadStatus,
+            ArrayList<ContentProviderOperation> ops) throws MessagingException, IOException {
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        final ArrayList<Part> attachments = new ArrayList<Part>();
+        MimeUtility.collectParts(message, viewables, attachments);
+        final ConversionUtilities.BodyFieldData data =
+                ConversionUtilities.parseBodyFields(viewables, false);
+        localMessage.setFlags(data.isQuotedReply, data.isQuotedForward);
+        localMessage.mSnippet = data.snippet;
+        LegacyConversions.updateAttachments(context, localMessage, attachments);
+        LegacyConversions.updateInlineAttachments(context, localMessage, viewables);
+
+        // Close any parts that may still be open
+        for (final Part part : viewables) {
+            if (part.getBody() == null) {
+                continue;
+            }
+            try {
+                InputStream is = part.getBody().getInputStream();
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException | MessagingException io) {
+                // Ignore
+            }
+        }
+
+        localMessage.mFlagLoaded = loadStatus;
+        final ContentValues messageValues = new ContentValues(4);
+        messageValues.put(EmailContent.MessageColumns.FLAG_LOADED, localMessage.mFlagLoaded);
+        messageValues.put(EmailContent.MessageColumns.FLAGS, localMessage.mFlags);
+        messageValues.put(EmailContent.MessageColumns.SNIPPET, localMessage.mSnippet);
+        messageValues.put(EmailContent.MessageColumns.FLAG_ATTACHMENT,
+                localMessage.mFlagAttachment);
+        ops.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                EmailContent.Message.CONTENT_URI, localMessage.mId))
+                .withValues(messageValues)
+                .build());
+        // The provider turns this into an insert if the message has no body yet
+        final ContentValues cv = new ContentValues(2);
+        cv.put(BodyColumns.TEXT_CONTENT, data.textContent);
+        cv.put(BodyColumns.HTML_CONTENT, data.htmlContent);
+        ops.add(ContentProviderOperation.newUpdate(Body.CONTENT_URI)
+                .withSelection(Body.SELECTION_BY_MESSAGE_KEY,
+                        new String[] {Long.toString(localMessage.mId)})
+                .withValues(cv)
+                .build());
+    }
+
     public static void saveOrUpdate(EmailContent content, Context context) {
         if (content.isSaved()) {
             content.update(context, content.toContentValues());
@@ -34,6 +34,7 @@ import android.text.format.DateUtils;
 
 import com.android.email.AttachmentInfo;
 import com.android.email.EmailConnectivityManager;
+import com.android.email.Metrics;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.NotificationController;
 import com.android.emailcommon.provider.Account;
@@ -44,7 +45,9 @@ import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.service.EmailServiceProxy;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
+import com.android.emailcommon.utility.AttachmentStorageLedger;
 import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.EmailAsyncTask;
 import com.android.emailcommon.utility.Utility;
 import com.android.mail.providers.UIProvider.AttachmentState;
 import com.android.mail.utils.LogUtils;
@@ -53,11 +56,15 @@ import com.google.common.annotations.VisibleForTesting;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -96,6 +103,9 @@ public class AttachmentService extends Service implements Runnable {
     private static final float PREFETCH_MINIMUM_STORAGE_AVAILABLE = 0.25F;
     // Maximum prefetch storage (also 25% of total memory)
     private static final float PREFETCH_MAXIMUM_ATTACHMENT_STORAGE = 0.25F;
+    // When over the maximum, evict prefetched attachments down to this fraction of it, so that
+    // we aren't evicting again after every download
+    private static final float PREFETCH_EVICTION_TARGET = 0.9F;
 
     // We can try various values here; I think 2 is completely reasonable as a first pass
     private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
@@ -129,11 +139,9 @@ public class AttachmentService extends Service implements Runnable {
 
     private final Object mLock = new Object();
 
-    // A map of attachment storage used per account as we have account based maximums to follow.
-    // NOTE: This map is not kept current in terms of deletions (i.e. it stores the last calculated
-    // amount plus the size of any new attachments loaded).  If and when we reach the per-account
-    // limit, we recalculate the actual usage
-    final ConcurrentHashMap<Long, Long> mAttachmentStorageMap = new ConcurrentHashMap<Long, Long>();
+    // Accounts for which prefetched attachments are being evicted to get under the limit
+    private final Set<Long> mEvictingAccounts =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 
     // A map of attachment ids to the number of failed attempts to download the attachment
     // NOTE: We do not want to persist this. This allows us to retry background downloading
@@ -922,50 +930,64 @@ public class AttachmentService extends Service implements Runnable {
                 EmailContent.Attachment.PRECACHE_INBOX_SELECTION,
                 null, AttachmentColumns._ID + " DESC");
         File cacheDir = this.getCacheDir();
+        final ArrayList<Attachment> attachments = new ArrayList<Attachment>();
         try {
             while (c.moveToNext()) {
                 final Attachment att = new Attachment();
                 att.restore(c);
-                final Account account = Account.restoreAccountWithId(this, att.mAccountKey);
-                if (account == null) {
-                    // Clean up this orphaned attachment; there's no point in keeping it
-                    // around; then try to find another one
-                    debugTrace("Found orphaned attachment #%d", att.mId);
-                    EmailContent.delete(this, Attachment.CONTENT_URI, att.mId);
-                } else {
-                    // Check that the attachment meets system requirements for download
-                    // Note that there couple be policy that does not allow this attachment
-                    // to be downloaded.
-                    final AttachmentInfo info = new AttachmentInfo(this, att);
-                    if (info.isEligibleForDownload()) {
-                        // Either the account must be able to prefetch or this must be
-                        // an inline attachment.
-                        if (att.mContentId != null || canPrefetchForAccount(account, cacheDir)) {
-                            final Integer tryCount = mAttachmentFailureMap.get(att.mId);
-                            if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
-                                // move onto the next attachment
-                                LogUtils.w(LOG_TAG,
-                                        "Too many failed attempts for attachment #%d ", att.mId);
-                                continue;
-                            }
-                            // Start this download and we're done
-                            final DownloadRequest req = new DownloadRequest(this, att);
-                            tryStartDownload(req);
-                            break;
+                attachments.add(att);
+            }
+        } finally {
+            c.close();
+        }
+        final ArrayList<Long> attachmentIds = new ArrayList<Long>(attachments.size());
+        for (final Attachment att : attachments) {
+            attachmentIds.add(att.mId);
+        }
+        // We made room by throwing these away; don't fetch them back
+        final Set<Long> evicted =
+                AttachmentStorageLedger.getInstance(this).getEvicted(attachmentIds);
+        for (final Attachment att : attachments) {
+            final Account account = Account.restoreAccountWithId(this, att.mAccountKey);
+            if (account == null) {
+                // Clean up this orphaned attachment; there's no point in keeping it
+                // around; then try to find another one
+                debugTrace("Found orphaned attachment #%d", att.mId);
+                EmailContent.delete(this, Attachment.CONTENT_URI, att.mId);
+            } else {
+                if (evicted.contains(att.mId)) {
+                    continue;
+                }
+                // Check that the attachment meets system requirements for download
+                // Note that there couple be policy that does not allow this attachment
+                // to be downloaded.
+                final AttachmentInfo info = new AttachmentInfo(this, att);
+                if (info.isEligibleForDownload()) {
+                    // Either the account must be able to prefetch or this must be
+                    // an inline attachment.
+                    if (att.mContentId != null || canPrefetchForAccount(account, cacheDir)) {
+                        final Integer tryCount = mAttachmentFailureMap.get(att.mId);
+                        if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
+                            // move onto the next attachment
+                            LogUtils.w(LOG_TAG,
+                                    "Too many failed attempts for attachment #%d ", att.mId);
+                            continue;
                         }
-                    } else {
-                        // If this attachment was ineligible for download
-                        // because of policy related issues, its flags would be set to
-                        // FLAG_POLICY_DISALLOWS_DOWNLOAD and would not show up in the
-                        // query results. We are most likely here for other reasons such
-                        // as the inability to view the attachment. In that case, let's just
-                        // skip it for now.
-                        LogUtils.w(LOG_TAG, "Skipping attachment #%d, it is ineligible", att.mId);
+                        // Start this download and we're done
+                        final DownloadRequest req = new DownloadRequest(this, att);
+                        tryStartDownload(req);
+                        break;
                     }
+                } else {
+                    // If this attachment was ineligible for download
+                    // because of policy related issues, its flags would be set to
+                    // FLAG_POLICY_DISALLOWS_DOWNLOAD and would not show up in the
+                    // query results. We are most likely here for other reasons such
+                    // as the inability to view the attachment. In that case, let's just
+                    // skip it for now.
+                    LogUtils.w(LOG_TAG, "Skipping attachment #%d, it is ineligible", att.mId);
                 }
             }
-        } finally {
-            c.close();
         }
     }
 
@@ -1045,7 +1067,9 @@ public class AttachmentService extends Service implements Runnable {
         LogUtils.d(LOG_TAG, "Finishing download #%d", attachmentId);
 
         // Say we're no longer downloading this
-        mDownloadsInProgress.remove(attachmentId);
+        final DownloadRequest finished = mDownloadsInProgress.remove(attachmentId);
+        Metrics.counter(statusCode == EmailServiceStatus.SUCCESS
+                ? "attachment.downloads.succeeded" : "attachment.downloads.failed").increment();
 
         // TODO: This code is conservative and treats connection issues as failures.
         // Since we have no mechanism to throttle reconnection attempts, it makes
@@ -1120,14 +1144,15 @@ public class AttachmentService extends Service implements Runnable {
         }
 
         final Attachment attachment = Attachment.restoreAttachmentWithId(this, attachmentId);
+        if (attachment != null && finished != null && statusCode == EmailServiceStatus.SUCCESS) {
+            final long elapsed = Math.max(1, System.currentTimeMillis() - finished.mStartTime);
+            Metrics.timer("attachment.download_time").record(elapsed);
+            Metrics.counter("attachment.bytes").add(attachment.mSize);
+            // Bytes per ms are close enough to KB per second
+            Metrics.histogram("attachment.throughput", "KB/s").record(attachment.mSize / elapsed);
+        }
         if (attachment != null) {
             final long accountId = attachment.mAccountKey;
-            // Update our attachment storage for this account
-            Long currentStorage = mAttachmentStorageMap.get(accountId);
-            if (currentStorage == null) {
-                currentStorage = 0L;
-            }
-            mAttachmentStorageMap.put(accountId, currentStorage + attachment.mSize);
             boolean deleted = false;
             if ((attachment.mFlags & Attachment.FLAG_DOWNLOAD_FORWARD) != 0) {
                 if (statusCode == EmailServiceStatus.ATTACHMENT_NOT_FOUND) {
@@ -1253,32 +1278,50 @@ public class AttachmentService extends Service implements Runnable {
         final long perAccountMaxStorage =
                 (long)(totalStorage * PREFETCH_MAXIMUM_ATTACHMENT_STORAGE / numberOfAccounts);
 
-        // Retrieve our idea of currently used attachment storage; since we don't track deletions,
-        // this number is the "worst case".  If the number is greater than what's allowed per
-        // account, we walk the directory to determine the actual number.
-        Long accountStorage = mAttachmentStorageMap.get(account.mId);
-        if (accountStorage == null || (accountStorage > perAccountMaxStorage)) {
-            // Calculate the exact figure for attachment storage for this account
-            accountStorage = 0L;
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    accountStorage += file.length();
-                }
-            }
-            // Cache the value. No locking here since this is a concurrent collection object.
-            mAttachmentStorageMap.put(account.mId, accountStorage);
-        }
+        // The ledger is kept current as attachments are saved and deleted
+        final long accountStorage =
+                AttachmentStorageLedger.getInstance(this).getAccountBytes(account.mId);
 
         // Return true if we're using less than the maximum per account
         if (accountStorage >= perAccountMaxStorage) {
             debugTrace("Prefetch not allowed for account %d; used: %d, limit %d",
                     account.mId, accountStorage, perAccountMaxStorage);
+            evictPrefetchedAttachments(account.mId,
+                    accountStorage - (long)(perAccountMaxStorage * PREFETCH_EVICTION_TARGET));
             return false;
         }
         return true;
     }
 
+    /**
+     * Make room for newer prefetches by evicting the least recently viewed prefetched
+     * attachments of an account, in the background.  Prefetching for the account resumes the
+     * next time the queue is processed after the eviction.
+     */
+    private void evictPrefetchedAttachments(final long accountId, final long bytesToFree) {
+        if (!mEvictingAccounts.add(accountId)) {
+            return;
+        }
+        EmailAsyncTask.runAsyncSerial(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Context context = AttachmentService.this;
+                    final List<Long> evict = AttachmentStorageLedger.getInstance(context)
+                            .getEvictionCandidates(accountId, bytesToFree);
+                    debugTrace("Evicting %d prefetched attachments for account %d",
+                            evict.size(), accountId);
+                    if (!evict.isEmpty()) {
+                        AttachmentUtilities.evictAttachmentFiles(context, accountId, evict);
+                        kick();
+                    }
+                } finally {
+                    mEvictingAccounts.remove(accountId);
+                }
+            }
+        });
+    }
+
     boolean isConnected() {
         if (mConnectivityManager != null) {
             return mConnectivityManager.hasConnectivity();
@@ -1319,6 +1362,7 @@ public class AttachmentService extends Service implements Runnable {
     @Override
     public void dump(final FileDescriptor fd, final PrintWriter pw, final String[] args) {
         pw.println("AttachmentService");
+        Metrics.dump(pw, "attachment.");
         final long time = System.currentTimeMillis();
         synchronized(mDownloadQueue) {
             pw.println("  Queue, " + mDownloadQueue.getSize() + " entries");
@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.TrafficStats;
+import android.os.RemoteException;
+import android.text.format.DateUtils;
+
+import com.android.email.EmailConnectivityManager;
+import com.android.email.R;
+import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapStore;
+import com.android.email.provider.Utilities;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.TrafficFlags;
+import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.mail.FetchProfile;
+import com.android.emailcommon.mail.Folder;
+import com.android.emailcommon.mail.Folder.OpenMode;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Part;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads the bodies of IMAP messages in the background, so that syncing envelopes never has
+ * to wait for bodies and the user rarely opens a message we haven't fetched yet.
+ *
+ * Messages are taken in priority order: messages the user has just opened, then messages in the
+ * mailbox the user is looking at, then starred messages, then unread inbox messages, and
+ * finally everything else, newest first.  The order is computed by the provider query that picks
+ * each batch, so it reflects the latest state of the database rather than a snapshot.
+ *
+ * Work on a network is limited to a byte budget per hour (except for messages the user has
+ * opened).  When the budget runs out, or there is no network, the prefetcher stops and picks up
+ * again the next time it is asked to run.
+ *
+ * Sync stores envelopes with {@link #FLAG_BODY_PENDING} set, and counts such messages as synced
+ * (see {@link #needsEnvelope}); the flag is cleared once the body has been fetched.  So a message
+ * waiting for its body, for instance because the budget ran out, is never fetched again by sync.
+ */
+public class BodyPrefetcher {
+    /**
+     * Set in a message's flags (with one of the bits left to the sync adapter) while its envelope
+     * is stored but its body hasn't been fetched yet.
+     */
+    public static final int FLAG_BODY_PENDING =
+            1 << EmailContent.Message.FLAG_SYNC_ADAPTER_SHIFT;
+
+    /** Number of messages fetched per round trip. */
+    private static final int BATCH_SIZE = 10;
+
+    /** Budget window; usage is reset this often. */
+    private static final long BUDGET_WINDOW_MILLIS = DateUtils.HOUR_IN_MILLIS;
+    /** Bytes per budget window on unmetered (wifi and ethernet) networks. */
+    private static final long UNMETERED_BUDGET_BYTES = 50 * 1024 * 1024;
+    /** Bytes per budget window on any other network. */
+    private static final long METERED_BUDGET_BYTES = 5 * 1024 * 1024;
+
+    @VisibleForTesting
+    static final int PRIORITY_OPENED = 0;
+    @VisibleForTesting
+    static final int PRIORITY_VIEWED_MAILBOX = 1;
+    @VisibleForTesting
+    static final int PRIORITY_STARRED = 2;
+    @VisibleForTesting
+    static final int PRIORITY_UNREAD_INBOX = 3;
+    @VisibleForTesting
+    static final int PRIORITY_OTHER = 4;
+
+    private static final String[] CANDIDATE_PROJECTION = new String[] {
+        MessageColumns._ID, MessageColumns.MAILBOX_KEY, SyncColumns.SERVER_ID
+    };
+    private static final int CANDIDATE_ID_COLUMN = 0;
+    private static final int CANDIDATE_MAILBOX_KEY_COLUMN = 1;
+    private static final int CANDIDATE_SERVER_ID_COLUMN = 2;
+
+    @VisibleForTesting
+    static final String CANDIDATE_SELECTION =
+            MessageColumns.ACCOUNT_KEY + "=? AND "
+            + MessageColumns.FLAG_LOADED + " IN ("
+            + EmailContent.Message.FLAG_LOADED_UNLOADED + ","
+            + EmailContent.Message.FLAG_LOADED_PARTIAL + ") AND ("
+            + MessageColumns.FLAGS + "&" + FLAG_BODY_PENDING + ")!=0 AND "
+            + SyncColumns.SERVER_ID + " IS NOT NULL";
+
+    private static final String[] OPENED_PROJECTION = new String[] {
+        MessageColumns.ACCOUNT_KEY, MessageColumns.FLAG_LOADED, MessageColumns.FLAGS
+    };
+    private static final int OPENED_ACCOUNT_KEY_COLUMN = 0;
+    private static final int OPENED_FLAG_LOADED_COLUMN = 1;
+    private static final int OPENED_FLAGS_COLUMN = 2;
+
+    private static BodyPrefetcher sInstance;
+
+    private final Context mContext;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ByteBudget mBudget = new ByteBudget();
+
+    // All of the following are guarded by "this"
+    /** Accounts that may have messages waiting to be fetched. */
+    private final LinkedHashSet<Long> mPendingAccounts = new LinkedHashSet<Long>();
+    /** Messages the user has opened that haven't been handled yet. */
+    private final HashSet<Long> mOpenedMessages = new HashSet<Long>();
+    /** The mailbox most recently shown in the conversation list. */
+    private long mViewedMailboxId = Mailbox.NO_MAILBOX;
+    private boolean mViewedMailboxChanged;
+    private boolean mRunning;
+
+    public static synchronized BodyPrefetcher getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new BodyPrefetcher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BodyPrefetcher(final Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return whether sync should fetch the envelope of a message it already has: only if the
+     * envelope was never stored, as messages waiting for their bodies are left to the prefetcher
+     */
+    public static boolean needsEnvelope(final int flagLoaded, final int flags) {
+        return (flagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED
+                || flagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL)
+                && (flags & FLAG_BODY_PENDING) == 0;
+    }
+
+    /**
+     * @return whether a message is waiting for the prefetcher to fetch its body
+     */
+    private static boolean isBodyPending(final int flagLoaded, final int flags) {
+        return (flagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED
+                || flagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL)
+                && (flags & FLAG_BODY_PENDING) != 0;
+    }
+
+    /**
+     * Ask for the unloaded messages of an account to be fetched.
+     */
+    public synchronized void requestPrefetch(final long accountId) {
+        mPendingAccounts.add(accountId);
+        startIfNeeded();
+    }
+
+    /**
+     * Note that the user has opened a message; if it hasn't been loaded yet, it goes to the
+     * front of the queue and is fetched regardless of budget.
+     */
+    public synchronized void prefetchMessage(final long messageId) {
+        if (mOpenedMessages.add(messageId)) {
+            startIfNeeded();
+        }
+    }
+
+    /**
+     * Note the mailbox the user is looking at; its messages come before those of other mailboxes.
+     */
+    public synchronized void setViewedMailbox(final long mailboxId) {
+        if (mailboxId != mViewedMailboxId) {
+            mViewedMailboxId = mailboxId;
+            mViewedMailboxChanged = true;
+            startIfNeeded();
+        }
+    }
+
+    private void startIfNeeded() {
+        if (!mRunning) {
+            mRunning = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runPrefetch();
+                }
+            });
+        }
+    }
+
+    private void runPrefetch() {
+        // Messages already tried in this run; not tried again, so we never spin on a failure.
+        final HashSet<Long> attempted = new HashSet<Long>();
+        while (true) {
+            resolveHints(attempted);
+            final long accountId;
+            final long viewedMailboxId;
+            synchronized (this) {
+                if (mPendingAccounts.isEmpty()) {
+                    mRunning = false;
+                    return;
+                }
+                accountId = mPendingAccounts.iterator().next();
+                viewedMailboxId = mViewedMailboxId;
+            }
+            final int networkType = EmailConnectivityManager.getActiveNetworkType(mContext);
+            if (networkType == EmailConnectivityManager.NO_ACTIVE_NETWORK) {
+                LogUtils.d(Logging.LOG_TAG, "BodyPrefetcher: no network, stopping");
+                stop();
+                return;
+            }
+            final boolean more;
+            try {
+                more = prefetchBatch(accountId, viewedMailboxId, networkType, attempted);
+            } catch (MessagingException e) {
+                LogUtils.w(Logging.LOG_TAG, e, "BodyPrefetcher: error for account %d", accountId);
+                removePending(accountId);
+                continue;
+            } catch (BudgetExhaustedException e) {
+                LogUtils.d(Logging.LOG_TAG, "BodyPrefetcher: budget used up on network %d",
+                        networkType);
+                stop();
+                return;
+            }
+            if (!more) {
+                removePending(accountId);
+            }
+        }
+    }
+
+    private synchronized void stop() {
+        mOpenedMessages.clear();
+        mRunning = false;
+    }
+
+    private synchronized void removePending(final long accountId) {
+        mPendingAccounts.remove(accountId);
+    }
+
+    /**
+     * Turn opened messages and the viewed mailbox into pending accounts.  Opened messages that
+     * are already loaded, or were already attempted, are dropped here.
+     */
+    private void resolveHints(final HashSet<Long> attempted) {
+        final ArrayList<Long> opened;
+        final long viewedMailboxId;
+        synchronized (this) {
+            opened = new ArrayList<Long>(mOpenedMessages);
+            viewedMailboxId = mViewedMailboxChanged ? mViewedMailboxId : Mailbox.NO_MAILBOX;
+            mViewedMailboxChanged = false;
+        }
+        for (final Long messageId : opened) {
+            long accountId = Account.NO_ACCOUNT;
+            final Cursor c = attempted.contains(messageId) ? null
+                    : mContext.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                            OPENED_PROJECTION, MessageColumns._ID + "=?",
+                            new String[] { String.valueOf(messageId) }, null);
+            if (c != null) {
+                try {
+                    if (c.moveToFirst()) {
+                        if (isBodyPending(c.getInt(OPENED_FLAG_LOADED_COLUMN),
+                                c.getInt(OPENED_FLAGS_COLUMN))) {
+                            accountId = c.getLong(OPENED_ACCOUNT_KEY_COLUMN);
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            synchronized (this) {
+                if (accountId == Account.NO_ACCOUNT) {
+                    mOpenedMessages.remove(messageId);
+                } else {
+                    // Put the account at the front of the queue.
+                    final ArrayList<Long> rest = new ArrayList<Long>(mPendingAccounts);
+                    mPendingAccounts.clear();
+                    mPendingAccounts.add(accountId);
+                    mPendingAccounts.addAll(rest);
+                }
+            }
+        }
+        if (viewedMailboxId != Mailbox.NO_MAILBOX) {
+            final long accountId = Mailbox.getAccountIdForMailbox(mContext,
+                    String.valueOf(viewedMailboxId));
+            if (accountId != Account.NO_ACCOUNT) {
+                synchronized (this) {
+                    mPendingAccounts.add(accountId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetch the next batch of messages for an account.
+     * @return whether there may be more messages to fetch for this account
+     */
+    private boolean prefetchBatch(final long accountId, final long viewedMailboxId,
+            final int networkType, final HashSet<Long> attempted)
+            throws MessagingException, BudgetExhaustedException {
+        final Account account = Account.restoreAccountWithId(mContext, accountId);
+        if (account == null) {
+            return false;
+        }
+        // POP messages are loaded as part of their own sync, and EAS has its own service
+        if (!mContext.getString(R.string.protocol_legacy_imap).equals(
+                account.getProtocol(mContext))) {
+            return false;
+        }
+        final Store store = Store.getInstance(account, mContext);
+        if (!(store instanceof ImapStore)) {
+            return false;
+        }
+        TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
+
+        final HashSet<Long> opened;
+        synchronized (this) {
+            opened = new HashSet<Long>(mOpenedMessages);
+        }
+        // Don't even fetch structures when only the budget stands in the way
+        if (opened.isEmpty() && !mBudget.hasRemaining(networkType, System.currentTimeMillis())) {
+            throw new BudgetExhaustedException();
+        }
+        final long inboxId = Mailbox.findMailboxOfType(mContext, accountId, Mailbox.TYPE_INBOX);
+        String selection = CANDIDATE_SELECTION;
+        if (!attempted.isEmpty()) {
+            selection += " AND " + MessageColumns._ID + " NOT IN (" + joinIds(attempted) + ")";
+        }
+
+        // Candidates, grouped by mailbox, in priority order
+        final LinkedHashMap<Long, LinkedHashMap<String, Long>> batch =
+                new LinkedHashMap<Long, LinkedHashMap<String, Long>>();
+        final Cursor c = mContext.getContentResolver().query(
+                EmailContent.uriWithLimit(EmailContent.Message.CONTENT_URI, BATCH_SIZE),
+                CANDIDATE_PROJECTION, selection, new String[] { String.valueOf(accountId) },
+                buildPriorityOrder(opened, viewedMailboxId, inboxId));
+        if (c == null) {
+            return false;
+        }
+        try {
+            if (c.getCount() == 0) {
+                return false;
+            }
+            while (c.moveToNext()) {
+                final long mailboxId = c.getLong(CANDIDATE_MAILBOX_KEY_COLUMN);
+                LinkedHashMap<String, Long> uids = batch.get(mailboxId);
+                if (uids == null) {
+                    uids = new LinkedHashMap<String, Long>();
+                    batch.put(mailboxId, uids);
+                }
+                uids.put(c.getString(CANDIDATE_SERVER_ID_COLUMN), c.getLong(CANDIDATE_ID_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+
+        for (final Long mailboxId : batch.keySet()) {
+            final HashMap<String, Long> uids = batch.get(mailboxId);
+            final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mailboxId);
+            // Search results are loaded by the search itself, and we never sync drafts or outbox
+            if (mailbox != null && mailbox.mServerId != null
+                    && mailbox.mType != Mailbox.TYPE_SEARCH
+                    && mailbox.mType != Mailbox.TYPE_DRAFTS
+                    && mailbox.mType != Mailbox.TYPE_OUTBOX) {
+                prefetchMailbox(account, store, mailbox, uids, opened, networkType);
+            }
+            // Anything still not loaded after this (e.g. a failed copy) waits for the next run
+            attempted.addAll(uids.values());
+        }
+        return true;
+    }
+
+    private void prefetchMailbox(final Account account, final Store store, final Mailbox mailbox,
+            final HashMap<String, Long> uids, final HashSet<Long> opened, final int networkType)
+            throws MessagingException, BudgetExhaustedException {
+        final HashMap<Long, EmailContent.Message> localMessages = restoreMessages(uids.values());
+        final Folder remoteFolder = store.getFolder(mailbox.mServerId);
+        remoteFolder.open(OpenMode.READ_WRITE);
+        // The bodies of the whole batch are written together, even if we stop part way
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        final ArrayList<Long> copied = new ArrayList<Long>();
+        try {
+            final Message[] messages = new Message[uids.size()];
+            int i = 0;
+            for (final String uid : uids.keySet()) {
+                messages[i++] = remoteFolder.createMessage(uid);
+            }
+            // Sync already stored the envelope and keeps the flags; only the body is wanted here
+            final FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.STRUCTURE);
+            remoteFolder.fetch(messages, fp, null);
+
+            final Message[] oneMessageArray = new Message[1];
+            for (final Message message : messages) {
+                final long messageId = uids.get(message.getUid());
+                final EmailContent.Message localMessage = localMessages.get(messageId);
+                if (message.getBody() == null || localMessage == null) {
+                    // Probably gone from the server (or deleted locally); sync takes care of it.
+                    continue;
+                }
+                final ArrayList<Part> viewables = new ArrayList<Part>();
+                final ArrayList<Part> attachments = new ArrayList<Part>();
+                MimeUtility.collectParts(message, viewables, attachments);
+                long size = 0;
+                for (final Part part : viewables) {
+                    size += Math.max(0, part.getSize());
+                }
+                if (!opened.contains(messageId)
+                        && !mBudget.tryCharge(networkType, size, System.currentTimeMillis())) {
+                    throw new BudgetExhaustedException();
+                }
+                oneMessageArray[0] = message;
+                for (final Part part : viewables) {
+                    fp.clear();
+                    fp.add(part);
+                    remoteFolder.fetch(oneMessageArray, fp, null);
+                }
+                try {
+                    addBodyOps(mContext, message, localMessage, ops);
+                    copied.add(messageId);
+                } catch (IOException | MessagingException e) {
+                    LogUtils.e(Logging.LOG_TAG, "BodyPrefetcher: error storing message %d: %s",
+                            messageId, e);
+                }
+            }
+        } finally {
+            // Returns the connection to the store's pool
+            remoteFolder.close(false);
+            applyOps(ops, copied);
+        }
+    }
+
+    /**
+     * Add the operations that store a fetched message as complete, no longer pending.  Nothing
+     * but the body and the columns derived from it is written.
+     * @param message the remote message, with its structure and viewable parts fetched
+     * @param localMessage the local message
+     * @param ops the operations to add to
+     */
+    @VisibleForTesting
+    static void addBodyOps(final Context context, final Message message,
+            final EmailContent.Message localMessage, final ArrayList<ContentProviderOperation> ops)
+            throws MessagingException, IOException {
+        localMessage.mFlags &= ~FLAG_BODY_PENDING;
+        Utilities.addCopyMessageOps(context, message, localMessage,
+                EmailContent.Message.FLAG_LOADED_COMPLETE, ops);
+    }
+
+    /**
+     * Restore the local messages of a batch with a single query.
+     */
+    private HashMap<Long, EmailContent.Message> restoreMessages(final Collection<Long> ids) {
+        final HashMap<Long, EmailContent.Message> messages =
+                new HashMap<Long, EmailContent.Message>();
+        final Cursor c = mContext.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                EmailContent.Message.CONTENT_PROJECTION,
+                MessageColumns._ID + " IN (" + joinIds(ids) + ")", null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    final EmailContent.Message message =
+                            EmailContent.getContent(mContext, c, EmailContent.Message.class);
+                    messages.put(message.mId, message);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Write the bodies of a batch in one transaction, and forget about the messages written.
+     */
+    private void applyOps(final ArrayList<ContentProviderOperation> ops,
+            final ArrayList<Long> copied) {
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            mContext.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            // The messages are still pending, and are tried again on the next run
+            LogUtils.e(Logging.LOG_TAG, "BodyPrefetcher: error writing bodies: %s", e);
+            return;
+        }
+        synchronized (this) {
+            mOpenedMessages.removeAll(copied);
+        }
+    }
+
+    /**
+     * Build the ORDER BY clause that puts the most useful messages first.
+     */
+    @VisibleForTesting
+    static String buildPriorityOrder(final Collection<Long> opened, final long viewedMailboxId,
+            final long inboxId) {
+        final StringBuilder sb = new StringBuilder("CASE");
+        if (!opened.isEmpty()) {
+            sb.append(" WHEN ").append(MessageColumns._ID).append(" IN (")
+                    .append(joinIds(opened)).append(") THEN ").append(PRIORITY_OPENED);
+        }
+        sb.append(" WHEN ").append(MessageColumns.MAILBOX_KEY).append('=')
+                .append(viewedMailboxId).append(" THEN ").append(PRIORITY_VIEWED_MAILBOX);
+        sb.append(" WHEN ").append(MessageColumns.FLAG_FAVORITE).append("=1 THEN ")
+                .append(PRIORITY_STARRED);
+        sb.append(" WHEN ").append(MessageColumns.MAILBOX_KEY).append('=').append(inboxId)
+                .append(" AND ").append(MessageColumns.FLAG_READ).append("=0 THEN ")
+                .append(PRIORITY_UNREAD_INBOX);
+        sb.append(" ELSE ").append(PRIORITY_OTHER).append(" END, ")
+                .append(MessageColumns.TIMESTAMP).append(" DESC");
+        return sb.toString();
+    }
+
+    private static String joinIds(final Collection<Long> ids) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Long id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    private static class BudgetExhaustedException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Bytes spent per network type in the current window.
+     */
+    @VisibleForTesting
+    static class ByteBudget {
+        private final HashMap<Integer, long[]> mUsage = new HashMap<Integer, long[]>();
+
+        /**
+         * Charge some bytes to a network's budget.
+         * @return false (and charge nothing) if the bytes would exceed the budget
+         */
+        synchronized boolean tryCharge(final int networkType, final long bytes, final long now) {
+            long[] usage = mUsage.get(networkType);
+            if (usage == null || now - usage[0] >= BUDGET_WINDOW_MILLIS || now < usage[0]) {
+                usage = new long[] { now, 0 };
+                mUsage.put(networkType, usage);
+            }
+            final long limit = getBudgetBytes(networkType);
+            // A single message larger than the budget still goes through on a fresh window.
+            if (usage[1] > 0 && usage[1] + bytes > limit) {
+                return false;
+            }
+            usage[1] += bytes;
+            return true;
+        }
+
+        /**
+         * @return whether a network's budget has any bytes left in the current window
+         */
+        synchronized boolean hasRemaining(final int networkType, final long now) {
+            final long[] usage = mUsage.get(networkType);
+            return usage == null || now - usage[0] >= BUDGET_WINDOW_MILLIS || now < usage[0]
+                    || usage[1] < getBudgetBytes(networkType);
+        }
+
+        static long getBudgetBytes(final int networkType) {
+            switch (networkType) {
+                case ConnectivityManager.TYPE_WIFI:
+                case ConnectivityManager.TYPE_ETHERNET:
+                    return UNMETERED_BUDGET_BYTES;
+                default:
+                    return METERED_BUDGET_BYTES;
+            }
+        }
+    }
+}
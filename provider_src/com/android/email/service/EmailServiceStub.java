@@ -31,6 +31,7 @@ import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapFolder;
 import com.android.email.provider.AccountReconciler;
 import com.android.email.provider.Utilities;
 import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
@@ -39,6 +40,7 @@ import com.android.emailcommon.TrafficFlags;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
+import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Folder;
@@ -66,6 +68,13 @@ import com.android.emailcommon.utility.Utility;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.util.HashSet;
 
 /**
@@ -76,6 +85,9 @@ import java.util.HashSet;
  */
 public abstract class EmailServiceStub extends IEmailService.Stub implements IEmailService {
 
+    /** The size of the ranges in which attachments are downloaded from IMAP servers */
+    private static final int ATTACHMENT_RANGE_SIZE = 512 * 1024;
+
     private static final int MAILBOX_COLUMN_ID = 0;
     private static final int MAILBOX_COLUMN_SERVER_ID = 1;
     private static final int MAILBOX_COLUMN_TYPE = 2;
@@ -87,6 +99,15 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
         MailboxColumns.TYPE,
     };
 
+    private static final int OUTBOX_COLUMN_ID = 0;
+    private static final int OUTBOX_COLUMN_FLAGS = 1;
+
+    /** The columns of outbox messages needed to check their attachments before a send. */
+    private static final String[] OUTBOX_PROJECTION = {
+        MessageColumns._ID,
+        MessageColumns.FLAGS,
+    };
+
     protected Context mContext;
 
     protected void init(Context context) {
@@ -261,6 +282,13 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                 return;
             }
 
+            // If we already have the same attachment from another message, use that
+            if (AttachmentUtilities.loadAttachmentFromStore(mContext, attachment)) {
+                cb.loadAttachmentStatus(messageId, attachmentId, EmailServiceStatus.SUCCESS,
+                        0);
+                return;
+            }
+
             // Say we're starting...
             cb.loadAttachmentStatus(messageId, attachmentId, EmailServiceStatus.IN_PROGRESS, 0);
 
@@ -307,6 +335,25 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             remoteFolder = remoteStore.getFolder(mailbox.mServerId);
             remoteFolder.open(OpenMode.READ_WRITE);
 
+            if (remoteFolder instanceof ImapFolder && attachment.mLocation != null) {
+                // 3. Download the attachment a range at a time, resuming any earlier download
+                final File file = fetchAttachmentRanges((ImapFolder) remoteFolder,
+                        message.mServerId, attachment,
+                        new MessageRetrievalListenerBridge(messageId, attachmentId, cb));
+
+                // 4. Save the attachment to wherever it's going
+                try {
+                    saveAttachmentFile(file, attachment);
+                    // Nothing left to resume; a later download starts over
+                    setAttachmentFetchOffset(attachment, 0);
+                } finally {
+                    AttachmentUtilities.deletePartialAttachmentFiles(mContext,
+                            attachment.mAccountKey, attachmentId);
+                }
+                cb.loadAttachmentStatus(messageId, attachmentId, EmailServiceStatus.SUCCESS, 0);
+                return;
+            }
+
             // 3. Generate a shell message in which to retrieve the attachment,
             // and a shell BodyPart for the attachment.  Then glue them together.
             final Message storeMessage = remoteFolder.createMessage(message.mServerId);
@@ -349,7 +396,7 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             // 6. Report success
             cb.loadAttachmentStatus(messageId, attachmentId, EmailServiceStatus.SUCCESS, 0);
 
-        } catch (MessagingException me) {
+        } catch (IOException | MessagingException me) {
             LogUtils.i(Logging.LOG_TAG, me, "Error loading attachment");
 
             final ContentValues cv = new ContentValues(1);
@@ -366,6 +413,97 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
 
     }
 
+    /**
+     * Download an attachment from an IMAP server a range at a time into a partial file.  After
+     * each range, the length of the file is saved in the Attachment row, so that if the download
+     * is interrupted, the next attempt resumes where this one stopped rather than from the start.
+     * If the server supports BINARY (RFC 3516), the attachment is downloaded as decoded by the
+     * server, which also saves the overhead of its transfer encoding.
+     *
+     * @return the file, holding the whole attachment (see {@link #saveAttachmentFile})
+     */
+    private File fetchAttachmentRanges(final ImapFolder folder, final String uid,
+            final Attachment attachment, final MessageRetrievalListener listener)
+            throws MessagingException, IOException {
+        boolean binary = folder.canFetchBinary();
+        for (;;) {
+            final File file = AttachmentUtilities.getPartialAttachmentFile(mContext,
+                    attachment.mAccountKey, attachment.mId, binary);
+            final File other = AttachmentUtilities.getPartialAttachmentFile(mContext,
+                    attachment.mAccountKey, attachment.mId, !binary);
+            long offset = 0;
+            if (attachment.mFetchOffset > 0 && !other.exists()
+                    && file.length() >= attachment.mFetchOffset) {
+                offset = attachment.mFetchOffset;
+                LogUtils.d(Logging.LOG_TAG, "Resuming download of attachment %d at %d",
+                        attachment.mId, offset);
+            }
+            other.delete();
+            file.getParentFile().mkdirs();
+            final RandomAccessFile out = new RandomAccessFile(file, "rw");
+            int count;
+            try {
+                // Drop anything written after the offset was last saved
+                out.setLength(offset);
+                out.seek(offset);
+                final OutputStream stream = Channels.newOutputStream(out.getChannel());
+                // The content as it is is larger than the size of the attachment when decoded
+                final long size = binary ? attachment.mSize : attachment.mSize * 4 / 3;
+                do {
+                    count = folder.fetchPartRange(uid, attachment.mLocation, offset,
+                            ATTACHMENT_RANGE_SIZE, binary, stream);
+                    if (count < 0) {
+                        break;
+                    }
+                    offset += count;
+                    setAttachmentFetchOffset(attachment, offset);
+                    if (size > 0) {
+                        listener.loadAttachmentProgress((int) Math.min(99, offset * 100 / size));
+                    }
+                } while (count == ATTACHMENT_RANGE_SIZE);
+            } finally {
+                out.close();
+            }
+            if (count >= 0) {
+                return file;
+            }
+            // The server can't decode this attachment, so download it as it is
+            LogUtils.d(Logging.LOG_TAG, "Server can't decode attachment %d", attachment.mId);
+            binary = false;
+            setAttachmentFetchOffset(attachment, 0);
+        }
+    }
+
+    private void setAttachmentFetchOffset(final Attachment attachment, final long offset) {
+        attachment.mFetchOffset = offset;
+        final ContentValues cv = new ContentValues(1);
+        cv.put(AttachmentColumns.FETCH_OFFSET, offset);
+        mContext.getContentResolver().update(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, attachment.mId), cv, null, null);
+    }
+
+    /**
+     * Save an attachment downloaded by {@link #fetchAttachmentRanges}, removing its transfer
+     * encoding first if the server didn't.
+     */
+    private void saveAttachmentFile(final File file, final Attachment attachment)
+            throws IOException {
+        final boolean decoded = file.equals(AttachmentUtilities.getPartialAttachmentFile(mContext,
+                attachment.mAccountKey, attachment.mId, true));
+        InputStream in = new FileInputStream(file);
+        try {
+            if (!decoded) {
+                // Attachments stored before their encoding was kept are marked "B"
+                final String encoding = TextUtils.isEmpty(attachment.mEncoding)
+                        || "B".equals(attachment.mEncoding) ? "base64" : attachment.mEncoding;
+                in = MimeUtility.getInputStreamForContentTransferEncoding(in, encoding);
+            }
+            AttachmentUtilities.saveAttachment(mContext, in, attachment);
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Bridge to intercept {@link MessageRetrievalListener#loadAttachmentProgress} and
      * pass down to {@link IEmailServiceCallback}.
@@ -469,11 +607,9 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                         // Never, ever delete special mailboxes
                         break;
                     default:
-                        // Drop all attachment files related to this mailbox
-                        AttachmentUtilities.deleteAllMailboxAttachmentFiles(
-                                mContext, accountId, mailboxId);
                         // Delete the mailbox; database triggers take care of related
-                        // Message, Body and Attachment records
+                        // Message, Body and Attachment records, and their files are deleted
+                        // in the background
                         Uri uri = ContentUris.withAppendedId(
                                 Mailbox.CONTENT_URI, mailboxId);
                         mContext.getContentResolver().delete(uri, null, null);
@@ -563,7 +699,7 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
         }
         final ContentResolver resolver = context.getContentResolver();
         final Cursor c = resolver.query(EmailContent.Message.CONTENT_URI,
-                EmailContent.Message.ID_COLUMN_PROJECTION,
+                OUTBOX_PROJECTION,
                 MessageColumns.MAILBOX_KEY + "=?", new String[] { Long.toString(outboxId)},
                 null);
         try {
@@ -571,6 +707,8 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             if (c.getCount() <= 0) {
                 return;
             }
+            // The attachments of the whole outbox, checked once each
+            final OutboxPreflight preflight = OutboxPreflight.load(context, account.mId, outboxId);
             final Sender sender = Sender.getInstance(context, account);
             final Store remoteStore = Store.getInstance(account, context);
             final ContentValues moveToSentValues;
@@ -590,9 +728,9 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                     moveToSentValues.remove(EmailContent.MessageColumns.FLAGS);
                 }
                 try {
-                    messageId = c.getLong(0);
+                    messageId = c.getLong(OUTBOX_COLUMN_ID);
                     // Don't send messages with unloaded attachments
-                    if (Utility.hasUnloadedAttachments(context, messageId)) {
+                    if (!preflight.isReadyToSend(messageId, c.getInt(OUTBOX_COLUMN_FLAGS))) {
                         if (DebugUtils.DEBUG) {
                             LogUtils.d(Logging.LOG_TAG, "Can't send #" + messageId +
                                     "; unloaded attachments");
@@ -630,8 +768,7 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                     moveToSentValues.put(EmailContent.MessageColumns.FLAGS, flags);
                     resolver.update(syncedUri, moveToSentValues, null, null);
                 } else {
-                    AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId,
-                            messageId);
+                    // Attachment files are deleted in the background along with the message
                     final Uri uri =
                         ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, messageId);
                     resolver.delete(uri, null, null);
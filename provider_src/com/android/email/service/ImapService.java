@@ -45,11 +45,14 @@ import android.util.SparseLongArray;
 import com.android.email.DebugUtils;
 import com.android.email.EmailConnectivityManager;
 import com.android.email.LegacyConversions;
+import com.android.email.Metrics;
 import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.R;
 import com.android.email.mail.Store;
 import com.android.email.mail.store.ImapFolder;
+import com.android.email.mail.store.ImapFolderSessions;
+import com.android.email.mail.store.ImapStore;
 import com.android.email.provider.EmailProvider;
 import com.android.email.provider.Utilities;
 import com.android.emailcommon.Logging;
@@ -75,16 +78,20 @@ import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.provider.SearchResult;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailService;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.service.SyncWindow;
-import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -102,7 +109,6 @@ public class ImapService extends Service {
     private static final int MINIMUM_MESSAGES_TO_SYNC = 10;
     private static final int LOAD_MORE_MIN_INCREMENT = 10;
     private static final int LOAD_MORE_MAX_INCREMENT = 20;
-    private static final long INITIAL_WINDOW_SIZE_INCREASE = 24 * 60 * 60 * 1000;
 
     private static final Flag[] FLAG_LIST_SEEN = new Flag[] { Flag.SEEN };
     private static final Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
@@ -1077,6 +1083,12 @@ public class ImapService extends Service {
         return mBinder;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("ImapService");
+        Metrics.dump(writer, "sync.", "imap.", "pop3.", "smtp.", "transport.");
+    }
+
     private static void requestSync(Context context, Account account, long mailbox, boolean full) {
         final EmailServiceUtils.EmailServiceInfo info = EmailServiceUtils.getServiceInfoForAccount(
                 context, account.mId);
@@ -1152,7 +1164,15 @@ public class ImapService extends Service {
             }
 
             remoteStore = Store.getInstance(account, context);
+            if (uiRefresh && remoteStore instanceof ImapStore
+                    && context.getResources().getBoolean(R.bool.imap_connection_warm_up)) {
+                // Someone is waiting on this sync; overlap the connect and TLS handshake with
+                // the local work below
+                ((ImapStore) remoteStore).warmUp();
+            }
+            final long start = Metrics.now();
             processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
+            Metrics.timer("sync.imap.pending_actions").recordSince(start);
             synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore, uiRefresh);
 
             // Clear authentication notification for this account
@@ -1233,41 +1253,6 @@ public class ImapService extends Service {
         };
     }
 
-    /**
-     * Load the structure and body of messages not yet synced
-     * @param account the account we're syncing
-     * @param remoteFolder the (open) Folder we're working on
-     * @param messages an array of Messages we've got headers for
-     * @param toMailbox the destination mailbox we're syncing
-     * @throws MessagingException
-     */
-    static void loadUnsyncedMessages(final Context context, final Account account,
-            Folder remoteFolder, ArrayList<Message> messages, final Mailbox toMailbox)
-            throws MessagingException {
-
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.STRUCTURE);
-        remoteFolder.fetch(messages.toArray(new Message[messages.size()]), fp, null);
-        Message [] oneMessageArray = new Message[1];
-        for (Message message : messages) {
-            // Build a list of parts we are interested in. Text parts will be downloaded
-            // right now, attachments will be left for later.
-            ArrayList<Part> viewables = new ArrayList<Part>();
-            ArrayList<Part> attachments = new ArrayList<Part>();
-            MimeUtility.collectParts(message, viewables, attachments);
-            // Download the viewables immediately
-            oneMessageArray[0] = message;
-            for (Part part : viewables) {
-                fp.clear();
-                fp.add(part);
-                remoteFolder.fetch(oneMessageArray, fp, null);
-            }
-            // Store the updated message locally and mark it fully loaded
-            Utilities.copyOneMessageToProvider(context, message, account, toMailbox,
-                    EmailContent.Message.FLAG_LOADED_COMPLETE);
-        }
-    }
-
     public static void downloadFlagAndEnvelope(final Context context, final Account account,
             final Mailbox mailbox, Folder remoteFolder, ArrayList<Message> unsyncedMessages,
             HashMap<String, LocalMessageInfo> localMessageMap, final ArrayList<Long> unseenMessages)
@@ -1313,6 +1298,11 @@ public class ImapService extends Service {
                                     // Copy the fields that are available into the message
                                     LegacyConversions.updateMessageFields(localMessage,
                                             message, account.mId, mailbox.mId);
+                                    // The body is left to BodyPrefetcher
+                                    if (localMessage.mFlagLoaded
+                                            != EmailContent.Message.FLAG_LOADED_COMPLETE) {
+                                        localMessage.mFlags |= BodyPrefetcher.FLAG_BODY_PENDING;
+                                    }
                                     // Commit the message to the local store
                                     Utilities.saveOrUpdate(localMessage, context);
                                     // Track the "new" ness of the downloaded message
@@ -1366,8 +1356,13 @@ public class ImapService extends Service {
             return;
         }
 
+        // Time each phase of the sync, so that dump() shows where the time goes
+        final Metrics.Phases phases = Metrics.startPhases("sync.imap");
+
         // 1. Figure out what our sync window should be.
+        final long now = System.currentTimeMillis();
         long endDate;
+        int quickSyncCount = 0;
 
         // We will do a full sync if the user has actively requested a sync, or if it has been
         // too long since the last full sync.
@@ -1383,15 +1378,18 @@ public class ImapService extends Service {
             int syncLookBack = mailbox.mSyncLookback == SyncWindow.SYNC_WINDOW_ACCOUNT
                     ? account.mSyncLookback
                     : mailbox.mSyncLookback;
-            endDate = System.currentTimeMillis() -
-                    (SyncWindow.toDays(syncLookBack) * DateUtils.DAY_IN_MILLIS);
+            endDate = now - (SyncWindow.toDays(syncLookBack) * DateUtils.DAY_IN_MILLIS);
             LogUtils.d(Logging.LOG_TAG, "full sync: original window: now - " + endDate);
         } else {
             // We are doing a frequent, quick sync. This only syncs a small time window, so that
             // we wil get any new messages, but not spend a lot of bandwidth downloading
             // messageIds that we most likely already have.
-            endDate = System.currentTimeMillis() - QUICK_SYNC_WINDOW_MILLIS;
+            endDate = now - QUICK_SYNC_WINDOW_MILLIS;
             LogUtils.d(Logging.LOG_TAG, "quick sync: original window: now - " + endDate);
+            // Busy folders get more than a day's worth of mail in a quick window; for those,
+            // just ask for what is expected to have arrived since the last sync.
+            quickSyncCount = SyncWindowPlanner.planQuickSync(mailbox.mId,
+                    QUICK_SYNC_WINDOW_MILLIS, now);
         }
 
         // 2. Open the remote folder and create the remote folder if necessary
@@ -1417,6 +1415,7 @@ public class ImapService extends Service {
             }
         }
         remoteFolder.open(OpenMode.READ_WRITE);
+        phases.split("open");
 
         // 3. Trash any remote messages that are marked as trashed locally.
         // TODO - this comment was here, but no code was here.
@@ -1430,13 +1429,29 @@ public class ImapService extends Service {
         mailbox.updateMessageCount(context, remoteMessageCount);
 
         // 6. Get all message Ids in our sync window:
-        Message[] remoteMessages;
-        remoteMessages = remoteFolder.getMessages(0, endDate, null);
+        Message[] remoteMessages = null;
+        // For a quick sync by sequence range, the first sequence number asked for, and the
+        // lowest uid returned; flags and deletions are only checked from that uid up.
+        int quickSyncFirst = 0;
+        long quickSyncFloorUid = -1;
+        if (quickSyncCount > 0 && remoteMessageCount > 0) {
+            quickSyncFirst = Math.max(1, remoteMessageCount - quickSyncCount + 1);
+            remoteMessages = remoteFolder.getMessages(quickSyncFirst, remoteMessageCount, null);
+            quickSyncFloorUid = getLowestUid(remoteMessages);
+            if (quickSyncFloorUid < 0) {
+                remoteMessages = null;
+            }
+        }
+        if (remoteMessages == null) {
+            remoteMessages = remoteFolder.getMessages(0, endDate, null);
+            SyncWindowPlanner.recordSearch(mailbox.mId, remoteMessages.length, now - endDate,
+                    now);
+        }
         LogUtils.d(Logging.LOG_TAG, "received " + remoteMessages.length + " messages");
 
         // 7. See if we need any additional messages beyond our date query range results.
-        // If we do, keep increasing the size of our query window until we have
-        // enough, or until we have all messages in the mailbox.
+        // If we do, extend our query window by as much as the planner expects to hold enough
+        // messages, and keep extending until we have enough or have reached time zero.
         int totalCountNeeded;
         if (loadMore) {
             totalCountNeeded = remoteMessages.length + LOAD_MORE_MIN_INCREMENT;
@@ -1453,9 +1468,11 @@ public class ImapService extends Service {
             LogUtils.d(Logging.LOG_TAG, "trying to get " + additionalMessagesNeeded + " more");
             long startDate = endDate - 1;
             Message[] additionalMessages = new Message[0];
-            long windowIncreaseSize = INITIAL_WINDOW_SIZE_INCREASE;
+            long extension = 0;
             while (additionalMessages.length < additionalMessagesNeeded && endDate > 0) {
-                endDate = endDate - windowIncreaseSize;
+                extension = SyncWindowPlanner.planExtension(mailbox.mId,
+                        additionalMessagesNeeded, additionalMessages.length, extension);
+                endDate = startDate + 1 - extension;
                 if (endDate < 0) {
                     LogUtils.d(Logging.LOG_TAG, "window size too large, this is the last attempt");
                     endDate = 0;
@@ -1463,12 +1480,10 @@ public class ImapService extends Service {
                 LogUtils.d(Logging.LOG_TAG,
                         "requesting additional messages from range " + startDate + " - " + endDate);
                 additionalMessages = remoteFolder.getMessages(startDate, endDate, null);
-
-                // If don't get enough messages with the first window size expansion,
-                // we need to accelerate rate at which the window expands. Otherwise,
-                // if there were no messages for several weeks, we'd always end up
-                // performing dozens of queries.
-                windowIncreaseSize *= 2;
+            }
+            if (endDate > 0) {
+                SyncWindowPlanner.recordSearch(mailbox.mId, additionalMessages.length,
+                        extension, now);
             }
 
             LogUtils.d(Logging.LOG_TAG, "additionalMessages " + additionalMessages.length);
@@ -1496,6 +1511,7 @@ public class ImapService extends Service {
                     allMessages, remoteMessages.length, additionalToKeep);
             remoteMessages = allMessages;
         }
+        phases.split("search");
 
         // 8. Get the all of the local messages within the sync window, and create
         // an index of the uids.
@@ -1545,6 +1561,21 @@ public class ImapService extends Service {
             }
         }
 
+        // 8.5. A sequence range holds every new message only if it reaches back to a message
+        // we already have, since new messages always get higher uids. If it doesn't, more
+        // arrived than the planner expected, so search the quick date window after all.
+        if (quickSyncFloorUid >= 0) {
+            if (quickSyncFirst > 1 && getHighestUid(localMessageMap.keySet()) < quickSyncFloorUid) {
+                LogUtils.d(Logging.LOG_TAG, "quick sync range too short, searching window");
+                quickSyncFloorUid = -1;
+                remoteMessages = remoteFolder.getMessages(0, endDate, null);
+                SyncWindowPlanner.recordSearch(mailbox.mId, remoteMessages.length,
+                        now - endDate, now);
+            } else {
+                SyncWindowPlanner.recordSync(mailbox.mId, now);
+            }
+        }
+
         // 9. Get a list of the messages that are in the remote list but not on the
         // local store, or messages that are in the local store but failed to download
         // on the last sync. These are the new messages that we will download.
@@ -1567,13 +1598,14 @@ public class ImapService extends Service {
             // mFlagLoaded = PARTIAL -> message created, a "sane" amt of body has been loaded
             // mFlagLoaded = COMPLETE -> message body has been completely loaded
             // mFlagLoaded = DELETED -> message has been deleted
-            // Only the first two of these are "unsynced", so let's retrieve them
-            if (localMessage == null ||
-                    (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED) ||
-                    (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL)) {
+            // Only the first two of these are "unsynced", so let's retrieve them, unless their
+            // envelope is stored and only the body is waiting for BodyPrefetcher
+            if (localMessage == null || BodyPrefetcher.needsEnvelope(localMessage.mFlagLoaded,
+                    localMessage.mFlags)) {
                 unsyncedMessages.add(message);
             }
         }
+        phases.split("local");
 
         // 10. Download basic info about the new/unloaded messages (if any)
         /*
@@ -1584,6 +1616,7 @@ public class ImapService extends Service {
             downloadFlagAndEnvelope(context, account, mailbox, remoteFolder, unsyncedMessages,
                     localMessageMap, unseenMessages);
         }
+        phases.split("envelopes");
 
         // 11. Refresh the flags for any messages in the local store that we didn't just download.
         // TODO This is a bit wasteful because we're also updating any messages we already did get
@@ -1655,6 +1688,7 @@ public class ImapService extends Service {
                 }
             }
         }
+        phases.split("flags");
 
         // 12.5 Remove messages that are marked as deleted so that we drop them from the DB in the
         // next step
@@ -1668,38 +1702,34 @@ public class ImapService extends Service {
         // 13. Remove messages that are in the local store and in the current sync window,
         // but no longer on the remote store. Note that localMessageMap can contain messages
         // that are not actually in our sync window. We need to check the timestamp to ensure
-        // that it is before deleting.
+        // that it is before deleting. A sequence range covers every uid from its lowest up,
+        // whatever the dates.
+        final ArrayList<Long> deletedMessageIds = new ArrayList<Long>();
         for (final LocalMessageInfo info : localMessageMap.values()) {
+            final boolean inWindow = quickSyncFloorUid >= 0
+                    ? parseUid(info.mServerId) >= quickSyncFloorUid
+                    : info.mTimestamp >= endDate;
             // If this message is inside our sync window, and we cannot find it in our list
             // of remote messages, then we know it's been deleted from the server.
-            if (info.mTimestamp >= endDate && !remoteUidMap.containsKey(info.mServerId)) {
-                // Delete associated data (attachment files)
-                // Attachment & Body records are auto-deleted when we delete the Message record
-                AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId, info.mId);
-
-                // Delete the message itself
-                final Uri uriToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.CONTENT_URI, info.mId);
-                resolver.delete(uriToDelete, null, null);
-
-                // Delete extra rows (e.g. updated or deleted)
-                final Uri updateRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                resolver.delete(updateRowToDelete, null, null);
-                final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                resolver.delete(deleteRowToDelete, null, null);
+            if (inWindow && !remoteUidMap.containsKey(info.mServerId)) {
+                deletedMessageIds.add(info.mId);
             }
         }
+        deleteLocalMessages(resolver, deletedMessageIds);
 
-        loadUnsyncedMessages(context, account, remoteFolder, unsyncedMessages, mailbox);
+        // Bodies are fetched in the background so that the envelopes are available right away.
+        // This also resumes bodies left pending by an earlier run, e.g. when its budget ran out.
+        BodyPrefetcher.getInstance(context).requestPrefetch(account.mId);
 
         if (fullSync) {
             mailbox.updateLastFullSyncTime(context, SystemClock.elapsedRealtime());
         }
 
+        phases.split("deletions");
+
         // 14. Clean up and report results
         remoteFolder.close(false);
+        phases.stop();
     }
 
     private synchronized static void processImapFetchChanges(Context ctx, Account acct,
@@ -1807,10 +1837,10 @@ public class ImapService extends Service {
                 // mFlagLoaded = PARTIAL -> message created, a "sane" amt of body has been loaded
                 // mFlagLoaded = COMPLETE -> message body has been completely loaded
                 // mFlagLoaded = DELETED -> message has been deleted
-                // Only the first two of these are "unsynced", so let's retrieve them
-                if (localMessage == null ||
-                        (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED) ||
-                        (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL)) {
+                // Only the first two of these are "unsynced", so let's retrieve them, unless
+                // their envelope is stored and only the body is waiting for BodyPrefetcher
+                if (localMessage == null || BodyPrefetcher.needsEnvelope(
+                        localMessage.mFlagLoaded, localMessage.mFlags)) {
                     unsyncedMessages.add(remoteMessage);
                 }
             }
@@ -1862,34 +1892,22 @@ public class ImapService extends Service {
             }
 
             // 8.- Remove remote deleted messages
+            final ArrayList<Long> deletedMessageIds = new ArrayList<Long>();
             for (final Message remoteMessage : remoteMessages) {
                 if (remoteMessage.isSet(Flag.DELETED)) {
                     LocalMessageInfo info = localMessageMap.get(remoteMessage.getUid());
                     if (info == null) {
                         continue;
                     }
-
-                    // Delete associated data (attachment files)
-                    // Attachment & Body records are auto-deleted when we delete the Message record
-                    AttachmentUtilities.deleteAllAttachmentFiles(ctx, acct.mId, info.mId);
-
-                    // Delete the message itself
-                    final Uri uriToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, info.mId);
-                    resolver.delete(uriToDelete, null, null);
-
-                    // Delete extra rows (e.g. updated or deleted)
-                    final Uri updateRowToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                    resolver.delete(updateRowToDelete, null, null);
-                    final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                    resolver.delete(deleteRowToDelete, null, null);
+                    deletedMessageIds.add(info.mId);
                 }
             }
+            deleteLocalMessages(resolver, deletedMessageIds);
 
-            // 9.- Load unsynced messages
-            loadUnsyncedMessages(ctx, acct, remoteFolder, unsyncedMessages, mailbox);
+            // 9.- Load unsynced messages in the background
+            if (!unsyncedMessages.isEmpty()) {
+                BodyPrefetcher.getInstance(ctx).requestPrefetch(acct.mId);
+            }
 
             // 10. Remove messages that are in the local store but no in the current sync window
             int syncLookBack = mailbox.mSyncLookback == SyncWindow.SYNC_WINDOW_ACCOUNT
@@ -1898,28 +1916,15 @@ public class ImapService extends Service {
             long endDate = System.currentTimeMillis() -
                     (SyncWindow.toDays(syncLookBack) * DateUtils.DAY_IN_MILLIS);
             LogUtils.d(Logging.LOG_TAG, "full sync: original window: now - " + endDate);
+            deletedMessageIds.clear();
             for (final LocalMessageInfo info : localMessageMap.values()) {
                 // If this message is inside our sync window, and we cannot find it in our list
                 // of remote messages, then we know it's been deleted from the server.
                 if (info.mTimestamp < endDate) {
-                    // Delete associated data (attachment files)
-                    // Attachment & Body records are auto-deleted when we delete the Message record
-                    AttachmentUtilities.deleteAllAttachmentFiles(ctx, acct.mId, info.mId);
-
-                    // Delete the message itself
-                    final Uri uriToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, info.mId);
-                    resolver.delete(uriToDelete, null, null);
-
-                    // Delete extra rows (e.g. updated or deleted)
-                    final Uri updateRowToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                    resolver.delete(updateRowToDelete, null, null);
-                    final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                    resolver.delete(deleteRowToDelete, null, null);
+                    deletedMessageIds.add(info.mId);
                 }
             }
+            deleteLocalMessages(resolver, deletedMessageIds);
 
             // Clear authentication notification for this account
             nc.cancelLoginFailedNotification(acct.mId);
@@ -1974,15 +1979,21 @@ public class ImapService extends Service {
             throws MessagingException {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
         String[] accountIdArgs = new String[] { Long.toString(account.mId) };
+        // Folders stay open from one delete or update to the next, and are closed at the end
+        final ImapFolderSessions sessions = new ImapFolderSessions(remoteStore);
+        try {
+            // Handle deletes first, it's always better to get rid of things first
+            processPendingDeletesSynchronous(context, account, sessions, accountIdArgs);
 
-        // Handle deletes first, it's always better to get rid of things first
-        processPendingDeletesSynchronous(context, account, remoteStore, accountIdArgs);
-
-        // Handle uploads (currently, only to sent messages)
-        processPendingUploadsSynchronous(context, account, remoteStore, accountIdArgs, manualSync);
+            // Handle uploads (currently, only to sent messages)
+            processPendingUploadsSynchronous(context, account, remoteStore, accountIdArgs,
+                    manualSync);
 
-        // Now handle updates / upsyncs
-        processPendingUpdatesSynchronous(context, account, remoteStore, accountIdArgs);
+            // Now handle updates / upsyncs
+            processPendingUpdatesSynchronous(context, account, sessions, accountIdArgs);
+        } finally {
+            sessions.close();
+        }
     }
 
     /**
@@ -2031,7 +2042,7 @@ public class ImapService extends Service {
      * we can deal with, and do the work.
      */
     private static void processPendingDeletesSynchronous(Context context, Account account,
-            Store remoteStore, String[] accountIdArgs) {
+            ImapFolderSessions sessions, String[] accountIdArgs) {
         Cursor deletes = context.getContentResolver().query(
                 EmailContent.Message.DELETED_CONTENT_URI,
                 EmailContent.Message.CONTENT_PROJECTION,
@@ -2056,7 +2067,7 @@ public class ImapService extends Service {
                     // Dispatch here for specific change types
                     if (deleteFromTrash) {
                         // Move message to trash
-                        processPendingDeleteFromTrash(remoteStore, mailbox, oldMessage);
+                        processPendingDeleteFromTrash(sessions, mailbox, oldMessage);
                     }
 
                     // Finally, delete the update
@@ -2160,7 +2171,7 @@ public class ImapService extends Service {
      * we can deal with, and do the work.
      */
     private static void processPendingUpdatesSynchronous(Context context, Account account,
-            Store remoteStore, String[] accountIdArgs) {
+            ImapFolderSessions sessions, String[] accountIdArgs) {
         ContentResolver resolver = context.getContentResolver();
         Cursor updates = resolver.query(EmailContent.Message.UPDATED_CONTENT_URI,
                 EmailContent.Message.CONTENT_PROJECTION,
@@ -2201,20 +2212,13 @@ public class ImapService extends Service {
                             (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO);
                 }
 
-                // Load the remote store if it will be needed
-                if (remoteStore == null &&
-                        (changeMoveToTrash || changeRead || changeFlagged || changeMailbox ||
-                                changeAnswered)) {
-                    remoteStore = Store.getInstance(account, context);
-                }
-
                 // Dispatch here for specific change types
                 if (changeMoveToTrash) {
                     // Move message to trash
-                    processPendingMoveToTrash(context, remoteStore, mailbox, oldMessage,
+                    processPendingMoveToTrash(context, sessions, mailbox, oldMessage,
                             newMessage);
                 } else if (changeRead || changeFlagged || changeMailbox || changeAnswered) {
-                    processPendingDataChange(context, remoteStore, mailbox, changeRead,
+                    processPendingDataChange(context, sessions, mailbox, changeRead,
                             changeFlagged, changeMailbox, changeAnswered, oldMessage, newMessage);
                 }
 
@@ -2287,7 +2291,7 @@ public class ImapService extends Service {
     /**
      * Upsync changes to read, flagged, or mailbox
      *
-     * @param remoteStore the remote store for this mailbox
+     * @param sessions the remote folders of this sync
      * @param mailbox the mailbox the message is stored in
      * @param changeRead whether the message's read state has changed
      * @param changeFlagged whether the message's flagged state has changed
@@ -2295,9 +2299,10 @@ public class ImapService extends Service {
      * @param oldMessage the message in it's pre-change state
      * @param newMessage the current version of the message
      */
-    private static void processPendingDataChange(final Context context, Store remoteStore,
-            Mailbox mailbox, boolean changeRead, boolean changeFlagged, boolean changeMailbox,
-            boolean changeAnswered, EmailContent.Message oldMessage,
+    private static void processPendingDataChange(final Context context,
+            ImapFolderSessions sessions, Mailbox mailbox, boolean changeRead,
+            boolean changeFlagged, boolean changeMailbox, boolean changeAnswered,
+            EmailContent.Message oldMessage,
             final EmailContent.Message newMessage) throws MessagingException {
         // New mailbox is the mailbox this message WILL be in (same as the one it WAS in if it isn't
         // being moved
@@ -2316,13 +2321,9 @@ public class ImapService extends Service {
             return;
         }
 
-        // 2. Open the remote store & folder
-        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
+        // 2. Open the remote folder, unless it's still open from an earlier change
+        final Folder remoteFolder = sessions.open(mailbox.mServerId);
+        if (remoteFolder == null) {
             return;
         }
 
@@ -2352,10 +2353,7 @@ public class ImapService extends Service {
                     (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0);
         }
         if (changeMailbox) {
-            Folder toFolder = remoteStore.getFolder(newMailbox.mServerId);
-            if (!remoteFolder.exists()) {
-                return;
-            }
+            Folder toFolder = sessions.getFolder(newMailbox.mServerId);
             // We may need the message id to search for the message in the destination folder
             remoteMessage.setMessageId(newMessage.mMessageId);
             // Copy the message to its new folder
@@ -2375,22 +2373,20 @@ public class ImapService extends Service {
                 }
             });
             // Delete the message from the remote source folder
-            remoteMessage.setFlag(Flag.DELETED, true);
-            remoteFolder.expunge();
+            sessions.deleteMessage(mailbox.mServerId, remoteMessage);
         }
-        remoteFolder.close(false);
     }
 
     /**
      * Process a pending trash message command.
      *
-     * @param remoteStore the remote store we're working in
+     * @param sessions the remote folders of this sync
      * @param newMailbox The local trash mailbox
      * @param oldMessage The message copy that was saved in the updates shadow table
      * @param newMessage The message that was moved to the mailbox
      */
-    private static void processPendingMoveToTrash(final Context context, Store remoteStore,
-            Mailbox newMailbox, EmailContent.Message oldMessage,
+    private static void processPendingMoveToTrash(final Context context,
+            ImapFolderSessions sessions, Mailbox newMailbox, EmailContent.Message oldMessage,
             final EmailContent.Message newMessage) throws MessagingException {
 
         // 0. No remote move if the message is local-only
@@ -2413,44 +2409,27 @@ public class ImapService extends Service {
 
         // The rest of this method handles server-side deletion
 
-        // 4.  Find the remote mailbox (that we deleted from), and open it
-        Folder remoteFolder = remoteStore.getFolder(oldMailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
-
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteFolder.close(false);
+        // 4.  Find the remote mailbox (that we deleted from), and open it if it isn't already
+        final Folder remoteFolder = sessions.open(oldMailbox.mServerId);
+        if (remoteFolder == null) {
             return;
         }
 
         // 5. Find the remote original message
         Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
         if (remoteMessage == null) {
-            remoteFolder.close(false);
             return;
         }
 
         // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            /*
-             * If the remote trash folder doesn't exist we try to create it.
-             */
-            remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
-        }
-
         // 7. Try to copy the message into the remote trash folder
         // Note, this entire section will be skipped for POP3 because there's no remote trash
-        if (remoteTrashFolder.exists()) {
+        if (sessions.exists(newMailbox.mServerId, true)) {
             /*
              * Because remoteTrashFolder may be new, we need to explicitly open it
              */
-            remoteTrashFolder.open(OpenMode.READ_WRITE);
-            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-                remoteFolder.close(false);
-                remoteTrashFolder.close(false);
+            final Folder remoteTrashFolder = sessions.open(newMailbox.mServerId);
+            if (remoteTrashFolder == null) {
                 return;
             }
 
@@ -2475,23 +2454,21 @@ public class ImapService extends Service {
                     context.getContentResolver().delete(newMessage.getUri(), null, null);
                 }
             });
-            remoteTrashFolder.close(false);
         }
 
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteFolder.expunge();
-        remoteFolder.close(false);
+        // 8. Delete the message from the remote source folder; it's expunged when the folder is
+        // closed at the end of the sync
+        sessions.deleteMessage(oldMailbox.mServerId, remoteMessage);
     }
 
     /**
      * Process a pending trash message command.
      *
-     * @param remoteStore the remote store we're working in
+     * @param sessions the remote folders of this sync
      * @param oldMailbox The local trash mailbox
      * @param oldMessage The message that was deleted from the trash
      */
-    private static void processPendingDeleteFromTrash(Store remoteStore,
+    private static void processPendingDeleteFromTrash(ImapFolderSessions sessions,
             Mailbox oldMailbox, EmailContent.Message oldMessage)
             throws MessagingException {
 
@@ -2500,29 +2477,22 @@ public class ImapService extends Service {
             return;
         }
 
-        // 2.  Find the remote trash folder (that we are deleting from), and open it
-        Folder remoteTrashFolder = remoteStore.getFolder(oldMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            return;
-        }
-
-        remoteTrashFolder.open(OpenMode.READ_WRITE);
-        if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteTrashFolder.close(false);
+        // 2.  Find the remote trash folder (that we are deleting from), and open it if it
+        // isn't already
+        final Folder remoteTrashFolder = sessions.open(oldMailbox.mServerId);
+        if (remoteTrashFolder == null) {
             return;
         }
 
         // 3. Find the remote original message
         Message remoteMessage = remoteTrashFolder.getMessage(oldMessage.mServerId);
         if (remoteMessage == null) {
-            remoteTrashFolder.close(false);
             return;
         }
 
-        // 4. Delete the message from the remote trash folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteTrashFolder.expunge();
-        remoteTrashFolder.close(false);
+        // 4. Delete the message from the remote trash folder; it's expunged with the others
+        // when the folder is closed at the end of the sync
+        sessions.deleteMessage(oldMailbox.mServerId, remoteMessage);
     }
 
     /**
@@ -2567,16 +2537,13 @@ public class ImapService extends Service {
             // TODO:
             // if we have a serverId and remoteMessage is still null, then probably the message
             // has been deleted and we should delete locally.
-            // 3a. Create a legacy message to upload
-            Message localMessage = LegacyConversions.makeMessage(context, message);
-            // 3b. Upload it
-            //FetchProfile fp = new FetchProfile();
-            //fp.add(FetchProfile.Item.BODY);
-            // Note that this operation will assign the Uid to localMessage
-            remoteFolder.appendMessage(context, localMessage, manualSync /* no timeout */);
+            // 3a. Upload it, streaming the message straight from the provider
+            // Note that this operation returns the Uid the server assigned
+            final String uid = ((ImapFolder) remoteFolder).appendMessage(context, message,
+                    manualSync /* no timeout */);
 
             // 3b. And record the UID from the server
-            message.mServerId = localMessage.getUid();
+            message.mServerId = uid;
             updateInternalDate = true;
             updateMessage = true;
         } else {
@@ -2598,20 +2565,15 @@ public class ImapService extends Service {
             } else {
                 // 4b. Otherwise we'll upload our message and then delete the remote message.
 
-                // Create a legacy message to upload
                 // TODO: This strategy has a problem: This will create a second message,
                 // so that at least temporarily, we will have two messages for what the
                 // user would think of as one.
-                Message localMessage = LegacyConversions.makeMessage(context, message);
-
                 // 4c. Upload it
-                fp.clear();
-                fp = new FetchProfile();
-                fp.add(FetchProfile.Item.BODY);
-                remoteFolder.appendMessage(context, localMessage, manualSync /* no timeout */);
+                final String uid = ((ImapFolder) remoteFolder).appendMessage(context, message,
+                        manualSync /* no timeout */);
 
                 // 4d. Record the UID and new internalDate from the server
-                message.mServerId = localMessage.getUid();
+                message.mServerId = uid;
                 updateInternalDate = true;
                 updateMessage = true;
 
@@ -2656,6 +2618,68 @@ public class ImapService extends Service {
         return true;
     }
 
+    /**
+     * @return the numeric value of an IMAP uid, or -1 if it isn't one
+     */
+    private static long parseUid(final String uid) {
+        try {
+            return Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the lowest uid of some messages, or -1 if there are none or one isn't numeric
+     */
+    private static long getLowestUid(final Message[] messages) {
+        long lowest = -1;
+        for (final Message message : messages) {
+            final long uid = parseUid(message.getUid());
+            if (uid < 0) {
+                return -1;
+            }
+            if (lowest < 0 || uid < lowest) {
+                lowest = uid;
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * @return the highest numeric uid of some uids, or -1 if there are none
+     */
+    private static long getHighestUid(final Collection<String> uids) {
+        long highest = -1;
+        for (final String uid : uids) {
+            highest = Math.max(highest, parseUid(uid));
+        }
+        return highest;
+    }
+
+    /** How many messages {@link #deleteLocalMessages} deletes with each statement */
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    /**
+     * Delete local messages, with their rows in the updated and deleted tables.  Attachment &
+     * Body records are auto-deleted with them, and their files are deleted in the background.
+     * Messages are deleted a chunk at a time, so that the provider recounts their mailboxes
+     * once per chunk rather than once per message.
+     */
+    private static void deleteLocalMessages(final ContentResolver resolver,
+            final List<Long> messageIds) {
+        for (int start = 0; start < messageIds.size(); start += DELETE_CHUNK_SIZE) {
+            final List<Long> chunk = messageIds.subList(start,
+                    Math.min(start + DELETE_CHUNK_SIZE, messageIds.size()));
+            final String selection =
+                    MessageColumns._ID + " IN (" + TextUtils.join(",", chunk) + ")";
+            resolver.delete(EmailContent.Message.CONTENT_URI, selection, null);
+            // Delete extra rows (e.g. updated or deleted)
+            resolver.delete(EmailContent.Message.UPDATED_CONTENT_URI, selection, null);
+            resolver.delete(EmailContent.Message.DELETED_CONTENT_URI, selection, null);
+        }
+    }
+
     /**
      * A message and numeric uid that's easily sortable
      */
@@ -2669,6 +2693,114 @@ public class ImapService extends Service {
         }
     }
 
+    private static final String[] SEARCH_LOCAL_PROJECTION = new String[] {
+            MessageColumns._ID, SyncColumns.SERVER_ID, MessageColumns.MAILBOX_KEY,
+            MessageColumns.FLAG_LOADED };
+
+    /**
+     * @return a selection of messages whose server ids are among the given uids
+     */
+    private static String getUidSelection(final List<SortableMessage> messages) {
+        final StringBuilder sb = new StringBuilder(SyncColumns.SERVER_ID + " IN (");
+        for (int i = 0; i < messages.size(); i++) {
+            sb.append(i == 0 ? "'" : ",'").append(messages.get(i).mUid).append('\'');
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Delete the messages that earlier searches downloaded into the search mailbox, other than
+     * those that this search found again.
+     */
+    private static void pruneSearchCopies(final Context context, final Mailbox mailbox,
+            final long destMailboxId, final SortableMessage[] results) {
+        final String selection = MessageColumns.MAILBOX_KEY + "=" + destMailboxId;
+        if (results.length == 0) {
+            context.getContentResolver().delete(EmailContent.Message.CONTENT_URI, selection,
+                    null);
+            return;
+        }
+        context.getContentResolver().delete(EmailContent.Message.CONTENT_URI,
+                selection + " AND NOT (" + MessageColumns.MAIN_MAILBOX_KEY + "=" + mailbox.mId
+                        + " AND " + getUidSelection(Arrays.asList(results)) + ")", null);
+    }
+
+    /**
+     * Find the local messages for some search results: those synced into the mailbox searched,
+     * and those an earlier search downloaded into the search mailbox.  Downloads that didn't
+     * complete, and those that are now synced, are deleted.
+     *
+     * @return the ids of the local messages, by uid
+     */
+    private static HashMap<Long, Long> findLocalSearchResults(final Context context,
+            final Mailbox mailbox, final long destMailboxId, final List<SortableMessage> results) {
+        final HashMap<Long, Long> synced = new HashMap<>();
+        final HashMap<Long, Long> copies = new HashMap<>();
+        final ArrayList<Long> staleCopies = new ArrayList<>();
+        final Cursor c = context.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                SEARCH_LOCAL_PROJECTION, MessageColumns.ACCOUNT_KEY + "=" + mailbox.mAccountKey
+                        + " AND (" + MessageColumns.MAILBOX_KEY + "=" + mailbox.mId + " OR ("
+                        + MessageColumns.MAILBOX_KEY + "=" + destMailboxId + " AND "
+                        + MessageColumns.MAIN_MAILBOX_KEY + "=" + mailbox.mId + ")) AND "
+                        + getUidSelection(results), null, null);
+        if (c == null) {
+            return synced;
+        }
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(0);
+                final long uid;
+                try {
+                    uid = Long.parseLong(c.getString(1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                final int flagLoaded = c.getInt(3);
+                if (c.getLong(2) == mailbox.mId) {
+                    // Messages without envelopes aren't listed
+                    if (flagLoaded == EmailContent.Message.FLAG_LOADED_COMPLETE
+                            || flagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL) {
+                        synced.put(uid, id);
+                    }
+                } else if (flagLoaded == EmailContent.Message.FLAG_LOADED_COMPLETE) {
+                    copies.put(uid, id);
+                } else {
+                    staleCopies.add(id);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        for (final Long uid : copies.keySet()) {
+            if (synced.containsKey(uid)) {
+                staleCopies.add(copies.get(uid));
+            } else {
+                synced.put(uid, copies.get(uid));
+            }
+        }
+        if (!staleCopies.isEmpty()) {
+            context.getContentResolver().delete(EmailContent.Message.CONTENT_URI,
+                    MessageColumns._ID + " IN (" + TextUtils.join(",", staleCopies) + ")", null);
+        }
+        return synced;
+    }
+
+    private static void addSearchResults(final Context context, final long destMailboxId,
+            final Collection<Long> messageIds) {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        final ContentValues[] values = new ContentValues[messageIds.size()];
+        int i = 0;
+        for (final Long messageId : messageIds) {
+            values[i] = new ContentValues(2);
+            values[i].put(SearchResult.MAILBOX_KEY, destMailboxId);
+            values[i].put(SearchResult.MESSAGE_KEY, messageId);
+            i++;
+        }
+        context.getContentResolver().bulkInsert(SearchResult.CONTENT_URI, values);
+    }
+
     private static int searchMailboxImpl(final Context context, final long accountId,
             final SearchParams searchParams, final long destMailboxId) throws MessagingException {
         final Account account = Account.restoreAccountWithId(context, accountId);
@@ -2715,6 +2847,7 @@ public class ImapService extends Service {
                     });
                     sSearchResults.put(accountId, sortableMessages);
                 }
+                pruneSearchCopies(context, mailbox, destMailboxId, sortableMessages);
             } else {
                 // It seems odd for this to happen, but if the previous query returned zero results,
                 // but the UI somehow still attempted to load more, then sSearchResults will have
@@ -2730,9 +2863,24 @@ public class ImapService extends Service {
                 return 0;
             }
 
+            // Messages that are already stored locally are only referred to; the others are
+            // downloaded into the search mailbox
+            final List<SortableMessage> page = Arrays.asList(sortableMessages).subList(
+                    searchParams.mOffset, numToLoad + searchParams.mOffset);
+            final HashMap<Long, Long> localMessages =
+                    findLocalSearchResults(context, mailbox, destMailboxId, page);
+            addSearchResults(context, destMailboxId, localMessages.values());
+            Metrics.counter("sync.search.referenced").add(localMessages.size());
+
             final ArrayList<Message> messageList = new ArrayList<>();
-            for (int i = searchParams.mOffset; i < numToLoad + searchParams.mOffset; i++) {
-                messageList.add(sortableMessages[i].mMessage);
+            for (final SortableMessage result : page) {
+                if (!localMessages.containsKey(result.mUid)) {
+                    messageList.add(result.mMessage);
+                }
+            }
+            Metrics.counter("sync.search.downloaded").add(messageList.size());
+            if (messageList.isEmpty()) {
+                return numSearchResults;
             }
             // First fetch FLAGS and ENVELOPE. In a second pass, we'll fetch STRUCTURE and
             // the first body part.
@@ -2777,6 +2925,8 @@ public class ImapService extends Service {
                         localMessage.mProtocolSearchInfo = mailbox.mServerId;
                         // Commit the message to the local store
                         Utilities.saveOrUpdate(localMessage, context);
+                        addSearchResults(context, destMailboxId,
+                                Collections.singletonList(localMessage.mId));
                     } catch (MessagingException me) {
                         LogUtils.e(Logging.LOG_TAG, me,
                                 "Error while copying downloaded message.");
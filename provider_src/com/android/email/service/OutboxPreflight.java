@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.utility.Utility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Checks, before a send, which messages of an outbox have all of their attachments at hand.
+ *
+ * The attachments of the whole outbox are loaded with one query, rather than one per message,
+ * and their files are checked with a stat rather than opened (see
+ * {@link Utility#hasUnloadedAttachments(Context, long, int, Attachment[])}).  The result for
+ * each message is kept, so that it's worked out once however often it's asked for during the
+ * send.  A preflight is only good for one pass over the outbox; attachments may be downloaded
+ * in the meantime.
+ */
+public class OutboxPreflight {
+    private static final Attachment[] NO_ATTACHMENTS = new Attachment[0];
+
+    private static final String OUTBOX_ATTACHMENT_SELECTION = AttachmentColumns.MESSAGE_KEY
+            + " IN (SELECT " + MessageColumns._ID + " FROM " + Message.TABLE_NAME + " WHERE "
+            + MessageColumns.MAILBOX_KEY + "=?)";
+
+    private final Context mContext;
+    private final long mAccountId;
+    private final HashMap<Long, List<Attachment>> mAttachments;
+    private final HashMap<Long, Boolean> mReady = new HashMap<Long, Boolean>();
+
+    private OutboxPreflight(final Context context, final long accountId,
+            final HashMap<Long, List<Attachment>> attachments) {
+        mContext = context;
+        mAccountId = accountId;
+        mAttachments = attachments;
+    }
+
+    /**
+     * Load the attachments of every message in an outbox.
+     * @param context the caller's context
+     * @param accountId the id of the outbox's account
+     * @param outboxId the id of the outbox
+     */
+    public static OutboxPreflight load(final Context context, final long accountId,
+            final long outboxId) {
+        final HashMap<Long, List<Attachment>> attachments =
+                new HashMap<Long, List<Attachment>>();
+        final Cursor c = context.getContentResolver().query(Attachment.CONTENT_URI,
+                Attachment.CONTENT_PROJECTION, OUTBOX_ATTACHMENT_SELECTION,
+                new String[] { Long.toString(outboxId) }, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    final Attachment attachment = new Attachment();
+                    attachment.restore(c);
+                    List<Attachment> list = attachments.get(attachment.mMessageKey);
+                    if (list == null) {
+                        list = new ArrayList<Attachment>();
+                        attachments.put(attachment.mMessageKey, list);
+                    }
+                    list.add(attachment);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return new OutboxPreflight(context, accountId, attachments);
+    }
+
+    /**
+     * Check whether a message of the outbox can be sent, i.e. that none of its attachments is
+     * still to be loaded.  As {@link Utility#hasUnloadedAttachments(Context, long)} does, this
+     * drops attachments that are missing and won't ever be downloaded.
+     * @param messageId the id of the message
+     * @param messageFlags the message's flags
+     * @return whether the message is ready to send
+     */
+    public boolean isReadyToSend(final long messageId, final int messageFlags) {
+        Boolean ready = mReady.get(messageId);
+        if (ready == null) {
+            final List<Attachment> list = mAttachments.get(messageId);
+            ready = list == null || !Utility.hasUnloadedAttachments(mContext, mAccountId,
+                    messageFlags, list.toArray(NO_ATTACHMENTS));
+            mReady.put(messageId, ready);
+        }
+        return ready;
+    }
+
+    /**
+     * @return the number of attachments in the outbox
+     */
+    public int getAttachmentCount() {
+        int count = 0;
+        for (final List<Attachment> list : mAttachments.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+}
@@ -29,6 +29,7 @@ import android.os.IBinder;
 import android.os.RemoteException;
 
 import com.android.email.DebugUtils;
+import com.android.email.Metrics;
 import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.mail.Store;
@@ -51,7 +52,6 @@ import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
-import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.providers.UIProvider.AttachmentState;
 import com.android.mail.utils.LogUtils;
@@ -128,7 +128,9 @@ public class Pop3Service extends Service {
         final NotificationController nc =
                 NotificationControllerCreatorHolder.getInstance(context);
         try {
+            final long start = Metrics.now();
             synchronizePop3Mailbox(context, account, folder, deltaMessageCount);
+            Metrics.timer("sync.pop3.total").recordSince(start);
             // Clear authentication notification for this account
             if (nc != null) {
                 nc.cancelLoginFailedNotification(account.mId);
@@ -466,13 +468,8 @@ public class Pop3Service extends Service {
             LogUtils.d(Logging.LOG_TAG, "need to delete " + uidToDelete);
             LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
 
-            // Delete associated data (attachment files)
-            // Attachment & Body records are auto-deleted when we delete the
-            // Message record
-            AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId,
-                    infoToDelete.mId);
-
-            // Delete the message itself
+            // Delete the message itself; Attachment & Body records are auto-deleted with it,
+            // and their files are deleted in the background
             Uri uriToDelete = ContentUris.withAppendedId(
                     EmailContent.Message.CONTENT_URI, infoToDelete.mId);
             resolver.delete(uriToDelete, null, null);
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+
+/**
+ * Decides how much of a remote mailbox a sync should ask for, based on how quickly messages
+ * have been arriving in that mailbox.  The goal is to get the number of messages we want with a
+ * single SEARCH, rather than re-scanning busy folders or repeatedly widening the window on quiet
+ * ones.
+ *
+ * Statistics are kept in memory per mailbox id; until a mailbox has been searched at least once,
+ * the planner falls back to the fixed windows that ImapService used to use.
+ */
+public class SyncWindowPlanner {
+    /** IMAP date searches only look at the day, so no window is narrower than this. */
+    @VisibleForTesting
+    static final long MIN_WINDOW_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    /** Weight of the newest sample in the running arrival rate. */
+    private static final double RATE_SMOOTHING = 0.3;
+
+    /** Planned windows are widened by this factor so one search is usually enough. */
+    private static final double WINDOW_SLACK = 1.5;
+
+    /**
+     * Quick syncs expecting more than this many messages use a sequence range instead, unless
+     * more than this many are expected to be new.
+     */
+    @VisibleForTesting
+    static final int MAX_QUICK_SYNC_MESSAGES = 100;
+
+    /** The smallest sequence range a quick sync will ask for. */
+    @VisibleForTesting
+    static final int MIN_QUICK_SYNC_MESSAGES = 10;
+
+    private static class Stats {
+        /** Smoothed number of messages arriving per day. */
+        double mRatePerDay;
+        /** Wall clock time of the last sync that updated these stats. */
+        long mLastSyncTime;
+    }
+
+    private static final HashMap<Long, Stats> sStats = new HashMap<Long, Stats>();
+
+    /**
+     * Record the result of a date search.
+     * @param mailboxId the mailbox that was searched
+     * @param found the number of messages the search returned
+     * @param windowMillis how far back the search went
+     * @param now the current wall clock time
+     */
+    public static synchronized void recordSearch(final long mailboxId, final int found,
+            final long windowMillis, final long now) {
+        if (windowMillis <= 0) {
+            return;
+        }
+        // The server matches whole days, so on average the search covered half a day more.
+        final double days = (double) (windowMillis + MIN_WINDOW_MILLIS / 2)
+                / DateUtils.DAY_IN_MILLIS;
+        final double sample = found / days;
+        Stats stats = sStats.get(mailboxId);
+        if (stats == null) {
+            stats = new Stats();
+            stats.mRatePerDay = sample;
+            sStats.put(mailboxId, stats);
+        } else {
+            stats.mRatePerDay += RATE_SMOOTHING * (sample - stats.mRatePerDay);
+        }
+        stats.mLastSyncTime = now;
+        LogUtils.d(Logging.LOG_TAG, "SyncWindowPlanner: mailbox %d found %d in %.1f days, "
+                + "rate now %.2f/day", mailboxId, found, days, stats.mRatePerDay);
+    }
+
+    /**
+     * Record that a sync which did not do a date search has completed.
+     */
+    public static synchronized void recordSync(final long mailboxId, final long now) {
+        final Stats stats = sStats.get(mailboxId);
+        if (stats != null) {
+            stats.mLastSyncTime = now;
+        }
+    }
+
+    /**
+     * @return the smoothed arrival rate in messages per day, or a negative number if unknown
+     */
+    public static synchronized double getArrivalRatePerDay(final long mailboxId) {
+        final Stats stats = sStats.get(mailboxId);
+        return stats == null ? -1 : stats.mRatePerDay;
+    }
+
+    /**
+     * Plan a quick sync.  For folders busy enough that a quick date window would return more than
+     * {@link #MAX_QUICK_SYNC_MESSAGES}, it is cheaper to ask for the most recent messages by
+     * sequence number, sized to what is expected to have arrived since the last sync.  If more
+     * than that many are expected to have arrived, the date window is used after all; the caller
+     * must also fall back to it if the range doesn't reach back to messages it already has.
+     *
+     * @param mailboxId the mailbox being synced
+     * @param quickWindowMillis the date window a quick sync would otherwise use
+     * @param now the current wall clock time
+     * @return how many of the newest messages to request, or 0 to use the date window
+     */
+    public static synchronized int planQuickSync(final long mailboxId,
+            final long quickWindowMillis, final long now) {
+        final Stats stats = sStats.get(mailboxId);
+        if (stats == null) {
+            LogUtils.d(Logging.LOG_TAG, "SyncWindowPlanner: mailbox %d no stats, date window",
+                    mailboxId);
+            return 0;
+        }
+        final double expected = stats.mRatePerDay
+                * (quickWindowMillis + MIN_WINDOW_MILLIS / 2) / DateUtils.DAY_IN_MILLIS;
+        if (expected <= MAX_QUICK_SYNC_MESSAGES) {
+            LogUtils.d(Logging.LOG_TAG, "SyncWindowPlanner: mailbox %d expects %.0f, date window",
+                    mailboxId, expected);
+            return 0;
+        }
+        final long sinceLastSync = Math.max(0, now - stats.mLastSyncTime);
+        final double arrived = stats.mRatePerDay * sinceLastSync / DateUtils.DAY_IN_MILLIS;
+        final double wanted = Math.ceil(arrived * WINDOW_SLACK);
+        if (wanted > MAX_QUICK_SYNC_MESSAGES) {
+            // Too long since the last sync to trust a short range to hold all the new mail
+            LogUtils.d(Logging.LOG_TAG, "SyncWindowPlanner: mailbox %d expects %.0f new, "
+                    + "date window", mailboxId, wanted);
+            return 0;
+        }
+        final int count = (int) Math.max(MIN_QUICK_SYNC_MESSAGES, wanted);
+        LogUtils.d(Logging.LOG_TAG, "SyncWindowPlanner: mailbox %d expects %.0f, "
+                + "requesting newest %d", mailboxId, expected, count);
+        return count;
+    }
+
+    /**
+     * Plan how far to extend a search window to find more (older) messages.
+     *
+     * @param mailboxId the mailbox being synced
+     * @param needed how many additional messages we want
+     * @param found how many additional messages the previous extension found
+     * @param searchedMillis how far the previous extension reached, or 0 if none yet
+     * @return the total extension, in milliseconds, for the next search
+     */
+    public static synchronized long planExtension(final long mailboxId, final int needed,
+            final int found, final long searchedMillis) {
+        double ratePerDay;
+        if (searchedMillis > 0 && found > 0) {
+            // What we just saw is a better guide than the long-term rate.
+            ratePerDay = (double) found * DateUtils.DAY_IN_MILLIS / searchedMillis;
+        } else {
+            final Stats stats = sStats.get(mailboxId);
+            ratePerDay = stats == null ? 0 : stats.mRatePerDay;
+        }
+        long window = MIN_WINDOW_MILLIS;
+        if (ratePerDay > 0) {
+            window = (long) (needed * WINDOW_SLACK / ratePerDay * DateUtils.DAY_IN_MILLIS);
+        }
+        // Never grow more slowly than the doubling we used to do.
+        window = Math.max(window, Math.max(MIN_WINDOW_MILLIS, searchedMillis * 2));
+        LogUtils.d(Logging.LOG_TAG, "SyncWindowPlanner: mailbox %d need %d, rate %.2f/day, "
+                + "extending %.1f days", mailboxId, needed, ratePerDay,
+                (double) window / DateUtils.DAY_IN_MILLIS);
+        return window;
+    }
+
+    @VisibleForTesting
+    static synchronized void clearForTest() {
+        sStats.clear();
+    }
+}
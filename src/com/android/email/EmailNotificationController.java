@@ -31,6 +31,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
@@ -54,6 +55,7 @@ import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.NotificationUtils;
 
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -81,9 +83,10 @@ public class EmailNotificationController implements NotificationController {
     private final Context mContext;
     private final NotificationManager mNotificationManager;
     private final Clock mClock;
-    /** Maps account id to its observer */
-    private final Map<Long, ContentObserver> mNotificationMap =
-            new HashMap<Long, ContentObserver>();
+    /** The accounts whose message changes we're notifying about */
+    private final Set<Long> mNotifiedAccounts = new HashSet<Long>();
+    /** The single observer routing message changes to {@link #mNotifiedAccounts} */
+    private ContentObserver mMessageObserver;
     private ContentObserver mAccountObserver;
 
     /** Constructor */
@@ -215,13 +218,19 @@ public class EmailNotificationController implements NotificationController {
 
     private static final int NOTIFICATION_DELAYED_MESSAGE = 0;
     private static final long NOTIFICATION_DELAY = 2 * DateUtils.SECOND_IN_MILLIS;
+    /** The longest a stream of changes (i.e. a sync) can hold back an account's refresh */
+    private static final long NOTIFICATION_MAX_BATCH_DELAY = 10 * DateUtils.SECOND_IN_MILLIS;
     // True if accounts have changed and we need to refresh everything
     private static boolean sRefreshAllNeeded;
-    // Set of accounts we need to regenerate notifications for
-    private static final HashSet<Long> sRefreshAccountSet = new HashSet<Long>();
     // These should all be accessed on-thread, but just in case...
     private static final Object sNotificationDelayedMessageLock = new Object();
 
+    // Per account refresh batching and statistics; updated on the notification thread only
+    private static final Map<Long, AccountRefresh> sAccountRefreshes =
+            new HashMap<Long, AccountRefresh>();
+    private static int sMessageChangeCount;
+    private static int sIgnoredChangeCount;
+
     private static synchronized void ensureHandlerExists() {
         if (sNotificationThread == null) {
             sNotificationThread = new NotificationThread();
@@ -240,12 +249,7 @@ public class EmailNotificationController implements NotificationController {
                             if (sRefreshAllNeeded) {
                                 sRefreshAllNeeded = false;
                                 refreshAllNotificationsInternal(context);
-                            } else {
-                                for (final Long accountId : sRefreshAccountSet) {
-                                    refreshNotificationsForAccountInternal(context, accountId);
-                                }
                             }
-                            sRefreshAccountSet.clear();
                         }
                     }
                     return true;
@@ -255,11 +259,12 @@ public class EmailNotificationController implements NotificationController {
     }
 
     /**
-     * Registers an observer for changes to mailboxes in the given account.
+     * Starts notifying about changes to messages in the given account. A single observer of the
+     * message table is shared by all accounts; it is registered along with the first account.
      * NOTE: This must be called on the notification handler thread.
-     * @param accountId The ID of the account to register the observer for. May be
-     *                  {@link Account#ACCOUNT_ID_COMBINED_VIEW} to register observers for all
-     *                  accounts that allow for user notification.
+     * @param accountId The ID of the account to watch. May be
+     *                  {@link Account#ACCOUNT_ID_COMBINED_VIEW} to watch all accounts that allow
+     *                  for user notification.
      */
     private void registerMessageNotification(final long accountId) {
         ContentResolver resolver = mContext.getContentResolver();
@@ -276,41 +281,40 @@ public class EmailNotificationController implements NotificationController {
                 c.close();
             }
         } else {
-            ContentObserver obs = mNotificationMap.get(accountId);
-            if (obs != null) return;  // we're already observing; nothing to do
+            if (!mNotifiedAccounts.add(accountId)) return;  // already watching; nothing to do
             LogUtils.i(LOG_TAG, "Registering for notifications for account " + accountId);
-            ContentObserver observer = new MessageContentObserver(
-                    sNotificationHandler, mContext, accountId);
-            resolver.registerContentObserver(Message.NOTIFIER_URI, true, observer);
-            mNotificationMap.put(accountId, observer);
-            // Now, ping the observer for any initial notifications
-            observer.onChange(true);
+            if (mMessageObserver == null) {
+                mMessageObserver = new MessageContentObserver(sNotificationHandler, mContext);
+                resolver.registerContentObserver(Message.NOTIFIER_URI, true, mMessageObserver);
+            }
+            // Now, refresh for any initial notifications
+            scheduleAccountRefresh(mContext, accountId, true);
         }
     }
 
     /**
-     * Unregisters the observer for the given account. If the specified account does not have
-     * a registered observer, no action is performed. This will not clear any existing notification
+     * Stops notifying about changes to messages in the given account. If the specified account
+     * isn't being watched, no action is performed. This will not clear any existing notification
      * for the specified account. Use {@link NotificationManager#cancel(int)}.
      * NOTE: This must be called on the notification handler thread.
-     * @param accountId The ID of the account to unregister from. To unregister all accounts that
-     *                  have observers, specify an ID of {@link Account#ACCOUNT_ID_COMBINED_VIEW}.
+     * @param accountId The ID of the account to stop watching. To stop watching all accounts,
+     *                  specify an ID of {@link Account#ACCOUNT_ID_COMBINED_VIEW}.
      */
     private void unregisterMessageNotification(final long accountId) {
-        ContentResolver resolver = mContext.getContentResolver();
         if (accountId == Account.ACCOUNT_ID_COMBINED_VIEW) {
             LogUtils.i(LOG_TAG, "Unregistering notifications for all accounts");
-            // cancel all existing message observers
-            for (ContentObserver observer : mNotificationMap.values()) {
-                resolver.unregisterContentObserver(observer);
+            for (final long id : mNotifiedAccounts) {
+                cancelAccountRefresh(id);
             }
-            mNotificationMap.clear();
+            mNotifiedAccounts.clear();
         } else {
             LogUtils.i(LOG_TAG, "Unregistering notifications for account " + accountId);
-            ContentObserver observer = mNotificationMap.remove(accountId);
-            if (observer != null) {
-                resolver.unregisterContentObserver(observer);
-            }
+            mNotifiedAccounts.remove(accountId);
+            cancelAccountRefresh(accountId);
+        }
+        if (mNotifiedAccounts.isEmpty() && mMessageObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mMessageObserver);
+            mMessageObserver = null;
         }
     }
 
@@ -612,11 +616,98 @@ public class EmailNotificationController implements NotificationController {
         }
     }
 
-    private static void refreshNotificationsForAccount(final Context context,
-            final long accountId, boolean immediate) {
-        synchronized (sNotificationDelayedMessageLock) {
-            sRefreshAccountSet.add(accountId);
-            scheduleNotificationUpdateLocked(context, immediate);
+    /**
+     * Refresh of one account's notifications, batching the changes made by a sync. The first
+     * change after a quiet period refreshes right away; later changes hold the refresh back until
+     * the changes stop for {@link #NOTIFICATION_DELAY}, but for no longer than
+     * {@link #NOTIFICATION_MAX_BATCH_DELAY}. Only used on the notification thread.
+     */
+    private static class AccountRefresh implements Runnable {
+        private final Context mContext;
+        private final long mAccountId;
+        /** When the current batch of changes started, or 0 if there isn't one */
+        private long mBatchStartMillis;
+        /** Whether there were changes since the last refresh */
+        private boolean mDirty;
+        private int mRefreshCount;
+
+        AccountRefresh(final Context context, final long accountId) {
+            mContext = context;
+            mAccountId = accountId;
+        }
+
+        void onChange(final boolean immediate) {
+            final long now = SystemClock.elapsedRealtime();
+            sNotificationHandler.removeCallbacks(this);
+            if (mBatchStartMillis == 0 || immediate) {
+                refresh(now);
+            } else {
+                mDirty = true;
+                final long maxDelay = mBatchStartMillis + NOTIFICATION_MAX_BATCH_DELAY - now;
+                sNotificationHandler.postDelayed(this,
+                        Math.max(0, Math.min(NOTIFICATION_DELAY, maxDelay)));
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mDirty) {
+                refresh(SystemClock.elapsedRealtime());
+            } else {
+                // Quiet for a while; the next change starts a new batch
+                mBatchStartMillis = 0;
+            }
+        }
+
+        private void refresh(final long now) {
+            mDirty = false;
+            mBatchStartMillis = now;
+            mRefreshCount++;
+            refreshNotificationsForAccountInternal(mContext, mAccountId);
+            // Check back after the delay to see whether the batch is over
+            sNotificationHandler.postDelayed(this, NOTIFICATION_DELAY);
+        }
+    }
+
+    /**
+     * Schedule a refresh of the notifications of an account.
+     * NOTE: This must be called on the notification handler thread.
+     */
+    private static void scheduleAccountRefresh(final Context context, final long accountId,
+            final boolean immediate) {
+        AccountRefresh refresh;
+        // Locked only against dump(), which runs on a binder thread
+        synchronized (sAccountRefreshes) {
+            refresh = sAccountRefreshes.get(accountId);
+            if (refresh == null) {
+                refresh = new AccountRefresh(context, accountId);
+                sAccountRefreshes.put(accountId, refresh);
+            }
+        }
+        refresh.onChange(immediate);
+    }
+
+    private static void cancelAccountRefresh(final long accountId) {
+        final AccountRefresh refresh;
+        synchronized (sAccountRefreshes) {
+            refresh = sAccountRefreshes.remove(accountId);
+        }
+        if (refresh != null) {
+            sNotificationHandler.removeCallbacks(refresh);
+        }
+    }
+
+    @Override
+    public void dump(final PrintWriter writer) {
+        writer.println("Message notifications");
+        writer.println("  Message changes: " + sMessageChangeCount + ", ignored (other accounts): "
+                + sIgnoredChangeCount);
+        synchronized (sAccountRefreshes) {
+            for (final AccountRefresh refresh : sAccountRefreshes.values()) {
+                writer.println("  Account " + refresh.mAccountId + ": refreshes: "
+                        + refresh.mRefreshCount
+                        + (refresh.mBatchStartMillis != 0 ? " [In batch]" : ""));
+            }
         }
     }
 
@@ -749,25 +840,43 @@ public class EmailNotificationController implements NotificationController {
     }
 
     /**
-     * Observer invoked whenever a message we're notifying the user about changes.
+     * Observer invoked whenever a message changes, which routes the change to the account it
+     * belongs to. Changes the provider couldn't attribute to an account go to every account.
      */
-    private static class MessageContentObserver extends ContentObserver {
+    private class MessageContentObserver extends ContentObserver {
         private final Context mContext;
-        private final long mAccountId;
 
-        public MessageContentObserver(
-                final Handler handler, final Context context, final long accountId) {
+        public MessageContentObserver(final Handler handler, final Context context) {
             super(handler);
             mContext = context;
-            mAccountId = accountId;
         }
 
         @Override
         public void onChange(final boolean selfChange, Uri uri) {
+            sMessageChangeCount++;
             List<String> segments = uri != null ? uri.getPathSegments() : null;
             boolean isDelete = segments != null && segments.size() >= 2
                     ? EmailProvider.NOTIFICATION_OP_DELETE.equals(segments.get(1)) : false;
-            refreshNotificationsForAccount(mContext, mAccountId, isDelete);
+            final String accountParam = uri != null
+                    ? uri.getQueryParameter(EmailProvider.NOTIFICATION_PARAM_ACCOUNT) : null;
+            if (accountParam == null) {
+                for (final long accountId : mNotifiedAccounts) {
+                    scheduleAccountRefresh(mContext, accountId, isDelete);
+                }
+                return;
+            }
+            final long accountId;
+            try {
+                accountId = Long.parseLong(accountParam);
+            } catch (NumberFormatException e) {
+                LogUtils.w(LOG_TAG, "Bad account in message notification " + uri);
+                return;
+            }
+            if (mNotifiedAccounts.contains(accountId)) {
+                scheduleAccountRefresh(mContext, accountId, isDelete);
+            } else {
+                sIgnoredChangeCount++;
+            }
         }
     }
 
@@ -805,7 +914,7 @@ public class EmailNotificationController implements NotificationController {
             // NOTE: Looping over three lists is not necessarily the most efficient. However, the
             // account lists are going to be very small, so, this will not be necessarily bad.
             // Cycle through existing notification list and adjust as necessary
-            for (final long accountId : sInstance.mNotificationMap.keySet()) {
+            for (final long accountId : sInstance.mNotifiedAccounts) {
                 if (!newAccountList.remove(accountId)) {
                     // account id not in the current set of notifiable accounts
                     removedAccountList.add(accountId);
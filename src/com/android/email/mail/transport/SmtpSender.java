@@ -20,6 +20,7 @@ import android.content.Context;
 import android.util.Base64;
 
 import com.android.email.DebugUtils;
+import com.android.email.Metrics;
 import com.android.email.mail.Sender;
 import com.android.email.mail.internet.AuthenticationCache;
 import com.android.emailcommon.Logging;
@@ -32,12 +33,17 @@ import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.Credential;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.HostAuth;
+import com.android.emailcommon.utility.DotStuffingOutputStream;
 import com.android.emailcommon.utility.EOLConvertingOutputStream;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLException;
 
@@ -52,6 +58,13 @@ public class SmtpSender extends Sender {
     private String mUsername;
     private String mPassword;
     private boolean mUseOAuth;
+    /** The (concatenated) EHLO response from the last open(), used for extension checks */
+    private String mEhloResult = "";
+    /** The words of {@link #mEhloResult}, upper case, so extensions can be looked up */
+    private final HashSet<String> mEhloWords = new HashSet<String>();
+
+    private static final Pattern SIZE_PATTERN = Pattern.compile("\\bSIZE(?: (\\d+))?\\b");
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^A-Za-z0-9]+");
 
     /**
      * Static named constructor.
@@ -138,6 +151,11 @@ public class SmtpSender extends Sender {
             /*
              * result contains the results of the EHLO in concatenated form
              */
+            mEhloResult = result;
+            mEhloWords.clear();
+            for (final String word : WORD_SEPARATOR.split(result)) {
+                mEhloWords.add(word.toUpperCase(Locale.US));
+            }
             boolean authLoginSupported = result.matches(".*AUTH.*LOGIN.*$");
             boolean authPlainSupported = result.matches(".*AUTH.*PLAIN.*$");
             boolean authOAuthSupported = result.matches(".*AUTH.*XOAUTH2.*$");
@@ -192,7 +210,35 @@ public class SmtpSender extends Sender {
         Address[] bcc = Address.fromHeader(message.mBcc);
 
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from.getAddress() + ">");
+            final Rfc822Output output = Rfc822Output.prepare(mContext, message,
+                    false /* do not use smart reply */,
+                    false /* do not send BCC */,
+                    null  /* attachments are in the message itself */);
+            // RFC 3030 only allows BINARYMIME content to be sent with BDAT
+            final boolean chunking = hasExtension("CHUNKING");
+            String mailFrom = "MAIL FROM:" + "<" + from.getAddress() + ">";
+            if (chunking && hasExtension("BINARYMIME")) {
+                output.setTransferMode(Rfc822Output.TRANSFER_BINARY);
+                mailFrom += " BODY=BINARYMIME";
+            } else if (hasExtension("8BITMIME")) {
+                output.setTransferMode(Rfc822Output.TRANSFER_8BIT);
+                mailFrom += " BODY=8BITMIME";
+            }
+            final Matcher sizeMatcher = SIZE_PATTERN.matcher(mEhloResult);
+            final boolean sizeSupported = sizeMatcher.find();
+            // The size is needed up front both for SIZE and for BDAT
+            final long size = (sizeSupported || chunking) ? output.getEncodedSize() : -1;
+            if (sizeSupported) {
+                // RFC 1870: refuse to upload a message the server has told us it won't take
+                final String maxSize = sizeMatcher.group(1);
+                if (maxSize != null && Long.parseLong(maxSize) > 0
+                        && size > Long.parseLong(maxSize)) {
+                    throw new MessagingException("Message size " + size
+                            + " exceeds server limit " + maxSize);
+                }
+                mailFrom += " SIZE=" + Long.toString(size);
+            }
+            executeSimpleCommand(mailFrom);
             for (Address address : to) {
                 executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
             }
@@ -202,19 +248,31 @@ public class SmtpSender extends Sender {
             for (Address address : bcc) {
                 executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
             }
-            executeSimpleCommand("DATA");
-            // TODO byte stuffing
-            Rfc822Output.writeTo(mContext, message,
-                    new EOLConvertingOutputStream(mTransport.getOutputStream()),
-                    false /* do not use smart reply */,
-                    false /* do not send BCC */,
-                    null  /* attachments are in the message itself */);
-            executeSimpleCommand("\r\n.");
+            if (chunking) {
+                // The exact size is known, so the whole message goes out as a single BDAT
+                // chunk with no dot-stuffing or end-of-data scan
+                mTransport.writeLine("BDAT " + Long.toString(size) + " LAST", null);
+                output.writeTo(mTransport.getOutputStream());
+                executeSimpleCommand(null);
+            } else {
+                executeSimpleCommand("DATA");
+                output.writeTo(new DotStuffingOutputStream(
+                        new EOLConvertingOutputStream(mTransport.getOutputStream())));
+                executeSimpleCommand("\r\n.");
+            }
         } catch (IOException ioe) {
             throw new MessagingException("Unable to send message", ioe);
         }
     }
 
+    /**
+     * Returns whether the server advertised the given ESMTP extension in its EHLO response.
+     * @param keyword the extension's keyword, in upper case
+     */
+    private boolean hasExtension(String keyword) {
+        return mEhloWords.contains(keyword);
+    }
+
     /**
      * Close the protocol (and the transport below it).
      *
@@ -248,6 +306,7 @@ public class SmtpSender extends Sender {
      */
     private String executeSensitiveCommand(String command, String sensitiveReplacement)
             throws IOException, MessagingException {
+        final long start = Metrics.now();
         if (command != null) {
             mTransport.writeLine(command, sensitiveReplacement);
         }
@@ -260,6 +319,9 @@ public class SmtpSender extends Sender {
             line = mTransport.readLine(true);
             result += line.substring(3);
         }
+        Metrics.timer("smtp.command." + Metrics.getCommandName(
+                sensitiveReplacement != null ? sensitiveReplacement : command))
+                .recordSince(start);
 
         if (result.length() > 0) {
             char c = result.charAt(0);
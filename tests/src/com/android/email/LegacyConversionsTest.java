@@ -71,6 +71,28 @@ public class LegacyConversionsTest extends AndroidTestCase {
         assertEquals(message.getSentDate().getTime(), localMessage.mTimeStamp);
     }
 
+    /**
+     * Test that the References and In-Reply-To headers are kept, for threading.
+     */
+    public void testUpdateMessageFields_ThreadReferences() throws MessagingException {
+        final MimeMessage message = new MimeMessage();
+        message.setHeader("References", "<root@droid.com>\r\n <parent@droid.com>");
+        message.setHeader("In-Reply-To", "<parent@droid.com>");
+        final EmailContent.Message localMessage = new EmailContent.Message();
+        LegacyConversions.updateMessageFields(localMessage, message, 1, 1);
+        assertEquals("<root@droid.com> <parent@droid.com>", localMessage.mThreadReferences);
+
+        // Some clients send In-Reply-To alone
+        final MimeMessage reply = new MimeMessage();
+        reply.setHeader("In-Reply-To", "<parent@droid.com> (Sender's message)");
+        LegacyConversions.updateMessageFields(localMessage, reply, 1, 1);
+        assertEquals("<parent@droid.com>", localMessage.mThreadReferences);
+
+        final EmailContent.Message unthreaded = new EmailContent.Message();
+        LegacyConversions.updateMessageFields(unthreaded, new MimeMessage(), 1, 1);
+        assertNull(unthreaded.mThreadReferences);
+    }
+
     /**
      * Test the conversion of plain ASCII (not MIME-encoded) email addresses.
      */
@@ -313,7 +313,8 @@ public class LegacyConversionsTests extends ProviderTestCase2<EmailProvider> {
             expectedPartId = storeData[0];
         }
         assertEquals(tag, expectedPartId, actual.mLocation);
-        assertEquals(tag, "B", actual.mEncoding);
+        String[] encodings = expected.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        assertEquals(tag, encodings != null ? encodings[0] : null, actual.mEncoding);
         assertEquals(tag, accountKey, actual.mAccountKey);
     }
 
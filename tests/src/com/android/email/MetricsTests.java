@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class MetricsTests extends TestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Metrics.reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Metrics.reset();
+        super.tearDown();
+    }
+
+    public void testBuckets() {
+        assertEquals(0, Metrics.getBucket(-5));
+        assertEquals(0, Metrics.getBucket(0));
+        assertEquals(1, Metrics.getBucket(1));
+        assertEquals(2, Metrics.getBucket(2));
+        assertEquals(2, Metrics.getBucket(3));
+        assertEquals(3, Metrics.getBucket(4));
+        assertEquals(63, Metrics.getBucket(Long.MAX_VALUE));
+
+        assertEquals(0, Metrics.getBucketLimit(0));
+        assertEquals(1, Metrics.getBucketLimit(1));
+        assertEquals(3, Metrics.getBucketLimit(2));
+        assertEquals(1023, Metrics.getBucketLimit(10));
+        assertEquals(Long.MAX_VALUE, Metrics.getBucketLimit(63));
+    }
+
+    public void testHistogram() {
+        final Metrics.Histogram histogram = Metrics.timer("test.timer");
+        assertSame(histogram, Metrics.timer("test.timer"));
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        // 50 falls in the bucket of 32 to 63
+        assertEquals(63, histogram.getPercentile(50));
+        // Capped at the largest value recorded
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(1, histogram.getPercentile(1));
+    }
+
+    public void testCounter() {
+        final Metrics.Counter counter = Metrics.counter("test.counter");
+        counter.increment();
+        counter.add(41);
+        assertEquals(42, Metrics.counter("test.counter").get());
+    }
+
+    public void testDump() {
+        Metrics.counter("test.b").increment();
+        Metrics.counter("test.a").add(2);
+        Metrics.counter("other.c").increment();
+        Metrics.histogram("test.size", "B").record(10);
+
+        final StringWriter out = new StringWriter();
+        Metrics.dump(new PrintWriter(out), "test.");
+        final String dump = out.toString();
+        assertTrue(dump.indexOf("test.a: 2") < dump.indexOf("test.b: 1"));
+        assertTrue(dump.contains("test.size: count=1 sum=10B"));
+        assertFalse(dump.contains("other.c"));
+    }
+
+    public void testGetCommandName() {
+        assertEquals("greeting", Metrics.getCommandName(null));
+        assertEquals("noop", Metrics.getCommandName("NOOP"));
+        assertEquals("select", Metrics.getCommandName("SELECT \"INBOX\""));
+        assertEquals("uid_fetch", Metrics.getCommandName("UID FETCH 1:* (FLAGS)"));
+        assertEquals("uid_search", Metrics.getCommandName("UID SEARCH"));
+        // Credentials sent on their own line must not become names
+        assertEquals("other", Metrics.getCommandName("dXNlckBleGFtcGxlLmNvbQ=="));
+        assertEquals("other", Metrics.getCommandName(""));
+        assertEquals("other", Metrics.getCommandName("LIST1 x"));
+    }
+}
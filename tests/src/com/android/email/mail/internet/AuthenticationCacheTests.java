@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.internet;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.VendorPolicyLoader.OAuthProvider;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Credential;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.HostAuth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the refreshing of OAuth tokens, against a token endpoint on this device.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.internet.AuthenticationCacheTests email
+ */
+@MediumTest
+public class AuthenticationCacheTests extends ProviderTestCase2<EmailProvider> {
+    private static final long SERVER_DELAY_MILLIS = 300;
+
+    private Context mMockContext;
+    private TokenServer mServer;
+    private AuthenticationCache mCache;
+
+    public AuthenticationCacheTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    /**
+     * Answers each POST, after a delay, with "token-N" for the Nth request, or with an error.
+     */
+    private static class TokenServer extends Thread {
+        private final ServerSocket mSocket;
+        final AtomicInteger mRequestCount = new AtomicInteger();
+        volatile int mStatus = 200;
+
+        TokenServer() throws IOException {
+            mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/token";
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mSocket.accept();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            respond(socket);
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void respond(Socket socket) {
+            try {
+                final BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                int contentLength = 0;
+                for (String line = in.readLine(); line != null && !line.isEmpty();
+                        line = in.readLine()) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                for (int i = 0; i < contentLength; i++) {
+                    in.read();
+                }
+                SystemClock.sleep(SERVER_DELAY_MILLIS);
+                final int count = mRequestCount.incrementAndGet();
+                final String body = mStatus == 200
+                        ? "{\"access_token\":\"token-" + count + "\",\"expires_in\":\"3600\"}"
+                        : "{}";
+                final OutputStream out = socket.getOutputStream();
+                out.write(("HTTP/1.1 " + mStatus + " Status\r\n"
+                        + "Content-Type: application/json\r\n"
+                        + "Content-Length: " + body.length() + "\r\n"
+                        + "Connection: close\r\n\r\n" + body).getBytes("US-ASCII"));
+                out.flush();
+                socket.close();
+            } catch (IOException e) {
+                // The test will fail on its own
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    private static class TestAuthenticator extends OAuthAuthenticator {
+        private final OAuthProvider mProvider = new OAuthProvider();
+
+        TestAuthenticator(String url) {
+            mProvider.id = "test";
+            mProvider.refreshEndpoint = url;
+            mProvider.clientId = "client";
+            mProvider.clientSecret = "secret";
+        }
+
+        @Override
+        public AuthenticationResult requestRefresh(Context context, String providerId,
+                String refreshToken) throws MessagingException, IOException {
+            return requestRefresh(mProvider, refreshToken);
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mServer = new TokenServer();
+        mServer.start();
+        mCache = new AuthenticationCache(new TestAuthenticator(mServer.getUrl()));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * @return a saved account whose access token expires at the given time
+     */
+    private Account setupAccount(long expiration) {
+        final Account account = ProviderTestUtils.setupAccount("oauth", false, mMockContext);
+        final HostAuth hostAuth = ProviderTestUtils.setupHostAuth("imap", "oauth", false,
+                mMockContext);
+        hostAuth.mCredential = new Credential(EmailContent.NOT_SAVED, "test", "old", "refresh",
+                expiration);
+        account.mHostAuthRecv = hostAuth;
+        account.save(mMockContext);
+        return Account.restoreAccountWithId(mMockContext, account.mId);
+    }
+
+    public void testConcurrentCallersShareOneRefresh() throws Exception {
+        final Account account = setupAccount(System.currentTimeMillis() - 1000);
+        final int threadCount = 8;
+        final String[] tokens = new String[threadCount];
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        tokens[index] = mCache.retrieveAccessToken(mMockContext, account);
+                    } catch (Exception e) {
+                        // tokens[index] stays null
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, mServer.mRequestCount.get());
+        for (final String token : tokens) {
+            assertEquals("token-1", token);
+        }
+        // Saved, so that a new cache starts from it
+        final Credential credential = Credential.restoreCredentialsWithId(mMockContext,
+                account.getOrCreateHostAuthRecv(mMockContext).mCredentialKey);
+        assertEquals("token-1", credential.mAccessToken);
+        assertEquals("refresh", credential.mRefreshToken);
+    }
+
+    public void testFailedRefreshFallsBackToValidToken() throws Exception {
+        // Within the threshold, but not expired
+        final Account account = setupAccount(System.currentTimeMillis()
+                + AuthenticationCache.EXPIRATION_THRESHOLD / 2);
+        mServer.mStatus = 500;
+        assertEquals("old", mCache.retrieveAccessToken(mMockContext, account));
+        assertEquals(1, mServer.mRequestCount.get());
+
+        // Not retried right away
+        assertEquals("old", mCache.retrieveAccessToken(mMockContext, account));
+        assertEquals(1, mServer.mRequestCount.get());
+    }
+
+    public void testRefreshAheadOfExpiration() throws Exception {
+        final Account account = setupAccount(System.currentTimeMillis()
+                + AuthenticationCache.EXPIRATION_THRESHOLD
+                + AuthenticationCache.REFRESH_LEAD_TIME + 1000);
+        assertEquals("old", mCache.retrieveAccessToken(mMockContext, account));
+        assertEquals(0, mServer.mRequestCount.get());
+
+        // The token was used, so it's refreshed in the background about a second from now
+        final long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (mServer.mRequestCount.get() == 0 && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(100);
+        }
+        assertEquals(1, mServer.mRequestCount.get());
+        // Give the refresh time to store the new token
+        SystemClock.sleep(SERVER_DELAY_MILLIS);
+        assertEquals("token-1", mCache.retrieveAccessToken(mMockContext, account));
+        assertEquals(1, mServer.mRequestCount.get());
+    }
+}
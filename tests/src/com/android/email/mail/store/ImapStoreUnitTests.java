@@ -59,7 +59,9 @@ import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.regex.Pattern;
 
@@ -509,6 +511,66 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         mFolder.open(OpenMode.READ_WRITE);
     }
 
+    /**
+     * Confirm that the handshake takes the capabilities from the greeting and the login response
+     * rather than asking for them, pipelines ID with NAMESPACE, and that the next connection uses
+     * the saved server profile instead of asking again.
+     */
+    public void testOpenRoundTrips() throws Exception {
+        final MockSharedPreferences prefs = new MockSharedPreferences();
+        final Context context = new ContextWrapper(mTestContext) {
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                return prefs;
+            }
+        };
+        final HostAuth testAuth = new HostAuth();
+        testAuth.setLogin("user", "password");
+        testAuth.setConnection("imap", "server", 999);
+        // Profiles are only saved for saved HostAuths
+        testAuth.mId = 1;
+        final Account testAccount = new Account();
+        testAccount.mHostAuthRecv = testAuth;
+        final ImapStore store = (ImapStore) ImapStore.newInstance(testAccount, context);
+        final MockTransport mockTransport = MockTransport.createMockTransport(context);
+        mockTransport.setHost("mock.server.com");
+        store.setTransportForTest(mockTransport);
+
+        // First connection: LOGIN, then ID and NAMESPACE together
+        mockTransport.expect(null, "* oK [cAPABILITY iMAP4rev1 iD nAMESPACE] Ready");
+        mockTransport.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK [cAPABILITY iMAP4rev1 iD nAMESPACE uIDPLUS] Logged in");
+        mockTransport.expect(getNextTag(false) + " ID \\(.*\\)", new String[] {
+                "* iD nIL",
+                getNextTag(true) + " oK"});
+        mockTransport.expect(getNextTag(false) + " NAMESPACE", new String[] {
+                "* nAMESPACE ((\"INBOX.\" \".\")) nIL nIL",
+                getNextTag(true) + " oK"});
+        ImapConnection connection = store.getConnection();
+        connection.open();
+        assertEquals(2, mockTransport.getRoundTripCount());
+        assertTrue(connection.isCapable(ImapConnection.CAPABILITY_UIDPLUS));
+        assertEquals("INBOX.", store.mPathPrefix);
+        assertEquals(".", store.mPathSeparator);
+        connection.close();
+
+        // Second connection: no CAPABILITY in the greeting, and ID goes along with LOGIN
+        resetTag();
+        mockTransport.expect(null, "* oK Ready");
+        mockTransport.expect(getNextTag(false) + " ID \\(.*\\)", new String[] {
+                "* iD nIL",
+                getNextTag(true) + " oK"});
+        mockTransport.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK Logged in");
+        connection = store.getConnection();
+        connection.open();
+        assertEquals(3, mockTransport.getRoundTripCount());
+        assertTrue(connection.isCapable(ImapConnection.CAPABILITY_UIDPLUS));
+        assertEquals("INBOX.", store.mPathPrefix);
+        assertEquals(".", store.mPathSeparator);
+        connection.close();
+    }
+
     /**
      * Test small Folder functions that don't really do anything in Imap
      */
@@ -773,7 +835,8 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         fp.add(FetchProfile.Item.ENVELOPE);
         mock.expect(getNextTag(false) +
                 " UID FETCH 1 \\(UID FLAGS INTERNALDATE RFC822\\.SIZE BODY\\.PEEK\\[HEADER.FIELDS" +
-                        " \\(date subject from content-type to cc message-id\\)\\]\\)",
+                        " \\(date subject from content-type to cc message-id in-reply-to" +
+                        " references\\)\\]\\)",
                 new String[] {
                 "* 9 fETCH (uID 1 rFC822.sIZE 120626 iNTERNALDATE \"17-may-2010 22:00:15 +0000\"" +
                         "fLAGS (\\Seen) bODY[hEADER.FIELDS (dAte sUbject fRom cOntent-type tO cC" +
@@ -1057,6 +1120,49 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    public void testFetchPartRange() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertFalse(mFolder.canFetchBinary());
+
+        // A whole range, then the rest of the part
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<0.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2]<0> {4}",
+                "YWJj)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        assertEquals(4, mFolder.fetchPartRange("1", "2", 0, 4, false, out));
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<4.4>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2]<4> {2}",
+                "ZA)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        assertEquals(2, mFolder.fetchPartRange("1", "2", 4, 4, false, out));
+        assertEquals("YWJjZA", Utility.fromAscii(out.toByteArray()));
+
+        // Decoded by the server, in a literal8
+        out.reset();
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BINARY.PEEK\\[2\\]<0.8>\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bINARY[2]<0> ~{4}",
+                "abcd)",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        assertEquals(4, mFolder.fetchPartRange("1", "2", 0, 8, true, out));
+        assertEquals("abcd", Utility.fromAscii(out.toByteArray()));
+
+        // The server can't decode the part
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BINARY.PEEK\\[3\\]<0.8>\\)",
+                new String[] {
+                getNextTag(true) + " nO [UNKNOWN-CTE] Can't decode"
+        });
+        assertEquals(-1, mFolder.fetchPartRange("1", "3", 0, 8, true, out));
+    }
+
     /**
      * Test for proper operations on servers that return "NIL" for empty message bodies.
      */
@@ -1817,6 +1923,163 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response. (permission denied)
     }
 
+    public void testExpungeUids() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock, new String[] {"* iD nIL", "oK"}, "rEAD-wRITE", true);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " UID EXPUNGE 11\\,12",
+                new String[] {
+                "* 3 eXPUNGE",
+                "* 3 eXPUNGE",
+                getNextTag(true) + " oK success"
+                });
+
+        mFolder.expungeUids(Arrays.asList("11", "12"));
+    }
+
+    public void testExpungeUidsWithoutUidPlus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " EXPUNGE",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+
+        mFolder.expungeUids(Arrays.asList("11", "12"));
+    }
+
+    /**
+     * Two messages moved to the trash in one pass over the pending actions: each folder is
+     * looked up and SELECTed once, and with UIDPLUS only the moved messages are expunged, once.
+     */
+    public void testFolderSessionsMoveToTrash() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        final ImapFolderSessions sessions = new ImapFolderSessions(mStore);
+
+        // The first move; the source folder is opened on one connection...
+        expectLogin(mock, new String[] {"* iD nIL", "oK"}, true);
+        expectStatus(mock, FOLDER_ENCODED);
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        Folder folder = sessions.open(FOLDER_NAME);
+        assertNotNull(folder);
+        expectUidSearch(mock, "11");
+        final Message first = folder.getMessage("11");
+        // ...and the trash on another
+        final int sourceTag = resetTag();
+        expectLogin(mock, new String[] {"* iD nIL", "oK"}, true);
+        expectStatus(mock, "Trash");
+        expectSelect(mock, "Trash", "rEAD-wRITE");
+        assertTrue(sessions.exists("Trash", true));
+        Folder trash = sessions.open("Trash");
+        assertNotNull(trash);
+        resetTag(sourceTag);
+        expectMoveToTrash(mock, "11");
+        folder.copyMessages(new Message[] { first }, trash, null);
+        sessions.deleteMessage(FOLDER_NAME, first);
+
+        // The second move reuses both folders as they are
+        final int roundTrips = mock.getRoundTripCount();
+        folder = sessions.open(FOLDER_NAME);
+        assertTrue(sessions.exists("Trash", true));
+        trash = sessions.open("Trash");
+        expectUidSearch(mock, "12");
+        final Message second = folder.getMessage("12");
+        expectMoveToTrash(mock, "12");
+        folder.copyMessages(new Message[] { second }, trash, null);
+        sessions.deleteMessage(FOLDER_NAME, second);
+        assertEquals(3, mock.getRoundTripCount() - roundTrips);
+
+        // Both are expunged as the pass ends
+        mock.expect(getNextTag(false) + " UID EXPUNGE 11\\,12",
+                new String[] {
+                "* 5 eXPUNGE",
+                "* 5 eXPUNGE",
+                getNextTag(true) + " oK success"
+                });
+        sessions.close();
+        assertEquals(4, mock.getRoundTripCount() - roundTrips);
+        assertFalse(folder.isOpen());
+        assertFalse(trash.isOpen());
+    }
+
+    /**
+     * Without UIDPLUS, messages deleted from a folder in one pass are expunged with one EXPUNGE.
+     */
+    public void testFolderSessionsDeleteWithoutUidPlus() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        final ImapFolderSessions sessions = new ImapFolderSessions(mStore);
+
+        expectLogin(mock);
+        expectStatus(mock, FOLDER_ENCODED);
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        for (final String uid : new String[] { "11", "12", "13" }) {
+            final Folder folder = sessions.open(FOLDER_NAME);
+            expectUidSearch(mock, uid);
+            final Message message = folder.getMessage(uid);
+            mock.expect(getNextTag(false) + " UID STORE " + uid
+                    + " \\+FLAGS.SILENT \\(\\\\DELETED\\)",
+                    new String[] {
+                    getNextTag(true) + " oK success"
+                    });
+            sessions.deleteMessage(FOLDER_NAME, message);
+        }
+
+        mock.expect(getNextTag(false) + " EXPUNGE",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+        sessions.close();
+    }
+
+    /**
+     * A read-only folder is opened once, and then skipped.
+     */
+    public void testFolderSessionsReadOnly() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        final ImapFolderSessions sessions = new ImapFolderSessions(mStore);
+
+        expectLogin(mock);
+        expectStatus(mock, FOLDER_ENCODED);
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-oNLY");
+        assertNull(sessions.open(FOLDER_NAME));
+        final int roundTrips = mock.getRoundTripCount();
+        assertNull(sessions.open(FOLDER_NAME));
+        assertEquals(roundTrips, mock.getRoundTripCount());
+        sessions.close();
+    }
+
+    private void expectStatus(MockTransport mockTransport, String folder) {
+        mockTransport.expect(
+                getNextTag(false) + " STATUS \"" + folder + "\" \\(UIDVALIDITY\\)",
+                new String[] {
+                "* sTATUS \"" + folder + "\" (uIDVALIDITY 777)",
+                getNextTag(true) + " oK status completed"
+                });
+    }
+
+    private void expectUidSearch(MockTransport mockTransport, String uid) {
+        mockTransport.expect(getNextTag(false) + " UID SEARCH UID " + uid,
+                new String[] {
+                "* sEARCH " + uid,
+                getNextTag(true) + " oK success"
+                });
+    }
+
+    private void expectMoveToTrash(MockTransport mockTransport, String uid) {
+        mockTransport.expect(getNextTag(false) + " UID COPY " + uid + " \\\"Trash\\\"",
+                new String[] {
+                getNextTag(true) + " oK [COPYUID 777 " + uid + " 2" + uid + "] UID COPY completed"
+                });
+        mockTransport.expect(getNextTag(false) + " UID STORE " + uid
+                + " \\+FLAGS.SILENT \\(\\\\DELETED\\)",
+                new String[] {
+                getNextTag(true) + " oK success"
+                });
+    }
+
     public void testSetFlags() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -2024,6 +2287,15 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         mStore.poolConnection(con1);
         assertEquals(1, mStore.getConnectionPoolForTest().size());
 
+        // Get another connection.  Should get con1 without a NOOP, as it was only just pooled.
+        final ImapConnection con1a = mStore.getConnection();
+        assertEquals(0, mStore.getConnectionPoolForTest().size()); // No connections left in pool
+        assertSame(con1, con1a);
+
+        // Pool con1 again, as if it had been idle for a while.
+        mStore.poolConnection(con1);
+        con1.setPooledMillisForTest(10 * 60 * 1000);
+
         // Get another connection.  Should get con1, after verifying the connection.
         saveTag = resetTag(saveTag);
         mock.expect(getNextTag(false) + " NOOP", new String[] {getNextTag(true) + " oK success"});
@@ -2033,8 +2305,9 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertSame(con1, con1b);
         assertTrue(con1.isTransportOpenForTest()); // We opened it.
 
-        // Save con2.
+        // Save con2, idle long enough to need verifying.
         mStore.poolConnection(con2);
+        con2.setPooledMillisForTest(10 * 60 * 1000);
         assertEquals(1, mStore.getConnectionPoolForTest().size());
 
         // Resume con2 tags ...
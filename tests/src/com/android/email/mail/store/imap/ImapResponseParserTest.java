@@ -220,6 +220,32 @@ public class ImapResponseParserTest extends AndroidTestCase {
                 ), r);
     }
 
+    /**
+     * A literal8 (RFC 3516) is a literal with a "~" prefix; elsewhere "~" is part of an atom.
+     */
+    public void testLiteral8() throws Exception {
+        ImapResponse r;
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (BINARY[2]<0> ~{3}\r\n" +
+                "ABC UID 7)\r\n" +
+                "* test ~abc\r\n"
+                );
+        r = p.readResponse();
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("1"),
+                new ImapSimpleString("FETCH"),
+                buildList(
+                        new ImapSimpleString("BINARY[2]<0>"),
+                        new ImapMemoryLiteral(createFixedLengthInputStream("ABC")),
+                        new ImapSimpleString("UID"),
+                        new ImapSimpleString("7")
+                        )
+                ), r);
+
+        r = p.readResponse();
+        assertEquals("~abc", r.getStringOrEmpty(1).getString());
+    }
+
     public void testAlert() throws Exception {
         ImapResponse r;
         final ImapResponseParser p = generateParser(100000,
@@ -52,6 +52,10 @@ public class MockTransport extends MailTransport {
 
     private ArrayList<String> mQueuedInput = new ArrayList<String>();
 
+    /** Whether anything was written since the last read, i.e. whether a read waits for a reply */
+    private boolean mWrittenSinceRead = false;
+    private int mRoundTripCount = 0;
+
     private static class Transaction {
         public static final int ACTION_INJECT_TEXT = 0;
         public static final int ACTION_CLIENT_CLOSE = 1;
@@ -171,6 +175,14 @@ public class MockTransport extends MailTransport {
     /**
      * Check that TLS was started
      */
+    /**
+     * @return how many times the client has waited for a reply to what it wrote; commands
+     * pipelined without waiting for each other's replies count as one round trip
+     */
+    public int getRoundTripCount() {
+        return mRoundTripCount;
+    }
+
     public boolean isTlsStarted() {
         return mTlsStarted;
     }
@@ -254,6 +266,10 @@ public class MockTransport extends MailTransport {
         if (!mInputOpen) {
             throw new IOException("Reading from MockTransport with closed input");
         }
+        if (mWrittenSinceRead) {
+            mWrittenSinceRead = false;
+            mRoundTripCount++;
+        }
         // if there's nothing to read, see if we can find a null-pattern
         // response
         if ((mQueuedInput.size() == 0) && (mPairs.size() > 0)) {
@@ -313,6 +329,7 @@ public class MockTransport extends MailTransport {
             LogUtils.d(LOG_TAG, ">>> " + s);
         }
         SmtpSenderUnitTests.assertTrue(mOpen);
+        mWrittenSinceRead = true;
         SmtpSenderUnitTests.assertTrue(
                 "Overflow writing to MockTransport: Getting " + s, 0 != mPairs.size());
         Transaction pair = mPairs.remove(0);
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.email.DBTestHelper;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.email.service.OutboxPreflight;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.Utility;
+import com.android.mail.utils.LogUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Sends an outbox of many messages, each with several attachments, through {@link SmtpSender}
+ * to an SMTP server on the loopback interface, and times the attachment check that comes before
+ * the send against the one it replaced.  Results are logged with the tag "OutboxSendBenchmark".
+ *
+ * You can run this benchmark with:
+ *   runtest -c com.android.email.mail.transport.OutboxSendBenchmark email
+ */
+@LargeTest
+public class OutboxSendBenchmark extends AndroidTestCase {
+    private static final String TAG = "OutboxSendBenchmark";
+
+    private static final int MESSAGE_COUNT = 50;
+    private static final int ATTACHMENTS_PER_MESSAGE = 8;
+    private static final int ATTACHMENT_SIZE = 64 * 1024;
+
+    private Context mProviderContext;
+    private File mDirectory;
+    private LocalSmtpServer mServer;
+    private Account mAccount;
+    private Mailbox mOutbox;
+    private long[] mMessageIds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                getContext());
+        mDirectory = new File(getContext().getCacheDir(), TAG);
+        mDirectory.mkdirs();
+        mServer = new LocalSmtpServer();
+        mServer.start();
+
+        final HostAuth hostAuth = new HostAuth();
+        hostAuth.setConnection("smtp", "127.0.0.1", mServer.getPort());
+        mAccount = ProviderTestUtils.setupAccount("outbox", false, mProviderContext);
+        mAccount.mHostAuthSend = hostAuth;
+        mAccount.save(mProviderContext);
+        mOutbox = ProviderTestUtils.setupMailbox("outbox", mAccount.mId, true, mProviderContext,
+                Mailbox.TYPE_OUTBOX);
+        setupOutbox();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Fill the outbox with messages whose attachments are cached files, as they are when
+     * composed with attachments picked from other apps.
+     */
+    private void setupOutbox() throws IOException {
+        final byte[] payload = new byte[ATTACHMENT_SIZE];
+        Arrays.fill(payload, (byte) 'x');
+        mMessageIds = new long[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            final Message message = ProviderTestUtils.setupMessage("message" + i, mAccount.mId,
+                    mOutbox.mId, false, false, mProviderContext);
+            message.mFrom = "sender@android.com";
+            message.mTo = "recipient@android.com";
+            message.mCc = null;
+            message.mBcc = null;
+            message.mText = "body of message " + i;
+            message.save(mProviderContext);
+            mMessageIds[i] = message.mId;
+            for (int j = 0; j < ATTACHMENTS_PER_MESSAGE; j++) {
+                final File file = new File(mDirectory, i + "-" + j);
+                final OutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(payload);
+                } finally {
+                    out.close();
+                }
+                final Attachment attachment = ProviderTestUtils.setupAttachment(message.mId,
+                        "attachment" + j, ATTACHMENT_SIZE, false, mProviderContext);
+                attachment.mContentBytes = null;
+                attachment.mMimeType = "application/octet-stream";
+                attachment.setContentUri(null);
+                attachment.setCachedFileUri(Uri.parse("content://" + EmailContent.AUTHORITY
+                        + "/attachment/cachedFile").buildUpon()
+                        .appendQueryParameter(Attachment.CACHED_FILE_QUERY_PARAM,
+                                file.getAbsolutePath())
+                        .build().toString());
+                attachment.mAccountKey = mAccount.mId;
+                attachment.save(mProviderContext);
+            }
+        }
+    }
+
+    public void testPreflight() {
+        long start = SystemClock.elapsedRealtime();
+        for (final long messageId : mMessageIds) {
+            assertFalse(Utility.hasUnloadedAttachments(mProviderContext, messageId));
+        }
+        final long perMessageMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        final OutboxPreflight preflight =
+                OutboxPreflight.load(mProviderContext, mAccount.mId, mOutbox.mId);
+        for (final long messageId : mMessageIds) {
+            assertTrue(preflight.isReadyToSend(messageId, 0));
+        }
+        final long preflightMillis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(MESSAGE_COUNT * ATTACHMENTS_PER_MESSAGE, preflight.getAttachmentCount());
+        LogUtils.i(TAG, "Checked %d attachments: per message in %dms, per outbox in %dms",
+                preflight.getAttachmentCount(), perMessageMillis, preflightMillis);
+    }
+
+    public void testMissingAttachmentHoldsMessage() {
+        final Attachment[] attachments =
+                Attachment.restoreAttachmentsWithMessageId(mProviderContext, mMessageIds[0]);
+        final Attachment attachment = attachments[0];
+        final ContentValues values = new ContentValues();
+        values.put(AttachmentColumns.FLAGS, Attachment.FLAG_DOWNLOAD_USER_REQUEST);
+        attachment.update(mProviderContext, values);
+        assertTrue(AttachmentUtilities.getLocalFile(mProviderContext,
+                attachment.getCachedFileUri()).delete());
+
+        final OutboxPreflight preflight =
+                OutboxPreflight.load(mProviderContext, mAccount.mId, mOutbox.mId);
+        assertFalse(preflight.isReadyToSend(mMessageIds[0], 0));
+        assertTrue(preflight.isReadyToSend(mMessageIds[1], 0));
+    }
+
+    public void testSend() throws Exception {
+        final SmtpSender sender = new SmtpSender(mProviderContext, mAccount);
+        final OutboxPreflight preflight =
+                OutboxPreflight.load(mProviderContext, mAccount.mId, mOutbox.mId);
+        final long start = SystemClock.elapsedRealtime();
+        for (final long messageId : mMessageIds) {
+            assertTrue(preflight.isReadyToSend(messageId, 0));
+            sender.sendMessage(messageId);
+        }
+        sender.close();
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+        assertEquals(MESSAGE_COUNT, mServer.getMessageCount());
+        // Base64 makes each attachment a third larger
+        assertTrue(mServer.getByteCount()
+                > (long) MESSAGE_COUNT * ATTACHMENTS_PER_MESSAGE * ATTACHMENT_SIZE * 4 / 3);
+        LogUtils.i(TAG, "Sent %d messages (%d bytes) in %dms: %d KB/s", MESSAGE_COUNT,
+                mServer.getByteCount(), elapsed, mServer.getByteCount() / elapsed);
+    }
+
+    /**
+     * A minimal SMTP server, which accepts every message it's sent and counts them.  It advertises
+     * SIZE, so that the sender sizes each message before sending it.
+     */
+    private static class LocalSmtpServer extends Thread {
+        private final ServerSocket mServerSocket;
+        private int mMessageCount;
+        private long mByteCount;
+
+        LocalSmtpServer() throws IOException {
+            super(TAG);
+            mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        synchronized int getMessageCount() {
+            return mMessageCount;
+        }
+
+        synchronized long getByteCount() {
+            return mByteCount;
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    final Socket socket = mServerSocket.accept();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Closed by shutdown(), or the client went away
+                }
+            }
+        }
+
+        private void serve(final Socket socket) throws IOException {
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            final Writer out = new OutputStreamWriter(socket.getOutputStream(), "ISO-8859-1");
+            reply(out, "220 localhost");
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String command = line.toUpperCase();
+                if (command.startsWith("EHLO")) {
+                    reply(out, "250-localhost\r\n250 SIZE");
+                } else if (command.startsWith("DATA")) {
+                    reply(out, "354 go ahead");
+                    long bytes = 0;
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        bytes += line.length() + 2;
+                    }
+                    synchronized (this) {
+                        mMessageCount++;
+                        mByteCount += bytes;
+                    }
+                    reply(out, "250 OK");
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 bye");
+                    return;
+                } else {
+                    reply(out, "250 OK");
+                }
+            }
+        }
+
+        private static void reply(final Writer out, final String reply) throws IOException {
+            out.write(reply);
+            out.write("\r\n");
+            out.flush();
+        }
+    }
+}
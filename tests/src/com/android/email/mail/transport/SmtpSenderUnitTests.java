@@ -121,15 +121,145 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         // TODO The test is a bit fragile, as we are order-dependent (and headers are not)
         expectSimpleMessage(mockTransport);
         mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: 8bit");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+
+        // Now trigger the transmission
+        mSender.sendMessage(message.mId);
+    }
+
+    /**
+     * Test:  Without 8BITMIME, the body is base64 encoded and no BODY parameter is sent
+     */
+    public void testSendMessageSevenBit() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH LOGIN PLAIN");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        expectSimpleEnvelope(mockTransport, "MAIL FROM:<Jones@Registry.Org>");
+        mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        expectSimpleHeaders(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
         mockTransport.expect("Content-Transfer-Encoding: base64");
         mockTransport.expect("");
         mockTransport.expect(TEST_STRING_BASE64);
         mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
 
-        // Now trigger the transmission
         mSender.sendMessage(message.mId);
     }
 
+    /**
+     * Test:  With CHUNKING the message goes out as one BDAT chunk, and with BINARYMIME the body
+     * is not encoded
+     */
+    public void testSendMessageWithChunking() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH LOGIN PLAIN,SIZE,CHUNKING,BINARYMIME,8BITMIME");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = "." + TEST_STRING;
+        body.save(mProviderContext);
+
+        expectSimpleEnvelope(mockTransport,
+                "MAIL FROM:<Jones@Registry.Org> BODY=BINARYMIME SIZE=\\d+");
+        mockTransport.expect("BDAT \\d+ LAST");
+        expectSimpleHeaders(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: 8bit");
+        mockTransport.expect("");
+        // No dot-stuffing inside a BDAT chunk
+        mockTransport.expect("\\." + TEST_STRING, "250 2.0.0 message accepted");
+
+        mSender.sendMessage(message.mId);
+    }
+
+    /**
+     * Test:  Over DATA, lines starting with a dot are dot-stuffed
+     */
+    public void testSendMessageDotStuffing() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = "." + TEST_STRING;
+        body.save(mProviderContext);
+
+        expectSimpleMessage(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: 8bit");
+        mockTransport.expect("");
+        mockTransport.expect("\\.\\." + TEST_STRING);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+
+        mSender.sendMessage(message.mId);
+    }
+
+    /**
+     * Test:  With 8BITMIME, a body with a bare CR or LF is still base64 encoded
+     */
+    public void testSendMessageBareLineBreaks() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = "one\rtwo\nthree";
+        body.save(mProviderContext);
+
+        expectSimpleMessage(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("");
+        mockTransport.expect("b25lDXR3bwp0aHJlZQ==");
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+
+        mSender.sendMessage(message.mId);
+    }
+
+    /**
+     * Test:  A message larger than the server's advertised SIZE limit is refused before upload
+     */
+    public void testSendMessageTooLarge() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH LOGIN PLAIN,SIZE 10");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        // Nothing beyond the open may be sent
+        try {
+            mSender.sendMessage(message.mId);
+            fail("Should not send a message larger than the server limit");
+        } catch (MessagingException me) {
+            // expected
+        }
+    }
+
     /**
      * Test:  Open and send a single message with an empty attachment (no file) (sunny day)
      */
@@ -176,11 +306,26 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
      * Prepare to receive a simple message (see setupSimpleMessage)
      */
     private void expectSimpleMessage(MockTransport mockTransport) {
-        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>",
-                "250 2.1.0 <Jones@Registry.Org> sender ok");
+        // The default capabilities include 8BITMIME and SIZE
+        expectSimpleEnvelope(mockTransport,
+                "MAIL FROM:<Jones@Registry.Org> BODY=8BITMIME SIZE=\\d+");
+        mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+        expectSimpleHeaders(mockTransport);
+    }
+
+    /**
+     * Prepare to receive the MAIL FROM and RCPT TO commands of a simple message
+     */
+    private void expectSimpleEnvelope(MockTransport mockTransport, String mailFrom) {
+        mockTransport.expect(mailFrom, "250 2.1.0 <Jones@Registry.Org> sender ok");
         mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
                 "250 2.1.5 <Smith@Registry.Org> recipient ok");
-        mockTransport.expect("DATA", "354 enter mail, end with . on a line by itself");
+    }
+
+    /**
+     * Prepare to receive the headers of a simple message
+     */
+    private void expectSimpleHeaders(MockTransport mockTransport) {
         mockTransport.expect("Date: .*");
         mockTransport.expect("Message-ID: .*");
         mockTransport.expect("From: Jones@Registry.Org");
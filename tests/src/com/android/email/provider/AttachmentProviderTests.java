@@ -314,11 +314,11 @@ public class AttachmentProviderTests extends ProviderTestCase2<AttachmentProvide
         uri = AttachmentUtilities.getAttachmentThumbnailUri(account1.mId, attachment2Id, 62,
                 62);
         type = mMockResolver.getType(uri);
-        assertEquals("image/png", type);
+        assertEquals("image/jpeg", type);
         uri = AttachmentUtilities.getAttachmentThumbnailUri(account1.mId, attachment3Id, 62,
                 62);
         type = mMockResolver.getType(uri);
-        assertEquals("image/png", type);
+        assertEquals("image/jpeg", type);
     }
 
     /**
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+/**
+ * Tests of the deferred database maintenance.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.DatabaseMaintenanceTests email
+ */
+@MediumTest
+public class DatabaseMaintenanceTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+
+    public DatabaseMaintenanceTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        ContentCache.invalidateAllCaches();
+    }
+
+    /**
+     * Insert message rows directly, bypassing the provider, so that orphans can be created.
+     */
+    private void insertMessages(final SQLiteDatabase db, final long accountId,
+            final long mailboxId, final int count) {
+        for (int i = 0; i < count; i++) {
+            final Message message = ProviderTestUtils.setupMessage("message" + i, accountId,
+                    mailboxId, false, false, mMockContext);
+            db.insert(Message.TABLE_NAME, null, message.toContentValues());
+        }
+    }
+
+    public void testDeleteUnlinkedChunk() {
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        final Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true,
+                mMockContext);
+        // Orphans (account 1000 doesn't exist) between real messages, spanning several chunks
+        final int chunk = DatabaseMaintenance.CHUNK_SIZE;
+        insertMessages(db, account.mId, mailbox.mId, chunk);
+        insertMessages(db, 1000, mailbox.mId, chunk);
+        insertMessages(db, account.mId, mailbox.mId, 10);
+
+        long lastId = 0;
+        int chunks = 0;
+        while (lastId != -1) {
+            lastId = DatabaseMaintenance.deleteUnlinkedChunk(db, Message.TABLE_NAME,
+                    MessageColumns.ACCOUNT_KEY, AccountColumns._ID, Account.TABLE_NAME, lastId);
+            chunks++;
+        }
+        // Three chunks of rows, plus the call that finds nothing left
+        assertEquals(4, chunks);
+        assertEquals(chunk + 10, EmailContent.count(mMockContext, Message.CONTENT_URI,
+                MessageColumns.ACCOUNT_KEY + "=?", new String[] { String.valueOf(account.mId) }));
+        assertEquals(chunk + 10, EmailContent.count(mMockContext, Message.CONTENT_URI, null, null));
+    }
+
+    public void testRunPass() {
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        final Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true,
+                mMockContext);
+        final Mailbox orphanBox = ProviderTestUtils.setupMailbox("orphan", 1000, false,
+                mMockContext);
+        db.insert(Mailbox.TABLE_NAME, null, orphanBox.toContentValues());
+        insertMessages(db, account.mId, mailbox.mId, 5);
+        insertMessages(db, 1000, mailbox.mId, 5);
+
+        DatabaseMaintenance.runPass(mMockContext, db);
+
+        assertEquals(5, EmailContent.count(mMockContext, Message.CONTENT_URI, null, null));
+        assertEquals(0, EmailContent.count(mMockContext, Mailbox.CONTENT_URI,
+                MailboxColumns.ACCOUNT_KEY + "=1000", null));
+        assertEquals(1, EmailContent.count(mMockContext, Mailbox.CONTENT_URI, null, null));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentUtilities;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests of the background deletion of body and attachment files.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.FileReaperTests email
+ */
+@MediumTest
+public class FileReaperTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+
+    public FileReaperTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        ContentCache.invalidateAllCaches();
+    }
+
+    private static File createFile(final File dir, final String name) throws IOException {
+        dir.mkdirs();
+        final File file = new File(dir, name);
+        assertTrue(file.createNewFile());
+        return file;
+    }
+
+    public void testReapDeletedMessage() throws IOException {
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        final Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true,
+                mMockContext);
+        final Message message = ProviderTestUtils.setupMessage("message", account.mId,
+                mailbox.mId, false, true, mMockContext);
+        final Attachment attachment = ProviderTestUtils.setupAttachment(message.mId, "file", 100,
+                false, mMockContext);
+        attachment.mAccountKey = account.mId;
+        attachment.save(mMockContext);
+
+        final File bodyFile = createFile(EmailProvider.getBodyDirectory(mMockContext,
+                message.mId), message.mId + ".html");
+        final File attachmentFile = createFile(
+                AttachmentUtilities.getAttachmentDirectory(mMockContext, account.mId),
+                Long.toString(attachment.mId));
+
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), null, null);
+        // Deleting the rows doesn't touch the files
+        assertTrue(bodyFile.exists());
+        assertTrue(attachmentFile.exists());
+
+        // One tombstone for the message, and one for its attachment
+        assertEquals(2, FileReaper.reapBatch(mMockContext, db));
+        assertFalse(bodyFile.exists());
+        assertFalse(attachmentFile.exists());
+        assertEquals(0, FileReaper.reapBatch(mMockContext, db));
+    }
+
+    public void testSweep() throws IOException {
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        final Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true,
+                mMockContext);
+        final Message message = ProviderTestUtils.setupMessage("message", account.mId,
+                mailbox.mId, false, true, mMockContext);
+
+        final File bodyFile = createFile(EmailProvider.getBodyDirectory(mMockContext,
+                message.mId), message.mId + ".txt");
+        final long orphanId = message.mId + 1000;
+        final File orphanBodyFile = createFile(EmailProvider.getBodyDirectory(mMockContext,
+                orphanId), orphanId + ".txt");
+        final File attachmentDir =
+                AttachmentUtilities.getAttachmentDirectory(mMockContext, account.mId);
+        final File orphanAttachmentFile = createFile(attachmentDir, "12345");
+        final File otherFile = createFile(attachmentDir, "notes");
+
+        // Too recent to be swept
+        FileReaper.sweep(mMockContext, db, System.currentTimeMillis());
+        assertTrue(orphanBodyFile.exists());
+        assertTrue(orphanAttachmentFile.exists());
+
+        FileReaper.sweep(mMockContext, db,
+                System.currentTimeMillis() + 2 * FileReaper.SWEEP_MIN_AGE_MILLIS);
+        assertTrue(bodyFile.exists());
+        assertFalse(orphanBodyFile.exists());
+        assertFalse(orphanAttachmentFile.exists());
+        // Not named for a row, so not ours to delete
+        assertTrue(otherFile.exists());
+    }
+
+    public void testGetIdFromFileName() {
+        assertEquals(12, FileReaper.getIdFromFileName("12"));
+        assertEquals(12, FileReaper.getIdFromFileName("12.html"));
+        assertEquals(-1, FileReaper.getIdFromFileName("notes"));
+        assertEquals(-1, FileReaper.getIdFromFileName(".txt"));
+    }
+}
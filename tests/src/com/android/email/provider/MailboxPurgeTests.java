@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Tests of the deletion of large mailboxes and accounts, whose messages are purged in the
+ * background.  Read latency during a purge is logged with the tag "MailboxPurgeTests".
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MailboxPurgeTests email
+ */
+@LargeTest
+public class MailboxPurgeTests extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "MailboxPurgeTests";
+    private static final int MESSAGE_COUNT = 20000;
+
+    private Context mMockContext;
+    private SQLiteDatabase mDb;
+    private ContentResolver mResolver;
+    private Account mAccount;
+    private Mailbox mBoxA;
+    private Mailbox mBoxB;
+
+    public MailboxPurgeTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mDb = getProvider().getDatabase(mMockContext);
+        mResolver = mMockContext.getContentResolver();
+        mAccount = ProviderTestUtils.setupAccount("purge", true, mMockContext);
+        mBoxA = ProviderTestUtils.setupMailbox("boxA", mAccount.mId, true, mMockContext);
+        mBoxB = ProviderTestUtils.setupMailbox("boxB", mAccount.mId, true, mMockContext);
+    }
+
+    /**
+     * Insert messages straight into the database, all of them starred and unread.
+     */
+    private void insertMessages(final Mailbox mailbox, final int count) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.ACCOUNT_KEY, mAccount.mId);
+        values.put(MessageColumns.MAILBOX_KEY, mailbox.mId);
+        values.put(MessageColumns.FLAG_LOADED, Message.FLAG_LOADED_COMPLETE);
+        values.put(MessageColumns.FLAG_FAVORITE, 1);
+        values.put(MessageColumns.FLAG_READ, 0);
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                values.put(MessageColumns.TIMESTAMP, i);
+                mDb.insert(Message.TABLE_NAME, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private long queryLong(final String sql) {
+        final Cursor c = mDb.rawQuery(sql, null);
+        try {
+            c.moveToFirst();
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private long countMessages(final Mailbox mailbox) {
+        return queryLong("select count(*) from " + Message.TABLE_NAME + " where "
+                + MessageColumns.MAILBOX_KEY + "=" + mailbox.mId);
+    }
+
+    private int countConversations(final int virtualMailboxType) {
+        final Cursor c = mResolver.query(EmailProvider.uiUri("uimessages",
+                EmailProvider.getVirtualMailboxId(EmailProvider.COMBINED_ACCOUNT_ID,
+                        virtualMailboxType)),
+                UIProvider.CONVERSATION_PROJECTION, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the unread messages of the account, as counted for its new mail notification
+     */
+    private int countNotifiedUnread() {
+        final Cursor c = mResolver.query(ContentUris.withAppendedId(
+                EmailContent.MAILBOX_NOTIFICATION_URI, mAccount.mId), null, null, null, null);
+        try {
+            int unread = 0;
+            while (c.moveToNext()) {
+                unread += c.getInt(1);
+            }
+            return unread;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testDeletedMailboxIsHidden() {
+        insertMessages(mBoxA, MESSAGE_COUNT / 10);
+        insertMessages(mBoxB, 10);
+        assertEquals(MESSAGE_COUNT / 10 + 10, countConversations(Mailbox.TYPE_STARRED));
+
+        final long start = SystemClock.elapsedRealtime();
+        mResolver.delete(ContentUris.withAppendedId(Mailbox.CONTENT_URI, mBoxA.mId), null, null);
+        LogUtils.i(TAG, "Deleted a mailbox of %d messages in %dms", MESSAGE_COUNT / 10,
+                SystemClock.elapsedRealtime() - start);
+
+        // Gone from every list right away, though the messages are still to be purged
+        assertNull(Mailbox.restoreMailboxWithId(mMockContext, mBoxA.mId));
+        assertEquals(10, countConversations(Mailbox.TYPE_STARRED));
+        assertEquals(10, countConversations(Mailbox.TYPE_UNREAD));
+        assertEquals(10, countNotifiedUnread());
+
+        MailboxPurger.purgeAll(mDb);
+        assertEquals(0, countMessages(mBoxA));
+        assertEquals(10, countMessages(mBoxB));
+        assertEquals(0, queryLong("select count(*) from " + MailboxPurger.TABLE_NAME));
+    }
+
+    public void testReadsStayResponsive() throws InterruptedException {
+        insertMessages(mBoxA, MESSAGE_COUNT);
+        insertMessages(mBoxB, 10);
+        // Delete the mailbox directly, so that only this test purges it
+        mDb.delete(Mailbox.TABLE_NAME, Mailbox.ID_SELECTION,
+                new String[] { Long.toString(mBoxA.mId) });
+
+        final long[] purgeMillis = new long[1];
+        final Thread purger = new Thread() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                MailboxPurger.purgeAll(mDb);
+                purgeMillis[0] = SystemClock.elapsedRealtime() - start;
+            }
+        };
+        purger.start();
+        final String selection = MessageColumns.MAILBOX_KEY + "=" + mBoxB.mId;
+        long maxReadMillis = 0;
+        int reads = 0;
+        while (purger.isAlive()) {
+            final long start = SystemClock.elapsedRealtime();
+            assertEquals(10, EmailContent.count(mMockContext, Message.CONTENT_URI, selection,
+                    null));
+            maxReadMillis = Math.max(maxReadMillis, SystemClock.elapsedRealtime() - start);
+            reads++;
+        }
+        purger.join();
+        LogUtils.i(TAG, "Purged %d messages in %dms; %d reads meanwhile, the slowest in %dms",
+                MESSAGE_COUNT, purgeMillis[0], reads, maxReadMillis);
+
+        assertEquals(0, countMessages(mBoxA));
+        assertTrue(reads > 1);
+        // A read waits for a chunk at most, never for the whole purge
+        assertTrue(maxReadMillis < purgeMillis[0] / 4);
+    }
+
+    public void testPurgeResumes() {
+        final Message message = ProviderTestUtils.setupMessage("message", mAccount.mId,
+                mBoxA.mId, true, true, mMockContext);
+        final Attachment attachment = ProviderTestUtils.setupAttachment(message.mId, "file", 100,
+                true, mMockContext);
+        insertMessages(mBoxA, MailboxPurger.CHUNK_SIZE * 3);
+        final Mailbox boxC = ProviderTestUtils.setupMailbox("boxC", mAccount.mId, true,
+                mMockContext);
+        insertMessages(boxC, 10);
+        mDb.delete(Mailbox.TABLE_NAME, Mailbox.ID_SELECTION,
+                new String[] { Long.toString(mBoxA.mId) });
+        mDb.delete(Mailbox.TABLE_NAME, Mailbox.ID_SELECTION,
+                new String[] { Long.toString(boxC.mId) });
+
+        // Interrupted after two chunks, e.g. by the death of the process
+        assertEquals(MailboxPurger.CHUNK_SIZE, MailboxPurger.purgeChunk(mDb));
+        assertEquals(MailboxPurger.CHUNK_SIZE, MailboxPurger.purgeChunk(mDb));
+        assertEquals(MailboxPurger.CHUNK_SIZE + 1, countMessages(mBoxA));
+
+        // The next run picks up where that one left off
+        assertEquals(MailboxPurger.CHUNK_SIZE + 1 + 10, MailboxPurger.purgeAll(mDb));
+        assertEquals(-1, MailboxPurger.purgeChunk(mDb));
+        assertEquals(0, countMessages(mBoxA));
+        assertEquals(0, countMessages(boxC));
+        assertEquals(0, queryLong("select count(*) from " + MailboxPurger.TABLE_NAME));
+        // The body and attachment went with the message, and their files are left to the reaper
+        assertEquals(0, queryLong("select count(*) from " + Body.TABLE_NAME + " where "
+                + BodyColumns.MESSAGE_KEY + "=" + message.mId));
+        assertNull(Attachment.restoreAttachmentWithId(mMockContext, attachment.mId));
+        assertEquals(1, queryLong("select count(*) from " + FileReaper.TABLE_NAME + " where "
+                + FileReaper.ATTACHMENT_KEY + "=" + attachment.mId));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Tests of the mailbox message and unread counts through deletes and moves of many messages,
+ * which recount the mailboxes instead of updating them per message.  The throughput of bulk
+ * and per-message operations is logged with the tag "MessageCountTests".
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageCountTests email
+ */
+@LargeTest
+public class MessageCountTests extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "MessageCountTests";
+    private static final int MESSAGE_COUNT = 2000;
+
+    private Context mMockContext;
+    private SQLiteDatabase mDb;
+    private ContentResolver mResolver;
+    private Account mAccount;
+    private Mailbox mBoxA;
+    private Mailbox mBoxB;
+
+    public MessageCountTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mDb = getProvider().getDatabase(mMockContext);
+        mResolver = mMockContext.getContentResolver();
+        mAccount = ProviderTestUtils.setupAccount("counts", true, mMockContext);
+        mBoxA = ProviderTestUtils.setupMailbox("boxA", mAccount.mId, true, mMockContext);
+        mBoxB = ProviderTestUtils.setupMailbox("boxB", mAccount.mId, true, mMockContext);
+    }
+
+    /**
+     * Insert messages straight into the database (the count triggers still apply), a third of
+     * them unread.
+     */
+    private void insertMessages(final Mailbox mailbox, final int count) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.ACCOUNT_KEY, mAccount.mId);
+        values.put(MessageColumns.MAILBOX_KEY, mailbox.mId);
+        values.put(MessageColumns.FLAG_LOADED, Message.FLAG_LOADED_COMPLETE);
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                values.put(MessageColumns.FLAG_READ, i % 3 == 0 ? 0 : 1);
+                values.put(MessageColumns.TIMESTAMP, i);
+                mDb.insert(Message.TABLE_NAME, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private long queryLong(final String sql) {
+        final Cursor c = mDb.rawQuery(sql, null);
+        try {
+            c.moveToFirst();
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Check that the counts of a mailbox are those of the messages in it.
+     */
+    private void assertCounts(final Mailbox mailbox) {
+        final String messages = "select count(*) from " + Message.TABLE_NAME + " where "
+                + MessageColumns.MAILBOX_KEY + "=" + mailbox.mId;
+        final String mailboxColumn = "select %s from " + Mailbox.TABLE_NAME + " where "
+                + MailboxColumns._ID + "=" + mailbox.mId;
+        assertEquals(queryLong(messages),
+                queryLong(String.format(mailboxColumn, MailboxColumns.MESSAGE_COUNT)));
+        assertEquals(queryLong(messages + " and " + MessageColumns.FLAG_READ + "=0"),
+                queryLong(String.format(mailboxColumn, MailboxColumns.UNREAD_COUNT)));
+        // The triggers aren't left suspended
+        assertEquals(0, queryLong("select count(*) from " + DBHelper.COUNT_SUSPENSION_TABLE));
+    }
+
+    private static void logThroughput(final String operation, final int count,
+            final long start) {
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        LogUtils.i(TAG, "%s of %d messages in %dms: %d messages/s", operation, count, elapsed,
+                count * 1000L / elapsed);
+    }
+
+    public void testBulkDelete() {
+        insertMessages(mBoxA, MESSAGE_COUNT);
+        insertMessages(mBoxB, 10);
+        assertCounts(mBoxA);
+
+        final long start = SystemClock.elapsedRealtime();
+        final int deleted = mResolver.delete(Message.CONTENT_URI,
+                MessageColumns.MAILBOX_KEY + "=" + mBoxA.mId + " and "
+                        + MessageColumns.TIMESTAMP + "%2=0", null);
+        logThroughput("Bulk delete", deleted, start);
+
+        assertEquals(MESSAGE_COUNT / 2, deleted);
+        assertCounts(mBoxA);
+        assertCounts(mBoxB);
+    }
+
+    public void testPerMessageDelete() {
+        final int count = MESSAGE_COUNT / 10;
+        insertMessages(mBoxA, count);
+        final Cursor c = mDb.query(Message.TABLE_NAME, new String[] {MessageColumns._ID},
+                null, null, null, null, null);
+        final long[] ids = new long[c.getCount()];
+        try {
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        // One message at a time, the triggers keep the counts
+        final long start = SystemClock.elapsedRealtime();
+        for (final long id : ids) {
+            mResolver.delete(ContentUris.withAppendedId(Message.CONTENT_URI, id), null, null);
+        }
+        logThroughput("Per-message delete", count, start);
+        assertCounts(mBoxA);
+    }
+
+    public void testBulkMove() {
+        insertMessages(mBoxA, MESSAGE_COUNT);
+        insertMessages(mBoxB, 10);
+
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.MAILBOX_KEY, mBoxB.mId);
+        final long start = SystemClock.elapsedRealtime();
+        final int moved = mResolver.update(Message.CONTENT_URI, values,
+                MessageColumns.MAILBOX_KEY + "=" + mBoxA.mId + " and "
+                        + MessageColumns.TIMESTAMP + "<" + MESSAGE_COUNT / 4, null);
+        logThroughput("Bulk move", moved, start);
+
+        assertEquals(MESSAGE_COUNT / 4, moved);
+        assertCounts(mBoxA);
+        assertCounts(mBoxB);
+    }
+
+    public void testBulkMarkRead() {
+        insertMessages(mBoxA, MESSAGE_COUNT);
+
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_READ, 1);
+        mResolver.update(Message.CONTENT_URI, values,
+                MessageColumns.MAILBOX_KEY + "=" + mBoxA.mId, null);
+        assertCounts(mBoxA);
+        assertEquals(0, queryLong("select " + MailboxColumns.UNREAD_COUNT + " from "
+                + Mailbox.TABLE_NAME + " where " + MailboxColumns._ID + "=" + mBoxA.mId));
+
+        // The triggers work again afterwards
+        insertMessages(mBoxA, 3);
+        assertCounts(mBoxA);
+    }
+
+    public void testPurgeFolder() {
+        insertMessages(mBoxA, MESSAGE_COUNT);
+        insertMessages(mBoxB, 10);
+
+        final long start = SystemClock.elapsedRealtime();
+        final int purged = mResolver.delete(
+                EmailProvider.uiUri("uipurgefolder", mBoxA.mId), null, null);
+        logThroughput("Purge", purged, start);
+
+        assertEquals(MESSAGE_COUNT, purged);
+        assertCounts(mBoxA);
+        assertCounts(mBoxB);
+        // The upsync will delete them from the server
+        assertEquals(MESSAGE_COUNT, queryLong("select count(*) from "
+                + Message.DELETED_TABLE_NAME + " where " + MessageColumns.MAILBOX_KEY + "="
+                + mBoxA.mId));
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Tests of the threading of messages by {@link MessageThreader}, and of the conversation list
+ * of a mailbox, which lists its threads.  Timings are logged with the tag "MessageThreadTests".
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageThreadTests email
+ */
+@MediumTest
+public class MessageThreadTests extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "MessageThreadTests";
+    private static final int BENCHMARK_MESSAGE_COUNT = 100000;
+    private static final int BENCHMARK_THREAD_SIZE = 5;
+
+    private Context mMockContext;
+    private SQLiteDatabase mDb;
+    private ContentResolver mResolver;
+    private Account mAccount;
+    private Mailbox mInbox;
+    private Mailbox mTrash;
+
+    public MessageThreadTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        mDb = getProvider().getDatabase(mMockContext);
+        mResolver = mMockContext.getContentResolver();
+        // Invalidate all caches, since we reset the database for each test
+        ContentCache.invalidateAllCaches();
+        mAccount = ProviderTestUtils.setupAccount("thread", true, mMockContext);
+        mInbox = ProviderTestUtils.setupMailbox("inbox", mAccount.mId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+        mTrash = ProviderTestUtils.setupMailbox("trash", mAccount.mId, true, mMockContext,
+                Mailbox.TYPE_TRASH);
+    }
+
+    /**
+     * Save a loaded, unread message, as a sync adapter would.
+     */
+    private Message addMessage(final Mailbox mailbox, final String subject, final String messageId,
+            final String references, final long timestamp, final String from) {
+        final Message message = ProviderTestUtils.setupMessage(subject, mAccount.mId,
+                mailbox.mId, false, false, mMockContext, false, false);
+        message.mSubject = subject;
+        message.mMessageId = messageId;
+        message.mThreadReferences = references;
+        message.mTimeStamp = timestamp;
+        message.mFrom = from;
+        message.mSnippet = "snippet of " + subject;
+        message.mFlagLoaded = Message.FLAG_LOADED_COMPLETE;
+        message.save(mMockContext);
+        return message;
+    }
+
+    private String getRoot(final Message message) {
+        return queryString("select " + MessageColumns.THREAD_ROOT + " from " + Message.TABLE_NAME
+                + " where " + MessageColumns._ID + "=" + message.mId);
+    }
+
+    private String queryString(final String sql) {
+        final Cursor c = mDb.rawQuery(sql, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private long countThreads(final Mailbox mailbox) {
+        return Long.parseLong(queryString("select count(*) from " + MessageThreader.TABLE_NAME
+                + " where " + MessageThreader.MAILBOX_KEY + "=" + mailbox.mId));
+    }
+
+    /**
+     * @return the thread of a message, as its mailbox's conversation list has it
+     */
+    private Cursor queryConversation(final Message message) {
+        final Cursor c = mResolver.query(EmailProvider.uiUri("uimessages", message.mMailboxKey),
+                UIProvider.CONVERSATION_PROJECTION, null, null, null);
+        final String root = getRoot(message);
+        final long threadId = Long.parseLong(queryString("select " + MessageThreader.ID
+                + " from " + MessageThreader.TABLE_NAME + " where " + MessageThreader.MAILBOX_KEY
+                + "=" + message.mMailboxKey + " and " + MessageThreader.ROOT + "='" + root + "'"));
+        while (c.moveToNext()) {
+            if (c.getLong(UIProvider.CONVERSATION_ID_COLUMN) == threadId) {
+                return c;
+            }
+        }
+        c.close();
+        fail("No conversation for " + message.mSubject);
+        return null;
+    }
+
+    private void assertConversation(final Message message, final int messageCount,
+            final boolean read, final String snippet) {
+        final Cursor c = queryConversation(message);
+        try {
+            assertEquals(messageCount, c.getInt(UIProvider.CONVERSATION_NUM_MESSAGES_COLUMN));
+            assertEquals(read, c.getInt(UIProvider.CONVERSATION_READ_COLUMN) != 0);
+            assertEquals(snippet, c.getString(UIProvider.CONVERSATION_SNIPPET_COLUMN));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testGetTopic() {
+        assertNull(MessageThreader.getTopic(null));
+        assertEquals("Lunch", MessageThreader.getTopic("Lunch"));
+        assertEquals("Lunch", MessageThreader.getTopic("Re: Lunch"));
+        assertEquals("Lunch", MessageThreader.getTopic("RE: Fwd: re[2]: Lunch "));
+        assertEquals("Lunch", MessageThreader.getTopic("AW: Lunch"));
+        assertEquals("Reading list", MessageThreader.getTopic("Reading list"));
+    }
+
+    public void testReplyJoinsThread() {
+        final Message root = addMessage(mInbox, "Lunch", "<a@droid.com>", null, 1000,
+                "A <a@droid.com>");
+        // Replies arrive in any order; the newest first, as IMAP syncs them
+        final Message second = addMessage(mInbox, "Re: Lunch", "<c@droid.com>",
+                "<a@droid.com> <b@droid.com>", 3000, "C <c@droid.com>");
+        final Message first = addMessage(mInbox, "Re: Lunch", "<b@droid.com>", "<a@droid.com>",
+                2000, "B <b@droid.com>");
+        final Message other = addMessage(mInbox, "Dinner", "<d@droid.com>", null, 4000,
+                "A <a@droid.com>");
+
+        assertEquals("<a@droid.com>", getRoot(root));
+        assertEquals("<a@droid.com>", getRoot(first));
+        assertEquals("<a@droid.com>", getRoot(second));
+        assertEquals(2, countThreads(mInbox));
+        assertConversation(root, 3, false, "snippet of Re: Lunch");
+        assertConversation(other, 1, false, "snippet of Dinner");
+        assertEquals("A <a@droid.com>\nB <b@droid.com>\nC <c@droid.com>",
+                queryString("select " + MessageThreader.PARTICIPANTS + " from "
+                        + MessageThreader.TABLE_NAME + " where " + MessageThreader.ROOT
+                        + "='<a@droid.com>'"));
+
+        // The messages of the conversation, oldest first
+        final Cursor c = queryConversation(root);
+        final Uri messageListUri;
+        try {
+            messageListUri =
+                    Uri.parse(c.getString(UIProvider.CONVERSATION_MESSAGE_LIST_URI_COLUMN));
+        } finally {
+            c.close();
+        }
+        final Cursor messages = mResolver.query(messageListUri, UIProvider.MESSAGE_PROJECTION,
+                null, null, null);
+        try {
+            assertEquals(3, messages.getCount());
+            final long[] expected = new long[] { root.mId, first.mId, second.mId };
+            while (messages.moveToNext()) {
+                assertEquals(expected[messages.getPosition()],
+                        messages.getLong(UIProvider.MESSAGE_ID_COLUMN));
+            }
+        } finally {
+            messages.close();
+        }
+    }
+
+    public void testSubjectFallback() {
+        final Message original = addMessage(mInbox, "Lunch", "<a@droid.com>", null, 1000,
+                "A <a@droid.com>");
+        // A reply from a client that sends no References
+        final Message reply = addMessage(mInbox, "Re: Lunch", "<b@droid.com>", null, 2000,
+                "B <b@droid.com>");
+        // The same subject, but not a reply
+        final Message unrelated = addMessage(mInbox, "Lunch", "<c@droid.com>", null, 3000,
+                "C <c@droid.com>");
+        // No message-id at all
+        final Message anonymous = addMessage(mInbox, "Notice", null, null, 4000, null);
+
+        assertEquals(getRoot(original), getRoot(reply));
+        assertEquals("<c@droid.com>", getRoot(unrelated));
+        assertEquals("#" + anonymous.mId, getRoot(anonymous));
+        assertEquals(3, countThreads(mInbox));
+    }
+
+    public void testUnreadAndMove() {
+        final Message root = addMessage(mInbox, "Lunch", "<a@droid.com>", null, 1000, null);
+        final Message reply = addMessage(mInbox, "Re: Lunch", "<b@droid.com>", "<a@droid.com>",
+                2000, null);
+
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_READ, 1);
+        mResolver.update(ContentUris.withAppendedId(Message.CONTENT_URI, root.mId), values, null,
+                null);
+        assertConversation(root, 2, false, "snippet of Re: Lunch");
+        mResolver.update(ContentUris.withAppendedId(Message.CONTENT_URI, reply.mId), values, null,
+                null);
+        assertConversation(root, 2, true, "snippet of Re: Lunch");
+
+        // The latest message leaves the thread, for one of the same root in the trash
+        values.clear();
+        values.put(MessageColumns.MAILBOX_KEY, mTrash.mId);
+        mResolver.update(ContentUris.withAppendedId(Message.CONTENT_URI, reply.mId), values, null,
+                null);
+        assertConversation(root, 1, true, "snippet of Lunch");
+        assertEquals(1, countThreads(mTrash));
+
+        mResolver.delete(ContentUris.withAppendedId(Message.CONTENT_URI, root.mId), null, null);
+        assertEquals(0, countThreads(mInbox));
+    }
+
+    public void testBulkMoveKeepsThreads() {
+        final Message root = addMessage(mInbox, "Lunch", "<a@droid.com>", null, 1000, null);
+        addMessage(mInbox, "Re: Lunch", "<b@droid.com>", "<a@droid.com>", 2000, null);
+        final Message other = addMessage(mInbox, "Dinner", "<c@droid.com>", null, 3000, null);
+        final String threadId = queryString("select " + MessageThreader.ID + " from "
+                + MessageThreader.TABLE_NAME + " where " + MessageThreader.ROOT
+                + "='<a@droid.com>'");
+
+        // Suspends the triggers, and rebuilds the threads of both mailboxes
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.MAILBOX_KEY, mTrash.mId);
+        mResolver.update(Message.CONTENT_URI, values, MessageColumns._ID + "=" + other.mId,
+                null);
+        values.clear();
+        values.put(MessageColumns.FLAG_READ, 1);
+        mResolver.update(Message.CONTENT_URI, values,
+                MessageColumns.MAILBOX_KEY + "=" + mInbox.mId, null);
+
+        assertEquals(1, countThreads(mInbox));
+        assertEquals(1, countThreads(mTrash));
+        assertConversation(root, 2, true, "snippet of Re: Lunch");
+        assertEquals(threadId, queryString("select " + MessageThreader.ID + " from "
+                + MessageThreader.TABLE_NAME + " where " + MessageThreader.ROOT
+                + "='<a@droid.com>'"));
+    }
+
+    public void testBulkDeleteRebuildsOnlyItsThreads() {
+        final Message root = addMessage(mInbox, "Lunch", "<a@droid.com>", null, 1000, null);
+        final Message reply = addMessage(mInbox, "Re: Lunch", "<b@droid.com>", "<a@droid.com>",
+                2000, null);
+        addMessage(mInbox, "Dinner", "<c@droid.com>", null, 3000, null);
+        // Make the other thread's row stale, so that rebuilding it would show
+        mDb.execSQL("update " + MessageThreader.TABLE_NAME + " set "
+                + MessageThreader.MESSAGE_COUNT + "=7 where " + MessageThreader.ROOT
+                + "='<c@droid.com>'");
+
+        // Suspends the triggers, and rebuilds the thread of the message deleted
+        mResolver.delete(Message.CONTENT_URI, MessageColumns._ID + "=" + reply.mId, null);
+
+        assertEquals(2, countThreads(mInbox));
+        assertConversation(root, 1, false, "snippet of Lunch");
+        assertEquals("7", queryString("select " + MessageThreader.MESSAGE_COUNT + " from "
+                + MessageThreader.TABLE_NAME + " where " + MessageThreader.ROOT
+                + "='<c@droid.com>'"));
+
+        // A thread whose last message goes is removed
+        mResolver.delete(Message.CONTENT_URI, MessageColumns._ID + "=" + root.mId, null);
+        assertEquals(1, countThreads(mInbox));
+    }
+
+    public void testConversationOperations() {
+        final Message root = addMessage(mInbox, "Lunch", "<a@droid.com>", null, 1000, null);
+        final Message reply = addMessage(mInbox, "Re: Lunch", "<b@droid.com>", "<a@droid.com>",
+                2000, null);
+        final Cursor c = queryConversation(root);
+        final Uri conversationUri;
+        try {
+            conversationUri = Uri.parse(c.getString(UIProvider.CONVERSATION_URI_COLUMN));
+        } finally {
+            c.close();
+        }
+
+        // Marking the conversation read marks each of its messages
+        final ContentValues values = new ContentValues();
+        values.put(UIProvider.ConversationColumns.READ, 1);
+        assertEquals(2, mResolver.update(conversationUri, values, null, null));
+        assertTrue(Message.restoreMessageWithId(mMockContext, root.mId).mFlagRead);
+        assertTrue(Message.restoreMessageWithId(mMockContext, reply.mId).mFlagRead);
+
+        // Deleting it moves them all to the trash
+        assertEquals(2, mResolver.delete(conversationUri, null, null));
+        assertEquals(0, countThreads(mInbox));
+        assertEquals(1, countThreads(mTrash));
+        assertEquals(mTrash.mId, Message.restoreMessageWithId(mMockContext, reply.mId).mMailboxKey);
+    }
+
+    /**
+     * Insert 100,000 messages, in threads of five, as the provider does, and time the
+     * conversation list of their mailbox against the list of its messages.
+     */
+    @LargeTest
+    public void testThreadListBenchmark() {
+        final ContentValues values = new ContentValues();
+        final long start = SystemClock.elapsedRealtime();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < BENCHMARK_MESSAGE_COUNT; i++) {
+                final int thread = i / BENCHMARK_THREAD_SIZE;
+                final boolean isRoot = i % BENCHMARK_THREAD_SIZE == 0;
+                values.clear();
+                values.put(MessageColumns.ACCOUNT_KEY, mAccount.mId);
+                values.put(MessageColumns.MAILBOX_KEY, mInbox.mId);
+                values.put(MessageColumns.FLAG_LOADED, Message.FLAG_LOADED_COMPLETE);
+                values.put(MessageColumns.FLAG_READ, 0);
+                values.put(MessageColumns.FLAG_SEEN, 0);
+                values.put(MessageColumns.TIMESTAMP, i);
+                values.put(MessageColumns.SUBJECT, (isRoot ? "" : "Re: ") + "topic " + thread);
+                values.put(MessageColumns.MESSAGE_ID, "<" + i + "@droid.com>");
+                if (!isRoot) {
+                    values.put(MessageColumns.THREAD_REFERENCES,
+                            "<" + (thread * BENCHMARK_THREAD_SIZE) + "@droid.com>");
+                }
+                values.put(MessageColumns.FROM_LIST, "Sender " + (i % 7) + " <s" + (i % 7)
+                        + "@droid.com>");
+                values.put(MessageColumns.SNIPPET, "snippet " + i);
+                // As EmailProvider#insert does
+                MessageThreader.assignThread(mDb, values);
+                mDb.insert(Message.TABLE_NAME, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        final long insertMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(BENCHMARK_MESSAGE_COUNT / BENCHMARK_THREAD_SIZE, countThreads(mInbox));
+
+        final long threadListMillis = timeConversationList(
+                EmailProvider.uiUri("uimessages", mInbox.mId));
+        // The unseen list of a mailbox still lists its messages, all of which are unseen here
+        final long messageListMillis = timeConversationList(
+                EmailProvider.uiUri("uimessages", mInbox.mId).buildUpon()
+                        .appendQueryParameter(UIProvider.SEEN_QUERY_PARAMETER, "false").build());
+        LogUtils.i(TAG, "Inserted %d messages in %dms; listed threads in %dms, messages in %dms",
+                BENCHMARK_MESSAGE_COUNT, insertMillis, threadListMillis, messageListMillis);
+    }
+
+    private long timeConversationList(final Uri uri) {
+        final long start = SystemClock.elapsedRealtime();
+        final Cursor c = mResolver.query(uri, UIProvider.CONVERSATION_PROJECTION, null, null,
+                null);
+        try {
+            // Fill the window, as the list does
+            assertTrue(c.moveToLast());
+        } finally {
+            c.close();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+}
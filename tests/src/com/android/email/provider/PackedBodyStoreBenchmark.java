@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.mail.utils.LogUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Compares the disk footprint and read latency of bodies stored one file per part with the
+ * {@link PackedBodyStore}.  Results are logged with the tag "PackedBodyStoreBenchmark".
+ *
+ * You can run this benchmark with:
+ *   runtest -c com.android.email.provider.PackedBodyStoreBenchmark email
+ */
+@LargeTest
+public class PackedBodyStoreBenchmark extends AndroidTestCase {
+    private static final String TAG = "PackedBodyStoreBenchmark";
+    private static final String DATABASE_NAME = "PackedBodyStoreBenchmark.db";
+
+    private static final int MESSAGE_COUNT = 2000;
+    /** Filesystems allocate whole blocks, so small files cost more than their length. */
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final String[] WORDS = new String[] {
+        "meeting", "tomorrow", "please", "review", "attached", "thanks", "regards", "the",
+        "project", "schedule", "update", "and", "for", "with", "team", "budget", "report",
+    };
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), TAG);
+        deleteAll(mDirectory);
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(mDirectory);
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private static void deleteAll(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                deleteAll(file);
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * @return a plausible HTML body of 1 to 20KB
+     */
+    private static String makeBody(final Random random) {
+        final StringBuilder sb = new StringBuilder("<html><body><div dir=\"ltr\">");
+        final int length = 1024 + random.nextInt(19 * 1024);
+        while (sb.length() < length) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+            sb.append(random.nextInt(10) == 0 ? "<br>\n" : " ");
+        }
+        return sb.append("</div></body></html>").toString();
+    }
+
+    private static long getFootprint(final File file) {
+        if (file.isDirectory()) {
+            long bytes = 0;
+            final File[] files = file.listFiles();
+            if (files != null) {
+                for (final File child : files) {
+                    bytes += getFootprint(child);
+                }
+            }
+            return bytes;
+        }
+        return (file.length() + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private static int readAll(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int total = 0;
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            total += count;
+        }
+        return total;
+    }
+
+    public void testFootprintAndReadLatency() throws IOException {
+        final File legacyDir = new File(mDirectory, "files");
+        final File packedDir = new File(mDirectory, "packed");
+        final PackedBodyStore store =
+                new PackedBodyStore(getContext(), DATABASE_NAME, packedDir);
+        final Random random = new Random(0);
+        for (int id = 1; id <= MESSAGE_COUNT; id++) {
+            final String body = makeBody(random);
+            // As EmailProvider lays out body files
+            final File dir = new File(legacyDir, (id / 100 % 100) + "/" + (id % 100));
+            dir.mkdirs();
+            final OutputStream out = new FileOutputStream(new File(dir, id + ".html"));
+            try {
+                out.write(body.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            store.write(id, "html", body);
+        }
+
+        final long legacyBytes = getFootprint(legacyDir);
+        final long packedBytes = getFootprint(packedDir)
+                + getFootprint(getContext().getDatabasePath(DATABASE_NAME));
+
+        long start = SystemClock.elapsedRealtime();
+        for (int id = 1; id <= MESSAGE_COUNT; id++) {
+            final File dir = new File(legacyDir, (id / 100 % 100) + "/" + (id % 100));
+            final InputStream in = new FileInputStream(new File(dir, id + ".html"));
+            try {
+                readAll(in);
+            } finally {
+                in.close();
+            }
+        }
+        final long legacyMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int id = 1; id <= MESSAGE_COUNT; id++) {
+            final InputStream in = store.openBody(id, "html");
+            try {
+                readAll(in);
+            } finally {
+                in.close();
+            }
+        }
+        final long packedMillis = SystemClock.elapsedRealtime() - start;
+
+        LogUtils.i(TAG, "%d bodies, one file each: %dKB on disk, %.3fms per read",
+                MESSAGE_COUNT, legacyBytes / 1024, (double) legacyMillis / MESSAGE_COUNT);
+        LogUtils.i(TAG, "%d bodies, packed: %dKB on disk, %.3fms per read",
+                MESSAGE_COUNT, packedBytes / 1024, (double) packedMillis / MESSAGE_COUNT);
+        assertTrue(packedBytes < legacyBytes);
+    }
+}
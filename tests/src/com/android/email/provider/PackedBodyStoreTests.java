@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class PackedBodyStoreTests extends AndroidTestCase {
+    private File mDirectory;
+    private PackedBodyStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "PackedBodyStoreTests");
+        deleteAll(mDirectory);
+        // In-memory index, so each test starts empty
+        mStore = new PackedBodyStore(getContext(), null, mDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(mDirectory);
+        super.tearDown();
+    }
+
+    private static void deleteAll(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                deleteAll(file);
+            }
+        }
+        dir.delete();
+    }
+
+    public void testWriteRead() throws IOException {
+        final String html = "<p>Grüße — 日本語</p>";
+        mStore.write(1, "html", html);
+        mStore.write(1, "txt", "text");
+        mStore.write(2, "txt", "other");
+        assertEquals(html, mStore.read(1, "html"));
+        assertEquals("text", mStore.read(1, "txt"));
+        assertEquals("other", mStore.read(2, "txt"));
+        assertNull(mStore.read(2, "html"));
+
+        // Rewriting replaces, and writing nothing deletes
+        mStore.write(1, "txt", "new text");
+        assertEquals("new text", mStore.read(1, "txt"));
+        mStore.write(1, "html", null);
+        assertNull(mStore.read(1, "html"));
+
+        mStore.delete(Arrays.asList(1L, 99L));
+        assertNull(mStore.read(1, "txt"));
+        assertEquals("other", mStore.read(2, "txt"));
+        assertEquals(Arrays.asList(2L), mStore.getMessageIds());
+    }
+
+    public void testCompact() throws IOException {
+        // Fill more than one segment with incompressible bodies
+        final StringBuilder sb = new StringBuilder();
+        final Random random = new Random(0);
+        for (int i = 0; i < 64 * 1024; i++) {
+            sb.append((char) (0x4e00 + random.nextInt(0x5000)));
+        }
+        final String body = sb.toString();
+        int count = 0;
+        while (mDirectory.listFiles() == null || mDirectory.listFiles().length < 3) {
+            mStore.write(++count, "txt", body + count);
+        }
+        final long before = mStore.getDiskBytes();
+
+        // Nothing is dead yet
+        assertEquals(0, mStore.compact());
+
+        // Delete most of the bodies
+        for (int id = 1; id < count; id++) {
+            if (id % 4 != 0) {
+                mStore.write(id, "txt", null);
+            }
+        }
+        assertTrue(mStore.compact() > 0);
+        assertTrue(mStore.getDiskBytes() < before);
+        for (int id = 4; id < count; id += 4) {
+            assertEquals(body + id, mStore.read(id, "txt"));
+        }
+        assertEquals(body + count, mStore.read(count, "txt"));
+
+        // Bodies are still written and rewritten after the index has moved
+        mStore.write(4, "txt", "rewritten");
+        mStore.write(count + 1, "txt", "new");
+        assertEquals("rewritten", mStore.read(4, "txt"));
+        assertEquals("new", mStore.read(count + 1, "txt"));
+        assertEquals(body + 8, mStore.read(8, "txt"));
+    }
+
+    public void testNotCreatedUntilWritten() throws IOException {
+        final String name = "PackedBodyStoreTests.db";
+        final File database = getContext().getDatabasePath(name);
+        getContext().deleteDatabase(name);
+        try {
+            final PackedBodyStore store = new PackedBodyStore(getContext(), name, mDirectory);
+            assertFalse(store.isCreated());
+            // Reading, deleting and compacting an empty store leave it uncreated
+            store.write(1, "txt", null);
+            store.delete(Arrays.asList(1L));
+            assertNull(store.read(1, "txt"));
+            assertEquals(0, store.compact());
+            assertFalse(database.exists());
+
+            store.write(1, "txt", "text");
+            assertTrue(store.isCreated());
+            assertTrue(database.exists());
+        } finally {
+            getContext().deleteDatabase(name);
+        }
+    }
+
+    public void testMigrateLegacyBodies() throws IOException {
+        final long messageId = 1234567;
+        final File dir = EmailProvider.getBodyDirectory(getContext(), messageId);
+        dir.mkdirs();
+        final File html = new File(dir, messageId + ".html");
+        final FileOutputStream out = new FileOutputStream(html);
+        try {
+            out.write("<b>été</b>".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        final File text = new File(dir, messageId + ".txt");
+        assertTrue(text.createNewFile());
+        // Already written to the store, so newer than the file
+        mStore.write(messageId, "txt", "newer");
+
+        assertTrue(mStore.migrateLegacyBodies(getContext()) >= 2);
+        assertFalse(html.exists());
+        assertFalse(text.exists());
+        assertEquals("<b>été</b>", mStore.read(messageId, "html"));
+        assertEquals("newer", mStore.read(messageId, "txt"));
+    }
+}
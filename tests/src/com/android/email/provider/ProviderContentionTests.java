@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how long message list reads wait while a sync is writing a large batch of messages,
+ * reading through the writer connection (as all queries used to) and through the reader
+ * connections used by the UI queries.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.ProviderContentionTests email
+ */
+@LargeTest
+public class ProviderContentionTests extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "ProviderContentionTests";
+
+    private static final int MESSAGE_COUNT = 10000;
+    private static final int MESSAGES_PER_TRANSACTION = 1000;
+    private static final int READER_COUNT = 2;
+    private static final int PAGE_SIZE = 50;
+
+    private static final String PAGE_QUERY = "SELECT " + MessageColumns._ID + ","
+            + MessageColumns.SUBJECT + "," + MessageColumns.DISPLAY_NAME + ","
+            + MessageColumns.SNIPPET + " FROM " + Message.TABLE_NAME + " WHERE "
+            + MessageColumns.MAILBOX_KEY + "=? ORDER BY " + MessageColumns.TIMESTAMP
+            + " DESC LIMIT " + PAGE_SIZE + " OFFSET ?";
+
+    private Context mMockContext;
+
+    public ProviderContentionTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        ContentCache.invalidateAllCaches();
+    }
+
+    public void testReadLatencyDuringSyncWrite() throws Exception {
+        final EmailProvider provider = getProvider();
+        final Account account = ProviderTestUtils.setupAccount("contention", true, mMockContext);
+
+        final Mailbox before = ProviderTestUtils.setupMailbox("before", account.mId, true,
+                mMockContext);
+        final ArrayList<Long> beforeLatencies = runContention(account.mId, before.mId,
+                provider.getDatabase(mMockContext));
+
+        final Mailbox after = ProviderTestUtils.setupMailbox("after", account.mId, true,
+                mMockContext);
+        final ArrayList<Long> afterLatencies = runContention(account.mId, after.mId,
+                provider.getReaderDatabase(mMockContext));
+
+        LogUtils.d(TAG, "writer connection: reads %d, p50 %dms, p99 %dms",
+                beforeLatencies.size(), percentile(beforeLatencies, 50),
+                percentile(beforeLatencies, 99));
+        LogUtils.d(TAG, "reader connections: reads %d, p50 %dms, p99 %dms",
+                afterLatencies.size(), percentile(afterLatencies, 50),
+                percentile(afterLatencies, 99));
+
+        assertFalse(beforeLatencies.isEmpty());
+        assertFalse(afterLatencies.isEmpty());
+        // The reader connections see everything the writer committed
+        assertEquals(MESSAGE_COUNT, countMessages(provider.getReaderDatabase(mMockContext),
+                after.mId));
+    }
+
+    /**
+     * Insert MESSAGE_COUNT messages in large transactions on the writer connection while
+     * READER_COUNT threads page through the mailbox on the given database.
+     * @return the latency of every read, in milliseconds
+     */
+    private ArrayList<Long> runContention(final long accountId, final long mailboxId,
+            final SQLiteDatabase readDb) throws InterruptedException {
+        final SQLiteDatabase writeDb = getProvider().getDatabase(mMockContext);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final ArrayList<Long> latencies = new ArrayList<Long>();
+
+        final Thread[] readers = new Thread[READER_COUNT];
+        for (int i = 0; i < READER_COUNT; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    final ArrayList<Long> mine = new ArrayList<Long>();
+                    int offset = 0;
+                    do {
+                        final long start = SystemClock.elapsedRealtime();
+                        final Cursor c = readDb.rawQuery(PAGE_QUERY, new String[] {
+                                String.valueOf(mailboxId), String.valueOf(offset) });
+                        try {
+                            while (c.moveToNext()) {
+                                c.getString(1);
+                            }
+                        } finally {
+                            c.close();
+                        }
+                        mine.add(SystemClock.elapsedRealtime() - start);
+                        offset = (offset + PAGE_SIZE) % MESSAGE_COUNT;
+                    } while (!done.get());
+                    synchronized (latencies) {
+                        latencies.addAll(mine);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        for (int i = 0; i < MESSAGE_COUNT; i += MESSAGES_PER_TRANSACTION) {
+            writeDb.beginTransaction();
+            try {
+                for (int j = i; j < i + MESSAGES_PER_TRANSACTION; j++) {
+                    final Message message = ProviderTestUtils.setupMessage("message" + j,
+                            accountId, mailboxId, false, false, mMockContext);
+                    message.mTimeStamp = j;
+                    writeDb.insert(Message.TABLE_NAME, null, message.toContentValues());
+                }
+                writeDb.setTransactionSuccessful();
+            } finally {
+                writeDb.endTransaction();
+            }
+        }
+        done.set(true);
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+        return latencies;
+    }
+
+    private static int countMessages(final SQLiteDatabase db, final long mailboxId) {
+        final Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + Message.TABLE_NAME + " WHERE "
+                + MessageColumns.MAILBOX_KEY + "=?", new String[] { String.valueOf(mailboxId) });
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long percentile(final ArrayList<Long> values, final int percent) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        final ArrayList<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        final int index = Math.min(sorted.size() - 1, sorted.size() * percent / 100);
+        return sorted.get(index);
+    }
+}
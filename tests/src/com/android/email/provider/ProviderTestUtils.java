@@ -411,6 +411,9 @@ public class ProviderTestUtils extends Assert {
 
         assertEquals(caller + " mThreadTopic", expect.mThreadTopic, actual.mThreadTopic);
 
+        assertEquals(caller + " mThreadReferences", expect.mThreadReferences,
+                actual.mThreadReferences);
+
         assertEquals(caller + " mSyncData", expect.mSyncData, actual.mSyncData);
 
         assertEquals(caller + " mSyncData", expect.mServerConversationId, actual.mServerConversationId);
@@ -49,6 +49,7 @@ import com.android.emailcommon.provider.EmailContent.PolicyColumns;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.Policy;
+import com.android.emailcommon.provider.SearchResult;
 import com.android.emailcommon.utility.TextUtilities;
 import com.android.emailcommon.utility.Utility;
 
@@ -1325,6 +1326,11 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         Uri uri = ContentUris.withAppendedId(Account.CONTENT_URI, account1Id);
         mMockContext.getContentResolver().delete(uri, null, null);
 
+        // the messages go in the background
+        numMessages = EmailContent.count(mMockContext, Message.CONTENT_URI, null, null);
+        assertEquals(2, numMessages);
+        assertEquals(2, MailboxPurger.purgeAll(getProvider().getDatabase(mMockContext)));
+
         // make sure there are no accounts, mailboxes, or messages
         numAccounts = EmailContent.count(mMockContext, Account.CONTENT_URI, null, null);
         assertEquals(0, numAccounts);
@@ -1411,15 +1417,58 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         Uri uri = ContentUris.withAppendedId(Mailbox.CONTENT_URI, box1Id);
         resolver.delete(uri, null, null);
 
-        // there should now be zero messages in all three tables
-        numMessages = EmailContent.count(mMockContext, Message.CONTENT_URI, selection, selArgs);
-        assertEquals(0, numMessages);
+        // the pending changes go with it
         numMessages =
                 EmailContent.count(mMockContext, Message.DELETED_CONTENT_URI, selection, selArgs);
         assertEquals(0, numMessages);
         numMessages =
                 EmailContent.count(mMockContext, Message.UPDATED_CONTENT_URI, selection, selArgs);
         assertEquals(0, numMessages);
+
+        // and the messages are purged in the background
+        numMessages = EmailContent.count(mMockContext, Message.CONTENT_URI, selection, selArgs);
+        assertEquals(4, numMessages);
+        assertEquals(4, MailboxPurger.purgeAll(getProvider().getDatabase(mMockContext)));
+        numMessages = EmailContent.count(mMockContext, Message.CONTENT_URI, selection, selArgs);
+        assertEquals(0, numMessages);
+    }
+
+    /**
+     * Test that search results refer to messages in other mailboxes, and go with their search
+     * mailbox
+     */
+    public void testSearchResults() {
+        final Account account = ProviderTestUtils.setupAccount("search", true, mMockContext);
+        final Mailbox inbox = ProviderTestUtils.setupMailbox("inbox", account.mId, true,
+                mMockContext, Mailbox.TYPE_INBOX);
+        final Mailbox search = ProviderTestUtils.setupMailbox("search", account.mId, true,
+                mMockContext, Mailbox.TYPE_SEARCH);
+        final Message synced = ProviderTestUtils.setupMessage("synced", account.mId, inbox.mId,
+                false, true, mMockContext);
+        final Message downloaded = ProviderTestUtils.setupMessage("downloaded", account.mId,
+                search.mId, false, true, mMockContext);
+
+        final ContentResolver resolver = mMockContext.getContentResolver();
+        final ContentValues[] values = new ContentValues[2];
+        values[0] = new ContentValues();
+        values[0].put(SearchResult.MAILBOX_KEY, search.mId);
+        values[0].put(SearchResult.MESSAGE_KEY, synced.mId);
+        values[1] = new ContentValues();
+        values[1].put(SearchResult.MAILBOX_KEY, search.mId);
+        values[1].put(SearchResult.MESSAGE_KEY, downloaded.mId);
+        resolver.bulkInsert(SearchResult.CONTENT_URI, values);
+
+        final String selection = SearchResult.MAILBOX_KEY + "=" + search.mId;
+        assertEquals(2, EmailContent.count(mMockContext, SearchResult.CONTENT_URI, selection,
+                null));
+
+        // Deleting the search mailbox deletes its results, but not the messages they refer to
+        resolver.delete(ContentUris.withAppendedId(Mailbox.CONTENT_URI, search.mId), null, null);
+        assertEquals(0, EmailContent.count(mMockContext, SearchResult.CONTENT_URI, selection,
+                null));
+        MailboxPurger.purgeAll(getProvider().getDatabase(mMockContext));
+        assertNotNull(Message.restoreMessageWithId(mMockContext, synced.mId));
+        assertNull(Message.restoreMessageWithId(mMockContext, downloaded.mId));
     }
 
     /**
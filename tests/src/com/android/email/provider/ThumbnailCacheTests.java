@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ThumbnailCacheTests extends TestCase {
+
+    public void testGetSizeBucket() {
+        assertEquals(ThumbnailCache.MIN_BUCKET, ThumbnailCache.getSizeBucket(1, 1));
+        assertEquals(64, ThumbnailCache.getSizeBucket(62, 62));
+        assertEquals(128, ThumbnailCache.getSizeBucket(65, 20));
+        assertEquals(128, ThumbnailCache.getSizeBucket(20, 128));
+        assertEquals(512, ThumbnailCache.getSizeBucket(300, 400));
+        assertEquals(ThumbnailCache.MAX_BUCKET, ThumbnailCache.getSizeBucket(5000, 5000));
+    }
+
+    public void testGetSampleSize() {
+        // Small images are decoded as they are
+        assertEquals(1, ThumbnailCache.getSampleSize(100, 80, 128));
+        assertEquals(1, ThumbnailCache.getSampleSize(255, 80, 128));
+        assertEquals(2, ThumbnailCache.getSampleSize(256, 80, 128));
+        // A 12 megapixel photo for a 256 thumbnail decodes at 1/8 scale, 500x375
+        assertEquals(8, ThumbnailCache.getSampleSize(4000, 3000, 256));
+        assertEquals(8, ThumbnailCache.getSampleSize(3000, 4000, 256));
+    }
+}
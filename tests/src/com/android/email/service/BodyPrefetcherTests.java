@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.text.format.DateUtils;
+
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.internet.MimeHeader;
+import com.android.emailcommon.internet.MimeMessage;
+import com.android.emailcommon.internet.TextBody;
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the parts of BodyPrefetcher that don't need a server.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.BodyPrefetcherTests email
+ */
+@MediumTest
+public class BodyPrefetcherTests extends ProviderTestCase2<EmailProvider> {
+
+    public BodyPrefetcherTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    public void testBuildPriorityOrder() {
+        assertEquals("CASE WHEN mailboxKey=5 THEN 1 WHEN flagFavorite=1 THEN 2"
+                + " WHEN mailboxKey=3 AND flagRead=0 THEN 3 ELSE 4 END, timeStamp DESC",
+                BodyPrefetcher.buildPriorityOrder(new ArrayList<Long>(), 5, 3));
+        assertEquals("CASE WHEN _id IN (10,11) THEN 0 WHEN mailboxKey=5 THEN 1"
+                + " WHEN flagFavorite=1 THEN 2 WHEN mailboxKey=3 AND flagRead=0 THEN 3"
+                + " ELSE 4 END, timeStamp DESC",
+                BodyPrefetcher.buildPriorityOrder(Arrays.asList(10L, 11L), 5, 3));
+    }
+
+    public void testByteBudget() {
+        final BodyPrefetcher.ByteBudget budget = new BodyPrefetcher.ByteBudget();
+        final int mobile = ConnectivityManager.TYPE_MOBILE;
+        final int wifi = ConnectivityManager.TYPE_WIFI;
+        final long mobileLimit = BodyPrefetcher.ByteBudget.getBudgetBytes(mobile);
+        assertTrue(BodyPrefetcher.ByteBudget.getBudgetBytes(wifi) > mobileLimit);
+
+        final long now = 1000 * DateUtils.DAY_IN_MILLIS;
+        assertTrue(budget.tryCharge(mobile, mobileLimit - 10, now));
+        assertTrue(budget.tryCharge(mobile, 10, now));
+        assertFalse(budget.tryCharge(mobile, 1, now));
+        assertFalse(budget.hasRemaining(mobile, now));
+        // Each network has its own budget
+        assertTrue(budget.tryCharge(wifi, 1, now));
+        // The budget resets after the window
+        assertTrue(budget.hasRemaining(mobile, now + DateUtils.HOUR_IN_MILLIS));
+        assertTrue(budget.tryCharge(mobile, 1, now + DateUtils.HOUR_IN_MILLIS));
+        // A single oversized message still goes through on a fresh window
+        assertTrue(budget.tryCharge(mobile, mobileLimit * 2, now + 2 * DateUtils.HOUR_IN_MILLIS));
+    }
+
+    /**
+     * @return the ids of the messages the prefetcher would fetch for an account
+     */
+    private static List<Long> getCandidates(final Context context, final long accountId) {
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final Cursor c = context.getContentResolver().query(Message.CONTENT_URI,
+                Message.ID_COLUMN_PROJECTION, BodyPrefetcher.CANDIDATE_SELECTION,
+                new String[] { String.valueOf(accountId) }, MessageColumns._ID);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(Message.ID_COLUMNS_ID_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private static Message setupMessage(final String name, final String serverId,
+            final int flagLoaded, final int flags, final Account account, final Mailbox mailbox,
+            final Context context) {
+        final Message message = ProviderTestUtils.setupMessage(name, account.mId, mailbox.mId,
+                false, false, context);
+        message.mServerId = serverId;
+        message.mFlagLoaded = flagLoaded;
+        message.mFlags = flags;
+        message.save(context);
+        return message;
+    }
+
+    /**
+     * Sync stores envelopes with their bodies pending, which sync then counts as synced and the
+     * prefetcher picks up; once the prefetcher has written the body, neither touches it again.
+     */
+    public void testSyncAndPrefetch() throws Exception {
+        final Context context = getMockContext();
+        final Account account = ProviderTestUtils.setupAccount("prefetch", true, context);
+        final Mailbox mailbox = ProviderTestUtils.setupMailbox("inbox", account.mId, true,
+                context);
+        // As stored by ImapService.downloadFlagAndEnvelope
+        final Message envelope = setupMessage("envelope", "1", Message.FLAG_LOADED_PARTIAL,
+                BodyPrefetcher.FLAG_BODY_PENDING, account, mailbox, context);
+        // Stored before bodies were left to the prefetcher; sync fetches its envelope again
+        final Message partial = setupMessage("partial", "2", Message.FLAG_LOADED_PARTIAL, 0,
+                account, mailbox, context);
+        final Message complete = setupMessage("complete", "3", Message.FLAG_LOADED_COMPLETE, 0,
+                account, mailbox, context);
+
+        assertFalse(BodyPrefetcher.needsEnvelope(envelope.mFlagLoaded, envelope.mFlags));
+        assertTrue(BodyPrefetcher.needsEnvelope(partial.mFlagLoaded, partial.mFlags));
+        assertFalse(BodyPrefetcher.needsEnvelope(complete.mFlagLoaded, complete.mFlags));
+        assertEquals(Arrays.asList(envelope.mId), getCandidates(context, account.mId));
+
+        // The prefetcher fetches the body and writes it
+        final MimeMessage remote = new MimeMessage();
+        remote.setUid("1");
+        remote.setFrom(new Address("sender@test.com", "Sender"));
+        remote.setSubject("renamed on the server");
+        remote.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "text/plain");
+        remote.setBody(new TextBody("The body"));
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        BodyPrefetcher.addBodyOps(context, remote,
+                Message.restoreMessageWithId(context, envelope.mId), ops);
+        // Read in the UI while its body was on the way
+        final ContentValues read = new ContentValues();
+        read.put(MessageColumns.FLAG_READ, 1);
+        context.getContentResolver().update(
+                ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, envelope.mId), read,
+                null, null);
+        context.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+
+        final Message loaded = Message.restoreMessageWithId(context, envelope.mId);
+        assertTrue(loaded.mFlagRead);
+        assertEquals(envelope.mSubject, loaded.mSubject);
+        assertEquals(Message.FLAG_LOADED_COMPLETE, loaded.mFlagLoaded);
+        assertEquals(0, loaded.mFlags & BodyPrefetcher.FLAG_BODY_PENDING);
+        assertEquals("The body", loaded.mSnippet);
+        assertFalse(BodyPrefetcher.needsEnvelope(loaded.mFlagLoaded, loaded.mFlags));
+        assertTrue(getCandidates(context, account.mId).isEmpty());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the sync window planner.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.SyncWindowPlannerTests email
+ */
+@SmallTest
+public class SyncWindowPlannerTests extends TestCase {
+    private static final long MAILBOX_ID = 1;
+    private static final long NOW = 1000 * DateUtils.DAY_IN_MILLIS;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SyncWindowPlanner.clearForTest();
+    }
+
+    public void testNoStats() {
+        assertTrue(SyncWindowPlanner.getArrivalRatePerDay(MAILBOX_ID) < 0);
+        assertEquals(0, SyncWindowPlanner.planQuickSync(MAILBOX_ID,
+                DateUtils.DAY_IN_MILLIS, NOW));
+        // Without any history we start with the old one day window.
+        assertEquals(SyncWindowPlanner.MIN_WINDOW_MILLIS,
+                SyncWindowPlanner.planExtension(MAILBOX_ID, 10, 0, 0));
+    }
+
+    public void testRecordSearch() {
+        // 33 messages in a 5.5 day window (5 days plus half a day for IMAP date rounding)
+        SyncWindowPlanner.recordSearch(MAILBOX_ID, 33, 5 * DateUtils.DAY_IN_MILLIS, NOW);
+        assertEquals(6.0, SyncWindowPlanner.getArrivalRatePerDay(MAILBOX_ID), 0.001);
+        // Later samples are smoothed in rather than replacing the rate.
+        SyncWindowPlanner.recordSearch(MAILBOX_ID, 0, 5 * DateUtils.DAY_IN_MILLIS, NOW);
+        final double rate = SyncWindowPlanner.getArrivalRatePerDay(MAILBOX_ID);
+        assertTrue(rate > 0 && rate < 6.0);
+        // Other mailboxes are unaffected.
+        assertTrue(SyncWindowPlanner.getArrivalRatePerDay(MAILBOX_ID + 1) < 0);
+    }
+
+    public void testPlanQuickSyncQuietFolder() {
+        SyncWindowPlanner.recordSearch(MAILBOX_ID, 10, 10 * DateUtils.DAY_IN_MILLIS, NOW);
+        assertEquals(0, SyncWindowPlanner.planQuickSync(MAILBOX_ID,
+                DateUtils.DAY_IN_MILLIS, NOW + DateUtils.HOUR_IN_MILLIS));
+    }
+
+    public void testPlanQuickSyncBusyFolder() {
+        // About 2000 messages a day
+        SyncWindowPlanner.recordSearch(MAILBOX_ID, 3000, DateUtils.DAY_IN_MILLIS, NOW);
+        // A few minutes later only a handful are expected; never fewer than the minimum.
+        assertEquals(SyncWindowPlanner.MIN_QUICK_SYNC_MESSAGES, SyncWindowPlanner.planQuickSync(
+                MAILBOX_ID, DateUtils.DAY_IN_MILLIS, NOW + DateUtils.SECOND_IN_MILLIS));
+        // Half an hour later, about 42 are expected, plus slack.
+        assertEquals(63, SyncWindowPlanner.planQuickSync(
+                MAILBOX_ID, DateUtils.DAY_IN_MILLIS, NOW + DateUtils.HOUR_IN_MILLIS / 2));
+        // An hour later, about 83 are expected; with slack that is more than a quick sync's
+        // range may hold, so the date window is used rather than missing any.
+        assertEquals(0, SyncWindowPlanner.planQuickSync(
+                MAILBOX_ID, DateUtils.DAY_IN_MILLIS, NOW + DateUtils.HOUR_IN_MILLIS));
+    }
+
+    public void testPlanExtension() {
+        // 1 message a day: 10 more messages need about 15 days.
+        SyncWindowPlanner.recordSearch(MAILBOX_ID, 3, 2 * DateUtils.DAY_IN_MILLIS +
+                DateUtils.DAY_IN_MILLIS / 2, NOW);
+        assertEquals(15 * DateUtils.DAY_IN_MILLIS,
+                SyncWindowPlanner.planExtension(MAILBOX_ID, 10, 0, 0), DateUtils.MINUTE_IN_MILLIS);
+
+        // A previous extension that found messages sets the rate for the next one.
+        assertEquals(30 * DateUtils.DAY_IN_MILLIS, SyncWindowPlanner.planExtension(MAILBOX_ID, 10,
+                5, 10 * DateUtils.DAY_IN_MILLIS), DateUtils.MINUTE_IN_MILLIS);
+
+        // A previous extension that found nothing at least doubles.
+        assertEquals(40 * DateUtils.DAY_IN_MILLIS, SyncWindowPlanner.planExtension(MAILBOX_ID, 10,
+                0, 20 * DateUtils.DAY_IN_MILLIS));
+    }
+}
@@ -18,6 +18,7 @@ package com.android.emailcommon.internet;
 
 import android.content.Context;
 import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.Suppress;
 
 import com.android.email.R;
@@ -27,7 +28,9 @@ import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Body;
 import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.utility.CountingOutputStream;
 
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.james.mime4j.field.Field;
 import org.apache.james.mime4j.message.BodyPart;
 import org.apache.james.mime4j.message.Entity;
@@ -227,6 +230,142 @@ public class Rfc822OutputTests extends ProviderTestCase2<EmailProvider> {
         assertNotNull(header.getField("content-disposition"));
     }
 
+    /**
+     * Confirm that a message with both bodies is written with both when asked to, as is done
+     * for the copy an IMAP APPEND stores on the server, also next to attachments.
+     */
+    @SuppressWarnings("unchecked")
+    public void testWriteToAlternativeBodies() throws IOException, MessagingException {
+        Message msg = new Message();
+        msg.mText = TEXT;
+        msg.mHtml = HTML_NO_BODY_BODY;
+        msg.mFrom = SENDER;
+        msg.save(mMockContext);
+
+        Rfc822Output output = Rfc822Output.prepare(mMockContext, msg, false, true, null);
+        output.setAlternativeBodies(true);
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        output.writeTo(byteStream);
+        assertEquals(byteStream.size(), output.getEncodedSize());
+
+        org.apache.james.mime4j.message.Message mimeMessage =
+            new org.apache.james.mime4j.message.Message(
+                    new ByteArrayInputStream(byteStream.toByteArray()));
+        checkMimeVersion(mimeMessage);
+        assertTrue(mimeMessage.isMultipart());
+        assertEquals("multipart/alternative", mimeMessage.getMimeType());
+        List<BodyPart> partList = ((Multipart) mimeMessage.getBody()).getBodyParts();
+        assertEquals(2, partList.size());
+        assertEquals("text/plain", partList.get(0).getMimeType());
+        assertEquals("text/html", partList.get(1).getMimeType());
+
+        // With an attachment, the alternative is the first part of the mixed message
+        Attachment att = new Attachment();
+        att.mContentBytes = "__CONTENT__".getBytes("UTF-8");
+        att.mMimeType = "application/octet-stream";
+        att.mFileName = "file.bin";
+        att.mMessageKey = msg.mId;
+        att.save(mMockContext);
+        output = Rfc822Output.prepare(mMockContext, msg, false, true, null);
+        output.setAlternativeBodies(true);
+        byteStream = new ByteArrayOutputStream();
+        output.writeTo(byteStream);
+        assertEquals(byteStream.size(), output.getEncodedSize());
+
+        mimeMessage = new org.apache.james.mime4j.message.Message(
+                new ByteArrayInputStream(byteStream.toByteArray()));
+        assertEquals("multipart/mixed", mimeMessage.getMimeType());
+        partList = ((Multipart) mimeMessage.getBody()).getBodyParts();
+        assertEquals(2, partList.size());
+        Entity body = partList.get(0);
+        assertEquals("multipart/alternative", body.getMimeType());
+        List<BodyPart> bodyList = ((Multipart) body.getBody()).getBodyParts();
+        assertEquals(2, bodyList.size());
+        assertEquals("text/plain", bodyList.get(0).getMimeType());
+        assertEquals("text/html", bodyList.get(1).getMimeType());
+        assertEquals("application/octet-stream", partList.get(1).getMimeType());
+    }
+
+    /**
+     * Confirm that the size reported by the dry run matches the bytes actually written.
+     */
+    public void testGetEncodedSize() throws IOException, MessagingException {
+        Message msg = new Message();
+        msg.mText = TEXT;
+        msg.mFrom = SENDER;
+        msg.mTo = RECIPIENT_TO;
+        msg.mSubject = SUBJECT;
+        msg.mAttachments = new ArrayList<Attachment>();
+        for (int i = 0; i < 3; i++) {
+            Attachment att = new Attachment();
+            // Odd lengths exercise the base64 padding and partial last line
+            att.mContentBytes = new byte[1000 * i + i];
+            att.mMimeType = "application/octet-stream";
+            att.mFileName = "file" + i + ".bin";
+            msg.mAttachments.add(att);
+        }
+        msg.save(mMockContext);
+
+        Rfc822Output output = Rfc822Output.prepare(mMockContext, msg, false, false, null);
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        output.writeTo(byteStream);
+        assertEquals(byteStream.size(), output.getEncodedSize());
+    }
+
+    /**
+     * Confirm that the streaming base64 encoder matches the platform encoder, including across
+     * chunk boundaries.
+     */
+    public void testEncodeBase64() {
+        for (int length : new int[] { 0, 1, 2, 3, 56, 57, 58, 114, 1000 }) {
+            byte[] in = new byte[length];
+            for (int i = 0; i < length; i++) {
+                in[i] = (byte) (i * 31);
+            }
+            byte[] out = new byte[Rfc822Output.getBase64Length(length)];
+            int written = Rfc822Output.encodeBase64(in, length, out);
+            assertEquals(out.length, written);
+            byte[] expected = length == 0 ? new byte[0] : android.util.Base64.encode(in,
+                    android.util.Base64.CRLF);
+            assertEquals(new String(expected), new String(out, 0, written));
+        }
+    }
+
+    /**
+     * Benchmark: write a 25 MB message with several attachments, sizing it first as SMTP and
+     * IMAP APPEND do.
+     */
+    @LargeTest
+    public void testWriteToLargeMultiAttachment() throws IOException, MessagingException {
+        Message msg = new Message();
+        msg.mText = TEXT;
+        msg.mFrom = SENDER;
+        msg.mTo = RECIPIENT_TO;
+        msg.mSubject = SUBJECT;
+        msg.save(mMockContext);
+        List<Attachment> attachments = new ArrayList<Attachment>();
+        for (int i = 0; i < 5; i++) {
+            Attachment att = new Attachment();
+            att.mContentBytes = new byte[5 * 1024 * 1024];
+            att.mMimeType = "application/octet-stream";
+            att.mFileName = "large" + i + ".bin";
+            attachments.add(att);
+        }
+
+        long start = System.nanoTime();
+        Rfc822Output output = Rfc822Output.prepare(mMockContext, msg, false, false, attachments);
+        long size = output.getEncodedSize();
+        long sized = System.nanoTime();
+        CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+        output.writeTo(counter);
+        long written = System.nanoTime();
+
+        assertEquals(size, counter.getCount());
+        android.util.Log.d("Rfc822OutputTests", "25MB message: " + size + " bytes, size pass "
+                + (sized - start) / 1000000 + "ms, write pass " + (written - sized) / 1000000
+                + "ms");
+    }
+
     /**
      * Tests various types of HTML reply text -- with full <html/> tags,
      * with just the <body/> tags and without any surrounding tags.
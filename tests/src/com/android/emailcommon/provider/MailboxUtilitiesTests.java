@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.provider;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.email.provider.ContentCache;
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Tests of the parent keys, flags and hierarchical names worked out by {@link MailboxUtilities},
+ * for deep and wide folder trees.  Timings are logged with the tag "MailboxUtilitiesTests".
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.provider.MailboxUtilitiesTests email
+ */
+@MediumTest
+public class MailboxUtilitiesTests extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "MailboxUtilitiesTests";
+    private static final int PARENT_FLAGS = Mailbox.FLAG_HOLDS_MAIL
+            | Mailbox.FLAG_SUPPORTS_SETTINGS | Mailbox.FLAG_ACCEPTS_MOVED_MAIL
+            | Mailbox.FLAG_HAS_CHILDREN | Mailbox.FLAG_CHILDREN_VISIBLE;
+    private static final int LEAF_FLAGS = Mailbox.FLAG_HOLDS_MAIL
+            | Mailbox.FLAG_SUPPORTS_SETTINGS | Mailbox.FLAG_ACCEPTS_MOVED_MAIL;
+
+    private Context mMockContext;
+    private Account mAccount;
+
+    public MailboxUtilitiesTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        // Invalidate all caches, since we reset the database for each test
+        ContentCache.invalidateAllCaches();
+        mAccount = ProviderTestUtils.setupAccount("tree", true, mMockContext);
+    }
+
+    /**
+     * Save a mailbox, as a sync adapter would, with an uninitialized parent key.
+     * @param serverId the path of the mailbox, e.g. "a/b/c"
+     */
+    private Mailbox addMailbox(final Account account, final String serverId) {
+        final Mailbox mailbox =
+                ProviderTestUtils.setupMailbox(serverId, account.mId, false, mMockContext);
+        final int delimiter = serverId.lastIndexOf('/');
+        mailbox.mParentServerId = delimiter < 0 ? null : serverId.substring(0, delimiter);
+        mailbox.mParentKey = Mailbox.PARENT_KEY_UNINITIALIZED;
+        mailbox.mFlags = 0;
+        mailbox.save(mMockContext);
+        return mailbox;
+    }
+
+    private static String getAccountSelector(final Account account) {
+        return Mailbox.ACCOUNT_KEY + "=" + account.mId;
+    }
+
+    private void fixup(final Account account) {
+        final long start = SystemClock.elapsedRealtime();
+        MailboxUtilities.fixupUninitializedParentKeys(mMockContext, getAccountSelector(account));
+        MailboxUtilities.setupHierarchicalNames(mMockContext, account.mId);
+        LogUtils.i(TAG, "Fixed up %s in %dms", getName(), SystemClock.elapsedRealtime() - start);
+    }
+
+    private void assertMailbox(final Mailbox expected, final long parentKey, final int flags,
+            final String hierarchicalName) {
+        final Mailbox mailbox = Mailbox.restoreMailboxWithId(mMockContext, expected.mId);
+        assertEquals(expected.mServerId, parentKey, mailbox.mParentKey);
+        assertEquals(expected.mServerId, flags, mailbox.mFlags);
+        assertEquals(expected.mServerId, hierarchicalName, mailbox.mHierarchicalName);
+    }
+
+    private void assertNothingToUpdate(final Account account) {
+        final MailboxUtilities.MailboxTree tree =
+                MailboxUtilities.MailboxTree.load(mMockContext, getAccountSelector(account));
+        tree.fixupUninitializedParentKeys();
+        tree.setupHierarchicalNames();
+        assertEquals(0, tree.getUpdates().size());
+    }
+
+    public void testDeepTree() {
+        final int depth = 40;
+        final Mailbox[] chain = new Mailbox[depth];
+        final StringBuilder path = new StringBuilder();
+        // Children first, so that no parent is initialized before its child is seen
+        final String[] paths = new String[depth];
+        for (int i = 0; i < depth; i++) {
+            if (i > 0) {
+                path.append('/');
+            }
+            path.append("level").append(i);
+            paths[i] = path.toString();
+        }
+        for (int i = depth - 1; i >= 0; i--) {
+            chain[i] = addMailbox(mAccount, paths[i]);
+        }
+
+        fixup(mAccount);
+
+        // Top-level mailboxes have no hierarchical name
+        assertMailbox(chain[0], Mailbox.NO_MAILBOX, PARENT_FLAGS, null);
+        for (int i = 1; i < depth - 1; i++) {
+            assertMailbox(chain[i], chain[i - 1].mId, PARENT_FLAGS, paths[i]);
+        }
+        assertMailbox(chain[depth - 1], chain[depth - 2].mId, LEAF_FLAGS, paths[depth - 1]);
+        assertNothingToUpdate(mAccount);
+    }
+
+    public void testWideTree() {
+        final int width = 300;
+        final Mailbox root = addMailbox(mAccount, "root");
+        final Mailbox[] children = new Mailbox[width];
+        final Mailbox[] grandchildren = new Mailbox[width];
+        for (int i = 0; i < width; i++) {
+            children[i] = addMailbox(mAccount, "root/child" + i);
+            grandchildren[i] = addMailbox(mAccount, "root/child" + i + "/leaf");
+        }
+
+        fixup(mAccount);
+
+        assertMailbox(root, Mailbox.NO_MAILBOX, PARENT_FLAGS, null);
+        for (int i = 0; i < width; i++) {
+            assertMailbox(children[i], root.mId, PARENT_FLAGS, "root/child" + i);
+            assertMailbox(grandchildren[i], children[i].mId, LEAF_FLAGS,
+                    "root/child" + i + "/leaf");
+        }
+        assertNothingToUpdate(mAccount);
+    }
+
+    public void testNewChildOfInitializedParent() {
+        final Mailbox parent = addMailbox(mAccount, "parent");
+        fixup(mAccount);
+        assertMailbox(parent, Mailbox.NO_MAILBOX, LEAF_FLAGS, null);
+
+        // A folder added later marks its parent as having children
+        final Mailbox child = addMailbox(mAccount, "parent/child");
+        fixup(mAccount);
+        assertMailbox(parent, Mailbox.NO_MAILBOX, PARENT_FLAGS, null);
+        assertMailbox(child, parent.mId, LEAF_FLAGS, "parent/child");
+    }
+
+    public void testMailboxWithoutServerId() {
+        final Mailbox outbox = ProviderTestUtils.setupMailbox("outbox", mAccount.mId, false,
+                mMockContext, Mailbox.TYPE_OUTBOX);
+        outbox.mServerId = null;
+        outbox.mParentServerId = null;
+        outbox.mParentKey = Mailbox.PARENT_KEY_UNINITIALIZED;
+        outbox.save(mMockContext);
+
+        fixup(mAccount);
+        assertMailbox(outbox, Mailbox.NO_MAILBOX, Mailbox.FLAG_HOLDS_MAIL
+                | Mailbox.FLAG_SUPPORTS_SETTINGS, null);
+    }
+
+    public void testAccountsWithSameFolders() {
+        final Account other = ProviderTestUtils.setupAccount("other", true, mMockContext);
+        final Mailbox parent = addMailbox(mAccount, "parent");
+        final Mailbox child = addMailbox(mAccount, "parent/child");
+        final Mailbox otherParent = addMailbox(other, "parent");
+        final Mailbox otherChild = addMailbox(other, "parent/child");
+
+        MailboxUtilities.fixupUninitializedParentKeys(mMockContext,
+                Mailbox.ACCOUNT_KEY + " IN (" + mAccount.mId + "," + other.mId + ")");
+
+        // Each child's parent is in its own account
+        assertEquals(parent.mId,
+                Mailbox.restoreMailboxWithId(mMockContext, child.mId).mParentKey);
+        assertEquals(otherParent.mId,
+                Mailbox.restoreMailboxWithId(mMockContext, otherChild.mId).mParentKey);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.mail.utils.LogUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the connections shared by {@link ServiceProxy}s, with a context that "binds" to an
+ * in-process binder.  Call latency and throughput are logged with the tag "ServiceProxyTests".
+ */
+@MediumTest
+public class ServiceProxyTests extends AndroidTestCase {
+    private static final String TAG = "ServiceProxyTests";
+    private static final long TASK_MILLIS = 50;
+
+    private FakeContext mContext;
+    private Intent mIntent;
+
+    /**
+     * Connects every binding to a local binder, as the system would (on the main thread).
+     */
+    private static class FakeContext extends ContextWrapper {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        final AtomicInteger mBindCount = new AtomicInteger();
+        final AtomicInteger mUnbindCount = new AtomicInteger();
+        volatile ServiceConnection mConnection;
+        /** Whether bindings succeed but never connect, as if the service died while binding */
+        volatile boolean mNeverConnect;
+
+        FakeContext(final Context base) {
+            super(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public boolean bindService(final Intent service, final ServiceConnection conn,
+                final int flags) {
+            mBindCount.incrementAndGet();
+            mConnection = conn;
+            if (mNeverConnect) {
+                return true;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    conn.onServiceConnected(new ComponentName("test", "test"), new Binder());
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void unbindService(final ServiceConnection conn) {
+            mUnbindCount.incrementAndGet();
+        }
+    }
+
+    private static class TestProxy extends ServiceProxy {
+        private IBinder mBinder;
+
+        TestProxy(final Context context, final Intent intent) {
+            super(context, intent);
+        }
+
+        @Override
+        public void onConnected(final IBinder binder) {
+            mBinder = binder;
+        }
+
+        /**
+         * Make a call that takes {@link #TASK_MILLIS}, and wait for it.
+         */
+        boolean call() {
+            setTask(new ProxyTask() {
+                @Override
+                public void run() {
+                    SystemClock.sleep(TASK_MILLIS);
+                }
+            }, "call");
+            waitForCompletion();
+            return mBinder != null;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new FakeContext(getContext());
+        // Connections are shared by intent, so each test gets its own
+        mIntent = new Intent(TAG + "." + getName());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ServiceProxy.setIdleTimeout(30 * 1000);
+        super.tearDown();
+    }
+
+    public void testConnectionIsShared() {
+        final int calls = 10;
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < calls; i++) {
+            assertTrue(new TestProxy(mContext, mIntent).call());
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        LogUtils.i(TAG, "%d consecutive calls: %.1fms per call, %dms of it in the task",
+                calls, (double) elapsed / calls, TASK_MILLIS);
+        assertEquals(1, mContext.mBindCount.get());
+        assertEquals(0, mContext.mUnbindCount.get());
+    }
+
+    public void testIdleUnbind() {
+        ServiceProxy.setIdleTimeout(100);
+        assertTrue(new TestProxy(mContext, mIntent).call());
+        SystemClock.sleep(500);
+        assertEquals(1, mContext.mUnbindCount.get());
+
+        // The next call binds again
+        assertTrue(new TestProxy(mContext, mIntent).call());
+        assertEquals(2, mContext.mBindCount.get());
+    }
+
+    public void testRebindAfterDisconnect() {
+        assertTrue(new TestProxy(mContext, mIntent).call());
+        // As if the service's process died
+        mContext.mConnection.onServiceDisconnected(new ComponentName("test", "test"));
+        assertEquals(1, mContext.mUnbindCount.get());
+
+        assertTrue(new TestProxy(mContext, mIntent).call());
+        assertEquals(2, mContext.mBindCount.get());
+    }
+
+    public void testNeverConnected() {
+        mContext.mNeverConnect = true;
+        final TestProxy proxy = new TestProxy(mContext, mIntent);
+        proxy.setTimeout(1);
+        assertFalse(proxy.call());
+        // The dead binding was dropped, not left for the next callers to queue behind
+        assertEquals(1, mContext.mUnbindCount.get());
+
+        mContext.mNeverConnect = false;
+        assertTrue(new TestProxy(mContext, mIntent).call());
+        assertEquals(2, mContext.mBindCount.get());
+    }
+
+    public void testParallelCallers() throws InterruptedException {
+        final int threadCount = 8;
+        final int callsPerThread = 5;
+        final AtomicInteger succeeded = new AtomicInteger();
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < callsPerThread; j++) {
+                        if (new TestProxy(mContext, mIntent).call()) {
+                            succeeded.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+        final long start = SystemClock.elapsedRealtime();
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        final int calls = threadCount * callsPerThread;
+        LogUtils.i(TAG, "%d calls from %d threads in %dms: %.1f calls/s", calls, threadCount,
+                elapsed, calls * 1000.0 / elapsed);
+
+        assertEquals(calls, succeeded.get());
+        assertEquals(1, mContext.mBindCount.get());
+        // One at a time, the calls would take at least this long
+        assertTrue(elapsed < calls * TASK_MILLIS);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@SmallTest
+public class AttachmentContentStoreTests extends AndroidTestCase {
+    private File mWorkDir;
+    private File mStoreDir;
+    private AttachmentContentStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWorkDir = new File(getContext().getCacheDir(), "AttachmentContentStoreTests");
+        mStoreDir = new File(mWorkDir, "store");
+        deleteAll(mWorkDir);
+        mWorkDir.mkdirs();
+        // In-memory, so each test starts empty
+        mStore = new AttachmentContentStore(getContext(), null, mStoreDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(mWorkDir);
+        super.tearDown();
+    }
+
+    private static void deleteAll(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                deleteAll(file);
+            }
+        }
+        dir.delete();
+    }
+
+    private File writeFile(final String name, final String content) throws IOException {
+        final File file = new File(mWorkDir, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public void testHashFile() throws IOException {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d",
+                AttachmentContentStore.hashFile(writeFile("abc", "abc")));
+    }
+
+    public void testDeduplication() throws IOException {
+        final File first = writeFile("1", "same content");
+        final File second = writeFile("2", "same content");
+        final File other = writeFile("3", "other content");
+
+        final File blob1 = mStore.store(1, 1, 100, null, "a.pdf", first);
+        final File blob2 = mStore.store(2, 2, 100, null, "a.pdf", second);
+        final File blob3 = mStore.store(1, 3, 100, null, "b.pdf", other);
+        assertEquals(blob1, blob2);
+        assertFalse(blob1.equals(blob3));
+        assertFalse(first.exists());
+        assertFalse(second.exists());
+        assertEquals(2, mStoreDir.listFiles().length);
+        assertEquals(blob1, mStore.getFile(2));
+
+        // Content is kept until its last attachment goes
+        mStore.release(Arrays.asList(1L));
+        assertTrue(blob1.exists());
+        assertNull(mStore.getFile(1));
+        mStore.release(Arrays.asList(2L, 99L));
+        assertFalse(blob1.exists());
+        assertTrue(blob3.exists());
+
+        mStore.releaseAccount(1);
+        assertFalse(blob3.exists());
+    }
+
+    public void testLinkByHint() throws IOException {
+        final File blob = mStore.store(1, 1, 100, "cid1", "logo.png",
+                writeFile("1", "logo"));
+
+        // Everything in the hint has to match
+        assertNull(mStore.linkByHint(1, 2, 101, "cid1", "logo.png"));
+        assertNull(mStore.linkByHint(1, 2, 100, "cid2", "logo.png"));
+        assertNull(mStore.linkByHint(1, 2, 100, null, "logo.png"));
+        assertNull(mStore.linkByHint(1, 2, 100, "cid1", "other.png"));
+        // Not enough to go on
+        assertNull(mStore.linkByHint(1, 2, 0, "cid1", "logo.png"));
+        // Never across accounts
+        assertNull(mStore.linkByHint(2, 2, 100, "cid1", "logo.png"));
+
+        assertEquals(blob, mStore.linkByHint(1, 2, 100, "cid1", "logo.png"));
+        assertEquals(blob, mStore.getFile(2));
+        mStore.release(Arrays.asList(1L));
+        assertTrue(blob.exists());
+        mStore.release(Arrays.asList(2L));
+        assertFalse(blob.exists());
+    }
+
+    public void testLinkByHintWithoutContentId() throws IOException {
+        mStore.store(1, 1, 100, null, "report.pdf", writeFile("1", "report"));
+
+        // Attachments without a content id are only shared once downloaded and hashed
+        assertNull(mStore.linkByHint(1, 2, 100, null, "report.pdf"));
+        assertNull(mStore.getFile(2));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@SmallTest
+public class AttachmentStorageLedgerTests extends AndroidTestCase {
+    private AttachmentStorageLedger mLedger;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // In-memory, so each test starts empty
+        mLedger = new AttachmentStorageLedger(getContext(), null);
+    }
+
+    public void testAccountBytes() {
+        assertEquals(0, mLedger.getAccountBytes(1));
+        mLedger.recordSave(1, 10, 100, true, 1000);
+        mLedger.recordSave(1, 11, 200, false, 1000);
+        mLedger.recordSave(2, 12, 400, true, 1000);
+        assertEquals(300, mLedger.getAccountBytes(1));
+        assertEquals(400, mLedger.getAccountBytes(2));
+
+        // Saving the same attachment again replaces it
+        mLedger.recordSave(1, 10, 150, true, 2000);
+        assertEquals(350, mLedger.getAccountBytes(1));
+
+        mLedger.recordDeleted(1, Arrays.asList(10L, 99L));
+        assertEquals(200, mLedger.getAccountBytes(1));
+
+        mLedger.recordAccountDeleted(2);
+        assertEquals(0, mLedger.getAccountBytes(2));
+    }
+
+    public void testEvictionOrder() {
+        mLedger.recordSave(1, 10, 100, true, 1000);
+        mLedger.recordSave(1, 11, 100, true, 2000);
+        mLedger.recordSave(1, 12, 100, true, 3000);
+        // Not prefetched, so never evicted
+        mLedger.recordSave(1, 13, 100, false, 500);
+        // Viewing makes it the most recently used
+        mLedger.recordViewed(10, 4000);
+
+        List<Long> evict = mLedger.getEvictionCandidates(1, 150);
+        assertEquals(Arrays.asList(11L, 12L), evict);
+        evict = mLedger.getEvictionCandidates(1, 1000);
+        assertEquals(Arrays.asList(11L, 12L, 10L), evict);
+
+        mLedger.recordEvicted(1, Arrays.asList(11L, 12L));
+        assertEquals(200, mLedger.getAccountBytes(1));
+        assertEquals(Collections.singleton(11L),
+                mLedger.getEvicted(Arrays.asList(10L, 11L, 99L)));
+        assertEquals(Arrays.asList(10L), mLedger.getEvictionCandidates(1, 1000));
+
+        // Downloading an evicted attachment again (e.g. at the user's request) brings it back
+        mLedger.recordSave(1, 11, 100, false, 5000);
+        assertTrue(mLedger.getEvicted(Arrays.asList(11L)).isEmpty());
+        assertEquals(300, mLedger.getAccountBytes(1));
+    }
+}